@@ -0,0 +1,95 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package android.app;
+
+import android.content.Context;
+import android.os.Process;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+@LargeTest
+public class AppOpsPerfTest {
+    private static final int CONTENDING_THREADS = 4;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    private AppOpsManager mAppOps;
+    private String mPackageName;
+
+    @Before
+    public void setUp() {
+        final Context context = InstrumentationRegistry.getTargetContext();
+        mAppOps = context.getSystemService(AppOpsManager.class);
+        mPackageName = context.getPackageName();
+    }
+
+    @Test
+    public void timeCheckOp() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final int uid = Process.myUid();
+        while (state.keepRunning()) {
+            mAppOps.checkOpNoThrow(AppOpsManager.OP_WAKE_LOCK, uid, mPackageName);
+        }
+    }
+
+    @Test
+    public void timeNoteOp() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final int uid = Process.myUid();
+        while (state.keepRunning()) {
+            mAppOps.noteOpNoThrow(AppOpsManager.OP_WAKE_LOCK, uid, mPackageName);
+        }
+    }
+
+    @Test
+    public void timeCheckOpContended() throws Exception {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final int uid = Process.myUid();
+        final Thread[] threads = new Thread[CONTENDING_THREADS];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                while (!Thread.interrupted()) {
+                    mAppOps.noteOpNoThrow(AppOpsManager.OP_WAKE_LOCK, uid, mPackageName);
+                    mAppOps.checkOpNoThrow(AppOpsManager.OP_WAKE_LOCK, uid, mPackageName);
+                }
+            });
+            threads[i].start();
+        }
+        try {
+            while (state.keepRunning()) {
+                mAppOps.checkOpNoThrow(AppOpsManager.OP_WAKE_LOCK, uid, mPackageName);
+            }
+        } finally {
+            for (Thread thread : threads) {
+                thread.interrupt();
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        }
+    }
+}
@@ -28,6 +28,7 @@ import org.junit.runner.RunWith;
 import org.junit.runners.Parameterized;
 import org.junit.runners.Parameterized.Parameters;
 
+import java.nio.ByteBuffer;
 import java.util.Arrays;
 import java.util.Collection;
 
@@ -39,7 +40,7 @@ public class ParcelArrayPerfTest {
 
     @Parameters(name = "size={0}")
     public static Collection<Object[]> data() {
-        return Arrays.asList(new Object[][] { {1}, {10}, {100}, {1000} });
+        return Arrays.asList(new Object[][] { {1}, {10}, {100}, {1000}, {10000} });
     }
 
     private final int mSize;
@@ -49,6 +50,7 @@ public class ParcelArrayPerfTest {
     private byte[] mByteArray;
     private int[] mIntArray;
     private long[] mLongArray;
+    private ByteBuffer mDirectBuffer;
 
     private Parcel mByteParcel;
     private Parcel mIntParcel;
@@ -65,6 +67,7 @@ public class ParcelArrayPerfTest {
         mByteArray = new byte[mSize];
         mIntArray = new int[mSize];
         mLongArray = new long[mSize];
+        mDirectBuffer = ByteBuffer.allocateDirect(mSize);
 
         mByteParcel = Parcel.obtain();
         mByteParcel.writeByteArray(mByteArray);
@@ -107,6 +110,35 @@ public class ParcelArrayPerfTest {
         }
     }
 
+    @Test
+    public void timeWriteByteBuffer() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mWriteParcel.setDataPosition(0);
+            mDirectBuffer.clear();
+            mWriteParcel.writeByteBuffer(mDirectBuffer);
+        }
+    }
+
+    @Test
+    public void timeReadByteBuffer() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mByteParcel.setDataPosition(0);
+            mDirectBuffer.clear();
+            mByteParcel.readByteBuffer(mDirectBuffer);
+        }
+    }
+
+    @Test
+    public void timeReadByteBufferView() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mByteParcel.setDataPosition(0);
+            mByteParcel.readByteBufferView();
+        }
+    }
+
     @Test
     public void timeWriteIntArray() {
         final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
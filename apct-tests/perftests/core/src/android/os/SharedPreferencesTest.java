@@ -16,6 +16,7 @@
 
 package android.os;
 
+import android.app.QueuedWork;
 import android.content.Context;
 import android.content.SharedPreferences;
 import android.perftests.utils.BenchmarkState;
@@ -31,6 +32,8 @@ import org.junit.runner.RunWith;
 @RunWith(AndroidJUnit4.class)
 @LargeTest
 public class SharedPreferencesTest {
+    private static final int LARGE_MAP_SIZE = 2000;
+
     @Rule
     public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
 
@@ -44,4 +47,50 @@ public class SharedPreferencesTest {
             prefs = context.getSharedPreferences("test", Context.MODE_PRIVATE);
         }
     }
+
+    @Test
+    public void timeCommitSingleKeyLargeMap() {
+        timeSingleKeyUpdates("test_large", Context.MODE_PRIVATE, true);
+    }
+
+    @Test
+    public void timeCommitSingleKeyLargeMapJournaled() {
+        timeSingleKeyUpdates("test_large_journaled", Context.MODE_JOURNALED, true);
+    }
+
+    @Test
+    public void timeApplySingleKeyLargeMap() {
+        timeSingleKeyUpdates("test_large", Context.MODE_PRIVATE, false);
+    }
+
+    @Test
+    public void timeApplySingleKeyLargeMapJournaled() {
+        timeSingleKeyUpdates("test_large_journaled", Context.MODE_JOURNALED, false);
+    }
+
+    private void timeSingleKeyUpdates(String name, int mode, boolean commit) {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final Context context = InstrumentationRegistry.getTargetContext();
+        context.deleteSharedPreferences(name);
+        final SharedPreferences prefs = context.getSharedPreferences(name, mode);
+
+        final SharedPreferences.Editor populate = prefs.edit();
+        for (int i = 0; i < LARGE_MAP_SIZE; i++) {
+            populate.putString("key_" + i, "value_" + i);
+        }
+        populate.commit();
+
+        int i = 0;
+        while (state.keepRunning()) {
+            final SharedPreferences.Editor editor = prefs.edit().putInt("counter", i++);
+            if (commit) {
+                editor.commit();
+            } else {
+                editor.apply();
+                // Include the disk write, which is what differs between the backends
+                QueuedWork.waitToFinish();
+            }
+        }
+        context.deleteSharedPreferences(name);
+    }
 }
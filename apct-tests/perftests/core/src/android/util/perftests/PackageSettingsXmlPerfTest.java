@@ -0,0 +1,165 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+
+package android.util.perftests;
+
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.filters.LargeTest;
+
+import com.android.internal.util.XmlUtils;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Compares text and binary XML on a document shaped like the package manager's
+ * packages.xml: one {@code <package>} per installed app, each carrying its install
+ * permissions and signatures.
+ */
+@RunWith(Parameterized.class)
+@LargeTest
+public class PackageSettingsXmlPerfTest {
+    private static final String[] PERMISSIONS = new String[] {
+            "android.permission.INTERNET",
+            "android.permission.ACCESS_NETWORK_STATE",
+            "android.permission.WAKE_LOCK",
+            "android.permission.VIBRATE",
+            "android.permission.RECEIVE_BOOT_COMPLETED",
+            "android.permission.FOREGROUND_SERVICE",
+            "android.permission.ACCESS_WIFI_STATE",
+            "android.permission.CHANGE_NETWORK_STATE",
+            "com.google.android.c2dm.permission.RECEIVE",
+            "android.permission.USE_FINGERPRINT",
+    };
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    @Parameters(name = "binary={0}")
+    public static Collection<Object[]> data() {
+        return Arrays.asList(new Object[][] { {false}, {true} });
+    }
+
+    private final boolean mBinary;
+    private byte[] mDocument;
+
+    public PackageSettingsXmlPerfTest(boolean binary) {
+        mBinary = binary;
+    }
+
+    @Before
+    public void setUp() throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        writeDocument(out, 400);
+        mDocument = out.toByteArray();
+    }
+
+    @Test
+    public void timeWrite() throws Exception {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream(mDocument.length);
+        while (state.keepRunning()) {
+            out.reset();
+            writeDocument(out, 400);
+        }
+    }
+
+    /**
+     * Writing a single package as a standalone document, which is what a package change
+     * appends to the packages journal instead of rewriting the whole document.
+     */
+    @Test
+    public void timeWriteJournalRecord() throws Exception {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        while (state.keepRunning()) {
+            out.reset();
+            final XmlSerializer serializer = XmlUtils.resolveSerializer(out, mBinary);
+            serializer.startDocument(null, true);
+            writePackage(serializer, 0);
+            serializer.endDocument();
+        }
+    }
+
+    @Test
+    public void timeRead() throws Exception {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            final XmlPullParser parser = XmlUtils.resolvePullParser(
+                    new ByteArrayInputStream(mDocument));
+            int type;
+            while ((type = parser.next()) != XmlPullParser.END_DOCUMENT) {
+                if (type == XmlPullParser.START_TAG) {
+                    parser.getAttributeValue(null, "name");
+                }
+            }
+        }
+    }
+
+    private void writeDocument(ByteArrayOutputStream out, int packageCount) throws IOException {
+        final XmlSerializer serializer = XmlUtils.resolveSerializer(out, mBinary);
+        serializer.startDocument(null, true);
+        serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
+        serializer.startTag(null, "packages");
+        for (int i = 0; i < packageCount; i++) {
+            writePackage(serializer, i);
+        }
+        serializer.endTag(null, "packages");
+        serializer.endDocument();
+    }
+
+    private static void writePackage(XmlSerializer serializer, int i) throws IOException {
+        final String name = "com.example.app" + i;
+        serializer.startTag(null, "package");
+        serializer.attribute(null, "name", name);
+        serializer.attribute(null, "codePath", "/data/app/" + name + "-1");
+        serializer.attribute(null, "publicFlags", "940096582");
+        serializer.attribute(null, "privateFlags", "0");
+        serializer.attribute(null, "ft", Long.toHexString(1500000000000L + i));
+        serializer.attribute(null, "version", Integer.toString(i));
+        serializer.attribute(null, "userId", Integer.toString(10000 + i));
+        serializer.attribute(null, "installer", "com.android.vending");
+        serializer.startTag(null, "sigs");
+        serializer.attribute(null, "count", "1");
+        serializer.startTag(null, "cert");
+        serializer.attribute(null, "index", Integer.toString(i % 20));
+        serializer.endTag(null, "cert");
+        serializer.endTag(null, "sigs");
+        serializer.startTag(null, "perms");
+        for (String perm : PERMISSIONS) {
+            serializer.startTag(null, "item");
+            serializer.attribute(null, "name", perm);
+            serializer.attribute(null, "granted", "true");
+            serializer.attribute(null, "flags", "0");
+            serializer.endTag(null, "item");
+        }
+        serializer.endTag(null, "perms");
+        serializer.endTag(null, "package");
+    }
+}
@@ -1002,6 +1002,24 @@ public final class ActivityThread {
                     sticky, sendingUser);
         }
 
+        @Override
+        public void scheduleRegisteredReceivers(List<IBinder> receivers, Intent intent,
+                int resultCode, String dataStr, Bundle extras, boolean sticky,
+                int sendingUser, int processState) throws RemoteException {
+            updateProcessState(processState, false);
+            final int N = receivers.size();
+            for (int i = 0; i < N; i++) {
+                // Each receiver gets its own copy, as it would from separate transactions;
+                // the last one can take the unparceled objects themselves.
+                final boolean last = i == N - 1;
+                final IIntentReceiver receiver = IIntentReceiver.Stub.asInterface(
+                        receivers.get(i));
+                receiver.performReceive(last ? intent : new Intent(intent), resultCode,
+                        dataStr, (last || extras == null) ? extras : new Bundle(extras),
+                        false, sticky, sendingUser);
+            }
+        }
+
         @Override
         public void scheduleLowMemory() {
             sendMessage(H.LOW_MEMORY, null);
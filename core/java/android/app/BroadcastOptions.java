@@ -32,6 +32,7 @@ public class BroadcastOptions {
     private long mTemporaryAppWhitelistDuration;
     private int mMinManifestReceiverApiLevel = 0;
     private int mMaxManifestReceiverApiLevel = Build.VERSION_CODES.CUR_DEVELOPMENT;
+    private String mCoalescingKey;
 
     /**
      * How long to temporarily put an app on the power whitelist when executing this broadcast
@@ -52,6 +53,11 @@ public class BroadcastOptions {
     static final String KEY_MAX_MANIFEST_RECEIVER_API_LEVEL
             = "android:broadcast.maxManifestReceiverApiLevel";
 
+    /**
+     * Corresponds to {@link #setCoalescingKey}.
+     */
+    static final String KEY_COALESCING_KEY = "android:broadcast.coalescingKey";
+
     public static BroadcastOptions makeBasic() {
         BroadcastOptions opts = new BroadcastOptions();
         return opts;
@@ -66,6 +72,7 @@ public class BroadcastOptions {
         mMinManifestReceiverApiLevel = opts.getInt(KEY_MIN_MANIFEST_RECEIVER_API_LEVEL, 0);
         mMaxManifestReceiverApiLevel = opts.getInt(KEY_MAX_MANIFEST_RECEIVER_API_LEVEL,
                 Build.VERSION_CODES.CUR_DEVELOPMENT);
+        mCoalescingKey = opts.getString(KEY_COALESCING_KEY);
     }
 
     /**
@@ -122,6 +129,28 @@ public class BroadcastOptions {
         return mMaxManifestReceiverApiLevel;
     }
 
+    /**
+     * Mark the broadcast as carrying state, where only the most recent value matters to a
+     * receiver.  A broadcast with the same coalescing key, sent by the same uid to the same
+     * user, that has not yet started being dispatched is replaced by this one instead of both
+     * being delivered, as long as its intent is {@link android.content.Intent#filterEquals}
+     * to this one and it resolved to exactly the same receivers.  Broadcasts of one action
+     * that describe different things, for example different network types, should use
+     * different keys.
+     * @hide
+     */
+    public void setCoalescingKey(String key) {
+        mCoalescingKey = key;
+    }
+
+    /**
+     * Return {@link #setCoalescingKey}.
+     * @hide
+     */
+    public String getCoalescingKey() {
+        return mCoalescingKey;
+    }
+
     /**
      * Returns the created options as a Bundle, which can be passed to
      * {@link android.content.Context#sendBroadcast(android.content.Intent)
@@ -141,6 +170,9 @@ public class BroadcastOptions {
         if (mMaxManifestReceiverApiLevel != Build.VERSION_CODES.CUR_DEVELOPMENT) {
             b.putInt(KEY_MAX_MANIFEST_RECEIVER_API_LEVEL, mMaxManifestReceiverApiLevel);
         }
+        if (mCoalescingKey != null) {
+            b.putString(KEY_COALESCING_KEY, mCoalescingKey);
+        }
         return b.isEmpty() ? null : b;
     }
 }
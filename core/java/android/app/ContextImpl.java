@@ -498,6 +498,7 @@ class ContextImpl extends Context {
         synchronized (ContextImpl.class) {
             final File prefs = getSharedPreferencesPath(name);
             final File prefsBackup = SharedPreferencesImpl.makeBackupFile(prefs);
+            final File prefsJournal = SharedPreferencesJournal.makeJournalFile(prefs);
 
             // Evict any in-memory caches
             final ArrayMap<File, SharedPreferencesImpl> cache = getSharedPreferencesCacheLocked();
@@ -505,9 +506,10 @@ class ContextImpl extends Context {
 
             prefs.delete();
             prefsBackup.delete();
+            prefsJournal.delete();
 
             // We failed if files are still lingering
-            return !(prefs.exists() || prefsBackup.exists());
+            return !(prefs.exists() || prefsBackup.exists() || prefsJournal.exists());
         }
     }
 
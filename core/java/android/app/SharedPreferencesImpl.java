@@ -17,6 +17,7 @@
 package android.app;
 
 import android.annotation.Nullable;
+import android.content.Context;
 import android.content.SharedPreferences;
 import android.os.FileUtils;
 import android.os.Looper;
@@ -67,6 +68,7 @@ final class SharedPreferencesImpl implements SharedPreferences {
 
     private final File mFile;
     private final File mBackupFile;
+    private final File mJournalFile;
     private final int mMode;
     private final Object mLock = new Object();
     private final Object mWritingToDiskLock = new Object();
@@ -103,9 +105,40 @@ final class SharedPreferencesImpl implements SharedPreferences {
     private final ExponentiallyBucketedHistogram mSyncTimes = new ExponentiallyBucketedHistogram(16);
     private int mNumSync = 0;
 
+    /** Delta log used instead of the XML file if opened with {@link Context#MODE_JOURNALED} */
+    @GuardedBy("mWritingToDiskLock")
+    @Nullable
+    private final SharedPreferencesJournal mJournal;
+
+    /** Whether a background compaction of {@link #mJournal} has been queued */
+    @GuardedBy("mWritingToDiskLock")
+    private boolean mCompactionQueued;
+
+    /**
+     * Copy of the last map written to {@link #mJournal} while a compaction is queued. Never
+     * contains commits that are still waiting to be written.
+     */
+    @GuardedBy("mWritingToDiskLock")
+    @Nullable
+    private Map<String, Object> mCompactionMap;
+
+    /** Whether the prefs were loaded from a journal left behind by a journaled instance */
+    private volatile boolean mHasStaleJournal;
+
+    private final Runnable mCompactJournalRunnable = new Runnable() {
+            public void run() {
+                synchronized (mWritingToDiskLock) {
+                    compactJournal();
+                }
+            }
+        };
+
     SharedPreferencesImpl(File file, int mode) {
         mFile = file;
         mBackupFile = makeBackupFile(file);
+        mJournalFile = SharedPreferencesJournal.makeJournalFile(file);
+        mJournal = (mode & Context.MODE_JOURNALED) != 0
+                ? new SharedPreferencesJournal(mJournalFile) : null;
         mMode = mode;
         mLoaded = false;
         mMap = null;
@@ -134,6 +167,16 @@ final class SharedPreferencesImpl implements SharedPreferences {
             }
         }
 
+        // A journal wins over the XML file for journaled prefs, and is only used to migrate
+        // back if there is no XML file otherwise.
+        final boolean useJournal = mJournalFile.exists()
+                && (mJournal != null || !mFile.exists());
+        mHasStaleJournal = useJournal && mJournal == null;
+        if (useJournal) {
+            loadFromJournal();
+            return;
+        }
+
         // Debugging
         if (mFile.exists() && !mFile.canRead()) {
             Log.w(TAG, "Attempt to read preferences file " + mFile + " without permission");
@@ -172,6 +215,33 @@ final class SharedPreferencesImpl implements SharedPreferences {
         }
     }
 
+    private void loadFromJournal() {
+        final SharedPreferencesJournal journal = mJournal != null
+                ? mJournal : new SharedPreferencesJournal(mJournalFile);
+        Map<String, Object> map = null;
+        StructStat stat = null;
+        try {
+            stat = Os.stat(mJournalFile.getPath());
+            synchronized (mWritingToDiskLock) {
+                map = journal.read();
+            }
+        } catch (ErrnoException | IOException e) {
+            Log.w(TAG, "Cannot read " + mJournalFile.getAbsolutePath(), e);
+        }
+
+        synchronized (mLock) {
+            mLoaded = true;
+            if (map != null) {
+                mMap = map;
+                mStatTimestamp = stat.st_mtim;
+                mStatSize = stat.st_size;
+            } else {
+                mMap = new HashMap<>();
+            }
+            mLock.notifyAll();
+        }
+    }
+
     static File makeBackupFile(File prefsFile) {
         return new File(prefsFile.getPath() + ".bak");
     }
@@ -204,7 +274,7 @@ final class SharedPreferencesImpl implements SharedPreferences {
              * violation, but we explicitly want this one.
              */
             BlockGuard.getThreadPolicy().onReadFromDisk();
-            stat = Os.stat(mFile.getPath());
+            stat = Os.stat(mJournal != null ? mJournalFile.getPath() : mFile.getPath());
         } catch (ErrnoException e) {
             return true;
         }
@@ -324,6 +394,10 @@ final class SharedPreferencesImpl implements SharedPreferences {
         @Nullable final List<String> keysModified;
         @Nullable final Set<OnSharedPreferenceChangeListener> listeners;
         final Map<String, Object> mapToWriteToDisk;
+        /** Keys to append to the journal, only set for journaled prefs */
+        @Nullable final Set<String> keysToJournal;
+        /** Whether the map was cleared before {@link #keysToJournal} were applied */
+        final boolean clearedMap;
         final CountDownLatch writtenToDiskLatch = new CountDownLatch(1);
 
         @GuardedBy("mWritingToDiskLock")
@@ -332,11 +406,14 @@ final class SharedPreferencesImpl implements SharedPreferences {
 
         private MemoryCommitResult(long memoryStateGeneration, @Nullable List<String> keysModified,
                 @Nullable Set<OnSharedPreferenceChangeListener> listeners,
-                Map<String, Object> mapToWriteToDisk) {
+                Map<String, Object> mapToWriteToDisk, @Nullable Set<String> keysToJournal,
+                boolean clearedMap) {
             this.memoryStateGeneration = memoryStateGeneration;
             this.keysModified = keysModified;
             this.listeners = listeners;
             this.mapToWriteToDisk = mapToWriteToDisk;
+            this.keysToJournal = keysToJournal;
+            this.clearedMap = clearedMap;
         }
 
         void setDiskWriteResult(boolean wasWritten, boolean result) {
@@ -450,6 +527,8 @@ final class SharedPreferencesImpl implements SharedPreferences {
             List<String> keysModified = null;
             Set<OnSharedPreferenceChangeListener> listeners = null;
             Map<String, Object> mapToWriteToDisk;
+            Set<String> keysToJournal = null;
+            boolean clearedMap = false;
 
             synchronized (SharedPreferencesImpl.this.mLock) {
                 // We optimistically don't make a deep copy until
@@ -470,6 +549,9 @@ final class SharedPreferencesImpl implements SharedPreferences {
                     keysModified = new ArrayList<String>();
                     listeners = new HashSet<OnSharedPreferenceChangeListener>(mListeners.keySet());
                 }
+                if (mJournal != null) {
+                    keysToJournal = new HashSet<String>();
+                }
 
                 synchronized (mLock) {
                     boolean changesMade = false;
@@ -477,6 +559,7 @@ final class SharedPreferencesImpl implements SharedPreferences {
                     if (mClear) {
                         if (!mMap.isEmpty()) {
                             changesMade = true;
+                            clearedMap = true;
                             mMap.clear();
                         }
                         mClear = false;
@@ -507,6 +590,9 @@ final class SharedPreferencesImpl implements SharedPreferences {
                         if (hasListeners) {
                             keysModified.add(k);
                         }
+                        if (keysToJournal != null) {
+                            keysToJournal.add(k);
+                        }
                     }
 
                     mModified.clear();
@@ -519,7 +605,7 @@ final class SharedPreferencesImpl implements SharedPreferences {
                 }
             }
             return new MemoryCommitResult(memoryStateGeneration, keysModified, listeners,
-                    mapToWriteToDisk);
+                    mapToWriteToDisk, keysToJournal, clearedMap);
         }
 
         public boolean commit() {
@@ -596,7 +682,11 @@ final class SharedPreferencesImpl implements SharedPreferences {
         final Runnable writeToDiskRunnable = new Runnable() {
                 public void run() {
                     synchronized (mWritingToDiskLock) {
-                        writeToFile(mcr, isFromSyncCommit);
+                        if (mJournal != null) {
+                            writeToJournal(mcr);
+                        } else {
+                            writeToFile(mcr, isFromSyncCommit);
+                        }
                     }
                     synchronized (mLock) {
                         mDiskWritesInFlight--;
@@ -623,7 +713,7 @@ final class SharedPreferencesImpl implements SharedPreferences {
         QueuedWork.queue(writeToDiskRunnable, !isFromSyncCommit);
     }
 
-    private static FileOutputStream createFileOutputStream(File file) {
+    static FileOutputStream createFileOutputStream(File file) {
         FileOutputStream str = null;
         try {
             str = new FileOutputStream(file);
@@ -759,6 +849,12 @@ final class SharedPreferencesImpl implements SharedPreferences {
             // Writing was successful, delete the backup file if there is one.
             mBackupFile.delete();
 
+            // Same for a journal we migrated from
+            if (mHasStaleJournal) {
+                mJournalFile.delete();
+                mHasStaleJournal = false;
+            }
+
             if (DEBUG) {
                 deleteTime = System.currentTimeMillis();
             }
@@ -801,4 +897,103 @@ final class SharedPreferencesImpl implements SharedPreferences {
         }
         mcr.setDiskWriteResult(false, false);
     }
+
+    /**
+     * Journaled counterpart of {@link #writeToFile}: appends the keys changed by {@code mcr}
+     * to the journal, or writes a full snapshot if the journal is missing or its tail can't be
+     * trusted. Unlike {@link #writeToFile} no commit can be skipped, as every commit carries a
+     * distinct set of keys.
+     *
+     * Note: must hold mWritingToDiskLock
+     */
+    private void writeToJournal(MemoryCommitResult mcr) {
+        final boolean writeSnapshot = mJournal.needsSnapshot();
+        if (!writeSnapshot && !mcr.clearedMap && mcr.keysToJournal.isEmpty()) {
+            // All earlier commits are already on disk
+            mcr.setDiskWriteResult(false, true);
+            return;
+        }
+
+        final long fsyncDuration;
+        try {
+            if (writeSnapshot) {
+                fsyncDuration = mJournal.writeSnapshot(mcr.mapToWriteToDisk);
+            } else {
+                fsyncDuration = mJournal.append(mcr.clearedMap, mcr.keysToJournal,
+                        mcr.mapToWriteToDisk);
+            }
+        } catch (IOException e) {
+            Log.w(TAG, "writeToJournal: Got exception:", e);
+            mcr.setDiskWriteResult(false, false);
+            return;
+        }
+        onJournalWritten(writeSnapshot);
+
+        if (mDiskStateGeneration < mcr.memoryStateGeneration) {
+            mDiskStateGeneration = mcr.memoryStateGeneration;
+        }
+        mcr.setDiskWriteResult(true, true);
+
+        mSyncTimes.add((int) fsyncDuration);
+        mNumSync++;
+        if (DEBUG || mNumSync % 1024 == 0 || fsyncDuration > MAX_FSYNC_DURATION_MILLIS) {
+            mSyncTimes.log(TAG, "Time required to fsync " + mJournalFile + ": ");
+        }
+
+        if (!mCompactionQueued && mJournal.shouldCompact()) {
+            mCompactionQueued = true;
+            QueuedWork.queue(mCompactJournalRunnable, true);
+        }
+        if (mCompactionQueued) {
+            // The map is owned by this write until mDiskWritesInFlight drops, so it can be
+            // copied without mLock.
+            mCompactionMap = new HashMap<>(mcr.mapToWriteToDisk);
+        }
+    }
+
+    /**
+     * Rewrites the journal as a snapshot of the last state written to it. Commits that are
+     * still queued are left out, so a failing append can't end up on disk via the snapshot.
+     *
+     * Note: must hold mWritingToDiskLock
+     */
+    private void compactJournal() {
+        final Map<String, Object> snapshot = mCompactionMap;
+        mCompactionQueued = false;
+        mCompactionMap = null;
+        if (snapshot == null || !mJournal.shouldCompact()) {
+            return;
+        }
+
+        try {
+            mJournal.writeSnapshot(snapshot);
+        } catch (IOException e) {
+            Log.w(TAG, "compactJournal: Got exception:", e);
+            return;
+        }
+        onJournalWritten(true);
+    }
+
+    // Note: must hold mWritingToDiskLock
+    private void onJournalWritten(boolean wasSnapshot) {
+        if (wasSnapshot) {
+            ContextImpl.setFilePermissionsFromMode(mJournalFile.getPath(), mMode, 0);
+
+            // The XML file we might have migrated from is now outdated
+            if (mFile.exists()) {
+                mFile.delete();
+            }
+            mBackupFile.delete();
+        }
+
+        try {
+            final StructStat stat = Os.stat(mJournalFile.getPath());
+            synchronized (mLock) {
+                mStatTimestamp = stat.st_mtim;
+                mStatSize = stat.st_size;
+            }
+        } catch (ErrnoException e) {
+            // Do nothing
+        }
+    }
 }
@@ -0,0 +1,358 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.app;
+
+import android.os.FileUtils;
+
+import libcore.io.IoUtils;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.zip.CRC32;
+
+/**
+ * On-disk format of preferences opened with {@link android.content.Context#MODE_JOURNALED}.
+ *
+ * <p>The journal is a header followed by records of the form {length, CRC32, payload}. Each
+ * record holds the keys changed by one commit, so updating a single key of a large map costs
+ * one small append and an fsync instead of rewriting the whole map. A snapshot is a journal
+ * with a single record that clears the map before setting every key; compacting the journal
+ * means writing a new snapshot next to it and renaming it into place.
+ *
+ * <p>Replay stops at the first truncated or corrupt record, so a torn append loses at most the
+ * commit that was being written. The next write then rewrites the journal as a snapshot rather
+ * than appending behind the damaged tail.
+ *
+ * <p>Not thread safe, callers serialize access through the disk write lock of the owning
+ * {@link SharedPreferencesImpl}.
+ */
+final class SharedPreferencesJournal {
+    private static final int MAGIC = 0x53504a31; // SPJ1
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 8;
+    private static final int RECORD_HEADER_SIZE = 8;
+
+    /** Journals shorter than {@value #MIN_COMPACT_SIZE} bytes are never compacted */
+    private static final long MIN_COMPACT_SIZE = 16 * 1024;
+
+    private static final int FLAG_CLEAR = 1 << 0;
+
+    private static final byte TYPE_REMOVED = 0;
+    private static final byte TYPE_STRING = 1;
+    private static final byte TYPE_INT = 2;
+    private static final byte TYPE_LONG = 3;
+    private static final byte TYPE_FLOAT = 4;
+    private static final byte TYPE_BOOLEAN = 5;
+    private static final byte TYPE_STRING_SET = 6;
+
+    private final File mFile;
+    private final File mTempFile;
+
+    private final ByteArrayOutputStream mBuffer = new ByteArrayOutputStream();
+    private final DataOutputStream mOut = new DataOutputStream(mBuffer);
+    private final CRC32 mCrc = new CRC32();
+
+    /** Length of the valid part of the journal */
+    private long mLength;
+
+    /** Length of the journal right after its last snapshot */
+    private long mSnapshotLength;
+
+    /** Whether the next write has to be a snapshot rather than an append */
+    private boolean mNeedsSnapshot = true;
+
+    SharedPreferencesJournal(File file) {
+        mFile = file;
+        mTempFile = new File(file.getPath() + ".tmp");
+    }
+
+    static File makeJournalFile(File prefsFile) {
+        return new File(prefsFile.getPath() + ".journal");
+    }
+
+    File getFile() {
+        return mFile;
+    }
+
+    /**
+     * Whether the next write has to be a full snapshot, either because there is no journal
+     * yet or because the journal has a damaged tail or an earlier append failed.
+     */
+    boolean needsSnapshot() {
+        return mNeedsSnapshot;
+    }
+
+    /** Whether the journal has grown enough past its last snapshot to be worth compacting. */
+    boolean shouldCompact() {
+        return !mNeedsSnapshot && mLength > MIN_COMPACT_SIZE && mLength > 2 * mSnapshotLength;
+    }
+
+    /**
+     * Replays the journal into a new map.
+     *
+     * @throws IOException if the journal cannot be read or has no valid header.
+     */
+    Map<String, Object> read() throws IOException {
+        mNeedsSnapshot = true;
+        final byte[] data = IoUtils.readFileAsByteArray(mFile.getPath());
+        final ByteBuffer buffer = ByteBuffer.wrap(data);
+        if (data.length < HEADER_SIZE || buffer.getInt() != MAGIC
+                || buffer.getInt() != VERSION) {
+            throw new IOException("Not a preferences journal: " + mFile);
+        }
+
+        final HashMap<String, Object> map = new HashMap<>();
+        int validLength = HEADER_SIZE;
+        int snapshotLength = 0;
+        try {
+            while (buffer.remaining() >= RECORD_HEADER_SIZE) {
+                final int length = buffer.getInt();
+                final int crc = buffer.getInt();
+                if (length < 0 || length > buffer.remaining()) {
+                    break;
+                }
+                mCrc.reset();
+                mCrc.update(data, buffer.position(), length);
+                if ((int) mCrc.getValue() != crc) {
+                    break;
+                }
+                final int end = buffer.position() + length;
+                readRecord(buffer, map);
+                if (buffer.position() != end) {
+                    break;
+                }
+                validLength = end;
+                if (snapshotLength == 0) {
+                    snapshotLength = end;
+                }
+            }
+        } catch (BufferUnderflowException | IllegalArgumentException e) {
+            // Treat like a torn record, everything before it is still good
+        }
+
+        mLength = validLength;
+        mSnapshotLength = snapshotLength;
+        mNeedsSnapshot = validLength != data.length || snapshotLength == 0;
+        return map;
+    }
+
+    /**
+     * Appends the given keys, with their values taken from {@code values}, and syncs the
+     * journal. Keys missing from {@code values} are recorded as removed.
+     *
+     * @return the time spent in fsync, in milliseconds.
+     */
+    long append(boolean clear, Collection<String> keys, Map<String, Object> values)
+            throws IOException {
+        final byte[] record = encodeRecord(false, clear, keys, values);
+        FileOutputStream out = null;
+        try {
+            // Until we know the append made it to disk, the tail may be damaged
+            mNeedsSnapshot = true;
+            out = new FileOutputStream(mFile, true);
+            out.write(record);
+            final long syncStart = System.currentTimeMillis();
+            if (!FileUtils.sync(out)) {
+                throw new IOException("Couldn't sync " + mFile);
+            }
+            final long syncTime = System.currentTimeMillis() - syncStart;
+            mLength += record.length;
+            mNeedsSnapshot = false;
+            return syncTime;
+        } finally {
+            IoUtils.closeQuietly(out);
+        }
+    }
+
+    /**
+     * Replaces the journal with a snapshot of {@code map}.
+     *
+     * @return the time spent in fsync, in milliseconds.
+     */
+    long writeSnapshot(Map<String, Object> map) throws IOException {
+        final byte[] snapshot = encodeRecord(true, true, map.keySet(), map);
+        final FileOutputStream out = SharedPreferencesImpl.createFileOutputStream(mTempFile);
+        if (out == null) {
+            throw new IOException("Couldn't create " + mTempFile);
+        }
+        final long syncTime;
+        try {
+            out.write(snapshot);
+            final long syncStart = System.currentTimeMillis();
+            if (!FileUtils.sync(out)) {
+                throw new IOException("Couldn't sync " + mTempFile);
+            }
+            syncTime = System.currentTimeMillis() - syncStart;
+        } catch (IOException e) {
+            IoUtils.closeQuietly(out);
+            mTempFile.delete();
+            throw e;
+        }
+        IoUtils.closeQuietly(out);
+
+        if (!mTempFile.renameTo(mFile)) {
+            mTempFile.delete();
+            throw new IOException("Couldn't rename " + mTempFile + " to " + mFile);
+        }
+        mLength = snapshot.length;
+        mSnapshotLength = snapshot.length;
+        mNeedsSnapshot = false;
+        return syncTime;
+    }
+
+    private byte[] encodeRecord(boolean withHeader, boolean clear, Collection<String> keys,
+            Map<String, Object> values) throws IOException {
+        mBuffer.reset();
+        if (withHeader) {
+            mOut.writeInt(MAGIC);
+            mOut.writeInt(VERSION);
+        }
+        final int recordStart = mBuffer.size();
+        // Length and checksum are filled in once the payload is known
+        mOut.writeInt(0);
+        mOut.writeInt(0);
+        mOut.writeByte(clear ? FLAG_CLEAR : 0);
+        mOut.writeInt(keys.size());
+        for (String key : keys) {
+            writeString(key);
+            writeValue(values.get(key));
+        }
+        mOut.flush();
+
+        final byte[] data = mBuffer.toByteArray();
+        final int payloadStart = recordStart + RECORD_HEADER_SIZE;
+        mCrc.reset();
+        mCrc.update(data, payloadStart, data.length - payloadStart);
+        final ByteBuffer buffer = ByteBuffer.wrap(data);
+        buffer.putInt(recordStart, data.length - payloadStart);
+        buffer.putInt(recordStart + 4, (int) mCrc.getValue());
+        return data;
+    }
+
+    private void writeValue(Object value) throws IOException {
+        if (value == null) {
+            mOut.writeByte(TYPE_REMOVED);
+        } else if (value instanceof String) {
+            mOut.writeByte(TYPE_STRING);
+            writeString((String) value);
+        } else if (value instanceof Integer) {
+            mOut.writeByte(TYPE_INT);
+            mOut.writeInt((Integer) value);
+        } else if (value instanceof Long) {
+            mOut.writeByte(TYPE_LONG);
+            mOut.writeLong((Long) value);
+        } else if (value instanceof Float) {
+            mOut.writeByte(TYPE_FLOAT);
+            mOut.writeFloat((Float) value);
+        } else if (value instanceof Boolean) {
+            mOut.writeByte(TYPE_BOOLEAN);
+            mOut.writeBoolean((Boolean) value);
+        } else if (value instanceof Set) {
+            final Set<?> set = (Set<?>) value;
+            mOut.writeByte(TYPE_STRING_SET);
+            mOut.writeInt(set.size());
+            for (Object item : set) {
+                writeString((String) item);
+            }
+        } else {
+            throw new IOException("Unsupported preference value " + value.getClass().getName());
+        }
+    }
+
+    private void writeString(String value) throws IOException {
+        if (value == null) {
+            mOut.writeInt(-1);
+            return;
+        }
+        final byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+        mOut.writeInt(bytes.length);
+        mOut.write(bytes);
+    }
+
+    private static void readRecord(ByteBuffer buffer, Map<String, Object> map) {
+        final int flags = buffer.get();
+        final int count = buffer.getInt();
+        if ((flags & FLAG_CLEAR) != 0) {
+            map.clear();
+        }
+        for (int i = 0; i < count; i++) {
+            final String key = readString(buffer);
+            final Object value = readValue(buffer);
+            if (value == null) {
+                map.remove(key);
+            } else {
+                map.put(key, value);
+            }
+        }
+    }
+
+    private static Object readValue(ByteBuffer buffer) {
+        final byte type = buffer.get();
+        switch (type) {
+            case TYPE_REMOVED:
+                return null;
+            case TYPE_STRING:
+                return readString(buffer);
+            case TYPE_INT:
+                return buffer.getInt();
+            case TYPE_LONG:
+                return buffer.getLong();
+            case TYPE_FLOAT:
+                return buffer.getFloat();
+            case TYPE_BOOLEAN:
+                return buffer.get() != 0;
+            case TYPE_STRING_SET: {
+                final int size = buffer.getInt();
+                if (size < 0 || size > buffer.remaining()) {
+                    throw new IllegalArgumentException("Bad set size " + size);
+                }
+                final HashSet<String> set = new HashSet<>(size);
+                for (int i = 0; i < size; i++) {
+                    set.add(readString(buffer));
+                }
+                return set;
+            }
+            default:
+                throw new IllegalArgumentException("Unknown value type " + type);
+        }
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        final int length = buffer.getInt();
+        if (length == -1) {
+            return null;
+        }
+        if (length < 0 || length > buffer.remaining()) {
+            throw new IllegalArgumentException("Bad string length " + length);
+        }
+        final String value = new String(buffer.array(), buffer.position(), length,
+                StandardCharsets.UTF_8);
+        buffer.position(buffer.position() + length);
+        return value;
+    }
+}
@@ -306,6 +306,13 @@ public final class UsageEvents implements Parcelable {
         mEventsToWrite = events;
     }
 
+    /**
+     * Returns the number of events in the collection, whether or not they were read yet.
+     */
+    int getEventCount() {
+        return mEventCount;
+    }
+
     /**
      * Returns whether or not there are more events to read using
      * {@link #getNextEvent(android.app.usage.UsageEvents.Event)}.
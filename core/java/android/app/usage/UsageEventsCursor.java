@@ -0,0 +1,103 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package android.app.usage;
+
+import android.os.RemoteException;
+
+/**
+ * Iterates over the events of a query, fetching them from the system a page at a time as
+ * they are read. Each page holds at most the page size in events, which keeps both the
+ * binder transactions and the memory held on either side bounded however long the range is.
+ *
+ * <p>Events come out ordered by time and no two events of a user share a time stamp, so
+ * every page after the first starts right after the last event read.
+ *
+ * @see UsageStatsManager#queryEvents(long, long, int[], String, int)
+ * @hide
+ */
+public final class UsageEventsCursor {
+    /** Larger page sizes are reduced to this, which keeps a page well below binder limits. */
+    public static final int MAX_PAGE_SIZE = 1000;
+
+    private final IUsageStatsManager mService;
+    private final String mCallingPackage;
+    private final long mEndTime;
+    private final int[] mEventTypes;
+    private final String mPackageName;
+    private final int mPageSize;
+
+    private long mNextBeginTime;
+    private UsageEvents mPage;
+    private boolean mLastPage;
+
+    UsageEventsCursor(IUsageStatsManager service, String callingPackage, long beginTime,
+            long endTime, int[] eventTypes, String packageName, int pageSize) {
+        if (pageSize <= 0) {
+            throw new IllegalArgumentException("pageSize must be positive");
+        }
+        mService = service;
+        mCallingPackage = callingPackage;
+        mNextBeginTime = beginTime;
+        mEndTime = endTime;
+        mEventTypes = eventTypes;
+        mPackageName = packageName;
+        mPageSize = Math.min(pageSize, MAX_PAGE_SIZE);
+    }
+
+    /**
+     * Returns whether there are more events to read using {@link #getNextEvent}. This may
+     * fetch the next page from the system.
+     */
+    public boolean hasNextEvent() {
+        return ensurePage();
+    }
+
+    /**
+     * Retrieve the next {@link UsageEvents.Event} and put the resulting data into
+     * {@code eventOut}.
+     *
+     * @return true if an event was available, false if there are no more events.
+     */
+    public boolean getNextEvent(UsageEvents.Event eventOut) {
+        if (!ensurePage() || !mPage.getNextEvent(eventOut)) {
+            return false;
+        }
+        mNextBeginTime = eventOut.mTimeStamp + 1;
+        return true;
+    }
+
+    private boolean ensurePage() {
+        while (mPage == null || !mPage.hasNextEvent()) {
+            if (mLastPage || mNextBeginTime >= mEndTime) {
+                return false;
+            }
+            try {
+                mPage = mService.queryEventsPage(mNextBeginTime, mEndTime, mEventTypes,
+                        mPackageName, mPageSize, mCallingPackage);
+            } catch (RemoteException e) {
+                // Treat it like the end of the results, as queryEvents() does
+                mPage = null;
+            }
+            // The service returns a short page once it has run out of events
+            mLastPage = mPage == null || mPage.getEventCount() < mPageSize;
+            if (mPage == null) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
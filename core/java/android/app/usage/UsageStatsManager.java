@@ -193,6 +193,26 @@ public final class UsageStatsManager {
         return sEmptyResults;
     }
 
+    /**
+     * Query for events in the given time range, like {@link #queryEvents(long, long)}, but only
+     * return events of the given types for the given package. The events are fetched from the
+     * system in pages of at most {@code pageSize} events as the returned cursor is advanced,
+     * so long ranges can be read without holding all of their events at once.
+     *
+     * @param beginTime The inclusive beginning of the range of events to include in the results.
+     * @param endTime The exclusive end of the range of events to include in the results.
+     * @param eventTypes The event types to include, or null for all types.
+     * @param packageName The package whose events to include, or null for all packages.
+     * @param pageSize The maximum number of events to fetch at a time.
+     * @return A {@link UsageEventsCursor}.
+     * @hide
+     */
+    public UsageEventsCursor queryEvents(long beginTime, long endTime, int[] eventTypes,
+            String packageName, int pageSize) {
+        return new UsageEventsCursor(mService, mContext.getOpPackageName(), beginTime, endTime,
+                eventTypes, packageName, pageSize);
+    }
+
     /**
      * A convenience method that queries for all stats in the given range (using the best interval
      * for that range), merges the resulting data, and keys it by package name.
@@ -101,6 +101,7 @@ public abstract class Context {
             MODE_WORLD_READABLE,
             MODE_WORLD_WRITEABLE,
             MODE_MULTI_PROCESS,
+            MODE_JOURNALED,
     })
     @Retention(RetentionPolicy.SOURCE)
     public @interface PreferencesMode {}
@@ -218,6 +219,20 @@ public abstract class Context {
      */
     public static final int MODE_NO_LOCALIZED_COLLATORS = 0x0010;
 
+    /**
+     * SharedPreference loading flag: when set, the preferences are stored in
+     * an append-only journal that records only the keys changed by each
+     * commit, instead of rewriting the whole file every time.  The journal is
+     * compacted in the background once it has grown well past the size of
+     * the preferences themselves.  Existing preferences are migrated in either
+     * direction on the next write.
+     *
+     * @see #getSharedPreferences
+     *
+     * @hide
+     */
+    public static final int MODE_JOURNALED = 0x0020;
+
     /** @hide */
     @IntDef(flag = true,
             value = {
@@ -27,8 +27,9 @@ import java.util.ArrayList;
 import java.util.List;
 
 /**
- * Transfer a large list of Parcelable objects across an IPC.  Splits into
- * multiple transactions if needed.
+ * Transfer a large list of Parcelable objects across an IPC.  The elements that
+ * don't fit into the initial transaction are passed in shared memory, or, if that
+ * isn't possible, retrieved in multiple additional transactions.
  *
  * Caveat: for efficiency and security, all elements must be the same concrete type.
  * In order to avoid writing the class name of each object, we must ensure that
@@ -48,6 +49,11 @@ abstract class BaseParceledListSlice<T> implements Parcelable {
      */
     private static final int MAX_IPC_SIZE = IBinder.MAX_IPC_SIZE;
 
+    /** The elements past the inline ones follow in a shared memory payload. */
+    private static final int REMAINDER_SHARED_MEMORY = 1;
+    /** The elements past the inline ones are retrieved through a binder. */
+    private static final int REMAINDER_RETRIEVER = 0;
+
     private final List<T> mList;
 
     private int mInlineCountLimit = Integer.MAX_VALUE;
@@ -89,27 +95,59 @@ abstract class BaseParceledListSlice<T> implements Parcelable {
         if (i >= N) {
             return;
         }
-        final IBinder retriever = p.readStrongBinder();
-        while (i < N) {
-            if (DEBUG) Log.d(TAG, "Reading more @" + i + " of " + N + ": retriever=" + retriever);
-            Parcel data = Parcel.obtain();
-            Parcel reply = Parcel.obtain();
-            data.writeInt(i);
+        if (p.readInt() == REMAINDER_SHARED_MEMORY) {
+            final Parcel payload = p.readSharedMemoryPayload();
+            payload.adoptClassCookies(p);
             try {
-                retriever.transact(IBinder.FIRST_CALL_TRANSACTION, data, reply, 0);
-            } catch (RemoteException e) {
-                Log.w(TAG, "Failure retrieving array; only received " + i + " of " + N, e);
-                return;
+                while (i < N && payload.readInt() != 0) {
+                    final T parcelable = readCreator(creator, payload, loader);
+                    if (listElementClass == null) {
+                        listElementClass = parcelable.getClass();
+                    } else {
+                        verifySameType(listElementClass, parcelable.getClass());
+                    }
+
+                    mList.add(parcelable);
+
+                    if (DEBUG) Log.d(TAG, "Read shared #" + i + ": "
+                            + mList.get(mList.size()-1));
+                    i++;
+                }
+            } finally {
+                payload.recycle();
             }
-            while (i < N && reply.readInt() != 0) {
-                final T parcelable = readCreator(creator, reply, loader);
-                verifySameType(listElementClass, parcelable.getClass());
+            return;
+        }
+        final IBinder retriever = p.readStrongBinder();
+        // The same parcels are reused for every round-trip, rather than going through the
+        // Parcel pool and growing a fresh buffer for each chunk of the list.
+        final Parcel data = Parcel.obtain();
+        final Parcel reply = Parcel.obtain();
+        try {
+            while (i < N) {
+                if (DEBUG) Log.d(TAG, "Reading more @" + i + " of " + N + ": retriever="
+                        + retriever);
+                data.setDataSize(0);
+                data.writeInt(i);
+                // A local retriever appends to the reply instead of replacing it.
+                reply.setDataSize(0);
+                try {
+                    retriever.transact(IBinder.FIRST_CALL_TRANSACTION, data, reply, 0);
+                } catch (RemoteException e) {
+                    Log.w(TAG, "Failure retrieving array; only received " + i + " of " + N, e);
+                    return;
+                }
+                while (i < N && reply.readInt() != 0) {
+                    final T parcelable = readCreator(creator, reply, loader);
+                    verifySameType(listElementClass, parcelable.getClass());
 
-                mList.add(parcelable);
+                    mList.add(parcelable);
 
-                if (DEBUG) Log.d(TAG, "Read extra #" + i + ": " + mList.get(mList.size()-1));
-                i++;
+                    if (DEBUG) Log.d(TAG, "Read extra #" + i + ": " + mList.get(mList.size()-1));
+                    i++;
+                }
             }
+        } finally {
             reply.recycle();
             data.recycle();
         }
@@ -171,6 +209,11 @@ abstract class BaseParceledListSlice<T> implements Parcelable {
             }
             if (i < N) {
                 dest.writeInt(0);
+                if (writeRemainderToSharedMemory(dest, i, listElementClass, callFlags)) {
+                    if (DEBUG) Log.d(TAG, "Wrote " + (N - i) + " items to shared memory");
+                    return;
+                }
+                dest.writeInt(REMAINDER_RETRIEVER);
                 Binder retriever = new Binder() {
                     @Override
                     protected boolean onTransact(int code, Parcel data, Parcel reply, int flags)
@@ -203,6 +246,50 @@ abstract class BaseParceledListSlice<T> implements Parcelable {
         }
     }
 
+    /**
+     * Writes the elements starting at {@code start} into a shared memory payload, which saves
+     * the receiver the round-trips through a retriever binder.
+     *
+     * @return whether the elements were written. Nothing is written into {@code dest} otherwise,
+     *         which happens if the elements contain binders or file descriptors, if they don't
+     *         fit into {@link Parcel#getMaxSharedMemoryPayloadSize()}, or if {@code dest}
+     *         doesn't allow file descriptors.
+     */
+    private boolean writeRemainderToSharedMemory(Parcel dest, int start,
+            Class<?> listElementClass, int callFlags) {
+        final int N = mList.size();
+        // The elements are written again if this fails, so they must not release anything yet.
+        // Elements holding file descriptors can't go into shared memory anyways, so the flag
+        // can't make a difference once this succeeds.
+        final int payloadFlags = callFlags & ~PARCELABLE_WRITE_RETURN_VALUE;
+        final int maxSize = Parcel.getMaxSharedMemoryPayloadSize();
+        final Parcel payload = Parcel.obtain();
+        try {
+            for (int i = start; i < N; i++) {
+                payload.writeInt(1);
+
+                final T parcelable = mList.get(i);
+                verifySameType(listElementClass, parcelable.getClass());
+                writeElement(parcelable, payload, payloadFlags);
+                if (payload.dataSize() > maxSize) {
+                    // Won't be accepted; don't marshal the rest just to find out.
+                    if (DEBUG) Log.d(TAG, "Shared memory payload too large @" + i);
+                    return false;
+                }
+            }
+
+            final int pos = dest.dataPosition();
+            dest.writeInt(REMAINDER_SHARED_MEMORY);
+            if (dest.writeSharedMemoryPayload(payload)) {
+                return true;
+            }
+            dest.setDataPosition(pos);
+            return false;
+        } finally {
+            payload.recycle();
+        }
+    }
+
     protected abstract void writeElement(T parcelable, Parcel reply, int callFlags);
 
     protected abstract void writeParcelableCreator(T parcelable, Parcel dest);
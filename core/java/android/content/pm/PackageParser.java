@@ -102,11 +102,13 @@ import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 
 import java.io.File;
+import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
 import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
 import java.security.GeneralSecurityException;
 import java.security.KeyFactory;
 import java.security.NoSuchAlgorithmException;
@@ -124,8 +126,10 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
 import java.util.UUID;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicReference;
+import java.util.zip.CRC32;
 import java.util.zip.ZipEntry;
 
 /**
@@ -243,6 +247,17 @@ public class PackageParser {
      */
     public static final AtomicInteger sCachedPackageReadCount = new AtomicInteger();
 
+    /**
+     * Cache entries are prefixed with a header identifying the package file they were parsed
+     * from and a checksum of the entry:
+     * magic, fingerprint hash, package size, package mtime, entry length, entry CRC32.
+     */
+    private static final int CACHE_MAGIC = 0x504b4331; // PKC1
+    private static final int CACHE_HEADER_SIZE = 4 + 4 + 8 + 8 + 4 + 8;
+
+    /** Names of the cache entries read or written since the last eviction. */
+    private static final Set<String> sUsedCacheKeys = ConcurrentHashMap.newKeySet();
+
     // Set of broadcast actions that are safe for manifest receivers
     private static final Set<String> SAFE_BROADCASTS = new ArraySet<>();
     static {
@@ -1036,6 +1051,10 @@ public class PackageParser {
         StringBuilder sb = new StringBuilder(packageFile.getName());
         sb.append('-');
         sb.append(flags);
+        // Packages with the same name can live in several directories
+        sb.append('-');
+        sb.append(Integer.toHexString(
+                String.valueOf(packageFile.getAbsoluteFile().getParent()).hashCode()));
 
         return sb.toString();
     }
@@ -1117,6 +1136,14 @@ public class PackageParser {
         }
     }
 
+    private static StructStat statPackageFile(File packageFile) {
+        try {
+            return android.system.Os.stat(packageFile.getAbsolutePath());
+        } catch (ErrnoException ee) {
+            return null;
+        }
+    }
+
     /**
      * Returns the cached parse result for {@code packageFile} for parse flags {@code flags},
      * or {@code null} if no cached result exists.
@@ -1130,13 +1157,35 @@ public class PackageParser {
         final File cacheFile = new File(mCacheDir, cacheKey);
 
         try {
-            // If the cache is not up to date, return null.
-            if (!isCacheUpToDate(packageFile, cacheFile)) {
+            final byte[] bytes;
+            try {
+                bytes = IoUtils.readFileAsByteArray(cacheFile.getAbsolutePath());
+            } catch (FileNotFoundException e) {
                 return null;
             }
+            sUsedCacheKeys.add(cacheKey);
+
+            // If the cache is not up to date, return null. The entry is replaced once the
+            // package has been parsed again.
+            final StructStat stat = statPackageFile(packageFile);
+            final ByteBuffer header = ByteBuffer.wrap(bytes);
+            if (stat == null || bytes.length < CACHE_HEADER_SIZE
+                    || header.getInt() != CACHE_MAGIC
+                    || header.getInt() != Build.FINGERPRINT.hashCode()
+                    || header.getLong() != stat.st_size
+                    || header.getLong() != stat.st_mtime) {
+                return null;
+            }
+            final int length = header.getInt();
+            final long checksum = header.getLong();
+            final CRC32 crc = new CRC32();
+            crc.update(bytes, CACHE_HEADER_SIZE, bytes.length - CACHE_HEADER_SIZE);
+            if (length != bytes.length - CACHE_HEADER_SIZE || checksum != crc.getValue()) {
+                throw new IOException("Corrupt cache entry " + cacheFile);
+            }
 
-            final byte[] bytes = IoUtils.readFileAsByteArray(cacheFile.getAbsolutePath());
-            Package p = fromCacheEntry(bytes);
+            Package p = fromCacheEntry(Arrays.copyOfRange(bytes, CACHE_HEADER_SIZE,
+                    bytes.length));
             if (mCallback != null) {
                 String[] overlayApks = mCallback.getOverlayApks(p.packageName);
                 if (overlayApks != null && overlayApks.length > 0) {
@@ -1170,6 +1219,7 @@ public class PackageParser {
         try {
             final String cacheKey = getCacheKey(packageFile, flags);
             final File cacheFile = new File(mCacheDir, cacheKey);
+            sUsedCacheKeys.add(cacheKey);
 
             if (cacheFile.exists()) {
                 if (!cacheFile.delete()) {
@@ -1177,13 +1227,25 @@ public class PackageParser {
                 }
             }
 
+            final StructStat stat = statPackageFile(packageFile);
             final byte[] cacheEntry = toCacheEntry(parsed);
 
-            if (cacheEntry == null) {
+            if (stat == null || cacheEntry == null) {
                 return;
             }
 
+            final CRC32 crc = new CRC32();
+            crc.update(cacheEntry);
+            final ByteBuffer header = ByteBuffer.allocate(CACHE_HEADER_SIZE);
+            header.putInt(CACHE_MAGIC);
+            header.putInt(Build.FINGERPRINT.hashCode());
+            header.putLong(stat.st_size);
+            header.putLong(stat.st_mtime);
+            header.putInt(cacheEntry.length);
+            header.putLong(crc.getValue());
+
             try (FileOutputStream fos = new FileOutputStream(cacheFile)) {
+                fos.write(header.array());
                 fos.write(cacheEntry);
             } catch (IOException ioe) {
                 Slog.w(TAG, "Error writing cache entry.", ioe);
@@ -1194,6 +1256,27 @@ public class PackageParser {
         }
     }
 
+    /**
+     * Deletes the entries of the package cache in {@code cacheDir} that weren't read or written
+     * since the last call, i.e. those of packages that were removed or moved. Meant to be
+     * called once all packages have been scanned at boot.
+     *
+     * @return the number of deleted entries
+     */
+    public static int evictUnusedCacheEntries(File cacheDir) {
+        int evicted = 0;
+        final File[] entries = cacheDir.listFiles();
+        if (entries != null) {
+            for (File entry : entries) {
+                if (!sUsedCacheKeys.contains(entry.getName()) && entry.delete()) {
+                    evicted++;
+                }
+            }
+        }
+        sUsedCacheKeys.clear();
+        return evicted;
+    }
+
     /**
      * Parse all APKs contained in the given directory, treating them as a
      * single package. This also performs sanity checking, such as requiring
@@ -17,6 +17,8 @@
 package android.os;
 
 import android.annotation.Nullable;
+import android.system.ErrnoException;
+import android.system.OsConstants;
 import android.text.TextUtils;
 import android.util.ArrayMap;
 import android.util.ArraySet;
@@ -45,6 +47,8 @@ import java.io.Serializable;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
 import java.lang.reflect.Modifier;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.HashMap;
@@ -213,6 +217,13 @@ public final class Parcel {
     private static final Parcel[] sOwnedPool = new Parcel[POOL_SIZE];
     private static final Parcel[] sHolderPool = new Parcel[POOL_SIZE];
 
+    /**
+     * Largest payload {@link #writeSharedMemoryPayload} hands out and
+     * {@link #readSharedMemoryPayload} maps, so that a sender can't make the
+     * receiver copy an arbitrarily large region into its heap.
+     */
+    static final int MAX_SHARED_MEMORY_PAYLOAD_SIZE = 4 * 1024 * 1024;
+
     // Keep in sync with frameworks/native/include/private/binder/ParcelValTypes.h.
     private static final int VAL_NULL = -1;
     private static final int VAL_STRING = 0;
@@ -283,6 +294,10 @@ public final class Parcel {
 
     private static native void nativeWriteByteArray(long nativePtr, byte[] b, int offset, int len);
     private static native void nativeWriteBlob(long nativePtr, byte[] b, int offset, int len);
+    private static native void nativeWriteIntArray(long nativePtr, int[] val, int len);
+    private static native void nativeWriteLongArray(long nativePtr, long[] val, int len);
+    private static native void nativeWriteDirectBuffer(long nativePtr, ByteBuffer b, int offset,
+            int len);
     @FastNative
     private static native void nativeWriteInt(long nativePtr, int val);
     @FastNative
@@ -298,6 +313,11 @@ public final class Parcel {
     private static native byte[] nativeCreateByteArray(long nativePtr);
     private static native boolean nativeReadByteArray(long nativePtr, byte[] dest, int destLen);
     private static native byte[] nativeReadBlob(long nativePtr);
+    private static native boolean nativeReadIntArray(long nativePtr, int[] dest, int len);
+    private static native boolean nativeReadLongArray(long nativePtr, long[] dest, int len);
+    private static native int nativeReadDirectBuffer(long nativePtr, ByteBuffer dest, int offset,
+            int destLen);
+    private static native ByteBuffer nativeReadInplaceBuffer(long nativePtr);
     @CriticalNative
     private static native int nativeReadInt(long nativePtr);
     @CriticalNative
@@ -317,11 +337,16 @@ public final class Parcel {
     private static native byte[] nativeMarshall(long nativePtr);
     private static native long nativeUnmarshall(
             long nativePtr, byte[] data, int offset, int length);
+    private static native void nativeMarshallToBuffer(long nativePtr, ByteBuffer dest);
+    private static native long nativeUnmarshallFromBuffer(
+            long nativePtr, ByteBuffer src, int length);
     private static native int nativeCompareData(long thisNativePtr, long otherNativePtr);
     private static native long nativeAppendFrom(
             long thisNativePtr, long otherNativePtr, int offset, int length);
     @CriticalNative
     private static native boolean nativeHasFileDescriptors(long nativePtr);
+    @CriticalNative
+    private static native boolean nativeHasObjects(long nativePtr);
     private static native void nativeWriteInterfaceToken(long nativePtr, String interfaceName);
     private static native void nativeEnforceInterface(long nativePtr, String interfaceName);
 
@@ -534,6 +559,99 @@ public final class Parcel {
         updateNativeSize(nativeUnmarshall(mNativePtr, data, offset, length));
     }
 
+    /**
+     * Returns the size of the largest payload {@link #writeSharedMemoryPayload}
+     * accepts, so that writers can stop filling one that won't fit.
+     * @hide
+     */
+    public static int getMaxSharedMemoryPayloadSize() {
+        return MAX_SHARED_MEMORY_PAYLOAD_SIZE;
+    }
+
+    /**
+     * Write the contents of {@code payload} into this parcel through a
+     * {@link SharedMemory} region, so that they don't count towards the size
+     * limit of the binder transaction. Only the file descriptor of the region
+     * is actually placed into the parcel, the receiver maps the region when
+     * it reads the payload with {@link #readSharedMemoryPayload}.
+     *
+     * <p>This is only possible if this parcel allows file descriptors and the
+     * payload contains no binder objects or file descriptors of its own, as
+     * those can't be marshalled. Payloads larger than a few megabytes are
+     * refused as well.
+     *
+     * @return whether the payload was written. Nothing is written into this
+     * parcel otherwise.
+     * @hide
+     */
+    public final boolean writeSharedMemoryPayload(Parcel payload) {
+        final int size = payload.dataSize();
+        if (size <= 0 || size > MAX_SHARED_MEMORY_PAYLOAD_SIZE
+                || nativeHasObjects(payload.mNativePtr)) {
+            return false;
+        }
+        final boolean allowFds = pushAllowFds(true);
+        restoreAllowFds(allowFds);
+        if (!allowFds) {
+            return false;
+        }
+
+        SharedMemory memory = null;
+        ByteBuffer buffer = null;
+        try {
+            memory = SharedMemory.create("Parcel payload", size);
+            buffer = memory.mapReadWrite();
+            nativeMarshallToBuffer(payload.mNativePtr, buffer);
+            memory.setProtect(OsConstants.PROT_READ);
+            writeInt(size);
+            memory.writeToParcel(this, 0);
+            return true;
+        } catch (ErrnoException e) {
+            Log.w(TAG, "Couldn't write " + size + " byte payload to shared memory", e);
+            return false;
+        } finally {
+            if (buffer != null) {
+                SharedMemory.unmap(buffer);
+            }
+            if (memory != null) {
+                // The parcel holds its own duplicate of the file descriptor.
+                memory.close();
+            }
+        }
+    }
+
+    /**
+     * Read a payload written with {@link #writeSharedMemoryPayload}.
+     *
+     * @return a new parcel holding the payload, positioned at its start. The
+     * caller is responsible for recycling it.
+     * @throws BadParcelableException if the recorded size is larger than the
+     * shared memory region or than {@link #writeSharedMemoryPayload} allows.
+     * @hide
+     */
+    public final Parcel readSharedMemoryPayload() {
+        final int size = readInt();
+        final SharedMemory memory = SharedMemory.CREATOR.createFromParcel(this);
+        ByteBuffer buffer = null;
+        try {
+            if (size <= 0 || size > MAX_SHARED_MEMORY_PAYLOAD_SIZE || size > memory.getSize()) {
+                throw new BadParcelableException("Bad shared memory payload size " + size);
+            }
+            buffer = memory.mapReadOnly();
+            final Parcel p = Parcel.obtain();
+            p.updateNativeSize(nativeUnmarshallFromBuffer(p.mNativePtr, buffer, size));
+            p.setDataPosition(0);
+            return p;
+        } catch (ErrnoException e) {
+            throw new BadParcelableException(e);
+        } finally {
+            if (buffer != null) {
+                SharedMemory.unmap(buffer);
+            }
+            memory.close();
+        }
+    }
+
     public final void appendFrom(Parcel parcel, int offset, int length) {
         updateNativeSize(nativeAppendFrom(mNativePtr, parcel.mNativePtr, offset, length));
     }
@@ -606,6 +724,36 @@ public final class Parcel {
         nativeWriteByteArray(mNativePtr, b, offset, len);
     }
 
+    /**
+     * Write the remaining bytes of a buffer into the parcel at the current
+     * {@link #dataPosition}, growing {@link #dataCapacity} if needed. The data
+     * is laid out like a byte array and can be read back with
+     * {@link #createByteArray}, {@link #readByteBuffer} or
+     * {@link #readByteBufferView}. Direct buffers are copied into the parcel
+     * without going through an intermediate array. The position of the buffer
+     * is advanced past the written bytes.
+     * @param b Buffer to place into the parcel, may be null.
+     * {@hide}
+     */
+    public final void writeByteBuffer(ByteBuffer b) {
+        if (b == null) {
+            writeInt(-1);
+            return;
+        }
+        final int len = b.remaining();
+        if (b.isDirect()) {
+            nativeWriteDirectBuffer(mNativePtr, b, b.position(), len);
+        } else if (b.hasArray()) {
+            nativeWriteByteArray(mNativePtr, b.array(), b.arrayOffset() + b.position(), len);
+        } else {
+            // Read-only heap buffer
+            final byte[] copy = new byte[len];
+            b.duplicate().get(copy);
+            nativeWriteByteArray(mNativePtr, copy, 0, len);
+        }
+        b.position(b.position() + len);
+    }
+
     /**
      * Write a blob of data into the parcel at the current {@link #dataPosition},
      * growing {@link #dataCapacity} if needed.
@@ -1078,11 +1226,7 @@ public final class Parcel {
 
     public final void writeIntArray(int[] val) {
         if (val != null) {
-            int N = val.length;
-            writeInt(N);
-            for (int i=0; i<N; i++) {
-                writeInt(val[i]);
-            }
+            nativeWriteIntArray(mNativePtr, val, val.length);
         } else {
             writeInt(-1);
         }
@@ -1092,9 +1236,7 @@ public final class Parcel {
         int N = readInt();
         if (N >= 0 && N <= (dataAvail() >> 2)) {
             int[] val = new int[N];
-            for (int i=0; i<N; i++) {
-                val[i] = readInt();
-            }
+            nativeReadIntArray(mNativePtr, val, N);
             return val;
         } else {
             return null;
@@ -1103,22 +1245,14 @@ public final class Parcel {
 
     public final void readIntArray(int[] val) {
         int N = readInt();
-        if (N == val.length) {
-            for (int i=0; i<N; i++) {
-                val[i] = readInt();
-            }
-        } else {
+        if (N != val.length || !nativeReadIntArray(mNativePtr, val, N)) {
             throw new RuntimeException("bad array lengths");
         }
     }
 
     public final void writeLongArray(long[] val) {
         if (val != null) {
-            int N = val.length;
-            writeInt(N);
-            for (int i=0; i<N; i++) {
-                writeLong(val[i]);
-            }
+            nativeWriteLongArray(mNativePtr, val, val.length);
         } else {
             writeInt(-1);
         }
@@ -1129,9 +1263,7 @@ public final class Parcel {
         // >>3 because stored longs are 64 bits
         if (N >= 0 && N <= (dataAvail() >> 3)) {
             long[] val = new long[N];
-            for (int i=0; i<N; i++) {
-                val[i] = readLong();
-            }
+            nativeReadLongArray(mNativePtr, val, N);
             return val;
         } else {
             return null;
@@ -1140,11 +1272,7 @@ public final class Parcel {
 
     public final void readLongArray(long[] val) {
         int N = readInt();
-        if (N == val.length) {
-            for (int i=0; i<N; i++) {
-                val[i] = readLong();
-            }
-        } else {
+        if (N != val.length || !nativeReadLongArray(mNativePtr, val, N)) {
             throw new RuntimeException("bad array lengths");
         }
     }
@@ -2291,6 +2419,50 @@ public final class Parcel {
         }
     }
 
+    /**
+     * Read a byte[] object from the parcel and copy it into the remaining
+     * space of the given buffer, advancing its position. Direct buffers are
+     * filled without going through an intermediate array.
+     * @return the number of bytes read, or -1 if a null array was written.
+     * @throws RuntimeException if the data doesn't fit into the buffer.
+     * {@hide}
+     */
+    public final int readByteBuffer(ByteBuffer dest) {
+        if (!dest.isDirect()) {
+            final byte[] b = createByteArray();
+            if (b == null) {
+                return -1;
+            }
+            dest.put(b);
+            return b.length;
+        }
+        final int len = nativeReadDirectBuffer(mNativePtr, dest, dest.position(),
+                dest.remaining());
+        if (len < -1) {
+            throw new RuntimeException("bad array lengths");
+        } else if (len == -1) {
+            return -1;
+        }
+        dest.position(dest.position() + len);
+        return len;
+    }
+
+    /**
+     * Read a byte[] object from the parcel without copying it, and return a
+     * read-only view of it in native byte order, so it can also be accessed
+     * through views like {@link ByteBuffer#asIntBuffer}.
+     *
+     * <p>The returned buffer points directly into the memory of the parcel, it
+     * must not be accessed anymore once the parcel is written to, resized or
+     * recycled.
+     * @return the view, or null if a null array was written.
+     * {@hide}
+     */
+    public final ByteBuffer readByteBufferView() {
+        final ByteBuffer b = nativeReadInplaceBuffer(mNativePtr);
+        return b != null ? b.asReadOnlyBuffer().order(ByteOrder.nativeOrder()) : null;
+    }
+
     /**
      * Read a blob of data from the parcel and return it as a byte array.
      * {@hide}
@@ -63,6 +63,7 @@ import android.os.Process;
 import android.os.RemoteException;
 import android.os.ResultReceiver;
 import android.os.ServiceManager;
+import android.os.SharedMemory;
 import android.os.UserHandle;
 import android.speech.tts.TextToSpeech;
 import android.text.TextUtils;
@@ -1494,6 +1495,17 @@ public final class Settings {
      */
     public static final String CALL_METHOD_GENERATION_KEY = "_generation";
 
+    /**
+     * @hide Key for a read-only {@link SettingsSnapshot} of the backing table. A caller
+     * tracking the generation maps this key to a <code>null</code> string extra to ask for
+     * the snapshot to be brought up to the current generation; the response contains the
+     * key mapped to the {@link android.os.SharedMemory} holding the snapshot when the
+     * generation tracking memory array is handed out too.
+     *
+     * @see #CALL_METHOD_TRACK_GENERATION_KEY
+     */
+    public static final String CALL_METHOD_SNAPSHOT_KEY = "_snapshot";
+
     /**
      * @hide - User handle argument extra to the fast-path call()-based requests
      */
@@ -1750,6 +1762,10 @@ public final class Settings {
             return true;
         }
 
+        public int getCurrentGeneration() {
+            return mCurrentGeneration;
+        }
+
         private int readCurrentGeneration() {
             try {
                 return mArray.get(mIndex);
@@ -1827,6 +1843,14 @@ public final class Settings {
         @GuardedBy("this")
         private GenerationTracker mGenerationTracker;
 
+        // Shared memory copy of the table at the tracked generation, if the provider
+        // handed one out.
+        @GuardedBy("this")
+        private SettingsSnapshot mSnapshot;
+
+        @GuardedBy("this")
+        private final String[] mSnapshotValue = new String[1];
+
         public NameValueCache(Uri uri, String getCommand, String setCommand,
                 ContentProviderHolder providerHolder) {
             mUri = uri;
@@ -1858,6 +1882,7 @@ public final class Settings {
 
         public String getStringForUser(ContentResolver cr, String name, final int userHandle) {
             final boolean isSelf = (userHandle == UserHandle.myUserId());
+            boolean refreshSnapshot = false;
             if (isSelf) {
                 synchronized (NameValueCache.this) {
                     if (mGenerationTracker != null) {
@@ -1871,6 +1896,21 @@ public final class Settings {
                         } else if (mValues.containsKey(name)) {
                             return mValues.get(name);
                         }
+                        if (mSnapshot != null) {
+                            if (mSnapshot.getValue(name,
+                                    mGenerationTracker.getCurrentGeneration(), mSnapshotValue)) {
+                                final String value = mSnapshotValue[0];
+                                mSnapshotValue[0] = null;
+                                // The value is only good if nothing changed while copying it
+                                if (!mGenerationTracker.isGenerationChanged()) {
+                                    mValues.put(name, value);
+                                    return value;
+                                }
+                                mValues.clear();
+                            }
+                            // Either withheld or not yet published for this generation
+                            refreshSnapshot = true;
+                        }
                     }
                 }
             } else {
@@ -1890,6 +1930,9 @@ public final class Settings {
                     if (!isSelf) {
                         args = new Bundle();
                         args.putInt(CALL_METHOD_USER_KEY, userHandle);
+                    } else if (refreshSnapshot) {
+                        args = new Bundle();
+                        args.putString(CALL_METHOD_SNAPSHOT_KEY, null);
                     }
                     boolean needsGenerationTracker = false;
                     synchronized (NameValueCache.this) {
@@ -1945,6 +1988,7 @@ public final class Settings {
                                         if (mGenerationTracker != null) {
                                             mGenerationTracker.destroy();
                                         }
+                                        destroySnapshotLocked();
                                         mGenerationTracker = new GenerationTracker(array, index,
                                                 generation, () -> {
                                             synchronized (NameValueCache.this) {
@@ -1955,10 +1999,18 @@ public final class Settings {
                                                             mGenerationTracker;
                                                     mGenerationTracker = null;
                                                     generationTracker.destroy();
+                                                    destroySnapshotLocked();
                                                     mValues.clear();
                                                 }
                                             }
                                         });
+                                        // Don't close the memory, in the provider's own
+                                        // process it is the provider's instance.
+                                        final SharedMemory snapshot = b.getParcelable(
+                                                CALL_METHOD_SNAPSHOT_KEY);
+                                        if (snapshot != null) {
+                                            mSnapshot = SettingsSnapshot.map(snapshot);
+                                        }
                                     }
                                 }
                                 mValues.put(name, value);
@@ -2022,10 +2074,19 @@ public final class Settings {
                 if (mGenerationTracker != null) {
                     mGenerationTracker.destroy();
                 }
+                destroySnapshotLocked();
                 mValues.clear();
                 mGenerationTracker = null;
             }
         }
+
+        @GuardedBy("this")
+        private void destroySnapshotLocked() {
+            if (mSnapshot != null) {
+                mSnapshot.destroy();
+                mSnapshot = null;
+            }
+        }
     }
 
     /**
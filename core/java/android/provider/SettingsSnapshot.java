@@ -0,0 +1,280 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.provider;
+
+import android.annotation.NonNull;
+import android.annotation.Nullable;
+import android.os.SharedMemory;
+import android.system.ErrnoException;
+import android.system.OsConstants;
+import android.util.ArrayMap;
+import android.util.Log;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Arrays;
+
+import sun.misc.Unsafe;
+
+/**
+ * A read-only copy of a settings table kept in shared memory, so that clients can look up
+ * values without a binder call into the settings provider.
+ *
+ * <p>The settings provider owns the memory and is the only writer. A snapshot is published
+ * for a table generation, the same generation that is tracked by the table's slot in the
+ * generation {@link android.util.MemoryIntArray}. The memory holds two slots and generation
+ * {@code g} lives in slot {@code g & 1}, so publishing the next generation never overwrites
+ * the data a reader of the current one is looking at. A reader only trusts a lookup if the
+ * slot still carries the generation it asked for once the value has been copied out; the
+ * caller must also check that the tracked generation did not move while it was reading.
+ *
+ * <p>Each slot is laid out as {generation, count, hashes[count], offsets[count], entries}
+ * where the hashes are the {@link String#hashCode()} of the names in ascending order and each
+ * entry is {name length, name chars, value length, value chars}. A value length of -1 stands
+ * for a null value and {@link #VALUE_WITHHELD} marks names whose value the caller has to ask
+ * the provider for, such as values the provider only returns to some callers.
+ *
+ * <p>The generation word works as a sequence lock across processes: the writer fences its
+ * stores so the generation is only seen after the entries it covers, and the reader fences
+ * its loads so the entries are read between its two checks of the generation.
+ *
+ * @hide
+ */
+public final class SettingsSnapshot {
+    private static final String TAG = "SettingsSnapshot";
+
+    /** Size of the shared memory backing a snapshot. */
+    public static final int MEMORY_SIZE = 128 * 1024;
+
+    /** Values longer than this are withheld to keep the common values within a slot. */
+    public static final int MAX_VALUE_LENGTH = 1024;
+
+    private static final int SLOT_SIZE = MEMORY_SIZE / 2;
+    private static final int HEADER_SIZE = 8;
+
+    private static final int GENERATION_NONE = -1;
+    private static final int VALUE_NULL = -1;
+    private static final int VALUE_WITHHELD = -2;
+
+    private static final Unsafe sUnsafe = Unsafe.getUnsafe();
+
+    private final ByteBuffer mBuffer;
+    private final boolean mWritable;
+
+    private SettingsSnapshot(ByteBuffer buffer, boolean writable) {
+        mBuffer = buffer.order(ByteOrder.nativeOrder());
+        mWritable = writable;
+    }
+
+    /**
+     * Creates the shared memory for a new snapshot. Only the settings provider calls this;
+     * it should map the result with {@link #createWriter} before handing it out.
+     */
+    public static @NonNull SharedMemory createMemory(String name) throws ErrnoException {
+        return SharedMemory.create(name, MEMORY_SIZE);
+    }
+
+    /**
+     * Maps {@code memory} for publishing and restricts any later mapping to read-only,
+     * which is what clients that receive the memory end up with.
+     */
+    public static @NonNull SettingsSnapshot createWriter(@NonNull SharedMemory memory)
+            throws ErrnoException {
+        final SettingsSnapshot snapshot = new SettingsSnapshot(memory.mapReadWrite(), true);
+        memory.setProtect(OsConstants.PROT_READ);
+        snapshot.mBuffer.putInt(0, GENERATION_NONE);
+        snapshot.mBuffer.putInt(SLOT_SIZE, GENERATION_NONE);
+        return snapshot;
+    }
+
+    /**
+     * Maps a snapshot received from the settings provider. The mapping stays valid after
+     * {@code memory} is closed.
+     */
+    public static @Nullable SettingsSnapshot map(@NonNull SharedMemory memory) {
+        if (memory.getSize() != MEMORY_SIZE) {
+            return null;
+        }
+        try {
+            return new SettingsSnapshot(memory.mapReadOnly(), false);
+        } catch (ErrnoException e) {
+            Log.w(TAG, "Unable to map settings snapshot", e);
+            return null;
+        }
+    }
+
+    /**
+     * Publishes {@code values} as the contents of {@code generation}.
+     *
+     * @param values the table, by name.
+     * @param withheld names whose value must not be exposed through the snapshot.
+     * @return false if the table does not fit, in which case readers of this generation
+     *     fall back to the provider.
+     */
+    public boolean publish(int generation, @NonNull ArrayMap<String, String> values,
+            @Nullable String[] withheld) {
+        if (!mWritable) {
+            throw new IllegalStateException("Snapshot is read-only");
+        }
+        final int base = slotBase(generation);
+        mBuffer.putInt(base, GENERATION_NONE);
+        // Readers must see the slot invalidated before any entry changes
+        sUnsafe.storeFence();
+
+        final int count = values.size();
+        final long[] order = new long[count];
+        for (int i = 0; i < count; i++) {
+            // Sort by hash, keeping the index in the low bits
+            order[i] = ((long) values.keyAt(i).hashCode() << 32) | i;
+        }
+        Arrays.sort(order);
+
+        int pos = base + HEADER_SIZE + count * 8;
+        for (int i = 0; i < count; i++) {
+            final int index = (int) order[i];
+            final String name = values.keyAt(index);
+            String value = values.valueAt(index);
+            int valueLength = value != null ? value.length() : VALUE_NULL;
+            if (valueLength > MAX_VALUE_LENGTH || contains(withheld, name)) {
+                value = null;
+                valueLength = VALUE_WITHHELD;
+            }
+            final int size = 8 + name.length() * 2 + Math.max(valueLength, 0) * 2;
+            if (pos + size > base + SLOT_SIZE) {
+                return false;
+            }
+            mBuffer.putInt(base + HEADER_SIZE + i * 4, (int) (order[i] >> 32));
+            mBuffer.putInt(base + HEADER_SIZE + (count + i) * 4, pos - base);
+            pos = putString(pos, name, name.length());
+            pos = putString(pos, value, valueLength);
+        }
+        mBuffer.putInt(base + 4, count);
+        // Release the entries before the generation that vouches for them
+        sUnsafe.storeFence();
+        mBuffer.putInt(base, generation);
+        return true;
+    }
+
+    /**
+     * Looks up {@code name} in the snapshot of {@code generation}.
+     *
+     * @param outValue receives the value, null if the table has no such setting.
+     * @return false if the snapshot cannot answer, because it holds another generation,
+     *     was rewritten while reading or withholds the value.
+     */
+    public boolean getValue(@NonNull String name, int generation, @NonNull String[] outValue) {
+        final int base = slotBase(generation);
+        try {
+            if (mBuffer.getInt(base) != generation) {
+                return false;
+            }
+            // Acquire: don't read entries ahead of the generation check above
+            sUnsafe.loadFence();
+            final int count = mBuffer.getInt(base + 4);
+            if (count < 0 || count > (SLOT_SIZE - HEADER_SIZE) / 8) {
+                return false;
+            }
+            final int hash = name.hashCode();
+            int lo = 0;
+            int hi = count;
+            while (lo < hi) {
+                final int mid = (lo + hi) >>> 1;
+                if (mBuffer.getInt(base + HEADER_SIZE + mid * 4) < hash) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+            String value = null;
+            for (int i = lo; i < count; i++) {
+                if (mBuffer.getInt(base + HEADER_SIZE + i * 4) != hash) {
+                    break;
+                }
+                int pos = base + mBuffer.getInt(base + HEADER_SIZE + (count + i) * 4);
+                if (!nameEquals(pos, name)) {
+                    continue;
+                }
+                pos += 4 + name.length() * 2;
+                final int valueLength = mBuffer.getInt(pos);
+                if (valueLength == VALUE_WITHHELD || valueLength > MAX_VALUE_LENGTH) {
+                    return false;
+                }
+                if (valueLength >= 0) {
+                    final char[] chars = new char[valueLength];
+                    for (int j = 0; j < valueLength; j++) {
+                        chars[j] = mBuffer.getChar(pos + 4 + j * 2);
+                    }
+                    value = new String(chars);
+                }
+                break;
+            }
+            // Don't let the entry reads drift past the final generation check
+            sUnsafe.loadFence();
+            if (mBuffer.getInt(base) != generation) {
+                return false;
+            }
+            outValue[0] = value;
+            return true;
+        } catch (IndexOutOfBoundsException e) {
+            // Only reachable while the slot is being rewritten under us
+            return false;
+        }
+    }
+
+    private static int slotBase(int generation) {
+        return (generation & 1) * SLOT_SIZE;
+    }
+
+    private boolean nameEquals(int pos, String name) {
+        final int length = name.length();
+        if (mBuffer.getInt(pos) != length) {
+            return false;
+        }
+        for (int i = 0; i < length; i++) {
+            if (mBuffer.getChar(pos + 4 + i * 2) != name.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private int putString(int pos, String value, int length) {
+        mBuffer.putInt(pos, length);
+        pos += 4;
+        for (int i = 0; i < length; i++) {
+            mBuffer.putChar(pos, value.charAt(i));
+            pos += 2;
+        }
+        return pos;
+    }
+
+    private static boolean contains(String[] names, String name) {
+        if (names != null) {
+            for (String candidate : names) {
+                if (candidate.equals(name)) {
+                    return true;
+                }
+            }
+        }
+        return false;
+    }
+
+    /** Releases the mapping; the snapshot must not be used afterwards. */
+    public void destroy() {
+        SharedMemory.unmap(mBuffer);
+    }
+}
@@ -1299,9 +1299,30 @@ public abstract class NotificationListenerService extends Service {
      * @hide
      */
     public final void applyUpdateLocked(NotificationRankingUpdate update) {
+        if (update.isDelta()) {
+            if (mRankingMap == null
+                    || mRankingMap.mRankingUpdate.getVersion() != update.getBaseVersion()) {
+                // An update was lost on the way; keep the current ranking until the
+                // notification manager sends a full one.
+                Log.w(TAG, "Ranking update " + update.getVersion() + " is based on "
+                        + update.getBaseVersion() + ", requesting a full update");
+                requestRankingResync();
+                return;
+            }
+            update = update.applyTo(mRankingMap.mRankingUpdate);
+        }
         mRankingMap = new RankingMap(update);
     }
 
+    private void requestRankingResync() {
+        if (!isBound()) return;
+        try {
+            getNotificationInterface().requestRankingResyncFromListener(mWrapper);
+        } catch (RemoteException ex) {
+            Log.v(TAG, "Unable to contact notification manager", ex);
+        }
+    }
+
     /** @hide */
     protected Context getContext() {
         if (mSystemContext != null) {
@@ -18,13 +18,28 @@ package android.service.notification;
 import android.os.Bundle;
 import android.os.Parcel;
 import android.os.Parcelable;
+import android.util.ArrayMap;
+import android.util.ArraySet;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Objects;
 
 /**
+ * Either a full snapshot of the ranking of the notifications visible to a listener, or a delta
+ * against an earlier snapshot. A delta only carries the notifications whose ranking
+ * information changed, and the ordered keys only if the order changed.
+ *
  * @hide
  */
 public class NotificationRankingUpdate implements Parcelable {
-    // TODO: Support incremental updates.
+    /** Base version of a full snapshot, which doesn't depend on an earlier update. */
+    public static final int VERSION_NONE = 0;
+
+    private final int mVersion;
+    private final int mBaseVersion;
     private final String[] mKeys;
+    private final String[] mChangedKeys;
     private final String[] mInterceptedKeys;
     private final Bundle mVisibilityOverrides;
     private final Bundle mSuppressedVisualEffects;
@@ -41,7 +56,30 @@ public class NotificationRankingUpdate implements Parcelable {
             int[] importance, Bundle explanation, Bundle overrideGroupKeys,
             Bundle channels, Bundle overridePeople, Bundle snoozeCriteria,
             Bundle showBadge) {
+        this(VERSION_NONE, keys, interceptedKeys, visibilityOverrides, suppressedVisualEffects,
+                importance, explanation, overrideGroupKeys, channels, overridePeople,
+                snoozeCriteria, showBadge);
+    }
+
+    public NotificationRankingUpdate(int version, String[] keys, String[] interceptedKeys,
+            Bundle visibilityOverrides, Bundle suppressedVisualEffects,
+            int[] importance, Bundle explanation, Bundle overrideGroupKeys,
+            Bundle channels, Bundle overridePeople, Bundle snoozeCriteria,
+            Bundle showBadge) {
+        this(version, VERSION_NONE, keys, null, interceptedKeys, visibilityOverrides,
+                suppressedVisualEffects, importance, explanation, overrideGroupKeys, channels,
+                overridePeople, snoozeCriteria, showBadge);
+    }
+
+    private NotificationRankingUpdate(int version, int baseVersion, String[] keys,
+            String[] changedKeys, String[] interceptedKeys, Bundle visibilityOverrides,
+            Bundle suppressedVisualEffects, int[] importance, Bundle explanation,
+            Bundle overrideGroupKeys, Bundle channels, Bundle overridePeople,
+            Bundle snoozeCriteria, Bundle showBadge) {
+        mVersion = version;
+        mBaseVersion = baseVersion;
         mKeys = keys;
+        mChangedKeys = changedKeys;
         mInterceptedKeys = interceptedKeys;
         mVisibilityOverrides = visibilityOverrides;
         mSuppressedVisualEffects = suppressedVisualEffects;
@@ -55,12 +93,14 @@ public class NotificationRankingUpdate implements Parcelable {
     }
 
     public NotificationRankingUpdate(Parcel in) {
+        mVersion = in.readInt();
+        mBaseVersion = in.readInt();
         mKeys = in.readStringArray();
+        mChangedKeys = in.readStringArray();
         mInterceptedKeys = in.readStringArray();
         mVisibilityOverrides = in.readBundle();
         mSuppressedVisualEffects = in.readBundle();
-        mImportance = new int[mKeys.length];
-        in.readIntArray(mImportance);
+        mImportance = in.createIntArray();
         mImportanceExplanation = in.readBundle();
         mOverrideGroupKeys = in.readBundle();
         mChannels = in.readBundle();
@@ -76,7 +116,10 @@ public class NotificationRankingUpdate implements Parcelable {
 
     @Override
     public void writeToParcel(Parcel out, int flags) {
+        out.writeInt(mVersion);
+        out.writeInt(mBaseVersion);
         out.writeStringArray(mKeys);
+        out.writeStringArray(mChangedKeys);
         out.writeStringArray(mInterceptedKeys);
         out.writeBundle(mVisibilityOverrides);
         out.writeBundle(mSuppressedVisualEffects);
@@ -100,10 +143,198 @@ public class NotificationRankingUpdate implements Parcelable {
         }
     };
 
+    public int getVersion() {
+        return mVersion;
+    }
+
+    /**
+     * Returns the version of the snapshot this delta applies to, or {@link #VERSION_NONE}
+     * if this is a full snapshot.
+     */
+    public int getBaseVersion() {
+        return mBaseVersion;
+    }
+
+    public boolean isDelta() {
+        return mBaseVersion != VERSION_NONE;
+    }
+
+    /**
+     * Creates a delta that turns {@code base}, a full snapshot previously sent to the same
+     * listener, into this full snapshot.
+     */
+    public NotificationRankingUpdate createDelta(NotificationRankingUpdate base) {
+        final ArrayMap<String, Integer> baseIndex = base.indexKeys();
+        final ArraySet<String> baseIntercepted = toSet(base.mInterceptedKeys);
+        final ArraySet<String> intercepted = toSet(mInterceptedKeys);
+
+        final int N = mKeys.length;
+        final ArrayList<String> changedKeys = new ArrayList<>();
+        final ArrayList<String> interceptedKeys = new ArrayList<>();
+        final int[] importance = new int[N];
+        final Bundle visibilityOverrides = new Bundle();
+        final Bundle suppressedVisualEffects = new Bundle();
+        final Bundle explanation = new Bundle();
+        final Bundle overrideGroupKeys = new Bundle();
+        final Bundle channels = new Bundle();
+        final Bundle overridePeople = new Bundle();
+        final Bundle snoozeCriteria = new Bundle();
+        final Bundle showBadge = new Bundle();
+        for (int i = 0; i < N; i++) {
+            final String key = mKeys[i];
+            final Integer baseI = baseIndex.get(key);
+            if (baseI != null
+                    && mImportance[i] == base.mImportance[baseI]
+                    && intercepted.contains(key) == baseIntercepted.contains(key)
+                    && sameEntry(mVisibilityOverrides, base.mVisibilityOverrides, key)
+                    && sameEntry(mSuppressedVisualEffects, base.mSuppressedVisualEffects, key)
+                    && sameEntry(mImportanceExplanation, base.mImportanceExplanation, key)
+                    && sameEntry(mOverrideGroupKeys, base.mOverrideGroupKeys, key)
+                    && sameEntry(mChannels, base.mChannels, key)
+                    && sameEntry(mOverridePeople, base.mOverridePeople, key)
+                    && sameEntry(mSnoozeCriteria, base.mSnoozeCriteria, key)
+                    && sameEntry(mShowBadge, base.mShowBadge, key)) {
+                continue;
+            }
+            if (intercepted.contains(key)) {
+                interceptedKeys.add(key);
+            }
+            importance[changedKeys.size()] = mImportance[i];
+            changedKeys.add(key);
+            copyEntries(this, key, visibilityOverrides, suppressedVisualEffects, explanation,
+                    overrideGroupKeys, channels, overridePeople, snoozeCriteria, showBadge);
+        }
+        return new NotificationRankingUpdate(mVersion, base.mVersion,
+                Arrays.equals(mKeys, base.mKeys) ? null : mKeys,
+                changedKeys.toArray(new String[changedKeys.size()]),
+                interceptedKeys.toArray(new String[interceptedKeys.size()]),
+                visibilityOverrides, suppressedVisualEffects,
+                Arrays.copyOf(importance, changedKeys.size()), explanation, overrideGroupKeys,
+                channels, overridePeople, snoozeCriteria, showBadge);
+    }
+
+    /**
+     * Applies this delta to {@code base}, the full snapshot with version
+     * {@link #getBaseVersion()}, and returns the resulting full snapshot.
+     */
+    public NotificationRankingUpdate applyTo(NotificationRankingUpdate base) {
+        if (!isDelta() || base.mVersion != mBaseVersion) {
+            throw new IllegalArgumentException("Update " + mVersion + " based on "
+                    + mBaseVersion + " can't be applied to " + base.mVersion);
+        }
+        final ArrayMap<String, Integer> baseIndex = base.indexKeys();
+        final ArrayMap<String, Integer> changedIndex = new ArrayMap<>(mChangedKeys.length);
+        for (int i = 0; i < mChangedKeys.length; i++) {
+            changedIndex.put(mChangedKeys[i], i);
+        }
+        final ArraySet<String> baseIntercepted = toSet(base.mInterceptedKeys);
+        final ArraySet<String> intercepted = toSet(mInterceptedKeys);
+
+        final String[] keys = mKeys != null ? mKeys : base.mKeys;
+        final int N = keys.length;
+        final ArrayList<String> interceptedKeys = new ArrayList<>();
+        final int[] importance = new int[N];
+        final Bundle visibilityOverrides = new Bundle();
+        final Bundle suppressedVisualEffects = new Bundle();
+        final Bundle explanation = new Bundle();
+        final Bundle overrideGroupKeys = new Bundle();
+        final Bundle channels = new Bundle();
+        final Bundle overridePeople = new Bundle();
+        final Bundle snoozeCriteria = new Bundle();
+        final Bundle showBadge = new Bundle();
+        for (int i = 0; i < N; i++) {
+            final String key = keys[i];
+            final Integer changedI = changedIndex.get(key);
+            final NotificationRankingUpdate source;
+            if (changedI != null) {
+                source = this;
+                importance[i] = mImportance[changedI];
+                if (intercepted.contains(key)) {
+                    interceptedKeys.add(key);
+                }
+            } else {
+                final Integer baseI = baseIndex.get(key);
+                if (baseI == null) {
+                    throw new IllegalArgumentException("Update " + mVersion
+                            + " has no ranking for " + key);
+                }
+                source = base;
+                importance[i] = base.mImportance[baseI];
+                if (baseIntercepted.contains(key)) {
+                    interceptedKeys.add(key);
+                }
+            }
+            copyEntries(source, key, visibilityOverrides, suppressedVisualEffects, explanation,
+                    overrideGroupKeys, channels, overridePeople, snoozeCriteria, showBadge);
+        }
+        return new NotificationRankingUpdate(mVersion, keys,
+                interceptedKeys.toArray(new String[interceptedKeys.size()]),
+                visibilityOverrides, suppressedVisualEffects, importance, explanation,
+                overrideGroupKeys, channels, overridePeople, snoozeCriteria, showBadge);
+    }
+
+    private ArrayMap<String, Integer> indexKeys() {
+        final ArrayMap<String, Integer> index = new ArrayMap<>(mKeys.length);
+        for (int i = 0; i < mKeys.length; i++) {
+            index.put(mKeys[i], i);
+        }
+        return index;
+    }
+
+    private static ArraySet<String> toSet(String[] keys) {
+        final ArraySet<String> set = new ArraySet<>(keys.length);
+        for (String key : keys) {
+            set.add(key);
+        }
+        return set;
+    }
+
+    private static boolean sameEntry(Bundle a, Bundle b, String key) {
+        return a.containsKey(key) == b.containsKey(key) && Objects.equals(a.get(key), b.get(key));
+    }
+
+    private static void copyEntries(NotificationRankingUpdate from, String key,
+            Bundle visibilityOverrides, Bundle suppressedVisualEffects, Bundle explanation,
+            Bundle overrideGroupKeys, Bundle channels, Bundle overridePeople,
+            Bundle snoozeCriteria, Bundle showBadge) {
+        if (from.mVisibilityOverrides.containsKey(key)) {
+            visibilityOverrides.putInt(key, from.mVisibilityOverrides.getInt(key));
+        }
+        if (from.mSuppressedVisualEffects.containsKey(key)) {
+            suppressedVisualEffects.putInt(key, from.mSuppressedVisualEffects.getInt(key));
+        }
+        if (from.mImportanceExplanation.containsKey(key)) {
+            explanation.putCharSequence(key, from.mImportanceExplanation.getCharSequence(key));
+        }
+        if (from.mOverrideGroupKeys.containsKey(key)) {
+            overrideGroupKeys.putString(key, from.mOverrideGroupKeys.getString(key));
+        }
+        if (from.mChannels.containsKey(key)) {
+            channels.putParcelable(key, from.mChannels.getParcelable(key));
+        }
+        if (from.mOverridePeople.containsKey(key)) {
+            overridePeople.putStringArrayList(key, from.mOverridePeople.getStringArrayList(key));
+        }
+        if (from.mSnoozeCriteria.containsKey(key)) {
+            snoozeCriteria.putParcelableArrayList(key,
+                    from.mSnoozeCriteria.<SnoozeCriterion>getParcelableArrayList(key));
+        }
+        if (from.mShowBadge.containsKey(key)) {
+            showBadge.putBoolean(key, from.mShowBadge.getBoolean(key));
+        }
+    }
+
     public String[] getOrderedKeys() {
         return mKeys;
     }
 
+    /**
+     * Returns the keys whose ranking information a delta carries.
+     */
+    public String[] getChangedKeys() {
+        return mChangedKeys;
+    }
+
     public String[] getInterceptedKeys() {
         return mInterceptedKeys;
     }
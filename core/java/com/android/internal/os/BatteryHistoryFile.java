@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import android.util.Slog;
+
+import com.android.internal.annotations.VisibleForTesting;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.zip.CRC32;
+
+/**
+ * Memory-mapped file holding the battery history buffer of {@link BatteryStatsImpl}, so
+ * that persisting the history only writes the bytes that changed since the last write
+ * instead of serializing the whole buffer into batterystats.bin every time.
+ *
+ * <p>The file starts with a header of {magic, generation, length}, followed by a CRC32 of
+ * every {@link #CHUNK_SIZE} bytes of history and then by the raw history buffer.
+ * batterystats.bin records the generation and length of the history it was written with;
+ * the generation is bumped whenever bytes that an already committed batterystats.bin
+ * refers to are overwritten, so a crash between the two writes is detected instead of
+ * pairing the summary with the wrong history.  The checksums catch pages of the mapping
+ * that never made it to disk.
+ */
+final class BatteryHistoryFile {
+    private static final String TAG = "BatteryHistoryFile";
+
+    private static final int MAGIC = 0x42484632; // BHF2
+    private static final int HEADER_SIZE = 12;
+
+    static final int CHUNK_SIZE = 4096;
+
+    private final File mFile;
+    private final int mCapacity;
+    private final int mNumChunks;
+    private final int mDataStart;
+    private final CRC32 mCrc = new CRC32();
+
+    private RandomAccessFile mRaf;
+    private MappedByteBuffer mBuffer;
+    private int mGeneration;
+    private int mLength;
+
+    BatteryHistoryFile(File file, int capacity) {
+        mFile = file;
+        mCapacity = capacity;
+        mNumChunks = (capacity + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        mDataStart = HEADER_SIZE + mNumChunks * 4;
+    }
+
+    private boolean ensureMappedLocked() {
+        if (mBuffer != null) {
+            return true;
+        }
+        try {
+            mRaf = new RandomAccessFile(mFile, "rw");
+            mBuffer = mRaf.getChannel().map(FileChannel.MapMode.READ_WRITE, 0,
+                    mDataStart + mCapacity);
+            if (mBuffer.getInt(0) == MAGIC) {
+                mGeneration = mBuffer.getInt(4);
+                mLength = mBuffer.getInt(8);
+                if (mLength < 0 || mLength > mCapacity) {
+                    mLength = 0;
+                }
+            } else {
+                mGeneration = 0;
+                mLength = 0;
+            }
+            return true;
+        } catch (IOException e) {
+            Slog.w(TAG, "Unable to map " + mFile, e);
+            close();
+            return false;
+        }
+    }
+
+    /**
+     * Returns the generation of the history currently in the file.
+     */
+    synchronized int getGeneration() {
+        return ensureMappedLocked() ? mGeneration : 0;
+    }
+
+    /**
+     * Reads the first {@code length} bytes of history, or returns null if the file does
+     * not hold that much history of the given generation.
+     */
+    synchronized byte[] read(int generation, int length) {
+        if (!ensureMappedLocked() || generation != mGeneration || length < 0
+                || length > mLength) {
+            return null;
+        }
+        // The checksums cover the whole history in the file, which can be longer than what
+        // the summary refers to if a crash came between the two writes.
+        final int numChunks = (mLength + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        for (int i = 0; i < numChunks; i++) {
+            if (mBuffer.getInt(HEADER_SIZE + i * 4) != computeChunkCrcLocked(i)) {
+                Slog.w(TAG, "History chunk " + i + " is corrupt");
+                return null;
+            }
+        }
+        final byte[] data = new byte[length];
+        mBuffer.position(mDataStart);
+        mBuffer.get(data, 0, length);
+        return data;
+    }
+
+    /**
+     * Writes {@code data} at {@code offset} in the history, truncates the history to
+     * {@code length} bytes and syncs the file.
+     */
+    synchronized boolean write(int generation, int offset, byte[] data, int length) {
+        if (!ensureMappedLocked()) {
+            return false;
+        }
+        if (offset < 0 || offset + data.length > mCapacity || length < 0
+                || length > mCapacity) {
+            Slog.w(TAG, "History write out of range: offset=" + offset + " size="
+                    + data.length + " length=" + length);
+            return false;
+        }
+        mBuffer.position(mDataStart + offset);
+        mBuffer.put(data);
+        mBuffer.putInt(0, MAGIC);
+        mBuffer.putInt(4, generation);
+        mBuffer.putInt(8, length);
+        mGeneration = generation;
+        mLength = length;
+        // Only the chunks written to, and the last one whose extent depends on the length,
+        // can have changed.
+        final int firstChunk = Math.min(offset, length) / CHUNK_SIZE;
+        final int endChunk = (length + CHUNK_SIZE - 1) / CHUNK_SIZE;
+        for (int i = firstChunk; i < endChunk; i++) {
+            mBuffer.putInt(HEADER_SIZE + i * 4, computeChunkCrcLocked(i));
+        }
+        mBuffer.force();
+        return true;
+    }
+
+    private int computeChunkCrcLocked(int chunk) {
+        final int start = chunk * CHUNK_SIZE;
+        final ByteBuffer bytes = mBuffer.duplicate();
+        bytes.limit(mDataStart + Math.min(start + CHUNK_SIZE, mLength));
+        bytes.position(mDataStart + start);
+        mCrc.reset();
+        mCrc.update(bytes);
+        return (int) mCrc.getValue();
+    }
+
+    /**
+     * Flips a byte of history in the mapping without updating its checksum.
+     */
+    @VisibleForTesting
+    synchronized void corruptForTesting(int offset) {
+        if (ensureMappedLocked()) {
+            mBuffer.put(mDataStart + offset, (byte) ~mBuffer.get(mDataStart + offset));
+        }
+    }
+
+    synchronized void close() {
+        mBuffer = null;
+        if (mRaf != null) {
+            try {
+                mRaf.close();
+            } catch (IOException e) {
+            }
+            mRaf = null;
+        }
+    }
+}
@@ -119,7 +119,7 @@ public class BatteryStatsImpl extends BatteryStats {
     private static final int MAGIC = 0xBA757475; // 'BATSTATS'
 
     // Current on-disk Parcel version
-    private static final int VERSION = 167 + (USE_OLD_HISTORY ? 1000 : 0);
+    private static final int VERSION = 168 + (USE_OLD_HISTORY ? 1000 : 0);
 
     // Maximum number of items we will record in the history.
     private static final int MAX_HISTORY_ITEMS;
@@ -160,6 +160,7 @@ public class BatteryStatsImpl extends BatteryStats {
     protected Clocks mClocks;
 
     private final JournaledFile mFile;
+    private final BatteryHistoryFile mHistoryFile;
     public final AtomicFile mCheckinFile;
     public final AtomicFile mDailyFile;
 
@@ -341,6 +342,30 @@ public class BatteryStatsImpl extends BatteryStats {
     int mNumHistoryItems;
 
     final Parcel mHistoryBuffer = Parcel.obtain();
+
+    // Marker written in place of the history buffer size when the buffer itself lives in
+    // mHistoryFile.
+    static final int HISTORY_IN_FILE = -1;
+
+    // Lowest position of mHistoryBuffer that was rewritten since the buffer was last
+    // handed to mHistoryFile, and the generation and size it was last handed over with.
+    int mHistoryFileDirtyPos = Integer.MAX_VALUE;
+    int mHistoryFileGeneration;
+    int mHistoryFileSize;
+
+    static final class PendingHistoryWrite {
+        final int generation;
+        final int offset;
+        final byte[] data;
+        final int length;
+
+        PendingHistoryWrite(int generation, int offset, byte[] data, int length) {
+            this.generation = generation;
+            this.offset = offset;
+            this.data = data;
+            this.length = length;
+        }
+    }
     final HistoryItem mHistoryLastWritten = new HistoryItem();
     final HistoryItem mHistoryLastLastWritten = new HistoryItem();
     final HistoryItem mHistoryReadTmp = new HistoryItem();
@@ -698,6 +723,7 @@ public class BatteryStatsImpl extends BatteryStats {
     public BatteryStatsImpl(Clocks clocks) {
         init(clocks);
         mFile = null;
+        mHistoryFile = null;
         mCheckinFile = null;
         mDailyFile = null;
         mHandler = null;
@@ -1290,6 +1316,107 @@ public class BatteryStatsImpl extends BatteryStats {
         }
     }
 
+    /**
+     * A fixed number of {@link LongSamplingCounter}s sharing one time base, stored as
+     * parallel arrays instead of one object per counter.  Uids use it for counters that
+     * always come as a group, so each group costs one object and one time base observer
+     * rather than one of each per counter.  Elements are parceled exactly like a
+     * LongSamplingCounter.
+     */
+    public static class LongSamplingCounterBlock implements TimeBaseObs {
+        final TimeBase mTimeBase;
+        final long[] mCounts;
+        final long[] mLoadedCounts;
+        final long[] mUnpluggedCounts;
+        final long[] mPluggedCounts;
+
+        LongSamplingCounterBlock(TimeBase timeBase, int size) {
+            mTimeBase = timeBase;
+            mCounts = new long[size];
+            mLoadedCounts = new long[size];
+            mUnpluggedCounts = new long[size];
+            mPluggedCounts = new long[size];
+            timeBase.add(this);
+        }
+
+        void readFromParcel(int index, Parcel in) {
+            mPluggedCounts[index] = in.readLong();
+            mCounts[index] = mPluggedCounts[index];
+            mLoadedCounts[index] = in.readLong();
+            mUnpluggedCounts[index] = in.readLong();
+        }
+
+        void writeToParcel(int index, Parcel out) {
+            out.writeLong(mCounts[index]);
+            out.writeLong(mLoadedCounts[index]);
+            out.writeLong(mUnpluggedCounts[index]);
+        }
+
+        @Override
+        public void onTimeStarted(long elapsedRealtime, long baseUptime, long baseRealtime) {
+            System.arraycopy(mPluggedCounts, 0, mUnpluggedCounts, 0, mCounts.length);
+        }
+
+        @Override
+        public void onTimeStopped(long elapsedRealtime, long baseUptime, long baseRealtime) {
+            System.arraycopy(mCounts, 0, mPluggedCounts, 0, mCounts.length);
+        }
+
+        public long getCountLocked(int index, int which) {
+            long val = mTimeBase.isRunning() ? mCounts[index] : mPluggedCounts[index];
+            if (which == STATS_SINCE_UNPLUGGED) {
+                val -= mUnpluggedCounts[index];
+            } else if (which != STATS_SINCE_CHARGED) {
+                val -= mLoadedCounts[index];
+            }
+            return val;
+        }
+
+        public int getSize() {
+            return mCounts.length;
+        }
+
+        public void logState(Printer pw, String prefix) {
+            pw.println(prefix + "mCounts=" + Arrays.toString(mCounts)
+                    + " mLoadedCounts=" + Arrays.toString(mLoadedCounts)
+                    + " mUnpluggedCounts=" + Arrays.toString(mUnpluggedCounts)
+                    + " mPluggedCounts=" + Arrays.toString(mPluggedCounts));
+        }
+
+        void addCountLocked(int index, long count) {
+            if (mTimeBase.isRunning()) {
+                mCounts[index] += count;
+            }
+        }
+
+        /**
+         * Clear state of all counters in this block.
+         */
+        void reset(boolean detachIfReset) {
+            Arrays.fill(mCounts, 0);
+            Arrays.fill(mLoadedCounts, 0);
+            Arrays.fill(mUnpluggedCounts, 0);
+            Arrays.fill(mPluggedCounts, 0);
+            if (detachIfReset) {
+                detach();
+            }
+        }
+
+        void detach() {
+            mTimeBase.remove(this);
+        }
+
+        void writeSummaryToParcelLocked(int index, Parcel out) {
+            out.writeLong(mCounts[index]);
+        }
+
+        void readSummaryFromParcelLocked(int index, Parcel in) {
+            mLoadedCounts[index] = in.readLong();
+            mCounts[index] = mLoadedCounts[index];
+            mUnpluggedCounts[index] = mPluggedCounts[index] = mLoadedCounts[index];
+        }
+    }
+
     /**
      * State for keeping track of timing information.
      */
@@ -3296,6 +3423,7 @@ public class BatteryStatsImpl extends BatteryStats {
             // as long as no bit has changed both between now and the last entry, as
             // well as the last entry and the one before it (so we capture any toggles).
             if (DEBUG) Slog.i(TAG, "ADD: rewinding back to " + mHistoryBufferLastPos);
+            mHistoryFileDirtyPos = Math.min(mHistoryFileDirtyPos, mHistoryBufferLastPos);
             mHistoryBuffer.setDataSize(mHistoryBufferLastPos);
             mHistoryBuffer.setDataPosition(mHistoryBufferLastPos);
             mHistoryBufferLastPos = -1;
@@ -3555,6 +3683,7 @@ public class BatteryStatsImpl extends BatteryStats {
         mHistoryBuffer.setDataSize(0);
         mHistoryBuffer.setDataPosition(0);
         mHistoryBuffer.setDataCapacity(MAX_HISTORY_BUFFER / 2);
+        mHistoryFileDirtyPos = 0;
         mHistoryLastLastWritten.clear();
         mHistoryLastWritten.clear();
         mHistoryTagPool.clear();
@@ -5757,8 +5886,8 @@ public class BatteryStatsImpl extends BatteryStats {
 
         Counter[] mUserActivityCounters;
 
-        LongSamplingCounter[] mNetworkByteActivityCounters;
-        LongSamplingCounter[] mNetworkPacketActivityCounters;
+        LongSamplingCounterBlock mNetworkByteActivityCounters;
+        LongSamplingCounterBlock mNetworkPacketActivityCounters;
         LongSamplingCounter mMobileRadioActiveTime;
         LongSamplingCounter mMobileRadioActiveCount;
 
@@ -6584,8 +6713,8 @@ public class BatteryStatsImpl extends BatteryStats {
                 initNetworkActivityLocked();
             }
             if (type >= 0 && type < NUM_NETWORK_ACTIVITY_TYPES) {
-                mNetworkByteActivityCounters[type].addCountLocked(deltaBytes);
-                mNetworkPacketActivityCounters[type].addCountLocked(deltaPackets);
+                mNetworkByteActivityCounters.addCountLocked(type, deltaBytes);
+                mNetworkPacketActivityCounters.addCountLocked(type, deltaPackets);
             } else {
                 Slog.w(TAG, "Unknown network activity type " + type + " was specified.",
                         new Throwable());
@@ -6608,8 +6737,8 @@ public class BatteryStatsImpl extends BatteryStats {
         @Override
         public long getNetworkActivityBytes(int type, int which) {
             if (mNetworkByteActivityCounters != null && type >= 0
-                    && type < mNetworkByteActivityCounters.length) {
-                return mNetworkByteActivityCounters[type].getCountLocked(which);
+                    && type < mNetworkByteActivityCounters.getSize()) {
+                return mNetworkByteActivityCounters.getCountLocked(type, which);
             } else {
                 return 0;
             }
@@ -6618,8 +6747,8 @@ public class BatteryStatsImpl extends BatteryStats {
         @Override
         public long getNetworkActivityPackets(int type, int which) {
             if (mNetworkPacketActivityCounters != null && type >= 0
-                    && type < mNetworkPacketActivityCounters.length) {
-                return mNetworkPacketActivityCounters[type].getCountLocked(which);
+                    && type < mNetworkPacketActivityCounters.getSize()) {
+                return mNetworkPacketActivityCounters.getCountLocked(type, which);
             } else {
                 return 0;
             }
@@ -6696,12 +6825,10 @@ public class BatteryStatsImpl extends BatteryStats {
         }
 
         void initNetworkActivityLocked() {
-            mNetworkByteActivityCounters = new LongSamplingCounter[NUM_NETWORK_ACTIVITY_TYPES];
-            mNetworkPacketActivityCounters = new LongSamplingCounter[NUM_NETWORK_ACTIVITY_TYPES];
-            for (int i = 0; i < NUM_NETWORK_ACTIVITY_TYPES; i++) {
-                mNetworkByteActivityCounters[i] = new LongSamplingCounter(mBsi.mOnBatteryTimeBase);
-                mNetworkPacketActivityCounters[i] = new LongSamplingCounter(mBsi.mOnBatteryTimeBase);
-            }
+            mNetworkByteActivityCounters = new LongSamplingCounterBlock(
+                    mBsi.mOnBatteryTimeBase, NUM_NETWORK_ACTIVITY_TYPES);
+            mNetworkPacketActivityCounters = new LongSamplingCounterBlock(
+                    mBsi.mOnBatteryTimeBase, NUM_NETWORK_ACTIVITY_TYPES);
             mMobileRadioActiveTime = new LongSamplingCounter(mBsi.mOnBatteryTimeBase);
             mMobileRadioActiveCount = new LongSamplingCounter(mBsi.mOnBatteryTimeBase);
         }
@@ -6782,10 +6909,8 @@ public class BatteryStatsImpl extends BatteryStats {
             }
 
             if (mNetworkByteActivityCounters != null) {
-                for (int i = 0; i < NUM_NETWORK_ACTIVITY_TYPES; i++) {
-                    mNetworkByteActivityCounters[i].reset(false);
-                    mNetworkPacketActivityCounters[i].reset(false);
-                }
+                mNetworkByteActivityCounters.reset(false);
+                mNetworkPacketActivityCounters.reset(false);
                 mMobileRadioActiveTime.reset(false);
                 mMobileRadioActiveCount.reset(false);
             }
@@ -6972,10 +7097,8 @@ public class BatteryStatsImpl extends BatteryStats {
                     }
                 }
                 if (mNetworkByteActivityCounters != null) {
-                    for (int i = 0; i < NUM_NETWORK_ACTIVITY_TYPES; i++) {
-                        mNetworkByteActivityCounters[i].detach();
-                        mNetworkPacketActivityCounters[i].detach();
-                    }
+                    mNetworkByteActivityCounters.detach();
+                    mNetworkPacketActivityCounters.detach();
                 }
 
                 if (mWifiControllerActivity != null) {
@@ -7216,8 +7339,8 @@ public class BatteryStatsImpl extends BatteryStats {
             if (mNetworkByteActivityCounters != null) {
                 out.writeInt(1);
                 for (int i = 0; i < NUM_NETWORK_ACTIVITY_TYPES; i++) {
-                    mNetworkByteActivityCounters[i].writeToParcel(out);
-                    mNetworkPacketActivityCounters[i].writeToParcel(out);
+                    mNetworkByteActivityCounters.writeToParcel(i, out);
+                    mNetworkPacketActivityCounters.writeToParcel(i, out);
                 }
                 mMobileRadioActiveTime.writeToParcel(out);
                 mMobileRadioActiveCount.writeToParcel(out);
@@ -7500,14 +7623,13 @@ public class BatteryStatsImpl extends BatteryStats {
                 mUserActivityCounters = null;
             }
             if (in.readInt() != 0) {
-                mNetworkByteActivityCounters = new LongSamplingCounter[NUM_NETWORK_ACTIVITY_TYPES];
-                mNetworkPacketActivityCounters
-                        = new LongSamplingCounter[NUM_NETWORK_ACTIVITY_TYPES];
+                mNetworkByteActivityCounters = new LongSamplingCounterBlock(
+                        mBsi.mOnBatteryTimeBase, NUM_NETWORK_ACTIVITY_TYPES);
+                mNetworkPacketActivityCounters = new LongSamplingCounterBlock(
+                        mBsi.mOnBatteryTimeBase, NUM_NETWORK_ACTIVITY_TYPES);
                 for (int i = 0; i < NUM_NETWORK_ACTIVITY_TYPES; i++) {
-                    mNetworkByteActivityCounters[i]
-                            = new LongSamplingCounter(mBsi.mOnBatteryTimeBase, in);
-                    mNetworkPacketActivityCounters[i]
-                            = new LongSamplingCounter(mBsi.mOnBatteryTimeBase, in);
+                    mNetworkByteActivityCounters.readFromParcel(i, in);
+                    mNetworkPacketActivityCounters.readFromParcel(i, in);
                 }
                 mMobileRadioActiveTime = new LongSamplingCounter(mBsi.mOnBatteryTimeBase, in);
                 mMobileRadioActiveCount = new LongSamplingCounter(mBsi.mOnBatteryTimeBase, in);
@@ -8830,8 +8952,11 @@ public class BatteryStatsImpl extends BatteryStats {
         if (systemDir != null) {
             mFile = new JournaledFile(new File(systemDir, "batterystats.bin"),
                     new File(systemDir, "batterystats.bin.tmp"));
+            mHistoryFile = new BatteryHistoryFile(
+                    new File(systemDir, "batterystats-history.bin"), MAX_MAX_HISTORY_BUFFER * 4);
         } else {
             mFile = null;
+            mHistoryFile = null;
         }
         mCheckinFile = new AtomicFile(new File(systemDir, "batterystats-checkin.bin"));
         mDailyFile = new AtomicFile(new File(systemDir, "batterystats-daily.xml"));
@@ -8923,6 +9048,7 @@ public class BatteryStatsImpl extends BatteryStats {
     public BatteryStatsImpl(Clocks clocks, Parcel p) {
         init(clocks);
         mFile = null;
+        mHistoryFile = null;
         mCheckinFile = null;
         mDailyFile = null;
         mHandler = null;
@@ -11495,6 +11621,7 @@ public class BatteryStatsImpl extends BatteryStats {
     }
 
     Parcel mPendingWrite = null;
+    PendingHistoryWrite mPendingHistoryWrite = null;
     final ReentrantLock mWriteLock = new ReentrantLock();
 
     public void writeAsyncLocked() {
@@ -11516,7 +11643,7 @@ public class BatteryStatsImpl extends BatteryStats {
         }
 
         Parcel out = Parcel.obtain();
-        writeSummaryToParcel(out, true);
+        writeSummaryToParcel(out, true, mHistoryFile != null);
         mLastWriteTime = mClocks.elapsedRealtime();
 
         if (mPendingWrite != null) {
@@ -11537,22 +11664,33 @@ public class BatteryStatsImpl extends BatteryStats {
 
     public void commitPendingDataToDisk() {
         final Parcel next;
+        final PendingHistoryWrite history;
         synchronized (this) {
             next = mPendingWrite;
+            history = mPendingHistoryWrite;
             mPendingWrite = null;
+            mPendingHistoryWrite = null;
             if (next == null) {
                 return;
             }
         }
 
+        boolean historyWritten = true;
         mWriteLock.lock();
         try {
-            FileOutputStream stream = new FileOutputStream(mFile.chooseForWrite());
-            stream.write(next.marshall());
-            stream.flush();
-            FileUtils.sync(stream);
-            stream.close();
-            mFile.commit();
+            // The history goes first: batterystats.bin refers to it by generation and size.
+            if (history != null) {
+                historyWritten = mHistoryFile.write(history.generation, history.offset,
+                        history.data, history.length);
+            }
+            if (historyWritten) {
+                FileOutputStream stream = new FileOutputStream(mFile.chooseForWrite());
+                stream.write(next.marshall());
+                stream.flush();
+                FileUtils.sync(stream);
+                stream.close();
+                mFile.commit();
+            }
         } catch (IOException e) {
             Slog.w("BatteryStats", "Error writing battery statistics", e);
             mFile.rollback();
@@ -11560,6 +11698,32 @@ public class BatteryStatsImpl extends BatteryStats {
             next.recycle();
             mWriteLock.unlock();
         }
+
+        if (!historyWritten) {
+            // Must not hold mWriteLock here: writeLocked() takes it with this held.
+            Slog.w("BatteryStats", "Error writing battery history, inlining it");
+            synchronized (this) {
+                onHistoryFileWriteFailedLocked(history);
+            }
+            commitPendingDataToDisk();
+        }
+    }
+
+    /**
+     * Called when the history of a pending write could not be written to mHistoryFile.
+     * Rewinds what is recorded as handed to the file to where the failed write started,
+     * and replaces the pending writes, which may refer to that history, with a summary
+     * that carries the history inline.
+     */
+    private void onHistoryFileWriteFailedLocked(PendingHistoryWrite failed) {
+        mHistoryFileSize = Math.min(mHistoryFileSize, failed.offset);
+        mHistoryFileDirtyPos = Math.min(mHistoryFileDirtyPos, failed.offset);
+        mPendingHistoryWrite = null;
+        if (mPendingWrite != null) {
+            mPendingWrite.recycle();
+        }
+        mPendingWrite = Parcel.obtain();
+        writeSummaryToParcel(mPendingWrite, true, false);
     }
 
     public void readLocked() {
@@ -11573,6 +11737,9 @@ public class BatteryStatsImpl extends BatteryStats {
         }
 
         mUidStats.clear();
+        if (mHistoryFile != null) {
+            mHistoryFileGeneration = mHistoryFile.getGeneration();
+        }
 
         try {
             File file = mFile.chooseForRead();
@@ -11643,7 +11810,10 @@ public class BatteryStatsImpl extends BatteryStats {
 
         int bufSize = in.readInt();
         int curPos = in.dataPosition();
-        if (bufSize >= (MAX_MAX_HISTORY_BUFFER*3)) {
+        if (bufSize == HISTORY_IN_FILE) {
+            final int generation = in.readInt();
+            readHistoryFileLocked(generation, in.readInt());
+        } else if (bufSize >= (MAX_MAX_HISTORY_BUFFER*3)) {
             throw new ParcelFormatException("File corrupt: history data buffer too large " +
                     bufSize);
         } else if ((bufSize&~3) != bufSize) {
@@ -11654,6 +11824,9 @@ public class BatteryStatsImpl extends BatteryStats {
                     + " bytes at " + curPos);
             mHistoryBuffer.appendFrom(in, curPos, bufSize);
             in.setDataPosition(curPos + bufSize);
+            // Nothing of this is in mHistoryFile yet.
+            mHistoryFileSize = 0;
+            mHistoryFileDirtyPos = 0;
         }
 
         if (andOldHistory) {
@@ -11688,6 +11861,64 @@ public class BatteryStatsImpl extends BatteryStats {
         }
     }
 
+    private void readHistoryFileLocked(int generation, int length) {
+        final byte[] data = mHistoryFile != null ? mHistoryFile.read(generation, length) : null;
+        if (data == null) {
+            // A crash between writing the history file and batterystats.bin; the history
+            // no longer matches the tags read from the summary, so start over.
+            Slog.w(TAG, "Battery history file does not match summary, dropping history");
+            mHistoryTagPool.clear();
+            mNextHistoryTagIdx = 0;
+            mNumHistoryTagChars = 0;
+            mHistoryFileSize = 0;
+            mHistoryFileDirtyPos = 0;
+            return;
+        }
+        if (DEBUG_HISTORY) Slog.i(TAG, "***************** READING HISTORY FILE: " + length
+                + " bytes, generation " + generation);
+        mHistoryBuffer.unmarshall(data, 0, length);
+        mHistoryBuffer.setDataPosition(length);
+        mHistoryFileGeneration = generation;
+        mHistoryFileSize = length;
+        mHistoryFileDirtyPos = Integer.MAX_VALUE;
+    }
+
+    /**
+     * Hands the part of mHistoryBuffer that changed since the last call to the pending
+     * write, and records in {@code out} where batterystats.bin finds the history.
+     */
+    private void writeHistoryFileLocked(Parcel out) {
+        final int size = mHistoryBuffer.dataSize();
+        int from = Math.min(mHistoryFileDirtyPos, mHistoryFileSize);
+        if (mPendingHistoryWrite != null) {
+            // Replaces a write that never made it to disk, so it has to cover that one too.
+            from = Math.min(from, mPendingHistoryWrite.offset);
+        }
+        from = Math.min(from, size);
+        if (from < mHistoryFileSize) {
+            // Overwriting history that a batterystats.bin already on disk refers to.
+            mHistoryFileGeneration++;
+        }
+        final byte[] data;
+        if (size > from) {
+            final Parcel delta = Parcel.obtain();
+            delta.appendFrom(mHistoryBuffer, from, size - from);
+            data = delta.marshall();
+            delta.recycle();
+        } else {
+            data = EmptyArray.BYTE;
+        }
+        if (DEBUG_HISTORY) Slog.i(TAG, "***************** WRITING HISTORY FILE: "
+                + data.length + " bytes at " + from + ", generation " + mHistoryFileGeneration);
+        mPendingHistoryWrite = new PendingHistoryWrite(mHistoryFileGeneration, from, data, size);
+        mHistoryFileSize = size;
+        mHistoryFileDirtyPos = Integer.MAX_VALUE;
+
+        out.writeInt(HISTORY_IN_FILE);
+        out.writeInt(mHistoryFileGeneration);
+        out.writeInt(size);
+    }
+
     void readOldHistory(Parcel in) {
         if (!USE_OLD_HISTORY) {
             return;
@@ -11701,6 +11932,11 @@ public class BatteryStatsImpl extends BatteryStats {
     }
 
     void writeHistory(Parcel out, boolean inclData, boolean andOldHistory) {
+        writeHistory(out, inclData, andOldHistory, false);
+    }
+
+    void writeHistory(Parcel out, boolean inclData, boolean andOldHistory,
+            boolean historyInFile) {
         if (DEBUG_HISTORY) {
             StringBuilder sb = new StringBuilder(128);
             sb.append("****************** WRITING mHistoryBaseTime: ");
@@ -11722,10 +11958,14 @@ public class BatteryStatsImpl extends BatteryStats {
             out.writeString(tag.string);
             out.writeInt(tag.uid);
         }
-        out.writeInt(mHistoryBuffer.dataSize());
-        if (DEBUG_HISTORY) Slog.i(TAG, "***************** WRITING HISTORY: "
-                + mHistoryBuffer.dataSize() + " bytes at " + out.dataPosition());
-        out.appendFrom(mHistoryBuffer, 0, mHistoryBuffer.dataSize());
+        if (historyInFile) {
+            writeHistoryFileLocked(out);
+        } else {
+            out.writeInt(mHistoryBuffer.dataSize());
+            if (DEBUG_HISTORY) Slog.i(TAG, "***************** WRITING HISTORY: "
+                    + mHistoryBuffer.dataSize() + " bytes at " + out.dataPosition());
+            out.appendFrom(mHistoryBuffer, 0, mHistoryBuffer.dataSize());
+        }
 
         if (andOldHistory) {
             writeOldHistory(out);
@@ -12010,8 +12250,8 @@ public class BatteryStatsImpl extends BatteryStats {
                     u.initNetworkActivityLocked();
                 }
                 for (int i = 0; i < NUM_NETWORK_ACTIVITY_TYPES; i++) {
-                    u.mNetworkByteActivityCounters[i].readSummaryFromParcelLocked(in);
-                    u.mNetworkPacketActivityCounters[i].readSummaryFromParcelLocked(in);
+                    u.mNetworkByteActivityCounters.readSummaryFromParcelLocked(i, in);
+                    u.mNetworkPacketActivityCounters.readSummaryFromParcelLocked(i, in);
                 }
                 u.mMobileRadioActiveTime.readSummaryFromParcelLocked(in);
                 u.mMobileRadioActiveCount.readSummaryFromParcelLocked(in);
@@ -12167,6 +12407,14 @@ public class BatteryStatsImpl extends BatteryStats {
      * @param out the Parcel to be written to.
      */
     public void writeSummaryToParcel(Parcel out, boolean inclHistory) {
+        writeSummaryToParcel(out, inclHistory, false);
+    }
+
+    /**
+     * @param historyInFile store the history buffer in mHistoryFile, writing only what
+     *     changed since the last write, instead of inline in {@code out}.
+     */
+    private void writeSummaryToParcel(Parcel out, boolean inclHistory, boolean historyInFile) {
         pullPendingStateUpdatesLocked();
 
         // Pull the clock time.  This may update the time and make a new history entry
@@ -12178,7 +12426,7 @@ public class BatteryStatsImpl extends BatteryStats {
 
         out.writeInt(VERSION);
 
-        writeHistory(out, inclHistory, true);
+        writeHistory(out, inclHistory, true, historyInFile);
 
         out.writeInt(mStartCount);
         out.writeLong(computeUptime(NOW_SYS, STATS_SINCE_CHARGED));
@@ -12473,8 +12721,8 @@ public class BatteryStatsImpl extends BatteryStats {
             } else {
                 out.writeInt(1);
                 for (int i = 0; i < NUM_NETWORK_ACTIVITY_TYPES; i++) {
-                    u.mNetworkByteActivityCounters[i].writeSummaryFromParcelLocked(out);
-                    u.mNetworkPacketActivityCounters[i].writeSummaryFromParcelLocked(out);
+                    u.mNetworkByteActivityCounters.writeSummaryToParcelLocked(i, out);
+                    u.mNetworkPacketActivityCounters.writeSummaryToParcelLocked(i, out);
                 }
                 u.mMobileRadioActiveTime.writeSummaryFromParcelLocked(out);
                 u.mMobileRadioActiveCount.writeSummaryFromParcelLocked(out);
@@ -0,0 +1,467 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.util;
+
+import static com.android.internal.util.BinaryXmlSerializer.ATTRIBUTE;
+import static com.android.internal.util.BinaryXmlSerializer.INTERNED_NEW;
+import static com.android.internal.util.BinaryXmlSerializer.PROTOCOL_MAGIC;
+import static com.android.internal.util.BinaryXmlSerializer.TYPE_NULL;
+import static com.android.internal.util.BinaryXmlSerializer.TYPE_STRING;
+import static com.android.internal.util.BinaryXmlSerializer.TYPE_STRING_INTERNED;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+
+/**
+ * {@link XmlPullParser} for documents written by {@link BinaryXmlSerializer}.
+ *
+ * <p>Events are decoded straight from the token stream; there is no character decoding,
+ * entity handling or whitespace to skip, and every interned string is materialized only
+ * once per document.  Namespaces are not supported and {@link #getLineNumber()} always
+ * returns -1.
+ *
+ * {@hide}
+ */
+public class BinaryXmlPullParser implements XmlPullParser {
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    private DataInputStream mIn;
+    private final ArrayList<String> mInterned = new ArrayList<>();
+
+    private int mCurrentToken = START_DOCUMENT;
+    private int mCurrentDepth;
+    private String mCurrentName;
+    private String mCurrentText;
+
+    private int mAttributeCount;
+    private String[] mAttributeNames = new String[8];
+    private String[] mAttributeValues = new String[8];
+
+    /** Token read ahead while collecting attributes for the current start tag. */
+    private int mPendingToken = -1;
+
+    private byte[] mScratch = new byte[256];
+
+    @Override
+    public void setInput(InputStream is, String encoding) throws XmlPullParserException {
+        if (encoding != null && !StandardCharsets.UTF_8.name().equalsIgnoreCase(encoding)) {
+            throw new UnsupportedOperationException("Only UTF-8 is supported");
+        }
+        mIn = new DataInputStream(is instanceof BufferedInputStream
+                ? is : new BufferedInputStream(is, BUFFER_SIZE));
+        mInterned.clear();
+        mCurrentToken = START_DOCUMENT;
+        mCurrentDepth = 0;
+        mCurrentName = null;
+        mCurrentText = null;
+        mAttributeCount = 0;
+        mPendingToken = -1;
+
+        try {
+            final byte[] magic = new byte[PROTOCOL_MAGIC.length];
+            mIn.readFully(magic);
+            for (int i = 0; i < magic.length; i++) {
+                if (magic[i] != PROTOCOL_MAGIC[i]) {
+                    throw new XmlPullParserException("Unexpected magic; not binary XML");
+                }
+            }
+            final int token = mIn.readByte();
+            if ((token & 0x0F) != START_DOCUMENT) {
+                throw new XmlPullParserException("Missing START_DOCUMENT token");
+            }
+        } catch (IOException e) {
+            throw new XmlPullParserException("Failed to read binary XML header: " + e);
+        }
+    }
+
+    @Override
+    public void setInput(Reader in) throws XmlPullParserException {
+        throw new UnsupportedOperationException("Binary XML requires an InputStream");
+    }
+
+    @Override
+    public int next() throws XmlPullParserException, IOException {
+        if (mCurrentToken == END_TAG) {
+            mCurrentDepth--;
+        } else if (mCurrentToken == END_DOCUMENT) {
+            return END_DOCUMENT;
+        }
+        mAttributeCount = 0;
+        mCurrentText = null;
+
+        final int token;
+        if (mPendingToken != -1) {
+            token = mPendingToken;
+            mPendingToken = -1;
+        } else {
+            token = readToken();
+        }
+
+        switch (token & 0x0F) {
+            case START_TAG:
+                mCurrentName = readInternedString();
+                mCurrentDepth++;
+                readAttributes();
+                break;
+            case END_TAG:
+                mCurrentName = readInternedString();
+                break;
+            case TEXT:
+                mCurrentName = null;
+                mCurrentText = readValue(token & 0xF0);
+                break;
+            case END_DOCUMENT:
+                mCurrentName = null;
+                break;
+            default:
+                throw new XmlPullParserException("Unexpected token " + token
+                        + " at depth " + mCurrentDepth);
+        }
+        mCurrentToken = token & 0x0F;
+        return mCurrentToken;
+    }
+
+    @Override
+    public int nextToken() throws XmlPullParserException, IOException {
+        return next();
+    }
+
+    @Override
+    public int nextTag() throws XmlPullParserException, IOException {
+        int type = next();
+        if (type == TEXT && isWhitespace()) {
+            type = next();
+        }
+        if (type != START_TAG && type != END_TAG) {
+            throw new XmlPullParserException("Expected start or end tag", this, null);
+        }
+        return type;
+    }
+
+    @Override
+    public String nextText() throws XmlPullParserException, IOException {
+        if (getEventType() != START_TAG) {
+            throw new XmlPullParserException("Parser must be on START_TAG to read next text",
+                    this, null);
+        }
+        int type = next();
+        if (type == TEXT) {
+            final String result = getText();
+            type = next();
+            if (type != END_TAG) {
+                throw new XmlPullParserException("Event TEXT must be immediately followed by "
+                        + "END_TAG", this, null);
+            }
+            return result;
+        } else if (type == END_TAG) {
+            return "";
+        } else {
+            throw new XmlPullParserException("Parser must be on START_TAG or TEXT to read text",
+                    this, null);
+        }
+    }
+
+    @Override
+    public void require(int type, String namespace, String name)
+            throws XmlPullParserException, IOException {
+        if (type != getEventType() || (name != null && !name.equals(getName()))) {
+            throw new XmlPullParserException("Expected " + TYPES[type] + " " + name
+                    + " but found " + getPositionDescription(), this, null);
+        }
+    }
+
+    @Override
+    public int getEventType() throws XmlPullParserException {
+        return mCurrentToken;
+    }
+
+    @Override
+    public int getDepth() {
+        return mCurrentDepth;
+    }
+
+    @Override
+    public String getName() {
+        return mCurrentName;
+    }
+
+    @Override
+    public String getText() {
+        return mCurrentText;
+    }
+
+    @Override
+    public char[] getTextCharacters(int[] holderForStartAndLength) {
+        final String text = getText();
+        if (text == null) {
+            holderForStartAndLength[0] = -1;
+            holderForStartAndLength[1] = -1;
+            return null;
+        }
+        holderForStartAndLength[0] = 0;
+        holderForStartAndLength[1] = text.length();
+        return text.toCharArray();
+    }
+
+    @Override
+    public boolean isWhitespace() throws XmlPullParserException {
+        if (mCurrentToken != TEXT) {
+            throw new XmlPullParserException("Not on TEXT", this, null);
+        }
+        final String text = mCurrentText;
+        for (int i = 0; i < text.length(); i++) {
+            if (!Character.isWhitespace(text.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public boolean isEmptyElementTag() throws XmlPullParserException {
+        if (mCurrentToken != START_TAG) {
+            throw new XmlPullParserException("Not on START_TAG", this, null);
+        }
+        return false;
+    }
+
+    @Override
+    public int getAttributeCount() {
+        return mCurrentToken == START_TAG ? mAttributeCount : -1;
+    }
+
+    @Override
+    public String getAttributeName(int index) {
+        checkAttributeIndex(index);
+        return mAttributeNames[index];
+    }
+
+    @Override
+    public String getAttributeValue(int index) {
+        checkAttributeIndex(index);
+        return mAttributeValues[index];
+    }
+
+    @Override
+    public String getAttributeValue(String namespace, String name) {
+        for (int i = 0; i < mAttributeCount; i++) {
+            if (name.equals(mAttributeNames[i])) {
+                return mAttributeValues[i];
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public String getAttributeNamespace(int index) {
+        checkAttributeIndex(index);
+        return NO_NAMESPACE;
+    }
+
+    @Override
+    public String getAttributePrefix(int index) {
+        checkAttributeIndex(index);
+        return null;
+    }
+
+    @Override
+    public String getAttributeType(int index) {
+        checkAttributeIndex(index);
+        return "CDATA";
+    }
+
+    @Override
+    public boolean isAttributeDefault(int index) {
+        checkAttributeIndex(index);
+        return false;
+    }
+
+    @Override
+    public String getNamespace() {
+        return NO_NAMESPACE;
+    }
+
+    @Override
+    public String getNamespace(String prefix) {
+        return null;
+    }
+
+    @Override
+    public String getPrefix() {
+        return null;
+    }
+
+    @Override
+    public int getNamespaceCount(int depth) throws XmlPullParserException {
+        return 0;
+    }
+
+    @Override
+    public String getNamespacePrefix(int pos) throws XmlPullParserException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String getNamespaceUri(int pos) throws XmlPullParserException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String getInputEncoding() {
+        return StandardCharsets.UTF_8.name();
+    }
+
+    @Override
+    public void defineEntityReplacementText(String entityName, String replacementText)
+            throws XmlPullParserException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setFeature(String name, boolean state) throws XmlPullParserException {
+        // Namespace processing and validation are not applicable
+    }
+
+    @Override
+    public boolean getFeature(String name) {
+        return false;
+    }
+
+    @Override
+    public void setProperty(String name, Object value) throws XmlPullParserException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Object getProperty(String name) {
+        return null;
+    }
+
+    @Override
+    public int getLineNumber() {
+        return -1;
+    }
+
+    @Override
+    public int getColumnNumber() {
+        return -1;
+    }
+
+    @Override
+    public String getPositionDescription() {
+        return "Binary XML " + TYPES[mCurrentToken] + " " + mCurrentName
+                + " at depth " + mCurrentDepth;
+    }
+
+    private void checkAttributeIndex(int index) {
+        if (mCurrentToken != START_TAG || index < 0 || index >= mAttributeCount) {
+            throw new IndexOutOfBoundsException(String.valueOf(index));
+        }
+    }
+
+    private int readToken() throws IOException {
+        final int token = mIn.read();
+        if (token == -1) {
+            throw new EOFException("Unexpected end of binary XML");
+        }
+        return token;
+    }
+
+    private void readAttributes() throws IOException, XmlPullParserException {
+        int token;
+        while (((token = readToken()) & 0x0F) == ATTRIBUTE) {
+            final String name = readInternedString();
+            final String value = readValue(token & 0xF0);
+            if (mAttributeCount == mAttributeNames.length) {
+                mAttributeNames = GrowingArrayUtils.append(mAttributeNames, mAttributeCount,
+                        name);
+                mAttributeValues = GrowingArrayUtils.append(mAttributeValues, mAttributeCount,
+                        value);
+            } else {
+                mAttributeNames[mAttributeCount] = name;
+                mAttributeValues[mAttributeCount] = value;
+            }
+            mAttributeCount++;
+        }
+        mPendingToken = token;
+    }
+
+    private String readValue(int type) throws IOException, XmlPullParserException {
+        switch (type) {
+            case TYPE_NULL:
+                return null;
+            case TYPE_STRING:
+                return readString();
+            case TYPE_STRING_INTERNED:
+                return readInternedString();
+            default:
+                throw new XmlPullParserException("Unexpected value type " + type);
+        }
+    }
+
+    private String readInternedString() throws IOException {
+        final int index = mIn.readUnsignedShort();
+        if (index == INTERNED_NEW) {
+            final String s = readString();
+            if (mInterned.size() < INTERNED_NEW) {
+                mInterned.add(s);
+            }
+            return s;
+        }
+        if (index >= mInterned.size()) {
+            throw new IOException("Interned string " + index + " out of range; only "
+                    + mInterned.size() + " interned");
+        }
+        return mInterned.get(index);
+    }
+
+    private String readString() throws IOException {
+        final int length = readVarInt();
+        if (length < 0) {
+            throw new IOException("Negative string length " + length);
+        }
+        if (length > mScratch.length) {
+            mScratch = new byte[Math.max(length, mScratch.length * 2)];
+        }
+        mIn.readFully(mScratch, 0, length);
+        return new String(mScratch, 0, length, StandardCharsets.UTF_8);
+    }
+
+    private int readVarInt() throws IOException {
+        int result = 0;
+        int shift = 0;
+        int b;
+        do {
+            if (shift > 28) {
+                throw new IOException("Malformed varint");
+            }
+            b = readToken();
+            result |= (b & 0x7F) << shift;
+            shift += 7;
+        } while ((b & 0x80) != 0);
+        return result;
+    }
+}
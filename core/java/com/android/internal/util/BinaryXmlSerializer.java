@@ -0,0 +1,271 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.util;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+
+/**
+ * Compact binary implementation of {@link XmlSerializer}.  Instead of escaping and
+ * re-encoding every name and value as text, each event is written as a single token
+ * byte followed by its payload, and tag names, attribute names and short attribute
+ * values are interned into a string pool so that repeated strings (permission names,
+ * "true", installer packages, ...) cost two bytes after their first occurrence.
+ *
+ * <p>Documents written here must be read back with {@link BinaryXmlPullParser}; use
+ * {@link XmlUtils#resolvePullParser(java.io.InputStream)} to transparently read either
+ * this format or plain text XML written by {@link FastXmlSerializer}.
+ *
+ * <p>Like {@link FastXmlSerializer}, this only does what is needed for the specific
+ * files being written with it: namespaces, comments and processing instructions are
+ * not supported.
+ *
+ * {@hide}
+ */
+public class BinaryXmlSerializer implements XmlSerializer {
+    /**
+     * Magic header written at the start of every binary document, chosen so that it can
+     * never be confused with the start of a text XML document.
+     */
+    public static final byte[] PROTOCOL_MAGIC = new byte[] { 0x41, 0x42, 0x58, 0x00 };
+
+    /** Token describing a single attribute of the currently open tag. */
+    static final int ATTRIBUTE = 15;
+
+    /** Payload is written inline as a length-prefixed UTF-8 string. */
+    static final int TYPE_STRING = 1 << 4;
+    /** Payload is an index into the string pool, defined on first use. */
+    static final int TYPE_STRING_INTERNED = 2 << 4;
+    /** Attribute or text payload is {@code null}. */
+    static final int TYPE_NULL = 3 << 4;
+
+    /** Pool index marking that a new pool entry follows inline. */
+    static final int INTERNED_NEW = 0xFFFF;
+    /** Attribute values longer than this are never interned. */
+    static final int MAX_INTERNED_VALUE_LENGTH = 64;
+
+    private static final int BUFFER_SIZE = 32 * 1024;
+
+    private DataOutputStream mOut;
+    private final HashMap<String, Integer> mInterned = new HashMap<>();
+    private int mNextInternedIndex;
+
+    private int mDepth;
+    private String[] mTagNames = new String[8];
+
+    @Override
+    public void setOutput(OutputStream os, String encoding) throws IOException {
+        if (encoding != null && !StandardCharsets.UTF_8.name().equalsIgnoreCase(encoding)) {
+            throw new UnsupportedOperationException("Only UTF-8 is supported");
+        }
+        mOut = new DataOutputStream(new BufferedOutputStream(os, BUFFER_SIZE));
+        mInterned.clear();
+        mNextInternedIndex = 0;
+        mDepth = 0;
+    }
+
+    @Override
+    public void setOutput(Writer writer) throws IOException {
+        throw new UnsupportedOperationException("Binary XML requires an OutputStream");
+    }
+
+    @Override
+    public void startDocument(String encoding, Boolean standalone) throws IOException {
+        mOut.write(PROTOCOL_MAGIC);
+        mOut.writeByte(XmlPullParser.START_DOCUMENT | TYPE_NULL);
+    }
+
+    @Override
+    public void endDocument() throws IOException {
+        mOut.writeByte(XmlPullParser.END_DOCUMENT | TYPE_NULL);
+        flush();
+    }
+
+    @Override
+    public XmlSerializer startTag(String namespace, String name) throws IOException {
+        if (namespace != null && !namespace.isEmpty()) {
+            throw new IllegalArgumentException("Namespaces are not supported");
+        }
+        if (mDepth == mTagNames.length) {
+            mTagNames = GrowingArrayUtils.append(mTagNames, mDepth, name);
+        } else {
+            mTagNames[mDepth] = name;
+        }
+        mDepth++;
+        mOut.writeByte(XmlPullParser.START_TAG | TYPE_STRING_INTERNED);
+        writeInternedString(name);
+        return this;
+    }
+
+    @Override
+    public XmlSerializer attribute(String namespace, String name, String value)
+            throws IOException {
+        if (namespace != null && !namespace.isEmpty()) {
+            throw new IllegalArgumentException("Namespaces are not supported");
+        }
+        if (value == null) {
+            mOut.writeByte(ATTRIBUTE | TYPE_NULL);
+            writeInternedString(name);
+        } else if (value.length() <= MAX_INTERNED_VALUE_LENGTH) {
+            mOut.writeByte(ATTRIBUTE | TYPE_STRING_INTERNED);
+            writeInternedString(name);
+            writeInternedString(value);
+        } else {
+            mOut.writeByte(ATTRIBUTE | TYPE_STRING);
+            writeInternedString(name);
+            writeString(value);
+        }
+        return this;
+    }
+
+    @Override
+    public XmlSerializer endTag(String namespace, String name) throws IOException {
+        mDepth--;
+        mTagNames[mDepth] = null;
+        mOut.writeByte(XmlPullParser.END_TAG | TYPE_STRING_INTERNED);
+        writeInternedString(name);
+        return this;
+    }
+
+    @Override
+    public XmlSerializer text(String text) throws IOException {
+        mOut.writeByte(XmlPullParser.TEXT | TYPE_STRING);
+        writeString(text);
+        return this;
+    }
+
+    @Override
+    public XmlSerializer text(char[] buf, int start, int len) throws IOException {
+        return text(new String(buf, start, len));
+    }
+
+    @Override
+    public void cdsect(String text) throws IOException {
+        text(text);
+    }
+
+    @Override
+    public void ignorableWhitespace(String text) throws IOException {
+        // Whitespace carries no information in this format
+    }
+
+    @Override
+    public void entityRef(String text) throws IOException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void processingInstruction(String text) throws IOException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void comment(String text) throws IOException {
+        // Comments are dropped
+    }
+
+    @Override
+    public void docdecl(String text) throws IOException {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void flush() throws IOException {
+        mOut.flush();
+    }
+
+    @Override
+    public int getDepth() {
+        return mDepth;
+    }
+
+    @Override
+    public String getName() {
+        return mDepth > 0 ? mTagNames[mDepth - 1] : null;
+    }
+
+    @Override
+    public String getNamespace() {
+        return XmlPullParser.NO_NAMESPACE;
+    }
+
+    @Override
+    public void setFeature(String name, boolean state) {
+        // Indentation and other formatting features are meaningless here
+    }
+
+    @Override
+    public boolean getFeature(String name) {
+        return false;
+    }
+
+    @Override
+    public void setPrefix(String prefix, String namespace) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public String getPrefix(String namespace, boolean generatePrefix) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public void setProperty(String name, Object value) {
+        throw new UnsupportedOperationException();
+    }
+
+    @Override
+    public Object getProperty(String name) {
+        return null;
+    }
+
+    private void writeInternedString(String s) throws IOException {
+        final Integer index = mInterned.get(s);
+        if (index != null) {
+            mOut.writeShort(index);
+        } else {
+            mOut.writeShort(INTERNED_NEW);
+            writeString(s);
+            // Once the pool is exhausted new strings are simply written inline every time
+            if (mNextInternedIndex < INTERNED_NEW) {
+                mInterned.put(s, mNextInternedIndex++);
+            }
+        }
+    }
+
+    private void writeString(String s) throws IOException {
+        final byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        writeVarInt(bytes.length);
+        mOut.write(bytes);
+    }
+
+    private void writeVarInt(int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            mOut.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        mOut.writeByte(value);
+    }
+}
@@ -59,8 +59,6 @@ public class FileRotator {
     private static final String SUFFIX_BACKUP = ".backup";
     private static final String SUFFIX_NO_BACKUP = ".no_backup";
 
-    // TODO: provide method to append to active file
-
     /**
      * External class that reads data from a given {@link InputStream}. May be
      * called multiple times when reading rotated data.
@@ -184,6 +182,36 @@ public class FileRotator {
         rewriteSingle(rewriter, activeName);
     }
 
+    /**
+     * Append data to the currently active file, creating it if needed. Readers of
+     * the active file see everything appended since it was last rewritten, one
+     * write after another. The file is truncated back to its previous length if
+     * the write fails.
+     */
+    public void appendActive(Writer writer, long currentTimeMillis) throws IOException {
+        final String activeName = getActiveName(currentTimeMillis);
+        if (LOGD) Slog.d(TAG, "appending " + activeName);
+
+        final FileOutputStream fos = new FileOutputStream(new File(mBasePath, activeName), true);
+        final BufferedOutputStream bos = new BufferedOutputStream(fos);
+        final long length = fos.getChannel().size();
+        try {
+            writer.write(bos);
+            bos.flush();
+            FileUtils.sync(fos);
+        } catch (Throwable t) {
+            // write failed, drop whatever made it to the file
+            try {
+                fos.getChannel().truncate(length);
+            } catch (IOException e) {
+                Slog.w(TAG, "failed to truncate " + activeName, e);
+            }
+            throw rethrowAsIoException(t);
+        } finally {
+            IoUtils.closeQuietly(bos);
+        }
+    }
+
     @Deprecated
     public void combineActive(final Reader reader, final Writer writer, long currentTimeMillis)
             throws IOException {
@@ -29,6 +29,7 @@ import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlSerializer;
 
+import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -36,6 +37,7 @@ import java.io.OutputStream;
 import java.net.ProtocolException;
 import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
@@ -1568,6 +1570,50 @@ public class XmlUtils {
         }
     }
 
+    /**
+     * Returns a parser positioned at the start of {@code in}, which may contain either
+     * text XML or binary XML written by {@link BinaryXmlSerializer}.  The stream is
+     * sniffed for the binary magic header, so callers can migrate a file from one format
+     * to the other without a separate version marker.
+     */
+    public static XmlPullParser resolvePullParser(InputStream in)
+            throws IOException, XmlPullParserException {
+        if (!in.markSupported()) {
+            in = new BufferedInputStream(in);
+        }
+        final byte[] magic = BinaryXmlSerializer.PROTOCOL_MAGIC;
+        final byte[] header = new byte[magic.length];
+        in.mark(header.length);
+        int read = 0;
+        while (read < header.length) {
+            final int n = in.read(header, read, header.length - read);
+            if (n == -1) break;
+            read += n;
+        }
+        in.reset();
+
+        final XmlPullParser parser;
+        if (read == header.length && Arrays.equals(header, magic)) {
+            parser = new BinaryXmlPullParser();
+        } else {
+            parser = Xml.newPullParser();
+        }
+        parser.setInput(in, StandardCharsets.UTF_8.name());
+        return parser;
+    }
+
+    /**
+     * Returns a serializer writing to {@code out}, either compact binary XML when
+     * {@code binary} is set or indented text XML otherwise.
+     */
+    public static XmlSerializer resolveSerializer(OutputStream out, boolean binary)
+            throws IOException {
+        final XmlSerializer serializer = binary
+                ? new BinaryXmlSerializer() : new FastXmlSerializer();
+        serializer.setOutput(out, StandardCharsets.UTF_8.name());
+        return serializer;
+    }
+
     public static final void nextElement(XmlPullParser parser) throws XmlPullParserException, IOException
     {
         int type;
@@ -191,6 +191,81 @@ static void android_os_Parcel_writeByteArray(JNIEnv* env, jclass clazz, jlong na
     }
 }
 
+// Writes the length of the array followed by its elements, which is the same layout as
+// writing the length and then every element on its own, with a single copy.
+template<typename T>
+static void writePrimitiveArray(JNIEnv* env, jclass clazz, jlong nativePtr, jarray data,
+                                jint length)
+{
+    Parcel* parcel = reinterpret_cast<Parcel*>(nativePtr);
+    if (parcel == NULL) {
+        return;
+    }
+
+    if (length < 0 || (size_t)length > INT32_MAX / sizeof(T)) {
+        signalExceptionForError(env, clazz, BAD_VALUE);
+        return;
+    }
+
+    const status_t err = parcel->writeInt32(length);
+    if (err != NO_ERROR) {
+        signalExceptionForError(env, clazz, err);
+        return;
+    }
+
+    void* dest = parcel->writeInplace(length * sizeof(T));
+    if (dest == NULL) {
+        signalExceptionForError(env, clazz, NO_MEMORY);
+        return;
+    }
+
+    void* ar = env->GetPrimitiveArrayCritical(data, 0);
+    if (ar) {
+        memcpy(dest, ar, length * sizeof(T));
+        env->ReleasePrimitiveArrayCritical(data, ar, JNI_ABORT);
+    }
+}
+
+static void android_os_Parcel_writeIntArray(JNIEnv* env, jclass clazz, jlong nativePtr,
+                                            jintArray data, jint length)
+{
+    writePrimitiveArray<jint>(env, clazz, nativePtr, data, length);
+}
+
+static void android_os_Parcel_writeLongArray(JNIEnv* env, jclass clazz, jlong nativePtr,
+                                             jlongArray data, jint length)
+{
+    writePrimitiveArray<jlong>(env, clazz, nativePtr, data, length);
+}
+
+static void android_os_Parcel_writeDirectBuffer(JNIEnv* env, jclass clazz, jlong nativePtr,
+                                                jobject buffer, jint offset, jint length)
+{
+    Parcel* parcel = reinterpret_cast<Parcel*>(nativePtr);
+    if (parcel == NULL) {
+        return;
+    }
+
+    const uint8_t* src = (const uint8_t*)env->GetDirectBufferAddress(buffer);
+    if (src == NULL) {
+        jniThrowException(env, "java/lang/IllegalArgumentException", "Not a direct buffer");
+        return;
+    }
+
+    const status_t err = parcel->writeInt32(length);
+    if (err != NO_ERROR) {
+        signalExceptionForError(env, clazz, err);
+        return;
+    }
+
+    void* dest = parcel->writeInplace(length);
+    if (dest == NULL) {
+        signalExceptionForError(env, clazz, NO_MEMORY);
+        return;
+    }
+    memcpy(dest, src + offset, length);
+}
+
 static void android_os_Parcel_writeBlob(JNIEnv* env, jclass clazz, jlong nativePtr, jobject data,
                                         jint offset, jint length) {
     Parcel* parcel = reinterpret_cast<Parcel*>(nativePtr);
@@ -368,6 +443,100 @@ static jboolean android_os_Parcel_readByteArray(JNIEnv* env, jclass clazz, jlong
     return ret;
 }
 
+// Reads |length| elements into |dest|. The length itself has already been read and checked
+// against the array by the caller.
+template<typename T>
+static jboolean readPrimitiveArray(JNIEnv* env, jlong nativePtr, jarray dest, jint length)
+{
+    Parcel* parcel = reinterpret_cast<Parcel*>(nativePtr);
+    if (parcel == NULL) {
+        return JNI_FALSE;
+    }
+
+    if (length < 0 || (size_t)length > parcel->dataAvail() / sizeof(T)) {
+        return JNI_FALSE;
+    }
+
+    const void* data = parcel->readInplace(length * sizeof(T));
+    if (data == NULL) {
+        return JNI_FALSE;
+    }
+
+    void* ar = env->GetPrimitiveArrayCritical(dest, 0);
+    if (ar == NULL) {
+        return JNI_FALSE;
+    }
+    memcpy(ar, data, length * sizeof(T));
+    env->ReleasePrimitiveArrayCritical(dest, ar, 0);
+    return JNI_TRUE;
+}
+
+static jboolean android_os_Parcel_readIntArray(JNIEnv* env, jclass clazz, jlong nativePtr,
+                                               jintArray dest, jint length)
+{
+    return readPrimitiveArray<jint>(env, nativePtr, dest, length);
+}
+
+static jboolean android_os_Parcel_readLongArray(JNIEnv* env, jclass clazz, jlong nativePtr,
+                                                jlongArray dest, jint length)
+{
+    return readPrimitiveArray<jlong>(env, nativePtr, dest, length);
+}
+
+// Returns the number of bytes copied into |buffer|, -1 if a null array was written, or -2 if
+// the stored length is invalid or doesn't fit into |destLen|.
+static jint android_os_Parcel_readDirectBuffer(JNIEnv* env, jclass clazz, jlong nativePtr,
+                                               jobject buffer, jint offset, jint destLen)
+{
+    Parcel* parcel = reinterpret_cast<Parcel*>(nativePtr);
+    if (parcel == NULL) {
+        return -2;
+    }
+
+    uint8_t* dest = (uint8_t*)env->GetDirectBufferAddress(buffer);
+    if (dest == NULL) {
+        jniThrowException(env, "java/lang/IllegalArgumentException", "Not a direct buffer");
+        return -2;
+    }
+
+    int32_t len = parcel->readInt32();
+    if (len == -1) {
+        return -1;
+    }
+    if (len < 0 || len > (int32_t)parcel->dataAvail() || len > destLen) {
+        return -2;
+    }
+
+    const void* data = parcel->readInplace(len);
+    if (data == NULL) {
+        return -2;
+    }
+    memcpy(dest + offset, data, len);
+    return len;
+}
+
+// Wraps the next byte array of the parcel in a direct buffer without copying it. The buffer
+// points into the parcel's memory, so it is only valid as long as the parcel isn't modified
+// or recycled.
+static jobject android_os_Parcel_readInplaceBuffer(JNIEnv* env, jclass clazz, jlong nativePtr)
+{
+    Parcel* parcel = reinterpret_cast<Parcel*>(nativePtr);
+    if (parcel == NULL) {
+        return NULL;
+    }
+
+    int32_t len = parcel->readInt32();
+    if (len < 0 || len > (int32_t)parcel->dataAvail()) {
+        return NULL;
+    }
+
+    const void* data = parcel->readInplace(len);
+    if (data == NULL) {
+        return NULL;
+    }
+    return env->NewDirectByteBuffer(const_cast<void*>(data), len);
+}
+
 static jbyteArray android_os_Parcel_readBlob(JNIEnv* env, jclass clazz, jlong nativePtr)
 {
     jbyteArray ret = NULL;
@@ -639,6 +808,57 @@ static jlong android_os_Parcel_unmarshall(JNIEnv* env, jclass clazz, jlong nativ
     return parcel->getOpenAshmemSize();
 }
 
+static void android_os_Parcel_marshallToBuffer(JNIEnv* env, jclass clazz, jlong nativePtr,
+                                               jobject buffer)
+{
+    Parcel* parcel = reinterpret_cast<Parcel*>(nativePtr);
+    if (parcel == NULL) {
+       return;
+    }
+
+    // do not marshall if there are binder objects in the parcel
+    if (parcel->objectsCount())
+    {
+        jniThrowException(env, "java/lang/RuntimeException", "Tried to marshall a Parcel that contained Binder objects.");
+        return;
+    }
+
+    uint8_t* dest = (uint8_t*)env->GetDirectBufferAddress(buffer);
+    if (dest == NULL || env->GetDirectBufferCapacity(buffer) < (jlong)parcel->dataSize()) {
+        jniThrowException(env, "java/lang/IllegalArgumentException",
+                "Not a direct buffer large enough for the parcel");
+        return;
+    }
+    memcpy(dest, parcel->data(), parcel->dataSize());
+}
+
+static jlong android_os_Parcel_unmarshallFromBuffer(JNIEnv* env, jclass clazz, jlong nativePtr,
+                                                    jobject buffer, jint length)
+{
+    Parcel* parcel = reinterpret_cast<Parcel*>(nativePtr);
+    if (parcel == NULL || length < 0) {
+       return 0;
+    }
+
+    const uint8_t* src = (const uint8_t*)env->GetDirectBufferAddress(buffer);
+    if (src == NULL || env->GetDirectBufferCapacity(buffer) < length) {
+        jniThrowException(env, "java/lang/IllegalArgumentException",
+                "Not a direct buffer holding the parcel");
+        return parcel->getOpenAshmemSize();
+    }
+
+    parcel->setDataSize(length);
+    parcel->setDataPosition(0);
+
+    void* raw = parcel->writeInplace(length);
+    if (raw == NULL) {
+        signalExceptionForError(env, clazz, NO_MEMORY);
+        return parcel->getOpenAshmemSize();
+    }
+    memcpy(raw, src, length);
+    return parcel->getOpenAshmemSize();
+}
+
 static jint android_os_Parcel_compareData(JNIEnv* env, jclass clazz, jlong thisNativePtr,
                                           jlong otherNativePtr)
 {
@@ -685,6 +905,12 @@ static jboolean android_os_Parcel_hasFileDescriptors(jlong nativePtr)
     return ret;
 }
 
+static jboolean android_os_Parcel_hasObjects(jlong nativePtr)
+{
+    Parcel* parcel = reinterpret_cast<Parcel*>(nativePtr);
+    return parcel != NULL && parcel->objectsCount() != 0 ? JNI_TRUE : JNI_FALSE;
+}
+
 static void android_os_Parcel_writeInterfaceToken(JNIEnv* env, jclass clazz, jlong nativePtr,
                                                   jstring name)
 {
@@ -781,6 +1007,9 @@ static const JNINativeMethod gParcelMethods[] = {
 
     {"nativeWriteByteArray",      "(J[BII)V", (void*)android_os_Parcel_writeByteArray},
     {"nativeWriteBlob",           "(J[BII)V", (void*)android_os_Parcel_writeBlob},
+    {"nativeWriteIntArray",       "(J[II)V", (void*)android_os_Parcel_writeIntArray},
+    {"nativeWriteLongArray",      "(J[JI)V", (void*)android_os_Parcel_writeLongArray},
+    {"nativeWriteDirectBuffer",   "(JLjava/nio/ByteBuffer;II)V", (void*)android_os_Parcel_writeDirectBuffer},
     // @FastNative
     {"nativeWriteInt",            "(JI)V", (void*)android_os_Parcel_writeInt},
     // @FastNative
@@ -796,6 +1025,10 @@ static const JNINativeMethod gParcelMethods[] = {
     {"nativeCreateByteArray",     "(J)[B", (void*)android_os_Parcel_createByteArray},
     {"nativeReadByteArray",       "(J[BI)Z", (void*)android_os_Parcel_readByteArray},
     {"nativeReadBlob",            "(J)[B", (void*)android_os_Parcel_readBlob},
+    {"nativeReadIntArray",        "(J[II)Z", (void*)android_os_Parcel_readIntArray},
+    {"nativeReadLongArray",       "(J[JI)Z", (void*)android_os_Parcel_readLongArray},
+    {"nativeReadDirectBuffer",    "(JLjava/nio/ByteBuffer;II)I", (void*)android_os_Parcel_readDirectBuffer},
+    {"nativeReadInplaceBuffer",   "(J)Ljava/nio/ByteBuffer;", (void*)android_os_Parcel_readInplaceBuffer},
     // @CriticalNative
     {"nativeReadInt",             "(J)I", (void*)android_os_Parcel_readInt},
     // @CriticalNative
@@ -819,10 +1052,14 @@ static const JNINativeMethod gParcelMethods[] = {
 
     {"nativeMarshall",            "(J)[B", (void*)android_os_Parcel_marshall},
     {"nativeUnmarshall",          "(J[BII)J", (void*)android_os_Parcel_unmarshall},
+    {"nativeMarshallToBuffer",    "(JLjava/nio/ByteBuffer;)V", (void*)android_os_Parcel_marshallToBuffer},
+    {"nativeUnmarshallFromBuffer", "(JLjava/nio/ByteBuffer;I)J", (void*)android_os_Parcel_unmarshallFromBuffer},
     {"nativeCompareData",         "(JJ)I", (void*)android_os_Parcel_compareData},
     {"nativeAppendFrom",          "(JJII)J", (void*)android_os_Parcel_appendFrom},
     // @CriticalNative
     {"nativeHasFileDescriptors",  "(J)Z", (void*)android_os_Parcel_hasFileDescriptors},
+    // @CriticalNative
+    {"nativeHasObjects",          "(J)Z", (void*)android_os_Parcel_hasObjects},
     {"nativeWriteInterfaceToken", "(JLjava/lang/String;)V", (void*)android_os_Parcel_writeInterfaceToken},
     {"nativeEnforceInterface",    "(JLjava/lang/String;)V", (void*)android_os_Parcel_enforceInterface},
 
@@ -93,6 +93,100 @@ public class ParceledListSliceTest extends TestCase {
         }
     }
 
+    /**
+     * Test that the elements past the inline count limit are passed in shared memory.
+     */
+    public void testInlineCountLimit() throws Exception {
+        final int objectCount = 10;
+        List<SmallObject> list = new ArrayList<SmallObject>();
+        for (int i = 0; i < objectCount; i++) {
+            list.add(new SmallObject(i * 2, (i * 2) + 1));
+        }
+
+        ParceledListSlice<SmallObject> slice = new ParceledListSlice<SmallObject>(list);
+        slice.setInlineCountLimit(3);
+
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeParcelable(slice, 0);
+            assertTrue(parcel.hasFileDescriptors());
+            parcel.setDataPosition(0);
+            slice = parcel.readParcelable(getClass().getClassLoader());
+        } finally {
+            parcel.recycle();
+        }
+
+        assertEquals(objectCount, slice.getList().size());
+        for (int i = 0; i < objectCount; i++) {
+            assertEquals(i * 2, slice.getList().get(i).mFieldA);
+            assertEquals((i * 2) + 1, slice.getList().get(i).mFieldB);
+        }
+    }
+
+    /**
+     * Test that the elements past the inline count limit are retrieved through a binder if
+     * the parcel doesn't allow file descriptors.
+     */
+    public void testInlineCountLimit_NoFds() throws Exception {
+        final int objectCount = 10;
+        List<SmallObject> list = new ArrayList<SmallObject>();
+        for (int i = 0; i < objectCount; i++) {
+            list.add(new SmallObject(i * 2, (i * 2) + 1));
+        }
+
+        ParceledListSlice<SmallObject> slice = new ParceledListSlice<SmallObject>(list);
+        slice.setInlineCountLimit(3);
+
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.pushAllowFds(false);
+            parcel.writeParcelable(slice, 0);
+            assertFalse(parcel.hasFileDescriptors());
+            parcel.setDataPosition(0);
+            slice = parcel.readParcelable(getClass().getClassLoader());
+        } finally {
+            parcel.recycle();
+        }
+
+        assertEquals(objectCount, slice.getList().size());
+        for (int i = 0; i < objectCount; i++) {
+            assertEquals(i * 2, slice.getList().get(i).mFieldA);
+            assertEquals((i * 2) + 1, slice.getList().get(i).mFieldB);
+        }
+    }
+
+    /**
+     * Test that the elements past the inline count limit are retrieved through a binder if
+     * they don't fit into a shared memory payload.
+     */
+    public void testInlineCountLimit_TooLargeForSharedMemory() throws Exception {
+        final int objectCount = Parcel.getMaxSharedMemoryPayloadSize() / measureLargeObject()
+                + 100;
+        List<LargeObject> list = new ArrayList<LargeObject>();
+        for (int i = 0; i < objectCount; i++) {
+            list.add(new LargeObject(i * 5, (i * 5) + 1, (i * 5) + 2, (i * 5) + 3, (i * 5) + 4));
+        }
+
+        ParceledListSlice<LargeObject> slice = new ParceledListSlice<LargeObject>(list);
+        slice.setInlineCountLimit(1);
+
+        Parcel parcel = Parcel.obtain();
+        try {
+            parcel.writeParcelable(slice, 0);
+            assertFalse(parcel.hasFileDescriptors());
+            parcel.setDataPosition(0);
+            slice = parcel.readParcelable(getClass().getClassLoader());
+        } finally {
+            parcel.recycle();
+        }
+
+        assertEquals(objectCount, slice.getList().size());
+        for (int i = 0; i < objectCount; i++) {
+            assertEquals(i * 5, slice.getList().get(i).mFieldA);
+            assertEquals((i * 5) + 4, slice.getList().get(i).mFieldE);
+        }
+    }
+
     private void sendParcelStringList(List<String> list) {
         StringParceledListSlice slice;
         Parcel parcel = Parcel.obtain();
@@ -0,0 +1,259 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.os;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.test.suitebuilder.annotation.SmallTest;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+import java.nio.ReadOnlyBufferException;
+
+/**
+ * Unit tests for the hidden bulk array, buffer and shared memory APIs of {@link Parcel}.
+ *
+ * Run with:
+ * bit FrameworksCoreTests:android.os.ParcelTest
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class ParcelTest {
+    private Parcel mParcel;
+
+    @Before
+    public void setUp() {
+        mParcel = Parcel.obtain();
+    }
+
+    @After
+    public void tearDown() {
+        mParcel.recycle();
+    }
+
+    @Test
+    public void testIntArray_sameLayoutAsSingleInts() {
+        final int[] values = { 0, 1, -1, Integer.MAX_VALUE, Integer.MIN_VALUE };
+        mParcel.writeIntArray(values);
+        mParcel.setDataPosition(0);
+
+        assertEquals(values.length, mParcel.readInt());
+        for (int value : values) {
+            assertEquals(value, mParcel.readInt());
+        }
+
+        mParcel.setDataPosition(0);
+        assertArrayEquals(values, mParcel.createIntArray());
+        mParcel.setDataPosition(0);
+        final int[] read = new int[values.length];
+        mParcel.readIntArray(read);
+        assertArrayEquals(values, read);
+    }
+
+    @Test
+    public void testLongArray_sameLayoutAsSingleLongs() {
+        final long[] values = { 0, 1, -1, Long.MAX_VALUE, Long.MIN_VALUE };
+        mParcel.writeLongArray(values);
+        mParcel.setDataPosition(0);
+
+        assertEquals(values.length, mParcel.readInt());
+        for (long value : values) {
+            assertEquals(value, mParcel.readLong());
+        }
+
+        mParcel.setDataPosition(0);
+        assertArrayEquals(values, mParcel.createLongArray());
+        mParcel.setDataPosition(0);
+        final long[] read = new long[values.length];
+        mParcel.readLongArray(read);
+        assertArrayEquals(values, read);
+    }
+
+    @Test
+    public void testReadIntArray_badLength() {
+        mParcel.writeIntArray(new int[] { 1, 2, 3 });
+        mParcel.setDataPosition(0);
+        try {
+            mParcel.readIntArray(new int[2]);
+            fail("Expected RuntimeException");
+        } catch (RuntimeException expected) {
+        }
+    }
+
+    @Test
+    public void testByteBuffer() {
+        final byte[] bytes = { 1, 2, 3, 4, 5 };
+        final ByteBuffer direct = ByteBuffer.allocateDirect(bytes.length);
+        direct.put(bytes);
+        direct.flip();
+        mParcel.writeByteBuffer(direct);
+        mParcel.writeByteBuffer(ByteBuffer.wrap(bytes, 1, 3));
+        mParcel.writeByteBuffer(null);
+        assertEquals(0, direct.remaining());
+
+        mParcel.setDataPosition(0);
+        assertArrayEquals(bytes, mParcel.createByteArray());
+        assertArrayEquals(new byte[] { 2, 3, 4 }, mParcel.createByteArray());
+        assertNull(mParcel.createByteArray());
+
+        mParcel.setDataPosition(0);
+        final ByteBuffer read = ByteBuffer.allocateDirect(bytes.length + 3);
+        assertEquals(bytes.length, mParcel.readByteBuffer(read));
+        assertEquals(3, mParcel.readByteBuffer(read));
+        assertEquals(-1, mParcel.readByteBuffer(read));
+        read.flip();
+        assertEquals(bytes.length + 3, read.remaining());
+        assertEquals(4, read.get(bytes.length + 2));
+    }
+
+    @Test
+    public void testReadByteBuffer_tooSmall() {
+        mParcel.writeByteArray(new byte[8]);
+        mParcel.setDataPosition(0);
+        try {
+            mParcel.readByteBuffer(ByteBuffer.allocateDirect(4));
+            fail("Expected RuntimeException");
+        } catch (RuntimeException expected) {
+        }
+    }
+
+    @Test
+    public void testReadByteBufferView() {
+        final byte[] bytes = { 1, 2, 3, 4, 5 };
+        mParcel.writeByteArray(bytes);
+        mParcel.writeByteArray(null);
+        mParcel.writeInt(42);
+        mParcel.setDataPosition(0);
+
+        final ByteBuffer view = mParcel.readByteBufferView();
+        assertTrue(view.isReadOnly());
+        assertEquals(bytes.length, view.remaining());
+        final byte[] read = new byte[bytes.length];
+        view.get(read);
+        assertArrayEquals(bytes, read);
+        try {
+            view.put(0, (byte) 0);
+            fail("Expected ReadOnlyBufferException");
+        } catch (ReadOnlyBufferException expected) {
+        }
+
+        assertNull(mParcel.readByteBufferView());
+        // The view skips the padding of the array like createByteArray() does.
+        assertEquals(42, mParcel.readInt());
+    }
+
+    @Test
+    public void testSharedMemoryPayload() {
+        final Parcel payload = Parcel.obtain();
+        final Parcel read;
+        try {
+            payload.writeString("payload");
+            payload.writeIntArray(new int[64 * 1024]);
+            mParcel.writeInt(1);
+            assertTrue(mParcel.writeSharedMemoryPayload(payload));
+            mParcel.writeInt(2);
+            assertTrue(mParcel.hasFileDescriptors());
+            // Only the file descriptor goes into the parcel.
+            assertTrue(mParcel.dataSize() < 1024);
+
+            mParcel.setDataPosition(0);
+            assertEquals(1, mParcel.readInt());
+            read = mParcel.readSharedMemoryPayload();
+            assertEquals(2, mParcel.readInt());
+        } finally {
+            payload.recycle();
+        }
+
+        try {
+            assertEquals("payload", read.readString());
+            assertEquals(64 * 1024, read.createIntArray().length);
+        } finally {
+            read.recycle();
+        }
+    }
+
+    @Test
+    public void testSharedMemoryPayload_fdsNotAllowed() {
+        final Parcel payload = Parcel.obtain();
+        try {
+            payload.writeString("payload");
+            mParcel.pushAllowFds(false);
+            assertFalse(mParcel.writeSharedMemoryPayload(payload));
+            assertEquals(0, mParcel.dataSize());
+        } finally {
+            payload.recycle();
+        }
+    }
+
+    @Test
+    public void testSharedMemoryPayload_payloadWithBinder() {
+        final Parcel payload = Parcel.obtain();
+        try {
+            payload.writeStrongBinder(new Binder());
+            assertFalse(mParcel.writeSharedMemoryPayload(payload));
+            assertEquals(0, mParcel.dataSize());
+        } finally {
+            payload.recycle();
+        }
+    }
+
+    @Test
+    public void testSharedMemoryPayload_sizeLargerThanRegion() throws Exception {
+        assertReadSharedMemoryPayloadFails(4096, 8192);
+    }
+
+    @Test
+    public void testSharedMemoryPayload_sizeTooLarge() throws Exception {
+        final int size = Parcel.MAX_SHARED_MEMORY_PAYLOAD_SIZE + 4096;
+        assertReadSharedMemoryPayloadFails(size, size);
+    }
+
+    @Test
+    public void testSharedMemoryPayload_sizeNotPositive() throws Exception {
+        assertReadSharedMemoryPayloadFails(4096, 0);
+        mParcel.setDataSize(0);
+        assertReadSharedMemoryPayloadFails(4096, -1);
+    }
+
+    private void assertReadSharedMemoryPayloadFails(int regionSize, int recordedSize)
+            throws Exception {
+        final SharedMemory memory = SharedMemory.create("ParcelTest", regionSize);
+        try {
+            mParcel.writeInt(recordedSize);
+            memory.writeToParcel(mParcel, 0);
+        } finally {
+            memory.close();
+        }
+
+        mParcel.setDataPosition(0);
+        try {
+            mParcel.readSharedMemoryPayload().recycle();
+            fail("Expected BadParcelableException for size " + recordedSize);
+        } catch (BadParcelableException expected) {
+        }
+    }
+}
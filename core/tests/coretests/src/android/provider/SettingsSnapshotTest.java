@@ -0,0 +1,189 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package android.provider;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.os.SharedMemory;
+import android.support.test.filters.LargeTest;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.util.ArrayMap;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.concurrent.atomic.AtomicReference;
+
+@RunWith(AndroidJUnit4.class)
+@SmallTest
+public class SettingsSnapshotTest {
+    private SharedMemory mMemory;
+    private SettingsSnapshot mWriter;
+    private SettingsSnapshot mReader;
+    private final String[] mValue = new String[1];
+
+    @Before
+    public void setUp() throws Exception {
+        mMemory = SettingsSnapshot.createMemory("test");
+        mWriter = SettingsSnapshot.createWriter(mMemory);
+        mReader = SettingsSnapshot.map(mMemory);
+    }
+
+    @After
+    public void tearDown() {
+        mReader.destroy();
+        mWriter.destroy();
+        mMemory.close();
+    }
+
+    @Test
+    public void testLookup() {
+        final ArrayMap<String, String> values = new ArrayMap<>();
+        for (int i = 0; i < 200; i++) {
+            values.put("setting_" + i, Integer.toString(i));
+        }
+        values.put("null_setting", null);
+        assertTrue(mWriter.publish(1, values, null));
+
+        for (int i = 0; i < 200; i++) {
+            assertTrue(mReader.getValue("setting_" + i, 1, mValue));
+            assertEquals(Integer.toString(i), mValue[0]);
+        }
+        assertTrue(mReader.getValue("null_setting", 1, mValue));
+        assertNull(mValue[0]);
+        mValue[0] = "stale";
+        assertTrue(mReader.getValue("missing_setting", 1, mValue));
+        assertNull(mValue[0]);
+    }
+
+    @Test
+    public void testGenerations() {
+        final ArrayMap<String, String> values = new ArrayMap<>();
+        values.put("a", "1");
+        assertTrue(mWriter.publish(1, values, null));
+        assertFalse(mReader.getValue("a", 2, mValue));
+
+        values.put("a", "2");
+        assertTrue(mWriter.publish(2, values, null));
+        // The previous generation is left alone in the other slot
+        assertTrue(mReader.getValue("a", 1, mValue));
+        assertEquals("1", mValue[0]);
+        assertTrue(mReader.getValue("a", 2, mValue));
+        assertEquals("2", mValue[0]);
+
+        assertTrue(mWriter.publish(3, values, null));
+        assertFalse(mReader.getValue("a", 1, mValue));
+    }
+
+    @Test
+    public void testWithheld() {
+        final ArrayMap<String, String> values = new ArrayMap<>();
+        values.put("secret", "1");
+        values.put("public", "2");
+        values.put("large", new String(new char[SettingsSnapshot.MAX_VALUE_LENGTH + 1]));
+        assertTrue(mWriter.publish(1, values, new String[] {"secret"}));
+
+        assertFalse(mReader.getValue("secret", 1, mValue));
+        assertFalse(mReader.getValue("large", 1, mValue));
+        assertTrue(mReader.getValue("public", 1, mValue));
+        assertEquals("2", mValue[0]);
+    }
+
+    @Test
+    public void testTooLarge() {
+        final ArrayMap<String, String> values = new ArrayMap<>();
+        final String value = new String(new char[SettingsSnapshot.MAX_VALUE_LENGTH]);
+        for (int i = 0; i < 100; i++) {
+            values.put("setting_" + i, value);
+        }
+        assertFalse(mWriter.publish(1, values, null));
+        assertFalse(mReader.getValue("setting_0", 1, mValue));
+    }
+
+    @Test
+    @LargeTest
+    public void testConcurrentPublishAndRead() throws Exception {
+        final int settingCount = 64;
+        final int generations = 20000;
+        final AtomicReference<Throwable> failure = new AtomicReference<>();
+        final int[] currentGeneration = new int[1];
+
+        final Thread writer = new Thread(() -> {
+            final ArrayMap<String, String> values = new ArrayMap<>();
+            for (int generation = 1; generation <= generations; generation++) {
+                // Every value of a generation is the generation itself, so a reader that
+                // mixes two generations sees a mismatch.
+                values.clear();
+                for (int i = 0; i < settingCount; i++) {
+                    values.put("setting_" + i, Integer.toString(generation));
+                }
+                if (!mWriter.publish(generation, values, null)) {
+                    failure.compareAndSet(null, new AssertionError("publish failed"));
+                    return;
+                }
+                synchronized (currentGeneration) {
+                    currentGeneration[0] = generation;
+                }
+            }
+        });
+
+        final Thread[] readers = new Thread[2];
+        for (int r = 0; r < readers.length; r++) {
+            readers[r] = new Thread(() -> {
+                final String[] value = new String[1];
+                int lookup = 0;
+                while (writer.isAlive() && failure.get() == null) {
+                    final int generation;
+                    synchronized (currentGeneration) {
+                        generation = currentGeneration[0];
+                    }
+                    if (generation == 0) {
+                        continue;
+                    }
+                    final String name = "setting_" + (lookup++ % settingCount);
+                    if (mReader.getValue(name, generation, value)
+                            && !Integer.toString(generation).equals(value[0])) {
+                        failure.compareAndSet(null, new AssertionError("Read " + value[0]
+                                + " for " + name + " in generation " + generation));
+                    }
+                }
+            });
+        }
+
+        writer.start();
+        for (Thread reader : readers) {
+            reader.start();
+        }
+        writer.join();
+        for (Thread reader : readers) {
+            reader.join();
+        }
+        if (failure.get() != null) {
+            fail(failure.get().getMessage());
+        }
+
+        assertTrue(mReader.getValue("setting_0", generations, mValue));
+        assertEquals(Integer.toString(generations), mValue[0]);
+    }
+}
@@ -0,0 +1,100 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.os;
+
+import android.support.test.filters.SmallTest;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.util.Arrays;
+
+/**
+ * Test BatteryHistoryFile.
+ */
+public class BatteryHistoryFileTest extends TestCase {
+    private static final int CAPACITY = BatteryHistoryFile.CHUNK_SIZE * 4;
+
+    private File mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        mFile = File.createTempFile("batterystats-history", ".bin");
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        mFile.delete();
+    }
+
+    private static byte[] makeData(int size, int seed) {
+        final byte[] data = new byte[size];
+        for (int i = 0; i < size; i++) {
+            data[i] = (byte) (i * 31 + seed);
+        }
+        return data;
+    }
+
+    @SmallTest
+    public void testWriteAndRead() throws Exception {
+        final int size = BatteryHistoryFile.CHUNK_SIZE * 2 + 100;
+        final byte[] data = makeData(size, 1);
+        BatteryHistoryFile file = new BatteryHistoryFile(mFile, CAPACITY);
+        assertTrue(file.write(1, 0, data, size));
+        file.close();
+
+        file = new BatteryHistoryFile(mFile, CAPACITY);
+        assertEquals(1, file.getGeneration());
+        assertTrue(Arrays.equals(data, file.read(1, size)));
+        assertNull(file.read(2, size));
+        assertNull(file.read(1, size + 1));
+        file.close();
+    }
+
+    @SmallTest
+    public void testAppendUpdatesChecksums() throws Exception {
+        final int size = BatteryHistoryFile.CHUNK_SIZE * 3;
+        final byte[] data = makeData(size, 2);
+        final BatteryHistoryFile file = new BatteryHistoryFile(mFile, CAPACITY);
+        final int first = BatteryHistoryFile.CHUNK_SIZE + 10;
+        assertTrue(file.write(1, 0, Arrays.copyOfRange(data, 0, first), first));
+        assertTrue(file.write(1, first, Arrays.copyOfRange(data, first, size), size));
+
+        // A summary written before the append still finds its prefix.
+        assertTrue(Arrays.equals(Arrays.copyOf(data, first), file.read(1, first)));
+        assertTrue(Arrays.equals(data, file.read(1, size)));
+        file.close();
+    }
+
+    @SmallTest
+    public void testCorruptChunkIsRejected() throws Exception {
+        final int size = BatteryHistoryFile.CHUNK_SIZE * 2;
+        final BatteryHistoryFile file = new BatteryHistoryFile(mFile, CAPACITY);
+        assertTrue(file.write(1, 0, makeData(size, 3), size));
+        file.corruptForTesting(BatteryHistoryFile.CHUNK_SIZE + 1);
+        assertNull(file.read(1, size));
+        file.close();
+    }
+
+    @SmallTest
+    public void testWriteOutOfRangeFails() throws Exception {
+        final BatteryHistoryFile file = new BatteryHistoryFile(mFile, CAPACITY);
+        assertFalse(file.write(1, CAPACITY - 10, makeData(20, 4), CAPACITY + 10));
+        assertNull(file.read(1, 0));
+        file.close();
+    }
+}
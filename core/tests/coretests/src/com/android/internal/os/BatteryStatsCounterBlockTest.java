@@ -0,0 +1,122 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy of
+ * the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations under
+ * the License.
+ */
+package com.android.internal.os;
+
+import android.os.BatteryStats;
+import android.os.Parcel;
+import android.support.test.filters.SmallTest;
+
+import junit.framework.TestCase;
+
+/**
+ * Test BatteryStatsImpl.LongSamplingCounterBlock against BatteryStatsImpl.LongSamplingCounter.
+ */
+public class BatteryStatsCounterBlockTest extends TestCase {
+    private static final int[] WHICH = new int[] {
+            BatteryStats.STATS_SINCE_CHARGED,
+            BatteryStats.STATS_CURRENT,
+            BatteryStats.STATS_SINCE_UNPLUGGED,
+    };
+
+    private static void assertSameCounts(BatteryStatsImpl.LongSamplingCounter counter,
+            BatteryStatsImpl.LongSamplingCounterBlock block, int index) {
+        for (int which : WHICH) {
+            assertEquals(counter.getCountLocked(which), block.getCountLocked(index, which));
+        }
+    }
+
+    @SmallTest
+    public void testMatchesLongSamplingCounter() throws Exception {
+        final MockClocks clocks = new MockClocks(); // holds realtime and uptime in ms
+        final BatteryStatsImpl.TimeBase timeBase = new BatteryStatsImpl.TimeBase();
+        timeBase.init(clocks.uptimeMillis(), clocks.elapsedRealtime());
+
+        final BatteryStatsImpl.LongSamplingCounter counter =
+                new BatteryStatsImpl.LongSamplingCounter(timeBase);
+        final BatteryStatsImpl.LongSamplingCounterBlock block =
+                new BatteryStatsImpl.LongSamplingCounterBlock(timeBase, 3);
+
+        // timeBase off (i.e. plugged in)
+        timeBase.setRunning(false, 1, 1);
+        counter.addCountLocked(10);
+        block.addCountLocked(1, 10);
+        assertSameCounts(counter, block, 1);
+
+        // timeBase on (i.e. unplugged)
+        timeBase.setRunning(true, 2, 2);
+        counter.addCountLocked(20);
+        block.addCountLocked(1, 20);
+        assertSameCounts(counter, block, 1);
+        assertEquals(0, block.getCountLocked(0, BatteryStats.STATS_SINCE_CHARGED));
+        assertEquals(0, block.getCountLocked(2, BatteryStats.STATS_SINCE_CHARGED));
+
+        // timeBase off (i.e. plugged in)
+        timeBase.setRunning(false, 3, 3);
+        counter.addCountLocked(30);
+        block.addCountLocked(1, 30);
+        assertSameCounts(counter, block, 1);
+
+        // timeBase on (i.e. unplugged)
+        timeBase.setRunning(true, 4, 4);
+        counter.addCountLocked(40);
+        block.addCountLocked(1, 40);
+        assertSameCounts(counter, block, 1);
+        assertEquals(40, block.getCountLocked(1, BatteryStats.STATS_SINCE_UNPLUGGED));
+
+        block.reset(false);
+        for (int which : WHICH) {
+            assertEquals(0, block.getCountLocked(1, which));
+        }
+    }
+
+    @SmallTest
+    public void testParcelCompatibleWithLongSamplingCounter() throws Exception {
+        final MockClocks clocks = new MockClocks(); // holds realtime and uptime in ms
+        final BatteryStatsImpl.TimeBase timeBase = new BatteryStatsImpl.TimeBase();
+        timeBase.init(clocks.uptimeMillis(), clocks.elapsedRealtime());
+        timeBase.setRunning(true, 1, 1);
+
+        final BatteryStatsImpl.LongSamplingCounterBlock block =
+                new BatteryStatsImpl.LongSamplingCounterBlock(timeBase, 2);
+        block.addCountLocked(0, 5);
+        block.addCountLocked(1, 7);
+
+        Parcel parcel = Parcel.obtain();
+        block.writeToParcel(0, parcel);
+        block.writeToParcel(1, parcel);
+        parcel.setDataPosition(0);
+        final BatteryStatsImpl.LongSamplingCounter first =
+                new BatteryStatsImpl.LongSamplingCounter(timeBase, parcel);
+        final BatteryStatsImpl.LongSamplingCounter second =
+                new BatteryStatsImpl.LongSamplingCounter(timeBase, parcel);
+        assertSameCounts(first, block, 0);
+        assertSameCounts(second, block, 1);
+        parcel.recycle();
+
+        parcel = Parcel.obtain();
+        first.writeSummaryFromParcelLocked(parcel);
+        second.writeSummaryFromParcelLocked(parcel);
+        parcel.setDataPosition(0);
+        final BatteryStatsImpl.LongSamplingCounterBlock summary =
+                new BatteryStatsImpl.LongSamplingCounterBlock(timeBase, 2);
+        summary.readSummaryFromParcelLocked(0, parcel);
+        summary.readSummaryFromParcelLocked(1, parcel);
+        assertEquals(5, summary.getCountLocked(0, BatteryStats.STATS_SINCE_CHARGED));
+        assertEquals(7, summary.getCountLocked(1, BatteryStats.STATS_SINCE_CHARGED));
+        assertEquals(0, summary.getCountLocked(1, BatteryStats.STATS_CURRENT));
+        parcel.recycle();
+    }
+}
@@ -0,0 +1,80 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.internal.util;
+
+import junit.framework.TestCase;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+
+public final class BinaryXmlSerializerTest extends TestCase {
+    private static byte[] writeSample(boolean binary) throws Exception {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final XmlSerializer serializer = XmlUtils.resolveSerializer(out, binary);
+        serializer.startDocument(null, true);
+        serializer.startTag(null, "packages");
+        for (int i = 0; i < 3; i++) {
+            serializer.startTag(null, "package");
+            serializer.attribute(null, "name", "com.example." + i);
+            serializer.startTag(null, "item");
+            serializer.attribute(null, "name", "android.permission.INTERNET");
+            serializer.endTag(null, "item");
+            serializer.endTag(null, "package");
+        }
+        serializer.startTag(null, "text");
+        serializer.text("<escaped & é>");
+        serializer.endTag(null, "text");
+        serializer.endTag(null, "packages");
+        serializer.endDocument();
+        return out.toByteArray();
+    }
+
+    private static void assertSample(byte[] document) throws Exception {
+        final XmlPullParser parser = XmlUtils.resolvePullParser(
+                new ByteArrayInputStream(document));
+        XmlUtils.beginDocument(parser, "packages");
+        assertEquals(1, parser.getDepth());
+        for (int i = 0; i < 3; i++) {
+            XmlUtils.nextElement(parser);
+            assertEquals("package", parser.getName());
+            assertEquals(2, parser.getDepth());
+            assertEquals("com.example." + i, parser.getAttributeValue(null, "name"));
+            XmlUtils.nextElement(parser);
+            assertEquals("item", parser.getName());
+            assertEquals("android.permission.INTERNET", parser.getAttributeValue(null, "name"));
+        }
+        XmlUtils.nextElement(parser);
+        assertEquals("text", parser.getName());
+        assertEquals("<escaped & é>", parser.nextText());
+        XmlUtils.skipCurrentTag(parser);
+    }
+
+    public void testRoundTripText() throws Exception {
+        assertSample(writeSample(false));
+    }
+
+    public void testRoundTripBinary() throws Exception {
+        assertSample(writeSample(true));
+    }
+
+    public void testBinaryIsSmaller() throws Exception {
+        assertTrue(writeSample(true).length < writeSample(false).length);
+    }
+}
@@ -204,6 +204,43 @@ public class FileRotatorTest extends AndroidTestCase {
         assertReadAll(rotate, "foo");
     }
 
+    public void testAppend() throws Exception {
+        final FileRotator rotate = new FileRotator(
+                mBasePath, PREFIX, DAY_IN_MILLIS, WEEK_IN_MILLIS);
+
+        final RecordingReader reader = new RecordingReader();
+        long currentTime = TEST_TIME;
+
+        // first append creates active file
+        rotate.appendActive(writer("foo"), currentTime);
+        assertReadAll(rotate, "foo");
+
+        // second append lands after the first in the same file
+        currentTime += MINUTE_IN_MILLIS;
+        rotate.appendActive(writer("bar"), currentTime);
+        assertReadAllSequence(rotate, "foo", "bar");
+
+        // a failed append leaves previous contents intact
+        try {
+            rotate.appendActive(new Writer() {
+                public void write(OutputStream out) throws IOException {
+                    new DataOutputStream(out).writeUTF("baz");
+                    throw new NullPointerException("yikes");
+                }
+            }, currentTime);
+            fail("woah, somehow able to write exception");
+        } catch (IOException e) {
+            // expected from above
+        }
+        assertReadAllSequence(rotate, "foo", "bar");
+
+        // rewrite replaces everything appended so far
+        reader.reset();
+        rotate.combineActive(reader, writer("qux"), currentTime);
+        reader.assertRead("foo");
+        assertReadAll(rotate, "qux");
+    }
+
     public void testOtherFilesAndMalformed() throws Exception {
         final FileRotator rotate = new FileRotator(
                 mBasePath, PREFIX, SECOND_IN_MILLIS, SECOND_IN_MILLIS);
@@ -405,6 +442,20 @@ public class FileRotatorTest extends AndroidTestCase {
         assertReadMatching(rotate, Long.MIN_VALUE, Long.MAX_VALUE, expected);
     }
 
+    private static void assertReadAllSequence(FileRotator rotate, final String... expected)
+            throws IOException {
+        final ArrayList<String> actual = Lists.newArrayList();
+        rotate.readMatching(new Reader() {
+            public void read(InputStream in) throws IOException {
+                final DataInputStream dis = new DataInputStream(in);
+                for (int i = 0; i < expected.length; i++) {
+                    actual.add(dis.readUTF());
+                }
+            }
+        }, Long.MIN_VALUE, Long.MAX_VALUE);
+        assertEquals(Arrays.asList(expected), actual);
+    }
+
     private static void assertReadMatching(
             FileRotator rotate, long matchStartMillis, long matchEndMillis, String... expected)
             throws IOException {
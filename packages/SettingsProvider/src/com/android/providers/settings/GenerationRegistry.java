@@ -16,20 +16,30 @@
 
 package com.android.providers.settings;
 
+import android.annotation.Nullable;
 import android.os.Bundle;
+import android.os.SharedMemory;
 import android.os.UserManager;
 import android.provider.Settings;
+import android.provider.SettingsSnapshot;
+import android.system.ErrnoException;
+import android.util.ArrayMap;
 import android.util.MemoryIntArray;
 import android.util.Slog;
+import android.util.SparseArray;
 import android.util.SparseIntArray;
 import com.android.internal.annotations.GuardedBy;
 
 import java.io.IOException;
+import java.util.List;
 
 /**
  * This class tracks changes for global/secure/system tables on a
  * per user basis and updates a shared memory region which client
  * processes can read to determine if their local caches are stale,
+ * along with a {@link SettingsSnapshot} of the tables clients may read
+ * directly. Snapshots are rebuilt lazily, on the first request after the
+ * generation moved, so writes only pay for the generation bump.
  */
 final class GenerationRegistry {
     private static final String LOG_TAG = "GenerationRegistry";
@@ -44,6 +54,25 @@ final class GenerationRegistry {
     @GuardedBy("mLock")
     private MemoryIntArray mBackingStore;
 
+    @GuardedBy("mLock")
+    private final SparseArray<SnapshotRecord> mSnapshots = new SparseArray<>();
+
+    private static final class SnapshotRecord {
+        final SharedMemory memory;
+        final SettingsSnapshot writer;
+        int generation = -1;
+
+        SnapshotRecord(SharedMemory memory, SettingsSnapshot writer) {
+            this.memory = memory;
+            this.writer = writer;
+        }
+
+        void close() {
+            writer.destroy();
+            memory.close();
+        }
+    }
+
     public GenerationRegistry(Object lock) {
         mLock = lock;
     }
@@ -67,6 +96,17 @@ final class GenerationRegistry {
     }
 
     public void addGenerationData(Bundle bundle, int key) {
+        addGenerationData(bundle, key, null, null);
+    }
+
+    /**
+     * Adds the generation tracking data for {@code key} and, if {@code snapshotSource} is
+     * given, a snapshot of that table at the current generation.
+     *
+     * @param withheld names whose value the snapshot must not expose.
+     */
+    public void addGenerationData(Bundle bundle, int key,
+            @Nullable SettingsState snapshotSource, @Nullable String[] withheld) {
         synchronized (mLock) {
             MemoryIntArray backingStore = getBackingStoreLocked();
             try {
@@ -78,6 +118,15 @@ final class GenerationRegistry {
                         bundle.putInt(Settings.CALL_METHOD_GENERATION_INDEX_KEY, index);
                         bundle.putInt(Settings.CALL_METHOD_GENERATION_KEY,
                                 backingStore.get(index));
+                        if (snapshotSource != null) {
+                            final SnapshotRecord snapshot = getSnapshotLocked(key, true);
+                            if (snapshot != null) {
+                                publishSnapshotLocked(snapshot, backingStore.get(index),
+                                        snapshotSource, withheld);
+                                bundle.putParcelable(Settings.CALL_METHOD_SNAPSHOT_KEY,
+                                        snapshot.memory);
+                            }
+                        }
                         if (DEBUG) {
                             Slog.i(LOG_TAG, "Exported index:" + index + " for key:"
                                     + SettingsProvider.keyToString(key));
@@ -91,6 +140,27 @@ final class GenerationRegistry {
         }
     }
 
+    /**
+     * Brings an already handed out snapshot of {@code key} up to the current generation.
+     */
+    public void updateSnapshot(int key, SettingsState snapshotSource,
+            @Nullable String[] withheld) {
+        synchronized (mLock) {
+            final SnapshotRecord snapshot = getSnapshotLocked(key, false);
+            final int index = mKeyToIndexMap.get(key, -1);
+            if (snapshot == null || index < 0 || mBackingStore == null) {
+                return;
+            }
+            try {
+                publishSnapshotLocked(snapshot, mBackingStore.get(index), snapshotSource,
+                        withheld);
+            } catch (IOException e) {
+                Slog.e(LOG_TAG, "Error updating settings snapshot", e);
+                destroyBackingStore();
+            }
+        }
+    }
+
     public void onUserRemoved(int userId) {
         synchronized (mLock) {
             MemoryIntArray backingStore = getBackingStoreLocked();
@@ -99,10 +169,12 @@ final class GenerationRegistry {
                     final int secureKey = SettingsProvider.makeKey(
                             SettingsProvider.SETTINGS_TYPE_SECURE, userId);
                     resetSlotForKeyLocked(secureKey, mKeyToIndexMap, backingStore);
+                    destroySnapshotLocked(secureKey);
 
                     final int systemKey = SettingsProvider.makeKey(
                             SettingsProvider.SETTINGS_TYPE_SYSTEM, userId);
                     resetSlotForKeyLocked(systemKey, mKeyToIndexMap, backingStore);
+                    destroySnapshotLocked(systemKey);
                 } catch (IOException e) {
                     Slog.e(LOG_TAG, "Error cleaning up for user", e);
                     destroyBackingStore();
@@ -142,6 +214,59 @@ final class GenerationRegistry {
             }
             mBackingStore = null;
         }
+        // The generations start over with the next backing store
+        for (int i = mSnapshots.size() - 1; i >= 0; i--) {
+            mSnapshots.valueAt(i).close();
+        }
+        mSnapshots.clear();
+    }
+
+    private SnapshotRecord getSnapshotLocked(int key, boolean create) {
+        SnapshotRecord snapshot = mSnapshots.get(key);
+        if (snapshot == null && create) {
+            SharedMemory memory = null;
+            try {
+                memory = SettingsSnapshot.createMemory(
+                        "settings-" + SettingsProvider.keyToString(key));
+                snapshot = new SnapshotRecord(memory, SettingsSnapshot.createWriter(memory));
+                mSnapshots.put(key, snapshot);
+            } catch (ErrnoException e) {
+                Slog.e(LOG_TAG, "Error creating settings snapshot", e);
+                if (memory != null) {
+                    memory.close();
+                }
+            }
+        }
+        return snapshot;
+    }
+
+    private void destroySnapshotLocked(int key) {
+        final SnapshotRecord snapshot = mSnapshots.get(key);
+        if (snapshot != null) {
+            mSnapshots.remove(key);
+            snapshot.close();
+        }
+    }
+
+    private static void publishSnapshotLocked(SnapshotRecord snapshot, int generation,
+            SettingsState source, String[] withheld) {
+        if (snapshot.generation == generation) {
+            return;
+        }
+        final List<String> names = source.getSettingNamesLocked();
+        final int count = names.size();
+        final ArrayMap<String, String> values = new ArrayMap<>(count);
+        for (int i = 0; i < count; i++) {
+            final String name = names.get(i);
+            values.put(name, source.getSettingLocked(name).getValue());
+        }
+        if (!snapshot.writer.publish(generation, values, withheld)) {
+            Slog.w(LOG_TAG, "Settings table of " + count + " entries does not fit a snapshot");
+        }
+        snapshot.generation = generation;
+        if (DEBUG) {
+            Slog.i(LOG_TAG, "Published snapshot of generation:" + generation);
+        }
     }
 
     private static void resetSlotForKeyLocked(int key, SparseIntArray keyToIndexMap,
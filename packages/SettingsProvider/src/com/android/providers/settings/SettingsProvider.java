@@ -183,6 +183,12 @@ public class SettingsProvider extends ContentProvider {
     private static final Bundle NULL_SETTING_BUNDLE = Bundle.forPair(
             Settings.NameValueTable.VALUE, null);
 
+    // Values only returned to some callers, never exposed through a snapshot.
+    private static final String[] SNAPSHOT_WITHHELD_SECURE_SETTINGS = new String[] {
+            Settings.Secure.ANDROID_ID,
+            "bluetooth_address"
+    };
+
     // Overlay specified settings whitelisted for Instant Apps
     private static final Set<String> OVERLAY_ALLOWED_GLOBAL_INSTANT_APP_SETTINGS = new ArraySet<>();
     private static final Set<String> OVERLAY_ALLOWED_SYSTEM_INSTANT_APP_SETTINGS = new ArraySet<>();
@@ -338,17 +344,20 @@ public class SettingsProvider extends ContentProvider {
         switch (method) {
             case Settings.CALL_METHOD_GET_GLOBAL: {
                 Setting setting = getGlobalSetting(name);
-                return packageValueForCallResult(setting, isTrackingGeneration(args));
+                return packageValueForCallResult(setting, isTrackingGeneration(args),
+                        isSnapshotRequested(args));
             }
 
             case Settings.CALL_METHOD_GET_SECURE: {
                 Setting setting = getSecureSetting(name, requestingUserId);
-                return packageValueForCallResult(setting, isTrackingGeneration(args));
+                return packageValueForCallResult(setting, isTrackingGeneration(args),
+                        isSnapshotRequested(args));
             }
 
             case Settings.CALL_METHOD_GET_SYSTEM: {
                 Setting setting = getSystemSetting(name, requestingUserId);
-                return packageValueForCallResult(setting, isTrackingGeneration(args));
+                return packageValueForCallResult(setting, isTrackingGeneration(args),
+                        isSnapshotRequested(args));
             }
 
             case Settings.CALL_METHOD_PUT_GLOBAL: {
@@ -1885,8 +1894,11 @@ public class SettingsProvider extends ContentProvider {
     }
 
     private Bundle packageValueForCallResult(Setting setting,
-            boolean trackingGeneration) {
+            boolean trackingGeneration, boolean snapshotRequested) {
         if (!trackingGeneration) {
+            if (snapshotRequested && setting != null) {
+                mSettingsRegistry.updateSnapshot(setting.getKey());
+            }
             if (setting == null || setting.isNull()) {
                 return NULL_SETTING_BUNDLE;
             }
@@ -1896,10 +1908,36 @@ public class SettingsProvider extends ContentProvider {
         result.putString(Settings.NameValueTable.VALUE,
                 !setting.isNull() ? setting.getValue() : null);
 
-        mSettingsRegistry.mGenerationRegistry.addGenerationData(result, setting.getKey());
+        mSettingsRegistry.addGenerationData(result, setting.getKey(),
+                isSnapshotAllowedForCaller(setting.getKey()));
         return result;
     }
 
+    /**
+     * Whether the caller may read the table behind {@code key} from a shared snapshot
+     * instead of asking for each value, which bypasses the per name checks on this path.
+     */
+    private boolean isSnapshotAllowedForCaller(int key) {
+        final int type = getTypeFromKey(key);
+        if (type == SETTINGS_TYPE_SSAID) {
+            return false;
+        }
+        // Instant apps are meant to only see a whitelist of settings.
+        if (UserHandle.getAppId(Binder.getCallingUid()) >= Process.FIRST_APPLICATION_UID
+                && getCallingApplicationInfoOrThrow().isInstantApp()) {
+            return false;
+        }
+        if (type == SETTINGS_TYPE_GLOBAL) {
+            return true;
+        }
+        // Profiles read some settings from their parent, so their view is not one table.
+        final int userId = getUserIdFromKey(key);
+        synchronized (mLock) {
+            return userId == UserHandle.getCallingUserId()
+                    && getGroupParentLocked(userId) == userId;
+        }
+    }
+
     private static int getRequestingUserId(Bundle args) {
         final int callingUserId = UserHandle.getCallingUserId();
         return (args != null) ? args.getInt(Settings.CALL_METHOD_USER_KEY, callingUserId)
@@ -1910,6 +1948,10 @@ public class SettingsProvider extends ContentProvider {
         return args != null && args.containsKey(Settings.CALL_METHOD_TRACK_GENERATION_KEY);
     }
 
+    private boolean isSnapshotRequested(Bundle args) {
+        return args != null && args.containsKey(Settings.CALL_METHOD_SNAPSHOT_KEY);
+    }
+
     private static String getSettingValue(Bundle args) {
         return (args != null) ? args.getString(Settings.NameValueTable.VALUE) : null;
     }
@@ -2472,10 +2514,11 @@ public class SettingsProvider extends ContentProvider {
                 return;
             }
 
+            // Persisted once below, not once per reset setting.
+            boolean someSettingChanged = false;
             switch (mode) {
                 case Settings.RESET_MODE_PACKAGE_DEFAULTS: {
                     for (String name : settingsState.getSettingNamesLocked()) {
-                        boolean someSettingChanged = false;
                         Setting setting = settingsState.getSettingLocked(name);
                         if (packageName.equals(setting.getPackageName())) {
                             if (tag != null && !tag.equals(setting.getTag())) {
@@ -2486,15 +2529,11 @@ public class SettingsProvider extends ContentProvider {
                                 notifyForSettingsChange(key, name);
                             }
                         }
-                        if (someSettingChanged) {
-                            settingsState.persistSyncLocked();
-                        }
                     }
                 } break;
 
                 case Settings.RESET_MODE_UNTRUSTED_DEFAULTS: {
                     for (String name : settingsState.getSettingNamesLocked()) {
-                        boolean someSettingChanged = false;
                         Setting setting = settingsState.getSettingLocked(name);
                         if (!SettingsState.isSystemPackage(getContext(),
                                 setting.getPackageName())) {
@@ -2503,15 +2542,11 @@ public class SettingsProvider extends ContentProvider {
                                 notifyForSettingsChange(key, name);
                             }
                         }
-                        if (someSettingChanged) {
-                            settingsState.persistSyncLocked();
-                        }
                     }
                 } break;
 
                 case Settings.RESET_MODE_UNTRUSTED_CHANGES: {
                     for (String name : settingsState.getSettingNamesLocked()) {
-                        boolean someSettingChanged = false;
                         Setting setting = settingsState.getSettingLocked(name);
                         if (!SettingsState.isSystemPackage(getContext(),
                                 setting.getPackageName())) {
@@ -2525,16 +2560,12 @@ public class SettingsProvider extends ContentProvider {
                                 notifyForSettingsChange(key, name);
                             }
                         }
-                        if (someSettingChanged) {
-                            settingsState.persistSyncLocked();
-                        }
                     }
                 } break;
 
                 case Settings.RESET_MODE_TRUSTED_DEFAULTS: {
                     for (String name : settingsState.getSettingNamesLocked()) {
                         Setting setting = settingsState.getSettingLocked(name);
-                        boolean someSettingChanged = false;
                         if (setting.isDefaultFromSystem()) {
                             if (settingsState.resetSettingLocked(name)) {
                                 someSettingChanged = true;
@@ -2544,12 +2575,12 @@ public class SettingsProvider extends ContentProvider {
                             someSettingChanged = true;
                             notifyForSettingsChange(key, name);
                         }
-                        if (someSettingChanged) {
-                            settingsState.persistSyncLocked();
-                        }
                     }
                 } break;
             }
+            if (someSettingChanged) {
+                settingsState.persistSyncLocked();
+            }
         }
 
         public void onPackageRemovedLocked(String packageName, int userId) {
@@ -2751,6 +2782,30 @@ public class SettingsProvider extends ContentProvider {
             }
         }
 
+        public void addGenerationData(Bundle bundle, int key, boolean withSnapshot) {
+            synchronized (mLock) {
+                final SettingsState settingsState = withSnapshot
+                        ? getSettingsLocked(getTypeFromKey(key), getUserIdFromKey(key)) : null;
+                mGenerationRegistry.addGenerationData(bundle, key, settingsState,
+                        getSnapshotWithheldSettings(key));
+            }
+        }
+
+        public void updateSnapshot(int key) {
+            synchronized (mLock) {
+                final SettingsState settingsState = getSettingsLocked(getTypeFromKey(key),
+                        getUserIdFromKey(key));
+                if (settingsState != null) {
+                    mGenerationRegistry.updateSnapshot(key, settingsState,
+                            getSnapshotWithheldSettings(key));
+                }
+            }
+        }
+
+        private String[] getSnapshotWithheldSettings(int key) {
+            return isSecureSettingsKey(key) ? SNAPSHOT_WITHHELD_SECURE_SETTINGS : null;
+        }
+
         private void notifyForSettingsChange(int key, String name) {
             final int userId = getUserIdFromKey(key);
             Uri uri = getNotificationUriFor(key, name);
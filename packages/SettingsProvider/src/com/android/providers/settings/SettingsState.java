@@ -37,6 +37,7 @@ import android.providers.settings.GlobalSettingsProto;
 import android.providers.settings.SettingsOperationProto;
 import android.text.TextUtils;
 import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.AtomicFile;
 import android.util.Base64;
 import android.util.Slog;
@@ -76,6 +77,13 @@ import java.util.Set;
  * etc, are atomically persisted since the asynchronous persistence is using
  * the same lock to grab the current state to write to disk.
  * </p>
+ * <p>
+ * The lock is only held to capture a copy-on-write snapshot of the table: the
+ * settings changed since the previous write are copied and the rest is shared
+ * with the previous snapshot. Serializing the snapshot happens without the lock.
+ * While settings change faster than the write delay, e.g. during a restore, the
+ * delay grows with the change rate so that a burst is written once.
+ * </p>
  */
 final class SettingsState {
     private static final boolean DEBUG = false;
@@ -189,6 +197,24 @@ final class SettingsState {
     @GuardedBy("mLock")
     private boolean mWriteScheduled;
 
+    @GuardedBy("mLock")
+    private long mScheduledWriteTimeMillis;
+
+    @GuardedBy("mLock")
+    private long mLastMutationTimeMillis;
+
+    // Moving average of the time between mutations, capped at the max write delay.
+    @GuardedBy("mLock")
+    private long mAverageMutationIntervalMillis = MAX_WRITE_SETTINGS_DELAY_MILLIS;
+
+    // The table as of the last write, made of copies that are never modified.
+    @GuardedBy("mLock")
+    private ArrayMap<String, Setting> mPersistedSettings;
+
+    // Settings added, changed or removed since mPersistedSettings was captured.
+    @GuardedBy("mLock")
+    private final ArraySet<String> mDirtyNames = new ArraySet<>();
+
     @GuardedBy("mLock")
     private long mNextId;
 
@@ -255,6 +281,7 @@ final class SettingsState {
             Setting setting = mSettings.valueAt(i);
             if (packageName.equals(setting.packageName)) {
                 mSettings.removeAt(i);
+                mDirtyNames.add(name);
                 removedSomething = true;
             }
         }
@@ -307,6 +334,7 @@ final class SettingsState {
                     oldSetting.getPackageName(), oldSetting.getTag(), false,
                     oldSetting.getId());
             mSettings.put(name, newSetting);
+            mDirtyNames.add(name);
             updateMemoryUsagePerPackageLocked(newSetting.getPackageName(), oldValue,
                     newSetting.getValue(), oldDefaultValue, newSetting.getDefaultValue());
             scheduleWriteIfNeededLocked();
@@ -334,6 +362,7 @@ final class SettingsState {
             newState = new Setting(name, value, makeDefault, packageName, tag);
             mSettings.put(name, newState);
         }
+        mDirtyNames.add(name);
 
         addHistoricalOperationLocked(HISTORICAL_OPERATION_UPDATE, newState);
 
@@ -358,6 +387,7 @@ final class SettingsState {
         }
 
         Setting oldState = mSettings.remove(name);
+        mDirtyNames.add(name);
 
         updateMemoryUsagePerPackageLocked(oldState.packageName, oldState.value,
                 null, oldState.defaultValue, null);
@@ -384,6 +414,7 @@ final class SettingsState {
         if (!setting.reset()) {
             return false;
         }
+        mDirtyNames.add(name);
 
         String newValue = setting.getValue();
         String newDefaultValue = setting.getDefaultValue();
@@ -403,9 +434,10 @@ final class SettingsState {
         mHandler.removeMessages(MyHandler.MSG_PERSIST_SETTINGS);
         if (callback != null) {
             if (mDirty) {
-                // Do it without a delay.
+                // Do it without a delay, and don't let later mutations reschedule it.
                 mHandler.obtainMessage(MyHandler.MSG_PERSIST_SETTINGS,
                         callback).sendToTarget();
+                mWriteScheduled = false;
                 return;
             }
             callback.run();
@@ -532,40 +564,81 @@ final class SettingsState {
     }
 
     private void scheduleWriteIfNeededLocked() {
-        // If dirty then we have a write already scheduled.
-        if (!mDirty) {
+        noteMutationLocked();
+        // If dirty then we have a write already scheduled, but it may need to
+        // be held off while settings keep changing.  A dirty state without a
+        // scheduled write is being destroyed.
+        if (!mDirty || mWriteScheduled) {
             mDirty = true;
             writeStateAsyncLocked();
         }
     }
 
+    private void noteMutationLocked() {
+        final long currentTimeMillis = SystemClock.uptimeMillis();
+        if (mLastMutationTimeMillis > 0) {
+            final long intervalMillis = Math.min(currentTimeMillis - mLastMutationTimeMillis,
+                    MAX_WRITE_SETTINGS_DELAY_MILLIS);
+            mAverageMutationIntervalMillis = (mAverageMutationIntervalMillis * 3
+                    + intervalMillis) / 4;
+        }
+        mLastMutationTimeMillis = currentTimeMillis;
+    }
+
+    private long getWriteDelayMillisLocked() {
+        if (mAverageMutationIntervalMillis >= WRITE_SETTINGS_DELAY_MILLIS) {
+            return WRITE_SETTINGS_DELAY_MILLIS;
+        }
+        // Settings change faster than we would write them, wait for the burst to end.
+        return Math.min(WRITE_SETTINGS_DELAY_MILLIS * WRITE_SETTINGS_DELAY_MILLIS
+                / Math.max(mAverageMutationIntervalMillis, 1), MAX_WRITE_SETTINGS_DELAY_MILLIS);
+    }
+
     private void writeStateAsyncLocked() {
         final long currentTimeMillis = SystemClock.uptimeMillis();
 
-        if (mWriteScheduled) {
-            mHandler.removeMessages(MyHandler.MSG_PERSIST_SETTINGS);
+        if (!mWriteScheduled) {
+            mLastNotWrittenMutationTimeMillis = currentTimeMillis;
+        }
 
-            // If enough time passed, write without holding off anymore.
-            final long timeSinceLastNotWrittenMutationMillis = currentTimeMillis
-                    - mLastNotWrittenMutationTimeMillis;
-            if (timeSinceLastNotWrittenMutationMillis >= MAX_WRITE_SETTINGS_DELAY_MILLIS) {
-                mHandler.obtainMessage(MyHandler.MSG_PERSIST_SETTINGS).sendToTarget();
-                return;
-            }
+        // Never hold off longer than the max delay after the first unwritten mutation.
+        final long writeTimeMillis = Math.min(currentTimeMillis + getWriteDelayMillisLocked(),
+                mLastNotWrittenMutationTimeMillis + MAX_WRITE_SETTINGS_DELAY_MILLIS);
+        if (mWriteScheduled && writeTimeMillis <= mScheduledWriteTimeMillis) {
+            return;
+        }
 
-            // Hold off a bit more as settings are frequently changing.
-            final long maxDelayMillis = Math.max(mLastNotWrittenMutationTimeMillis
-                    + MAX_WRITE_SETTINGS_DELAY_MILLIS - currentTimeMillis, 0);
-            final long writeDelayMillis = Math.min(WRITE_SETTINGS_DELAY_MILLIS, maxDelayMillis);
+        mHandler.removeMessages(MyHandler.MSG_PERSIST_SETTINGS);
+        Message message = mHandler.obtainMessage(MyHandler.MSG_PERSIST_SETTINGS);
+        mHandler.sendMessageAtTime(message, writeTimeMillis);
+        mScheduledWriteTimeMillis = writeTimeMillis;
+        mWriteScheduled = true;
+    }
 
-            Message message = mHandler.obtainMessage(MyHandler.MSG_PERSIST_SETTINGS);
-            mHandler.sendMessageDelayed(message, writeDelayMillis);
+    private ArrayMap<String, Setting> captureSettingsLocked() {
+        final ArrayMap<String, Setting> settings;
+        if (mPersistedSettings == null) {
+            final int settingCount = mSettings.size();
+            settings = new ArrayMap<>(settingCount);
+            for (int i = 0; i < settingCount; i++) {
+                settings.put(mSettings.keyAt(i), new Setting(mSettings.valueAt(i)));
+            }
         } else {
-            mLastNotWrittenMutationTimeMillis = currentTimeMillis;
-            Message message = mHandler.obtainMessage(MyHandler.MSG_PERSIST_SETTINGS);
-            mHandler.sendMessageDelayed(message, WRITE_SETTINGS_DELAY_MILLIS);
-            mWriteScheduled = true;
+            settings = new ArrayMap<>(mPersistedSettings);
+            final int dirtyCount = mDirtyNames.size();
+            for (int i = 0; i < dirtyCount; i++) {
+                final String name = mDirtyNames.valueAt(i);
+                final Setting setting = mSettings.get(name);
+                if (setting != null) {
+                    settings.put(name, new Setting(setting));
+                } else {
+                    settings.remove(name);
+                }
+            }
         }
+        mDirtyNames.clear();
+        mPersistedSettings = settings;
+        return settings;
     }
 
     private void doWriteState() {
@@ -575,7 +648,7 @@ final class SettingsState {
 
         synchronized (mLock) {
             version = mVersion;
-            settings = new ArrayMap<>(mSettings);
+            settings = captureSettingsLocked();
             mDirty = false;
             mWriteScheduled = false;
         }
@@ -602,7 +675,7 @@ final class SettingsState {
                 for (int i = 0; i < settingCount; i++) {
                     Setting setting = settings.valueAt(i);
 
-                    writeSingleSetting(mVersion, serializer, setting.getId(), setting.getName(),
+                    writeSingleSetting(version, serializer, setting.getId(), setting.getName(),
                             setting.getValue(), setting.getDefaultValue(), setting.getPackageName(),
                             setting.getTag(), setting.isDefaultFromSystem());
 
@@ -148,6 +148,40 @@ public class SettingsStateTest extends AndroidTestCase {
         }
     }
 
+    /**
+     * Make sure writes after the first one, which only copy the changed settings,
+     * persist updates and deletions.
+     */
+    public void testReadWriteIncremental() {
+        final File file = new File(getContext().getCacheDir(), "setting.xml");
+        file.delete();
+        final Object lock = new Object();
+
+        final SettingsState ssWriter = new SettingsState(getContext(), lock, file, 1,
+                SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
+        synchronized (lock) {
+            ssWriter.setVersionLocked(SettingsState.SETTINGS_VERSION_NEW_ENCODING);
+            ssWriter.insertSettingLocked("k1", "v1", null, false, "p1");
+            ssWriter.insertSettingLocked("k2", "v2", null, false, "p1");
+            ssWriter.insertSettingLocked("k3", "v3", null, false, "p1");
+            ssWriter.persistSyncLocked();
+
+            ssWriter.insertSettingLocked("k1", "v1b", null, false, "p1");
+            ssWriter.deleteSettingLocked("k2");
+            ssWriter.insertSettingLocked("k4", "v4", null, false, "p1");
+            ssWriter.persistSyncLocked();
+        }
+
+        final SettingsState ssReader = new SettingsState(getContext(), lock, file, 1,
+                SettingsState.MAX_BYTES_PER_APP_PACKAGE_UNLIMITED, Looper.getMainLooper());
+        synchronized (lock) {
+            assertEquals("v1b", ssReader.getSettingLocked("k1").getValue());
+            assertTrue(ssReader.getSettingLocked("k2").isNull());
+            assertEquals("v3", ssReader.getSettingLocked("k3").getValue());
+            assertEquals("v4", ssReader.getSettingLocked("k4").getValue());
+        }
+    }
+
     /**
      * In version 120, value "null" meant {code NULL}.
      */
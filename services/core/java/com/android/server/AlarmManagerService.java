@@ -479,6 +479,41 @@ class AlarmManagerService extends SystemService {
             return didRemove;
         }
 
+        /**
+         * Takes out the alarms that a rebatch for {@code reasons} has to place again,
+         * see {@link #isAffectedByRebatchLocked}.
+         */
+        boolean removeForRebatch(int reasons, ArrayList<Alarm> outRemoved) {
+            boolean didRemove = false;
+            long newStart = 0;  // recalculate endpoints as we go
+            long newEnd = Long.MAX_VALUE;
+            int newFlags = 0;
+            for (int i = 0; i < alarms.size(); ) {
+                Alarm alarm = alarms.get(i);
+                if (isAffectedByRebatchLocked(alarm, reasons)) {
+                    alarms.remove(i);
+                    outRemoved.add(alarm);
+                    didRemove = true;
+                } else {
+                    if (alarm.whenElapsed > newStart) {
+                        newStart = alarm.whenElapsed;
+                    }
+                    if (alarm.maxWhenElapsed < newEnd) {
+                        newEnd = alarm.maxWhenElapsed;
+                    }
+                    newFlags |= alarm.flags;
+                    i++;
+                }
+            }
+            if (didRemove) {
+                // commit the new batch bounds
+                start = newStart;
+                end = newEnd;
+                flags = newFlags;
+            }
+            return didRemove;
+        }
+
         boolean remove(final String packageName) {
             if (packageName == null) {
                 if (localLOGV) {
@@ -752,7 +787,19 @@ class AlarmManagerService extends SystemService {
 
     // Return the index of the matching batch, or -1 if none found.
     int attemptCoalesceLocked(long whenElapsed, long maxWhen) {
-        final int N = mAlarmBatches.size();
+        // Batches are sorted by start, so only the ones starting by maxWhen can hold the
+        // alarm; find where those end instead of walking every batch after them.
+        int lo = 0;
+        int hi = mAlarmBatches.size();
+        while (lo < hi) {
+            final int mid = (lo + hi) >>> 1;
+            if (mAlarmBatches.get(mid).start <= maxWhen) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        final int N = lo;
         for (int i = 0; i < N; i++) {
             Batch b = mAlarmBatches.get(i);
             if ((b.flags&AlarmManager.FLAG_STANDALONE) == 0 && b.canHold(whenElapsed, maxWhen)) {
@@ -762,13 +809,87 @@ class AlarmManagerService extends SystemService {
         return -1;
     }
 
-    // The RTC clock has moved arbitrarily, so we need to recalculate all the batching
+    // Reasons for rebatchAlarmsLocked(): which alarms may need to be placed differently.
+    /** The RTC clock moved, so alarms set in RTC now fall at another elapsed time. */
+    static final int REBATCH_WALL_CLOCK = 1<<0;
+    /**
+     * The device idle state or the alarms that bound it changed, so alarms may have to be
+     * held back or released, and the idle until alarm may have to move.
+     */
+    static final int REBATCH_IDLE_STATE = 1<<1;
+
+    // The RTC clock has moved arbitrarily, so we need to recalculate the batching of the
+    // alarms that depend on it
     void rebatchAllAlarms() {
         synchronized (mLock) {
-            rebatchAllAlarmsLocked(true);
+            rebatchAlarmsLocked(REBATCH_WALL_CLOCK | REBATCH_IDLE_STATE, true);
         }
     }
 
+    boolean isAffectedByRebatchLocked(Alarm a, int reasons) {
+        if ((reasons&REBATCH_WALL_CLOCK) != 0 && (a.type == RTC || a.type == RTC_WAKEUP)) {
+            return true;
+        }
+        if ((reasons&REBATCH_IDLE_STATE) != 0) {
+            if ((a.flags&(AlarmManager.FLAG_IDLE_UNTIL|AlarmManager.FLAG_WAKE_FROM_IDLE)) != 0) {
+                return true;
+            }
+            // Mirrors the check in setImplLocked() that holds alarms back while idle
+            if (mPendingIdleUntil != null && (a.flags&(AlarmManager.FLAG_ALLOW_WHILE_IDLE
+                    | AlarmManager.FLAG_ALLOW_WHILE_IDLE_UNRESTRICTED
+                    | AlarmManager.FLAG_WAKE_FROM_IDLE)) == 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Places again only the alarms whose batching {@code reasons} can change, leaving every
+     * other alarm in the batch it is in.  This gives the same placement as
+     * {@link #rebatchAllAlarmsLocked} for the moved alarms without tearing down thousands
+     * of batches each time the device goes in or out of idle or an alarm is removed.
+     */
+    void rebatchAlarmsLocked(int reasons, boolean doValidate) {
+        final ArrayList<Alarm> moved = new ArrayList<>();
+        for (int i = mAlarmBatches.size() - 1; i >= 0; i--) {
+            final Batch b = mAlarmBatches.get(i);
+            if (b.removeForRebatch(reasons, moved) && b.size() == 0) {
+                mAlarmBatches.remove(i);
+            }
+        }
+        // Taking alarms out (here or by the caller) only widens batches, which stay valid
+        // but may now start earlier.  The list is nearly sorted, so this is cheap.
+        Collections.sort(mAlarmBatches, sBatchOrder);
+
+        Alarm oldPendingIdleUntil = mPendingIdleUntil;
+        final long nowElapsed = SystemClock.elapsedRealtime();
+        // The idle until alarm goes last so that it is pulled in by the wake from idle
+        // alarms placed before it.
+        Alarm idleUntil = null;
+        for (int i = 0; i < moved.size(); i++) {
+            final Alarm a = moved.get(i);
+            if ((a.flags&AlarmManager.FLAG_IDLE_UNTIL) != 0 && idleUntil == null) {
+                idleUntil = a;
+                continue;
+            }
+            reAddAlarmLocked(a, nowElapsed, doValidate);
+        }
+        if (idleUntil != null) {
+            reAddAlarmLocked(idleUntil, nowElapsed, doValidate);
+        }
+        if (oldPendingIdleUntil != null && oldPendingIdleUntil != mPendingIdleUntil) {
+            Slog.wtf(TAG, "Rebatching: idle until changed from " + oldPendingIdleUntil
+                    + " to " + mPendingIdleUntil);
+            if (mPendingIdleUntil == null) {
+                // Somehow we lost this...  we need to restore all of the pending alarms.
+                restorePendingWhileIdleAlarmsLocked();
+            }
+        }
+        rescheduleKernelAlarmsLocked();
+        updateNextAlarmClockLocked();
+    }
+
     void rebatchAllAlarmsLocked(boolean doValidate) {
         ArrayList<Batch> oldSet = (ArrayList<Batch>) mAlarmBatches.clone();
         mAlarmBatches.clear();
@@ -1316,7 +1437,7 @@ class AlarmManagerService extends SystemService {
             }
 
             if (needRebatch) {
-                rebatchAllAlarmsLocked(false);
+                rebatchAlarmsLocked(REBATCH_IDLE_STATE, false);
             }
 
             rescheduleKernelAlarmsLocked();
@@ -1992,7 +2113,7 @@ class AlarmManagerService extends SystemService {
             if (mNextWakeFromIdle != null && mNextWakeFromIdle.matches(operation, directReceiver)) {
                 mNextWakeFromIdle = null;
             }
-            rebatchAllAlarmsLocked(true);
+            rebatchAlarmsLocked(REBATCH_IDLE_STATE, true);
             if (restorePending) {
                 restorePendingWhileIdleAlarmsLocked();
             }
@@ -2021,7 +2142,7 @@ class AlarmManagerService extends SystemService {
             if (DEBUG_BATCH) {
                 Slog.v(TAG, "remove(package) changed bounds; rebatching");
             }
-            rebatchAllAlarmsLocked(true);
+            rebatchAlarmsLocked(REBATCH_IDLE_STATE, true);
             rescheduleKernelAlarmsLocked();
             updateNextAlarmClockLocked();
         }
@@ -2048,7 +2169,7 @@ class AlarmManagerService extends SystemService {
             if (DEBUG_BATCH) {
                 Slog.v(TAG, "remove(package) changed bounds; rebatching");
             }
-            rebatchAllAlarmsLocked(true);
+            rebatchAlarmsLocked(REBATCH_IDLE_STATE, true);
             rescheduleKernelAlarmsLocked();
             updateNextAlarmClockLocked();
         }
@@ -2080,7 +2201,7 @@ class AlarmManagerService extends SystemService {
             if (DEBUG_BATCH) {
                 Slog.v(TAG, "remove(user) changed bounds; rebatching");
             }
-            rebatchAllAlarmsLocked(true);
+            rebatchAlarmsLocked(REBATCH_IDLE_STATE, true);
             rescheduleKernelAlarmsLocked();
             updateNextAlarmClockLocked();
         }
@@ -2248,12 +2369,12 @@ class AlarmManagerService extends SystemService {
                 }
                 if (mPendingIdleUntil == alarm) {
                     mPendingIdleUntil = null;
-                    rebatchAllAlarmsLocked(false);
+                    rebatchAlarmsLocked(REBATCH_IDLE_STATE, false);
                     restorePendingWhileIdleAlarmsLocked();
                 }
                 if (mNextWakeFromIdle == alarm) {
                     mNextWakeFromIdle = null;
-                    rebatchAllAlarmsLocked(false);
+                    rebatchAlarmsLocked(REBATCH_IDLE_STATE, false);
                 }
 
                 // Recurring alarms may have passed several alarm intervals while the
@@ -31,6 +31,7 @@ import android.media.AudioAttributes;
 import android.os.AsyncTask;
 import android.os.Binder;
 import android.os.Bundle;
+import android.os.FileUtils;
 import android.os.Handler;
 import android.os.IBinder;
 import android.os.Process;
@@ -39,6 +40,7 @@ import android.os.ResultReceiver;
 import android.os.ServiceManager;
 import android.os.ShellCallback;
 import android.os.ShellCommand;
+import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.os.storage.StorageManagerInternal;
@@ -50,23 +52,29 @@ import android.util.Slog;
 import android.util.SparseArray;
 import android.util.SparseIntArray;
 import android.util.TimeUtils;
-import android.util.Xml;
 
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.app.IAppOpsCallback;
 import com.android.internal.app.IAppOpsService;
 import com.android.internal.os.Zygote;
 import com.android.internal.util.ArrayUtils;
 import com.android.internal.util.DumpUtils;
-import com.android.internal.util.FastXmlSerializer;
 import com.android.internal.util.Preconditions;
 import com.android.internal.util.XmlUtils;
 
+import libcore.io.IoUtils;
 import libcore.util.EmptyArray;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
 import org.xmlpull.v1.XmlSerializer;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileDescriptor;
 import java.io.FileInputStream;
@@ -74,7 +82,6 @@ import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.PrintWriter;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
@@ -82,6 +89,7 @@ import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.zip.CRC32;
 
 public class AppOpsService extends IAppOpsService.Stub {
     static final String TAG = "AppOps";
@@ -90,12 +98,36 @@ public class AppOpsService extends IAppOpsService.Stub {
     // Write at most every 30 minutes.
     static final long WRITE_DELAY = DEBUG ? 1000 : 30*60*1000;
 
+    /** Whether appops.xml and the access log are written in the binary XML encoding. */
+    private static final boolean WRITE_BINARY_STATE =
+            SystemProperties.getBoolean("persist.appops.binary_store", true);
+
+    private static final int ACCESS_LOG_MAGIC = 0x41504131; // "APA1"
+    /** The access log is compacted once it holds more records than this... */
+    private static final int MIN_ACCESS_RECORDS_BEFORE_COMPACTION = 256;
+    /** ...and more than ACCESS_COMPACTION_RATIO records per op. */
+    private static final int ACCESS_COMPACTION_RATIO = 2;
+
     Context mContext;
+    /** Modes and the ops that carry them; only rewritten when modes change. */
     final AtomicFile mFile;
+    /**
+     * Access and reject times, which change on nearly every note.  This is a log of
+     * CRC-checked batches holding the ops whose times changed since the previous batch, and
+     * is only rewritten in full once it has grown well past the number of ops.
+     */
+    final AtomicFile mAccessFile;
     final Handler mHandler;
 
     boolean mWriteScheduled;
     boolean mFastWriteScheduled;
+    /** Whether modes changed since appops.xml was written. */
+    boolean mStateDirty;
+    /** Ops whose access times changed since the access log was written. */
+    final ArraySet<Op> mDirtyAccessOps = new ArraySet<>();
+    /** Whether the next write must replace the access log instead of appending to it. */
+    boolean mAccessNeedsCompaction = true;
+    int mAccessRecordCount;
     final Runnable mWriteRunner = new Runnable() {
         public void run() {
             synchronized (AppOpsService.this) {
@@ -114,6 +146,21 @@ public class AppOpsService extends IAppOpsService.Stub {
 
     private final SparseArray<UidState> mUidStates = new SparseArray<>();
 
+    /*
+     * Results of checkOperation() by uid, then package, then op code, so that checks, which
+     * come from nearly every privileged API, are answered without taking the service lock.
+     * The maps are never modified once published: adding a package publishes copies, and any
+     * change to modes, restrictions or packages publishes an empty cache.  Only the dense
+     * per-package mode arrays are filled in place, which racing readers either see or take
+     * as a miss.
+     */
+    private volatile SparseArray<ArrayMap<String, int[]>> mCheckCache = new SparseArray<>();
+    private static final int CHECK_CACHE_MISS = -1;
+    /** Past this many uids the cache starts over rather than growing without bound. */
+    private static final int MAX_CHECK_CACHE_UIDS = 512;
+    /** Past this many packages of a uid, further packages of that uid aren't cached. */
+    private static final int MAX_CHECK_CACHE_PACKAGES_PER_UID = 16;
+
     /*
      * These are app op restrictions imposed per user from various parties.
      */
@@ -241,6 +288,7 @@ public class AppOpsService extends IAppOpsService.Stub {
     public AppOpsService(File storagePath, Handler handler) {
         LockGuard.installLock(this, LockGuard.INDEX_APP_OPS);
         mFile = new AtomicFile(storagePath);
+        mAccessFile = new AtomicFile(new File(storagePath.getParentFile(), "appops_access.log"));
         mHandler = handler;
         readState();
     }
@@ -292,6 +340,8 @@ public class AppOpsService extends IAppOpsService.Stub {
                 }
             }
             if (changed) {
+                invalidateCheckCacheLocked();
+                mAccessNeedsCompaction = true;
                 scheduleFastWriteLocked();
             }
         }
@@ -365,6 +415,8 @@ public class AppOpsService extends IAppOpsService.Stub {
             }
 
             if (changed) {
+                invalidateCheckCacheLocked();
+                mAccessNeedsCompaction = true;
                 scheduleFastWriteLocked();
             }
         }
@@ -374,6 +426,8 @@ public class AppOpsService extends IAppOpsService.Stub {
         synchronized (this) {
             if (mUidStates.indexOfKey(uid) >= 0) {
                 mUidStates.remove(uid);
+                invalidateCheckCacheLocked();
+                mAccessNeedsCompaction = true;
                 scheduleFastWriteLocked();
             }
         }
@@ -563,11 +617,13 @@ public class AppOpsService extends IAppOpsService.Stub {
                 uidState.opModes = new SparseIntArray();
                 uidState.opModes.put(code, mode);
                 mUidStates.put(uid, uidState);
+                invalidateCheckCacheLocked();
                 scheduleWriteLocked();
             } else if (uidState.opModes == null) {
                 if (mode != defaultMode) {
                     uidState.opModes = new SparseIntArray();
                     uidState.opModes.put(code, mode);
+                    invalidateCheckCacheLocked();
                     scheduleWriteLocked();
                 }
             } else {
@@ -582,6 +638,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                 } else {
                     uidState.opModes.put(code, mode);
                 }
+                invalidateCheckCacheLocked();
                 scheduleWriteLocked();
             }
         }
@@ -668,6 +725,7 @@ public class AppOpsService extends IAppOpsService.Stub {
             if (op != null) {
                 if (op.mode != mode) {
                     op.mode = mode;
+                    invalidateCheckCacheLocked();
                     ArraySet<Callback> cbs = mOpModeWatchers.get(code);
                     if (cbs != null) {
                         if (repCbs == null) {
@@ -844,7 +902,10 @@ public class AppOpsService extends IAppOpsService.Stub {
                 }
             }
 
+            // Uid modes are reset without marking the state changed
+            invalidateCheckCacheLocked();
             if (changed) {
+                mAccessNeedsCompaction = true;
                 scheduleFastWriteLocked();
             }
         }
@@ -941,21 +1002,76 @@ public class AppOpsService extends IAppOpsService.Stub {
         if (resolvedPackageName == null) {
             return AppOpsManager.MODE_IGNORED;
         }
+        final int cachedMode = getCachedCheckResult(code, uid, resolvedPackageName);
+        if (cachedMode != CHECK_CACHE_MISS) {
+            return cachedMode;
+        }
         synchronized (this) {
-            if (isOpRestrictedLocked(uid, code, resolvedPackageName)) {
-                return AppOpsManager.MODE_IGNORED;
-            }
-            code = AppOpsManager.opToSwitch(code);
-            UidState uidState = getUidStateLocked(uid, false);
-            if (uidState != null && uidState.opModes != null
-                    && uidState.opModes.indexOfKey(code) >= 0) {
-                return uidState.opModes.get(code);
-            }
-            Op op = getOpLocked(code, uid, resolvedPackageName, false);
-            if (op == null) {
-                return AppOpsManager.opToDefaultMode(code);
-            }
-            return op.mode;
+            final int mode = checkOperationLocked(code, uid, resolvedPackageName);
+            putCachedCheckResultLocked(code, uid, resolvedPackageName, mode);
+            return mode;
+        }
+    }
+
+    private int checkOperationLocked(int code, int uid, String packageName) {
+        if (isOpRestrictedLocked(uid, code, packageName)) {
+            return AppOpsManager.MODE_IGNORED;
+        }
+        code = AppOpsManager.opToSwitch(code);
+        UidState uidState = getUidStateLocked(uid, false);
+        if (uidState != null && uidState.opModes != null
+                && uidState.opModes.indexOfKey(code) >= 0) {
+            return uidState.opModes.get(code);
+        }
+        Op op = getOpLocked(code, uid, packageName, false);
+        if (op == null) {
+            return AppOpsManager.opToDefaultMode(code);
+        }
+        return op.mode;
+    }
+
+    private int getCachedCheckResult(int code, int uid, String packageName) {
+        final ArrayMap<String, int[]> packageModes = mCheckCache.get(uid);
+        if (packageModes == null) {
+            return CHECK_CACHE_MISS;
+        }
+        final int[] modes = packageModes.get(packageName);
+        return modes != null ? modes[code] : CHECK_CACHE_MISS;
+    }
+
+    private void putCachedCheckResultLocked(int code, int uid, String packageName, int mode) {
+        final SparseArray<ArrayMap<String, int[]>> cache = mCheckCache;
+        final ArrayMap<String, int[]> packageModes = cache.get(uid);
+        final int[] modes = packageModes != null ? packageModes.get(packageName) : null;
+        if (modes != null) {
+            modes[code] = mode;
+            return;
+        }
+        // Callers can pass any package name for their own uid, so only packages that were
+        // already validated for the uid, by having ops recorded, get an entry.
+        if (getOpsRawLocked(uid, packageName, false) == null || (packageModes != null
+                && packageModes.size() >= MAX_CHECK_CACHE_PACKAGES_PER_UID)) {
+            return;
+        }
+        final int[] newModes = new int[AppOpsManager._NUM_OP];
+        Arrays.fill(newModes, CHECK_CACHE_MISS);
+        newModes[code] = mode;
+        final ArrayMap<String, int[]> newPackageModes = packageModes != null
+                ? new ArrayMap<>(packageModes) : new ArrayMap<>(1);
+        newPackageModes.put(packageName, newModes);
+        final SparseArray<ArrayMap<String, int[]>> newCache;
+        if (packageModes == null && cache.size() >= MAX_CHECK_CACHE_UIDS) {
+            newCache = new SparseArray<>();
+        } else {
+            newCache = cache.clone();
+        }
+        newCache.put(uid, newPackageModes);
+        mCheckCache = newCache;
+    }
+
+    private void invalidateCheckCacheLocked() {
+        if (mCheckCache.size() > 0) {
+            mCheckCache = new SparseArray<>();
         }
     }
 
@@ -1221,6 +1337,7 @@ public class AppOpsService extends IAppOpsService.Stub {
     }
 
     void finishOperationLocked(Op op) {
+        noteAccessChangedLocked(op);
         if (op.nesting <= 1) {
             if (op.nesting == 1) {
                 op.duration = (int)(System.currentTimeMillis() - op.time);
@@ -1335,6 +1452,16 @@ public class AppOpsService extends IAppOpsService.Stub {
     }
 
     private void scheduleWriteLocked() {
+        mStateDirty = true;
+        scheduleLazyWriteLocked();
+    }
+
+    private void noteAccessChangedLocked(Op op) {
+        mDirtyAccessOps.add(op);
+        scheduleLazyWriteLocked();
+    }
+
+    private void scheduleLazyWriteLocked() {
         if (!mWriteScheduled) {
             mWriteScheduled = true;
             mHandler.postDelayed(mWriteRunner, WRITE_DELAY);
@@ -1342,6 +1469,7 @@ public class AppOpsService extends IAppOpsService.Stub {
     }
 
     private void scheduleFastWriteLocked() {
+        mStateDirty = true;
         if (!mFastWriteScheduled) {
             mWriteScheduled = true;
             mFastWriteScheduled = true;
@@ -1350,6 +1478,18 @@ public class AppOpsService extends IAppOpsService.Stub {
         }
     }
 
+    @VisibleForTesting
+    boolean isCheckResultCachedForTesting(int code, int uid, String packageName) {
+        return getCachedCheckResult(code, uid, packageName) != CHECK_CACHE_MISS;
+    }
+
+    @VisibleForTesting
+    Op getOpForTesting(int code, int uid, String packageName) {
+        synchronized (this) {
+            return getOpLocked(code, uid, packageName, false);
+        }
+    }
+
     private Op getOpLocked(int code, int uid, String packageName, boolean edit) {
         Ops ops = getOpsRawLocked(uid, packageName, edit);
         if (ops == null) {
@@ -1368,7 +1508,7 @@ public class AppOpsService extends IAppOpsService.Stub {
             ops.put(code, op);
         }
         if (edit) {
-            scheduleWriteLocked();
+            noteAccessChangedLocked(op);
         }
         return op;
     }
@@ -1405,13 +1545,16 @@ public class AppOpsService extends IAppOpsService.Stub {
                     stream = mFile.openRead();
                 } catch (FileNotFoundException e) {
                     Slog.i(TAG, "No existing app ops " + mFile.getBaseFile() + "; starting empty");
+                    mUidStates.clear();
+                    invalidateCheckCacheLocked();
+                    replayAccessLogLocked();
                     return;
                 }
                 boolean success = false;
                 mUidStates.clear();
+                invalidateCheckCacheLocked();
                 try {
-                    XmlPullParser parser = Xml.newPullParser();
-                    parser.setInput(stream, StandardCharsets.UTF_8.name());
+                    XmlPullParser parser = XmlUtils.resolvePullParser(stream);
                     int type;
                     while ((type = parser.next()) != XmlPullParser.START_TAG
                             && type != XmlPullParser.END_DOCUMENT) {
@@ -1462,10 +1605,108 @@ public class AppOpsService extends IAppOpsService.Stub {
                     } catch (IOException e) {
                     }
                 }
+                mStateDirty = false;
+                replayAccessLogLocked();
+            }
+        }
+    }
+
+    /**
+     * Applies the access times recorded in the access log on top of the ops read from
+     * appops.xml.  Replay stops at the first incomplete or corrupt batch, in which case the
+     * next write replaces the log.
+     */
+    private void replayAccessLogLocked() {
+        mDirtyAccessOps.clear();
+        mAccessRecordCount = 0;
+        mAccessNeedsCompaction = true;
+        final FileInputStream stream;
+        try {
+            stream = mAccessFile.openRead();
+        } catch (FileNotFoundException e) {
+            // Access times are still in appops.xml if it was written by an older release
+            return;
+        }
+        final DataInputStream in = new DataInputStream(new BufferedInputStream(stream));
+        try {
+            if (in.readInt() != ACCESS_LOG_MAGIC) {
+                Slog.w(TAG, "Ignoring access log " + mAccessFile.getBaseFile()
+                        + " with unknown format");
+                return;
             }
+            final CRC32 crc = new CRC32();
+            while (true) {
+                final int length;
+                try {
+                    length = in.readInt();
+                } catch (EOFException e) {
+                    break;
+                }
+                if (length < 0 || length > in.available()) {
+                    throw new IOException("Invalid access log record length " + length);
+                }
+                final byte[] payload = new byte[length];
+                in.readFully(payload);
+                crc.reset();
+                crc.update(payload);
+                if (in.readLong() != crc.getValue()) {
+                    throw new IOException("Access log record checksum mismatch");
+                }
+                mAccessRecordCount += replayAccessBatchLocked(payload);
+            }
+            mAccessNeedsCompaction = false;
+        } catch (IOException | XmlPullParserException | NumberFormatException e) {
+            // Keep what was replayed so far; whatever follows is a torn write
+            Slog.w(TAG, "Failed replaying access log after " + mAccessRecordCount
+                    + " records", e);
+        } finally {
+            IoUtils.closeQuietly(in);
         }
     }
 
+    private int replayAccessBatchLocked(byte[] payload)
+            throws XmlPullParserException, IOException {
+        final XmlPullParser parser =
+                XmlUtils.resolvePullParser(new ByteArrayInputStream(payload));
+        int records = 0;
+        int type;
+        while ((type = parser.next()) != XmlPullParser.END_DOCUMENT) {
+            if (type != XmlPullParser.START_TAG || !"op".equals(parser.getName())) {
+                continue;
+            }
+            final int uid = Integer.parseInt(parser.getAttributeValue(null, "u"));
+            final String pkgName = parser.getAttributeValue(null, "pkg");
+            final int code = Integer.parseInt(parser.getAttributeValue(null, "n"));
+            UidState uidState = getUidStateLocked(uid, true);
+            if (uidState.pkgOps == null) {
+                uidState.pkgOps = new ArrayMap<>();
+            }
+            Ops ops = uidState.pkgOps.get(pkgName);
+            if (ops == null) {
+                ops = new Ops(pkgName, uidState,
+                        Boolean.parseBoolean(parser.getAttributeValue(null, "p")));
+                uidState.pkgOps.put(pkgName, ops);
+            }
+            Op op = ops.get(code);
+            if (op == null) {
+                op = new Op(uid, pkgName, code);
+                ops.put(code, op);
+            }
+            // Each record carries the complete access state of the op
+            String value = parser.getAttributeValue(null, "t");
+            op.time = value != null ? Long.parseLong(value) : 0;
+            value = parser.getAttributeValue(null, "r");
+            op.rejectTime = value != null ? Long.parseLong(value) : 0;
+            value = parser.getAttributeValue(null, "d");
+            op.duration = value != null ? Integer.parseInt(value) : 0;
+            value = parser.getAttributeValue(null, "pu");
+            op.proxyUid = value != null ? Integer.parseInt(value) : -1;
+            op.proxyPackageName = parser.getAttributeValue(null, "pp");
+            records++;
+        }
+        return records;
+    }
+
     void readUidOps(XmlPullParser parser) throws NumberFormatException,
             XmlPullParserException, IOException {
         final int uid = Integer.parseInt(parser.getAttributeValue(null, "n"));
@@ -1598,111 +1839,270 @@ public class AppOpsService extends IAppOpsService.Stub {
 
     void writeState() {
         synchronized (mFile) {
-            List<AppOpsManager.PackageOps> allOps = getPackagesForOps(null);
+            final byte[] state;
+            final byte[] access;
+            final boolean compactAccess;
+            final int accessRecords;
+            synchronized (this) {
+                final int opCount = mAccessNeedsCompaction || !mDirtyAccessOps.isEmpty()
+                        ? countOpsLocked() : 0;
+                compactAccess = mAccessNeedsCompaction
+                        || mAccessRecordCount + mDirtyAccessOps.size()
+                                > Math.max(MIN_ACCESS_RECORDS_BEFORE_COMPACTION,
+                                        opCount * ACCESS_COMPACTION_RATIO);
+                try {
+                    state = mStateDirty ? encodeStateLocked() : null;
+                    if (compactAccess) {
+                        access = encodeAccessLocked(null);
+                        accessRecords = opCount;
+                    } else if (!mDirtyAccessOps.isEmpty()) {
+                        access = encodeAccessLocked(mDirtyAccessOps);
+                        accessRecords = mDirtyAccessOps.size();
+                    } else {
+                        access = null;
+                        accessRecords = 0;
+                    }
+                } catch (IOException e) {
+                    Slog.w(TAG, "Failed to encode state", e);
+                    scheduleLazyWriteLocked();
+                    return;
+                }
+                mStateDirty = false;
+                mDirtyAccessOps.clear();
+                mAccessNeedsCompaction = false;
+            }
+
+            // Access times first, so ops dropped from appops.xml keep them if we crash between
+            if (access != null) {
+                final boolean written = compactAccess
+                        ? writeAccessLog(access) : appendAccessLog(access);
+                synchronized (this) {
+                    if (!written) {
+                        mAccessNeedsCompaction = true;
+                        scheduleLazyWriteLocked();
+                    } else if (compactAccess) {
+                        mAccessRecordCount = accessRecords;
+                    } else {
+                        mAccessRecordCount += accessRecords;
+                    }
+                }
+            }
+            if (state != null) {
+                FileOutputStream stream;
+                try {
+                    stream = mFile.startWrite();
+                } catch (IOException e) {
+                    Slog.w(TAG, "Failed to write state: " + e);
+                    synchronized (this) {
+                        mStateDirty = true;
+                        scheduleLazyWriteLocked();
+                    }
+                    return;
+                }
+                try {
+                    stream.write(state);
+                    mFile.finishWrite(stream);
+                } catch (IOException e) {
+                    Slog.w(TAG, "Failed to write state, restoring backup.", e);
+                    mFile.failWrite(stream);
+                    synchronized (this) {
+                        mStateDirty = true;
+                        scheduleLazyWriteLocked();
+                    }
+                }
+            }
+        }
+    }
 
-            FileOutputStream stream;
-            try {
-                stream = mFile.startWrite();
-            } catch (IOException e) {
-                Slog.w(TAG, "Failed to write state: " + e);
-                return;
+    private int countOpsLocked() {
+        int count = 0;
+        for (int i = mUidStates.size() - 1; i >= 0; i--) {
+            final ArrayMap<String, Ops> pkgOps = mUidStates.valueAt(i).pkgOps;
+            if (pkgOps != null) {
+                for (int j = pkgOps.size() - 1; j >= 0; j--) {
+                    count += pkgOps.valueAt(j).size();
+                }
             }
+        }
+        return count;
+    }
 
-            try {
-                XmlSerializer out = new FastXmlSerializer();
-                out.setOutput(stream, StandardCharsets.UTF_8.name());
-                out.startDocument(null, true);
-                out.startTag(null, "app-ops");
-
-                final int uidStateCount = mUidStates.size();
-                for (int i = 0; i < uidStateCount; i++) {
-                    UidState uidState = mUidStates.valueAt(i);
-                    if (uidState.opModes != null && uidState.opModes.size() > 0) {
+    /**
+     * Encodes the uid modes and the ops whose mode is not the default. Everything else about
+     * an op is kept in the access log.
+     */
+    private byte[] encodeStateLocked() throws IOException {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        XmlSerializer out = XmlUtils.resolveSerializer(baos, WRITE_BINARY_STATE);
+        out.startDocument(null, true);
+        out.startTag(null, "app-ops");
+
+        final int uidStateCount = mUidStates.size();
+        for (int i = 0; i < uidStateCount; i++) {
+            UidState uidState = mUidStates.valueAt(i);
+            if (uidState.opModes != null && uidState.opModes.size() > 0) {
+                out.startTag(null, "uid");
+                out.attribute(null, "n", Integer.toString(uidState.uid));
+                SparseIntArray uidOpModes = uidState.opModes;
+                final int opCount = uidOpModes.size();
+                for (int j = 0; j < opCount; j++) {
+                    final int op = uidOpModes.keyAt(j);
+                    final int mode = uidOpModes.valueAt(j);
+                    out.startTag(null, "op");
+                    out.attribute(null, "n", Integer.toString(op));
+                    out.attribute(null, "m", Integer.toString(mode));
+                    out.endTag(null, "op");
+                }
+                out.endTag(null, "uid");
+            }
+        }
+
+        for (int i = 0; i < uidStateCount; i++) {
+            UidState uidState = mUidStates.valueAt(i);
+            if (uidState.pkgOps == null) {
+                continue;
+            }
+            for (int j = 0; j < uidState.pkgOps.size(); j++) {
+                Ops ops = uidState.pkgOps.valueAt(j);
+                boolean started = false;
+                for (int k = 0; k < ops.size(); k++) {
+                    Op op = ops.valueAt(k);
+                    if (op.mode == AppOpsManager.opToDefaultMode(op.op)) {
+                        continue;
+                    }
+                    if (!started) {
+                        out.startTag(null, "pkg");
+                        out.attribute(null, "n", ops.packageName);
                         out.startTag(null, "uid");
                         out.attribute(null, "n", Integer.toString(uidState.uid));
-                        SparseIntArray uidOpModes = uidState.opModes;
-                        final int opCount = uidOpModes.size();
-                        for (int j = 0; j < opCount; j++) {
-                            final int op = uidOpModes.keyAt(j);
-                            final int mode = uidOpModes.valueAt(j);
-                            out.startTag(null, "op");
-                            out.attribute(null, "n", Integer.toString(op));
-                            out.attribute(null, "m", Integer.toString(mode));
-                            out.endTag(null, "op");
-                        }
-                        out.endTag(null, "uid");
+                        out.attribute(null, "p", Boolean.toString(ops.isPrivileged));
+                        started = true;
                     }
+                    out.startTag(null, "op");
+                    out.attribute(null, "n", Integer.toString(op.op));
+                    out.attribute(null, "m", Integer.toString(op.mode));
+                    out.endTag(null, "op");
+                }
+                if (started) {
+                    out.endTag(null, "uid");
+                    out.endTag(null, "pkg");
                 }
+            }
+        }
 
-                if (allOps != null) {
-                    String lastPkg = null;
-                    for (int i=0; i<allOps.size(); i++) {
-                        AppOpsManager.PackageOps pkg = allOps.get(i);
-                        if (!pkg.getPackageName().equals(lastPkg)) {
-                            if (lastPkg != null) {
-                                out.endTag(null, "pkg");
-                            }
-                            lastPkg = pkg.getPackageName();
-                            out.startTag(null, "pkg");
-                            out.attribute(null, "n", lastPkg);
-                        }
-                        out.startTag(null, "uid");
-                        out.attribute(null, "n", Integer.toString(pkg.getUid()));
-                        synchronized (this) {
-                            Ops ops = getOpsRawLocked(pkg.getUid(), pkg.getPackageName(), false);
-                            // Should always be present as the list of PackageOps is generated
-                            // from Ops.
-                            if (ops != null) {
-                                out.attribute(null, "p", Boolean.toString(ops.isPrivileged));
-                            } else {
-                                out.attribute(null, "p", Boolean.toString(false));
-                            }
-                        }
-                        List<AppOpsManager.OpEntry> ops = pkg.getOps();
-                        for (int j=0; j<ops.size(); j++) {
-                            AppOpsManager.OpEntry op = ops.get(j);
-                            out.startTag(null, "op");
-                            out.attribute(null, "n", Integer.toString(op.getOp()));
-                            if (op.getMode() != AppOpsManager.opToDefaultMode(op.getOp())) {
-                                out.attribute(null, "m", Integer.toString(op.getMode()));
-                            }
-                            long time = op.getTime();
-                            if (time != 0) {
-                                out.attribute(null, "t", Long.toString(time));
-                            }
-                            time = op.getRejectTime();
-                            if (time != 0) {
-                                out.attribute(null, "r", Long.toString(time));
-                            }
-                            int dur = op.getDuration();
-                            if (dur != 0) {
-                                out.attribute(null, "d", Integer.toString(dur));
-                            }
-                            int proxyUid = op.getProxyUid();
-                            if (proxyUid != -1) {
-                                out.attribute(null, "pu", Integer.toString(proxyUid));
-                            }
-                            String proxyPackageName = op.getProxyPackageName();
-                            if (proxyPackageName != null) {
-                                out.attribute(null, "pp", proxyPackageName);
-                            }
-                            out.endTag(null, "op");
-                        }
-                        out.endTag(null, "uid");
-                    }
-                    if (lastPkg != null) {
-                        out.endTag(null, "pkg");
+        out.endTag(null, "app-ops");
+        out.endDocument();
+        return baos.toByteArray();
+    }
+
+    /**
+     * Encodes the access state of {@code ops}, or of every op if it is null.
+     */
+    private byte[] encodeAccessLocked(ArraySet<Op> ops) throws IOException {
+        final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        XmlSerializer out = XmlUtils.resolveSerializer(baos, WRITE_BINARY_STATE);
+        out.startDocument(null, true);
+        out.startTag(null, "access");
+        if (ops != null) {
+            for (int i = 0; i < ops.size(); i++) {
+                final Op op = ops.valueAt(i);
+                final Ops pkgOps = getOpsRawLocked(op.uid, op.packageName, false);
+                // Skip ops that were pruned since they were accessed
+                if (pkgOps != null && pkgOps.get(op.op) == op) {
+                    writeAccess(out, op, pkgOps.isPrivileged);
+                }
+            }
+        } else {
+            for (int i = 0; i < mUidStates.size(); i++) {
+                final ArrayMap<String, Ops> pkgOps = mUidStates.valueAt(i).pkgOps;
+                if (pkgOps == null) {
+                    continue;
+                }
+                for (int j = 0; j < pkgOps.size(); j++) {
+                    final Ops curOps = pkgOps.valueAt(j);
+                    for (int k = 0; k < curOps.size(); k++) {
+                        writeAccess(out, curOps.valueAt(k), curOps.isPrivileged);
                     }
                 }
-
-                out.endTag(null, "app-ops");
-                out.endDocument();
-                mFile.finishWrite(stream);
-            } catch (IOException e) {
-                Slog.w(TAG, "Failed to write state, restoring backup.", e);
-                mFile.failWrite(stream);
             }
         }
+        out.endTag(null, "access");
+        out.endDocument();
+        return baos.toByteArray();
+    }
+
+    private static void writeAccess(XmlSerializer out, Op op, boolean isPrivileged)
+            throws IOException {
+        out.startTag(null, "op");
+        out.attribute(null, "u", Integer.toString(op.uid));
+        out.attribute(null, "pkg", op.packageName);
+        out.attribute(null, "p", Boolean.toString(isPrivileged));
+        out.attribute(null, "n", Integer.toString(op.op));
+        if (op.time != 0) {
+            out.attribute(null, "t", Long.toString(op.time));
+        }
+        if (op.rejectTime != 0) {
+            out.attribute(null, "r", Long.toString(op.rejectTime));
+        }
+        if (op.duration != 0) {
+            out.attribute(null, "d", Integer.toString(op.duration));
+        }
+        if (op.proxyUid != -1) {
+            out.attribute(null, "pu", Integer.toString(op.proxyUid));
+        }
+        if (op.proxyPackageName != null) {
+            out.attribute(null, "pp", op.proxyPackageName);
+        }
+        out.endTag(null, "op");
+    }
+
+    private static void writeAccessRecord(DataOutputStream out, byte[] payload)
+            throws IOException {
+        final CRC32 crc = new CRC32();
+        crc.update(payload);
+        out.writeInt(payload.length);
+        out.write(payload);
+        out.writeLong(crc.getValue());
+    }
+
+    /** Replaces the access log with a single batch holding every op. */
+    private boolean writeAccessLog(byte[] payload) {
+        FileOutputStream stream;
+        try {
+            stream = mAccessFile.startWrite();
+        } catch (IOException e) {
+            Slog.w(TAG, "Failed to write access log: " + e);
+            return false;
+        }
+        try {
+            final DataOutputStream out = new DataOutputStream(stream);
+            out.writeInt(ACCESS_LOG_MAGIC);
+            writeAccessRecord(out, payload);
+            out.flush();
+            mAccessFile.finishWrite(stream);
+            return true;
+        } catch (IOException e) {
+            Slog.w(TAG, "Failed to write access log, restoring backup.", e);
+            mAccessFile.failWrite(stream);
+            return false;
+        }
+    }
+
+    private boolean appendAccessLog(byte[] payload) {
+        FileOutputStream stream = null;
+        try {
+            stream = new FileOutputStream(mAccessFile.getBaseFile(), true);
+            final DataOutputStream out = new DataOutputStream(stream);
+            writeAccessRecord(out, payload);
+            out.flush();
+            FileUtils.sync(stream);
+            return true;
+        } catch (IOException e) {
+            Slog.w(TAG, "Failed to append to access log", e);
+            return false;
+        } finally {
+            IoUtils.closeQuietly(stream);
+        }
     }
 
     static class Shell extends ShellCommand {
@@ -2096,6 +2496,8 @@ public class AppOpsService extends IAppOpsService.Stub {
                     try {
                         synchronized (shell.mInternal) {
                             shell.mInternal.mHandler.removeCallbacks(shell.mInternal.mWriteRunner);
+                            shell.mInternal.mStateDirty = true;
+                            shell.mInternal.mAccessNeedsCompaction = true;
                         }
                         shell.mInternal.writeState();
                         pw.println("Current settings written.");
@@ -2393,6 +2795,7 @@ public class AppOpsService extends IAppOpsService.Stub {
 
             if (restrictionState.setRestriction(code, restricted, exceptionPackages, userHandle)) {
                 notifyChange = true;
+                invalidateCheckCacheLocked();
             }
 
             if (restrictionState.isDefault()) {
@@ -2445,6 +2848,7 @@ public class AppOpsService extends IAppOpsService.Stub {
                 opRestrictions.removeUser(userHandle);
             }
             removeUidsForUserLocked(userHandle);
+            invalidateCheckCacheLocked();
         }
     }
 
@@ -2475,6 +2879,7 @@ public class AppOpsService extends IAppOpsService.Stub {
             final int uid = mUidStates.keyAt(i);
             if (UserHandle.getUserId(uid) == userHandle) {
                 mUidStates.removeAt(i);
+                mAccessNeedsCompaction = true;
             }
         }
     }
@@ -2629,6 +3034,7 @@ public class AppOpsService extends IAppOpsService.Stub {
         public void binderDied() {
             synchronized (AppOpsService.this) {
                 mOpUserRestrictions.remove(token);
+                invalidateCheckCacheLocked();
                 if (perUserRestrictions == null) {
                     return;
                 }
@@ -1612,6 +1612,8 @@ public class ConnectivityService extends IConnectivityManager.Stub
                 } else {
                     BroadcastOptions opts = BroadcastOptions.makeBasic();
                     opts.setMaxManifestReceiverApiLevel(Build.VERSION_CODES.M);
+                    // Receivers only care about the latest state of each network type.
+                    opts.setCoalescingKey(Integer.toString(ni.getType()));
                     options = opts.toBundle();
                 }
                 final IBatteryStats bs = BatteryStatsService.getService();
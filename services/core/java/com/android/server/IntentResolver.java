@@ -19,8 +19,10 @@ package com.android.server;
 import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
@@ -30,6 +32,7 @@ import android.util.FastImmutableArraySet;
 import android.util.ArrayMap;
 import android.util.ArraySet;
 import android.util.Log;
+import android.util.LruCache;
 import android.util.MutableInt;
 import android.util.PrintWriterPrinter;
 import android.util.Slog;
@@ -38,6 +41,7 @@ import android.util.Printer;
 
 import android.content.Intent;
 import android.content.IntentFilter;
+import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.FastPrintWriter;
 
 /**
@@ -49,6 +53,9 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
     final private static boolean localLOGV = DEBUG || false;
     final private static boolean localVerificationLOGV = DEBUG || false;
 
+    /** Maximum number of distinct intent shapes whose candidate cuts are cached. */
+    final private static int CANDIDATE_CACHE_SIZE = 128;
+
     public void addFilter(F f) {
         if (localLOGV) {
             Slog.v(TAG, "Adding filter: " + f);
@@ -57,6 +64,7 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         }
 
         mFilters.add(f);
+        register_filter_id(f);
         int numS = register_intent_filter(f, f.schemesIterator(),
                 mSchemeToFilter, "      Scheme: ");
         int numT = register_mime_types(f, "      Type: ");
@@ -211,6 +219,7 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
             unregister_intent_filter(f, f.actionsIterator(),
                     mTypedActionToFilter, "      TypedAction: ");
         }
+        unregister_filter_id(f);
     }
 
     boolean dumpMap(PrintWriter out, String titlePrefix, String title,
@@ -442,6 +451,26 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         }
 
         FastImmutableArraySet<String> categories = getFastIntentCategories(intent);
+        if (mUseIndex && !debug) {
+            // Drop every candidate that cannot match the action or categories before
+            // running the full IntentFilter.match() on it.
+            final String cacheKey = getCandidateCacheKey(intent, resolvedType, scheme);
+            F[][] cuts = mCandidateCache.get(cacheKey);
+            if (cuts == null) {
+                final BitSet required = getRequiredFilterIds(intent.getAction(),
+                        intent.getCategories());
+                cuts = newCutArray(4);
+                cuts[0] = narrowCut(firstTypeCut, required);
+                cuts[1] = narrowCut(secondTypeCut, required);
+                cuts[2] = narrowCut(thirdTypeCut, required);
+                cuts[3] = narrowCut(schemeCut, required);
+                mCandidateCache.put(cacheKey, cuts);
+            }
+            firstTypeCut = cuts[0];
+            secondTypeCut = cuts[1];
+            thirdTypeCut = cuts[2];
+            schemeCut = cuts[3];
+        }
         if (firstTypeCut != null) {
             buildResolveList(intent, categories, debug, defaultOnly, resolvedType,
                     scheme, firstTypeCut, finalList, userId);
@@ -685,6 +714,132 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
         }
     }
 
+    private final void register_filter_id(F filter) {
+        mCandidateCache.evictAll();
+        if (mFilterIds.containsKey(filter)) {
+            return;
+        }
+        final int id = mUsedFilterIds.nextClearBit(0);
+        mUsedFilterIds.set(id);
+        mFilterIds.put(filter, id);
+        index_filter_id(filter.actionsIterator(), mActionToFilterIds, id, true);
+        index_filter_id(filter.categoriesIterator(), mCategoryToFilterIds, id, true);
+    }
+
+    private final void unregister_filter_id(F filter) {
+        final Integer id = mFilterIds.remove(filter);
+        if (id != null) {
+            index_filter_id(filter.actionsIterator(), mActionToFilterIds, id, false);
+            index_filter_id(filter.categoriesIterator(), mCategoryToFilterIds, id, false);
+            mUsedFilterIds.clear(id);
+        }
+        mCandidateCache.evictAll();
+    }
+
+    private static void index_filter_id(Iterator<String> i, ArrayMap<String, BitSet> dest,
+            int id, boolean add) {
+        if (i == null) {
+            return;
+        }
+        while (i.hasNext()) {
+            final String name = i.next();
+            BitSet ids = dest.get(name);
+            if (add) {
+                if (ids == null) {
+                    ids = new BitSet();
+                    dest.put(name, ids);
+                }
+                ids.set(id);
+            } else if (ids != null) {
+                ids.clear(id);
+                if (ids.isEmpty()) {
+                    dest.remove(name);
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns the ids of all filters that declare the given action and every one of the
+     * given categories, or null if any filter may match.
+     */
+    private BitSet getRequiredFilterIds(String action, Set<String> categories) {
+        BitSet required = null;
+        if (action != null) {
+            final BitSet ids = mActionToFilterIds.get(action);
+            required = ids != null ? (BitSet) ids.clone() : new BitSet();
+        }
+        if (categories != null) {
+            for (String category : categories) {
+                final BitSet ids = mCategoryToFilterIds.get(category);
+                if (ids == null) {
+                    return new BitSet();
+                }
+                if (required == null) {
+                    required = (BitSet) ids.clone();
+                } else {
+                    required.and(ids);
+                }
+            }
+        }
+        return required;
+    }
+
+    /**
+     * Returns the filters of {@code cut} whose id is in {@code required}, keeping their
+     * order, or null if none are left.
+     */
+    private F[] narrowCut(F[] cut, BitSet required) {
+        if (cut == null || required == null) {
+            return cut;
+        }
+        final int N = cut.length;
+        F[] narrowed = null;
+        int count = 0;
+        F filter;
+        for (int i = 0; i < N && (filter = cut[i]) != null; i++) {
+            final Integer id = mFilterIds.get(filter);
+            if (id != null && required.get(id)) {
+                if (narrowed == null) {
+                    narrowed = newArray(N - i);
+                }
+                narrowed[count++] = filter;
+            }
+        }
+        return narrowed;
+    }
+
+    @SuppressWarnings("unchecked")
+    private F[][] newCutArray(int size) {
+        return (F[][]) new IntentFilter[size][];
+    }
+
+    private static String getCandidateCacheKey(Intent intent, String resolvedType,
+            String scheme) {
+        final StringBuilder key = new StringBuilder(64);
+        key.append(intent.getAction()).append('|').append(resolvedType)
+                .append('|').append(scheme);
+        final Set<String> categories = intent.getCategories();
+        if (categories != null) {
+            final String[] sorted = categories.toArray(new String[categories.size()]);
+            Arrays.sort(sorted);
+            for (String category : sorted) {
+                key.append('|').append(category);
+            }
+        }
+        return key.toString();
+    }
+
+    /**
+     * Enables or disables narrowing candidates through the action and category indexes,
+     * so both resolution paths can be compared.
+     */
+    @VisibleForTesting
+    void setUseIndex(boolean useIndex) {
+        mUseIndex = useIndex;
+        mCandidateCache.evictAll();
+    }
+
     private static FastImmutableArraySet<String> getFastIntentCategories(Intent intent) {
         final Set<String> categories = intent.getCategories();
         if (categories == null) {
@@ -848,4 +1003,33 @@ public abstract class IntentResolver<F extends IntentFilter, R extends Object> {
      * All of the actions that have been registered and specified a MIME type.
      */
     private final ArrayMap<String, F[]> mTypedActionToFilter = new ArrayMap<String, F[]>();
+
+    /**
+     * Dense id of every registered filter, used as its bit in the indexes below.  Ids of
+     * removed filters are reused.
+     */
+    private final HashMap<F, Integer> mFilterIds = new HashMap<F, Integer>();
+    private final BitSet mUsedFilterIds = new BitSet();
+
+    /**
+     * Ids of the filters declaring each action, regardless of their data.  An intent
+     * with an action can only match filters in its action's set.
+     */
+    private final ArrayMap<String, BitSet> mActionToFilterIds = new ArrayMap<String, BitSet>();
+
+    /**
+     * Ids of the filters declaring each category.  An intent can only match filters in
+     * the intersection of the sets of all its categories.
+     */
+    private final ArrayMap<String, BitSet> mCategoryToFilterIds =
+            new ArrayMap<String, BitSet>();
+
+    /**
+     * Narrowed type and scheme cuts by action, type, scheme and categories of the
+     * intent.  Cleared whenever a filter is added or removed.
+     */
+    private final LruCache<String, F[][]> mCandidateCache =
+            new LruCache<String, F[][]>(CANDIDATE_CACHE_SIZE);
+
+    private boolean mUseIndex = true;
 }
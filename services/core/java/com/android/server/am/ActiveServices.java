@@ -1566,11 +1566,13 @@ public final class ActiveServices {
                                 r.binding.service.app.hasClientActivities
                                 || r.binding.service.app.treatLikeActivity, null);
                     }
-                    mAm.updateOomAdjLocked(r.binding.service.app, false);
+                    mAm.enqueueOomAdjTargetLocked(r.binding.service.app);
                 }
             }
 
-            mAm.updateOomAdjLocked();
+            // Only the unbound services' processes, and whatever they use in turn, can
+            // have become less important.
+            mAm.updateOomAdjPendingTargetsLocked();
 
         } finally {
             Binder.restoreCallingIdentity(origId);
@@ -1374,6 +1374,45 @@ public class ActivityManagerService extends IActivityManager.Stub
      */
     int mAdjSeq = 0;
 
+    /**
+     * Number of processes whose oom_adj was actually computed during the current pass.
+     */
+    int mOomAdjVisitCount = 0;
+
+    /**
+     * Duration and size of full and incremental oom_adj passes.
+     */
+    final OomAdjStats mOomAdjStats = new OomAdjStats();
+
+    /**
+     * Processes whose bindings or activity state changed since the last oom_adj pass.
+     * They are recomputed together with everything reachable from them through service
+     * and provider connections by {@link #updateOomAdjPendingTargetsLocked()}, or
+     * implicitly by the next full pass.
+     */
+    final ArraySet<ProcessRecord> mPendingOomAdjTargets = new ArraySet<>();
+
+    /**
+     * Scratch list of the processes recomputed by an incremental oom_adj pass.
+     */
+    private final ArrayList<ProcessRecord> mTmpOomAdjTargets = new ArrayList<>();
+
+    /**
+     * Scratch set of the uids whose processes were recomputed by an incremental pass.
+     */
+    private final ArraySet<UidRecord> mTmpOomAdjUids = new ArraySet<>();
+
+    /**
+     * Last time (in uptime) a full oom_adj pass over the whole LRU list was done.
+     */
+    long mLastFullOomAdjTime = 0;
+
+    /**
+     * Incremental oom_adj passes fall back to a full pass if the last one is older than
+     * this, to reconcile anything the incremental passes did not see.
+     */
+    static final long FULL_OOM_ADJ_RECONCILE_INTERVAL = 60 * 1000;
+
     /**
      * Current sequence id for process LRU updating.
      */
@@ -10040,6 +10079,19 @@ public class ActivityManagerService extends IActivityManager.Stub
                     maxNum--;
                 }
             }
+
+            if (checkCallingPermission(READ_FRAME_BUFFER) == PackageManager.PERMISSION_GRANTED) {
+                // Recents loads the task list right before it opens, and then asks for the
+                // snapshots of these tasks. Get them off the disk while it's still busy.
+                final int size = res.size();
+                final int[] taskIds = new int[size];
+                final int[] userIds = new int[size];
+                for (int i = 0; i < size; i++) {
+                    taskIds[i] = res.get(i).persistentId;
+                    userIds[i] = res.get(i).userId;
+                }
+                mWindowManager.prefetchTaskSnapshots(taskIds, userIds);
+            }
             return new ParceledListSlice<>(res);
         }
     }
@@ -16031,6 +16083,7 @@ public class ActivityManagerService extends IActivityManager.Stub
                 pw.println("  mGoingToSleep=" + mStackSupervisor.mGoingToSleep);
                 pw.println("  mLaunchingActivity=" + mStackSupervisor.mLaunchingActivity);
                 pw.println("  mAdjSeq=" + mAdjSeq + " mLruSeq=" + mLruSeq);
+                mOomAdjStats.dump(pw, "  ");
                 pw.println("  mNumNonCachedProcs=" + mNumNonCachedProcs
                         + " (" + mLruProcesses.size() + " total)"
                         + " mNumCachedHiddenProcs=" + mNumCachedHiddenProcs
@@ -19586,7 +19639,8 @@ public class ActivityManagerService extends IActivityManager.Stub
         }
 
         final boolean replacePending =
-                (intent.getFlags()&Intent.FLAG_RECEIVER_REPLACE_PENDING) != 0;
+                (intent.getFlags()&Intent.FLAG_RECEIVER_REPLACE_PENDING) != 0
+                || (brOptions != null && brOptions.getCoalescingKey() != null);
 
         if (DEBUG_BROADCAST) Slog.v(TAG_BROADCAST, "Enqueueing broadcast: " + intent.getAction()
                 + " replacePending=" + replacePending);
@@ -20842,6 +20896,8 @@ public class ActivityManagerService extends IActivityManager.Stub
             return app.curRawAdj;
         }
 
+        mOomAdjVisitCount++;
+
         if (app.thread == null) {
             app.adjSeq = mAdjSeq;
             app.curSchedGroup = ProcessList.SCHED_GROUP_BACKGROUND;
@@ -22495,7 +22551,8 @@ public class ActivityManagerService extends IActivityManager.Stub
     }
 
     /**
-     * Update OomAdj for a specific process.
+     * Update OomAdj for a specific process, and for every process that depends on it
+     * through service bindings or provider connections.
      * @param app The process to update
      * @param oomAdjAll If it's ok to call updateOomAdjLocked() for all running apps
      *                  if necessary, or skip.
@@ -22504,9 +22561,13 @@ public class ActivityManagerService extends IActivityManager.Stub
     final boolean updateOomAdjLocked(ProcessRecord app, boolean oomAdjAll) {
         final ActivityRecord TOP_ACT = resumedAppLocked();
         final ProcessRecord TOP_APP = TOP_ACT != null ? TOP_ACT.app : null;
+        final long now = SystemClock.uptimeMillis();
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
         final boolean wasCached = app.cached;
 
         mAdjSeq++;
+        mOomAdjVisitCount = 0;
+        mPendingOomAdjTargets.remove(app);
 
         // This is the desired cached adjusment we want to tell it to use.
         // If our app is currently cached, we know it, and that is it.  Otherwise,
@@ -22514,22 +22575,177 @@ public class ActivityManagerService extends IActivityManager.Stub
         // need to do a complete oom adj.
         final int cachedAdj = app.curRawAdj >= ProcessList.CACHED_APP_MIN_ADJ
                 ? app.curRawAdj : ProcessList.UNKNOWN_ADJ;
-        boolean success = updateOomAdjLocked(app, cachedAdj, TOP_APP, false,
-                SystemClock.uptimeMillis());
-        if (oomAdjAll
-                && (wasCached != app.cached || app.curRawAdj == ProcessList.UNKNOWN_ADJ)) {
-            // Changed to/from cached state, so apps after it in the LRU
-            // list may also be changed.
+        boolean success = updateOomAdjLocked(app, cachedAdj, TOP_APP, false, now);
+        // Changed to/from cached state, so apps after it in the LRU
+        // list may also be changed.
+        boolean needFullUpdate = wasCached != app.cached
+                || app.curRawAdj == ProcessList.UNKNOWN_ADJ;
+
+        if (!needFullUpdate) {
+            mTmpOomAdjTargets.add(app);
+            needFullUpdate = updateOomAdjTargetsLocked(TOP_APP, now);
+        }
+        if (oomAdjAll && (needFullUpdate
+                || now - mLastFullOomAdjTime >= FULL_OOM_ADJ_RECONCILE_INTERVAL)) {
             updateOomAdjLocked();
+        } else {
+            mOomAdjStats.notePass(false, mOomAdjVisitCount,
+                    SystemClock.elapsedRealtimeNanos() - startNanos);
         }
         return success;
     }
 
+    /**
+     * Marks a process whose bindings or activity state changed, so that the next
+     * {@link #updateOomAdjPendingTargetsLocked()} recomputes it and its dependents.
+     */
+    final void enqueueOomAdjTargetLocked(ProcessRecord app) {
+        if (app != null) {
+            mPendingOomAdjTargets.add(app);
+        }
+    }
+
+    /**
+     * Recomputes the oom_adj of every process marked by {@link #enqueueOomAdjTargetLocked}
+     * and of everything reachable from them, falling back to a full pass if any of them
+     * moves to or from the cached state or the last full pass is too old.
+     */
+    final void updateOomAdjPendingTargetsLocked() {
+        if (mPendingOomAdjTargets.isEmpty()) {
+            return;
+        }
+        final long now = SystemClock.uptimeMillis();
+        if (now - mLastFullOomAdjTime >= FULL_OOM_ADJ_RECONCILE_INTERVAL) {
+            updateOomAdjLocked();
+            return;
+        }
+
+        final ActivityRecord TOP_ACT = resumedAppLocked();
+        final ProcessRecord TOP_APP = TOP_ACT != null ? TOP_ACT.app : null;
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
+
+        mAdjSeq++;
+        mOomAdjVisitCount = 0;
+        if (updateOomAdjTargetsLocked(TOP_APP, now)) {
+            updateOomAdjLocked();
+        } else {
+            mOomAdjStats.notePass(false, mOomAdjVisitCount,
+                    SystemClock.elapsedRealtimeNanos() - startNanos);
+        }
+    }
+
+    /**
+     * Recomputes, within the current {@link #mAdjSeq}, the processes in
+     * {@link #mTmpOomAdjTargets} and {@link #mPendingOomAdjTargets} together with every
+     * process they are a client of, directly or transitively.
+     *
+     * @return whether a full pass is needed because one of them moved to or from the
+     * cached state, or because the dependency graph covers most of the LRU list anyway.
+     */
+    private boolean updateOomAdjTargetsLocked(ProcessRecord TOP_APP, long now) {
+        final ArrayList<ProcessRecord> targets = mTmpOomAdjTargets;
+        targets.addAll(mPendingOomAdjTargets);
+        mPendingOomAdjTargets.clear();
+
+        // Breadth first walk from clients to the processes hosting what they use; the
+        // importance of the latter is derived from the former.
+        for (int i = 0; i < targets.size(); i++) {
+            final ProcessRecord app = targets.get(i);
+            for (int j = app.connections.size() - 1; j >= 0; j--) {
+                final ProcessRecord service = app.connections.valueAt(j).binding.service.app;
+                if (service != null && service != app && !targets.contains(service)) {
+                    targets.add(service);
+                }
+            }
+            for (int j = app.conProviders.size() - 1; j >= 0; j--) {
+                final ProcessRecord provider = app.conProviders.get(j).provider.proc;
+                if (provider != null && provider != app && !targets.contains(provider)) {
+                    targets.add(provider);
+                }
+            }
+            if (targets.size() > mLruProcesses.size() / 2) {
+                targets.clear();
+                return true;
+            }
+        }
+
+        // Computing one target also computes the targets it is a client of, so remember
+        // which were cached before any of them is touched.
+        final int N = targets.size();
+        final boolean[] wasCached = new boolean[N];
+        for (int i = 0; i < N; i++) {
+            wasCached[i] = targets.get(i).cached;
+        }
+
+        final long nowElapsed = SystemClock.elapsedRealtime();
+        boolean needFullUpdate = false;
+        for (int i = 0; i < N && !needFullUpdate; i++) {
+            final ProcessRecord app = targets.get(i);
+            if (app.killedByAm || app.thread == null) {
+                continue;
+            }
+            if (app.adjSeq != mAdjSeq) {
+                final int cachedAdj = app.curRawAdj >= ProcessList.CACHED_APP_MIN_ADJ
+                        ? app.curRawAdj : ProcessList.UNKNOWN_ADJ;
+                computeOomAdjLocked(app, cachedAdj, TOP_APP, false, now);
+            }
+            // Apply even if it was computed while walking up from an earlier target.
+            applyOomAdjLocked(app, false, now, nowElapsed);
+            needFullUpdate = wasCached[i] != app.cached
+                    || app.curRawAdj == ProcessList.UNKNOWN_ADJ;
+        }
+        if (!needFullUpdate) {
+            updateUidsOfOomAdjTargetsLocked(targets, nowElapsed);
+        }
+        targets.clear();
+        return needFullUpdate;
+    }
+
+    /**
+     * Recomputes the state of the uids of the given processes from all of their live
+     * processes, as the full pass does, and reports what changed.
+     */
+    private void updateUidsOfOomAdjTargetsLocked(ArrayList<ProcessRecord> targets,
+            long nowElapsed) {
+        final ArraySet<UidRecord> uids = mTmpOomAdjUids;
+        for (int i = targets.size() - 1; i >= 0; i--) {
+            final UidRecord uidRec = targets.get(i).uidRecord;
+            if (uidRec != null) {
+                uids.add(uidRec);
+            }
+        }
+        if (uids.isEmpty()) {
+            return;
+        }
+        for (int i = uids.size() - 1; i >= 0; i--) {
+            uids.valueAt(i).reset();
+        }
+        for (int i = mLruProcesses.size() - 1; i >= 0; i--) {
+            final ProcessRecord app = mLruProcesses.get(i);
+            final UidRecord uidRec = app.uidRecord;
+            if (app.killedByAm || app.thread == null || uidRec == null
+                    || !uids.contains(uidRec)) {
+                continue;
+            }
+            uidRec.ephemeral = app.info.isInstantApp();
+            if (uidRec.curProcState > app.curProcState) {
+                uidRec.curProcState = app.curProcState;
+            }
+            if (app.foregroundServices) {
+                uidRec.foregroundServices = true;
+            }
+        }
+        incrementProcStateSeqAndNotifyAppsLocked();
+        dispatchUidChangesLocked(uids, nowElapsed);
+        uids.clear();
+    }
+
     final void updateOomAdjLocked() {
         final ActivityRecord TOP_ACT = resumedAppLocked();
         final ProcessRecord TOP_APP = TOP_ACT != null ? TOP_ACT.app : null;
         final long now = SystemClock.uptimeMillis();
         final long nowElapsed = SystemClock.elapsedRealtime();
+        final long startNanos = SystemClock.elapsedRealtimeNanos();
         final long oldTime = now - ProcessList.MAX_EMPTY_TIME;
         final int N = mLruProcesses.size();
 
@@ -22550,6 +22766,10 @@ public class ActivityManagerService extends IActivityManager.Stub
         mStackSupervisor.rankTaskLayersIfNeeded();
 
         mAdjSeq++;
+        mOomAdjVisitCount = 0;
+        mLastFullOomAdjTime = now;
+        // A full pass covers everything that was waiting for an incremental one.
+        mPendingOomAdjTargets.clear();
         mNewNumServiceProcs = 0;
         mNewNumAServiceProcs = 0;
 
@@ -22899,82 +23119,7 @@ public class ActivityManagerService extends IActivityManager.Stub
             requestPssAllProcsLocked(now, false, mProcessStats.isMemFactorLowered());
         }
 
-        ArrayList<UidRecord> becameIdle = null;
-
-        // Update from any uid changes.
-        if (mLocalPowerManager != null) {
-            mLocalPowerManager.startUidChanges();
-        }
-        for (int i=mActiveUids.size()-1; i>=0; i--) {
-            final UidRecord uidRec = mActiveUids.valueAt(i);
-            int uidChange = UidRecord.CHANGE_PROCSTATE;
-            if (uidRec.curProcState != ActivityManager.PROCESS_STATE_NONEXISTENT
-                    && (uidRec.setProcState != uidRec.curProcState
-                           || uidRec.setWhitelist != uidRec.curWhitelist)) {
-                if (DEBUG_UID_OBSERVERS) Slog.i(TAG_UID_OBSERVERS,
-                        "Changes in " + uidRec + ": proc state from " + uidRec.setProcState
-                        + " to " + uidRec.curProcState + ", whitelist from " + uidRec.setWhitelist
-                        + " to " + uidRec.curWhitelist);
-                if (ActivityManager.isProcStateBackground(uidRec.curProcState)
-                        && !uidRec.curWhitelist) {
-                    // UID is now in the background (and not on the temp whitelist).  Was it
-                    // previously in the foreground (or on the temp whitelist)?
-                    if (!ActivityManager.isProcStateBackground(uidRec.setProcState)
-                            || uidRec.setWhitelist) {
-                        uidRec.lastBackgroundTime = nowElapsed;
-                        if (!mHandler.hasMessages(IDLE_UIDS_MSG)) {
-                            // Note: the background settle time is in elapsed realtime, while
-                            // the handler time base is uptime.  All this means is that we may
-                            // stop background uids later than we had intended, but that only
-                            // happens because the device was sleeping so we are okay anyway.
-                            mHandler.sendEmptyMessageDelayed(IDLE_UIDS_MSG,
-                                    mConstants.BACKGROUND_SETTLE_TIME);
-                        }
-                    }
-                    if (uidRec.idle && !uidRec.setIdle) {
-                        uidChange = UidRecord.CHANGE_IDLE;
-                        if (becameIdle == null) {
-                            becameIdle = new ArrayList<>();
-                        }
-                        becameIdle.add(uidRec);
-                    }
-                } else {
-                    if (uidRec.idle) {
-                        uidChange = UidRecord.CHANGE_ACTIVE;
-                        EventLogTags.writeAmUidActive(uidRec.uid);
-                        uidRec.idle = false;
-                    }
-                    uidRec.lastBackgroundTime = 0;
-                }
-                final boolean wasCached = uidRec.setProcState
-                        > ActivityManager.PROCESS_STATE_RECEIVER;
-                final boolean isCached = uidRec.curProcState
-                        > ActivityManager.PROCESS_STATE_RECEIVER;
-                if (wasCached != isCached ||
-                        uidRec.setProcState == ActivityManager.PROCESS_STATE_NONEXISTENT) {
-                    uidChange |= isCached ? UidRecord.CHANGE_CACHED : UidRecord.CHANGE_UNCACHED;
-                }
-                uidRec.setProcState = uidRec.curProcState;
-                uidRec.setWhitelist = uidRec.curWhitelist;
-                uidRec.setIdle = uidRec.idle;
-                enqueueUidChangeLocked(uidRec, -1, uidChange);
-                noteUidProcessState(uidRec.uid, uidRec.curProcState);
-                if (uidRec.foregroundServices) {
-                    mServices.foregroundServiceProcStateChangedLocked(uidRec);
-                }
-            }
-        }
-        if (mLocalPowerManager != null) {
-            mLocalPowerManager.finishUidChanges();
-        }
-
-        if (becameIdle != null) {
-            // If we have any new uids that became idle this time, we need to make sure
-            // they aren't left with running services.
-            for (int i = becameIdle.size() - 1; i >= 0; i--) {
-                mServices.stopInBackgroundLocked(becameIdle.get(i).uid);
-            }
-        }
+        dispatchUidChangesLocked(null, nowElapsed);
 
         if (mProcessStats.shouldWriteNowLocked(now)) {
             mHandler.post(new Runnable() {
@@ -22986,6 +23131,9 @@ public class ActivityManagerService extends IActivityManager.Stub
             });
         }
 
+        mOomAdjStats.notePass(true, mOomAdjVisitCount,
+                SystemClock.elapsedRealtimeNanos() - startNanos);
+
         if (DEBUG_OOM_ADJ) {
             final long duration = SystemClock.uptimeMillis() - now;
             if (false) {
@@ -23095,6 +23243,89 @@ public class ActivityManagerService extends IActivityManager.Stub
         }
     }
 
+    /**
+     * Reports the state changes of the given uids, or of all active uids if null, since
+     * they were last reported, and stops the services of those that became idle.
+     */
+    private void dispatchUidChangesLocked(ArraySet<UidRecord> uids, long nowElapsed) {
+        ArrayList<UidRecord> becameIdle = null;
+
+        if (mLocalPowerManager != null) {
+            mLocalPowerManager.startUidChanges();
+        }
+        for (int i = (uids != null ? uids.size() : mActiveUids.size()) - 1; i >= 0; i--) {
+            final UidRecord uidRec = uids != null ? uids.valueAt(i) : mActiveUids.valueAt(i);
+            int uidChange = UidRecord.CHANGE_PROCSTATE;
+            if (uidRec.curProcState != ActivityManager.PROCESS_STATE_NONEXISTENT
+                    && (uidRec.setProcState != uidRec.curProcState
+                           || uidRec.setWhitelist != uidRec.curWhitelist)) {
+                if (DEBUG_UID_OBSERVERS) Slog.i(TAG_UID_OBSERVERS,
+                        "Changes in " + uidRec + ": proc state from " + uidRec.setProcState
+                        + " to " + uidRec.curProcState + ", whitelist from " + uidRec.setWhitelist
+                        + " to " + uidRec.curWhitelist);
+                if (ActivityManager.isProcStateBackground(uidRec.curProcState)
+                        && !uidRec.curWhitelist) {
+                    // UID is now in the background (and not on the temp whitelist).  Was it
+                    // previously in the foreground (or on the temp whitelist)?
+                    if (!ActivityManager.isProcStateBackground(uidRec.setProcState)
+                            || uidRec.setWhitelist) {
+                        uidRec.lastBackgroundTime = nowElapsed;
+                        if (!mHandler.hasMessages(IDLE_UIDS_MSG)) {
+                            // Note: the background settle time is in elapsed realtime, while
+                            // the handler time base is uptime.  All this means is that we may
+                            // stop background uids later than we had intended, but that only
+                            // happens because the device was sleeping so we are okay anyway.
+                            mHandler.sendEmptyMessageDelayed(IDLE_UIDS_MSG,
+                                    mConstants.BACKGROUND_SETTLE_TIME);
+                        }
+                    }
+                    if (uidRec.idle && !uidRec.setIdle) {
+                        uidChange = UidRecord.CHANGE_IDLE;
+                        if (becameIdle == null) {
+                            becameIdle = new ArrayList<>();
+                        }
+                        becameIdle.add(uidRec);
+                    }
+                } else {
+                    if (uidRec.idle) {
+                        uidChange = UidRecord.CHANGE_ACTIVE;
+                        EventLogTags.writeAmUidActive(uidRec.uid);
+                        uidRec.idle = false;
+                    }
+                    uidRec.lastBackgroundTime = 0;
+                }
+                final boolean wasCached = uidRec.setProcState
+                        > ActivityManager.PROCESS_STATE_RECEIVER;
+                final boolean isCached = uidRec.curProcState
+                        > ActivityManager.PROCESS_STATE_RECEIVER;
+                if (wasCached != isCached ||
+                        uidRec.setProcState == ActivityManager.PROCESS_STATE_NONEXISTENT) {
+                    uidChange |= isCached ? UidRecord.CHANGE_CACHED : UidRecord.CHANGE_UNCACHED;
+                }
+                uidRec.setProcState = uidRec.curProcState;
+                uidRec.setWhitelist = uidRec.curWhitelist;
+                uidRec.setIdle = uidRec.idle;
+                enqueueUidChangeLocked(uidRec, -1, uidChange);
+                noteUidProcessState(uidRec.uid, uidRec.curProcState);
+                if (uidRec.foregroundServices) {
+                    mServices.foregroundServiceProcStateChangedLocked(uidRec);
+                }
+            }
+        }
+        if (mLocalPowerManager != null) {
+            mLocalPowerManager.finishUidChanges();
+        }
+
+        if (becameIdle != null) {
+            // If we have any new uids that became idle this time, we need to make sure
+            // they aren't left with running services.
+            for (int i = becameIdle.size() - 1; i >= 0; i--) {
+                mServices.stopInBackgroundLocked(becameIdle.get(i).uid);
+            }
+        }
+    }
+
+
     /**
      * Checks if any uid is coming from background to foreground or vice versa and if so, increments
      * the {@link UidRecord#curProcStateSeq} corresponding to that uid using global seq counter
@@ -24,6 +24,7 @@ import java.io.PrintWriter;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Date;
+import java.util.List;
 import java.util.Set;
 
 import android.app.ActivityManager;
@@ -48,6 +49,7 @@ import android.os.Process;
 import android.os.RemoteException;
 import android.os.SystemClock;
 import android.os.UserHandle;
+import android.util.ArrayMap;
 import android.util.EventLog;
 import android.util.Slog;
 import android.util.TimeUtils;
@@ -128,6 +130,26 @@ public final class BroadcastQueue {
     final long[] mSummaryHistoryDispatchTime = new  long[MAX_BROADCAST_SUMMARY_HISTORY];
     final long[] mSummaryHistoryFinishTime = new  long[MAX_BROADCAST_SUMMARY_HISTORY];
 
+    /**
+     * Registered receivers of the parallel broadcast currently being dispatched, grouped
+     * by hosting process, so each process gets all of its receivers in a single one-way
+     * transaction.  Only used while inside processNextBroadcast().
+     */
+    final ArrayMap<ProcessRecord, ArrayList<IBinder>> mPendingReceiverBatches = new ArrayMap<>();
+
+    /**
+     * Number of one-way transactions used to deliver parallel broadcasts, and number of
+     * registered receivers they carried, for dumpsys.
+     */
+    long mParallelDeliveryTransactions;
+    long mParallelDeliveryReceivers;
+
+    /**
+     * Number of queued broadcasts that were replaced by a newer one before being
+     * dispatched, by action, for dumpsys.
+     */
+    final ArrayMap<String, Integer> mCoalescedBroadcasts = new ArrayMap<>();
+
     /**
      * Set when we current have a BROADCAST_INTENT_MSG in flight.
      */
@@ -255,20 +277,40 @@ public final class BroadcastQueue {
     private BroadcastRecord replaceBroadcastLocked(ArrayList<BroadcastRecord> queue,
             BroadcastRecord r, String typeForLogging) {
         final Intent intent = r.intent;
+        final String coalescingKey = r.getCoalescingKey();
         for (int i = queue.size() - 1; i > 0; i--) {
             final BroadcastRecord old = queue.get(i);
-            if (old.userId == r.userId && intent.filterEquals(old.intent)) {
+            if (old.userId != r.userId) {
+                continue;
+            }
+            final boolean matches;
+            if (coalescingKey != null) {
+                // The extras may differ, but nothing that decides who receives the broadcast
+                matches = old.callingUid == r.callingUid
+                        && coalescingKey.equals(old.getCoalescingKey())
+                        && intent.filterEquals(old.intent)
+                        && r.hasSameReceivers(old);
+            } else {
+                matches = intent.filterEquals(old.intent);
+            }
+            if (matches) {
                 if (DEBUG_BROADCAST) {
                     Slog.v(TAG_BROADCAST, "***** DROPPING "
                             + typeForLogging + " [" + mQueueName + "]: " + intent);
                 }
                 queue.set(i, r);
+                noteCoalescedLocked(intent.getAction());
                 return old;
             }
         }
         return null;
     }
 
+    private void noteCoalescedLocked(String action) {
+        final Integer count = mCoalescedBroadcasts.get(action);
+        mCoalescedBroadcasts.put(action, count != null ? count + 1 : 1);
+    }
+
     private final void processCurBroadcastLocked(BroadcastRecord r,
             ProcessRecord app) throws RemoteException {
         if (DEBUG_BROADCAST)  Slog.v(TAG_BROADCAST,
@@ -514,6 +556,51 @@ public final class BroadcastQueue {
         }
     }
 
+    /**
+     * Sends a non-ordered broadcast to every receiver collected in
+     * {@link #mPendingReceiverBatches}, using one one-way transaction per process.
+     */
+    private void deliverPendingReceiverBatchesLocked(BroadcastRecord r) {
+        final int N = mPendingReceiverBatches.size();
+        for (int i = 0; i < N; i++) {
+            final ProcessRecord app = mPendingReceiverBatches.keyAt(i);
+            final ArrayList<IBinder> receivers = mPendingReceiverBatches.valueAt(i);
+            mParallelDeliveryTransactions++;
+            mParallelDeliveryReceivers += receivers.size();
+            try {
+                if (receivers.size() == 1) {
+                    performReceiveLocked(app, IIntentReceiver.Stub.asInterface(receivers.get(0)),
+                            new Intent(r.intent), r.resultCode, r.resultData, r.resultExtras,
+                            false, r.initialSticky, r.userId);
+                } else {
+                    performReceiveBatchLocked(app, receivers, new Intent(r.intent),
+                            r.resultCode, r.resultData, r.resultExtras, r.initialSticky,
+                            r.userId);
+                }
+            } catch (RemoteException e) {
+                Slog.w(TAG, "Failure sending broadcast " + r.intent, e);
+            }
+        }
+        mPendingReceiverBatches.clear();
+    }
+
+    void performReceiveBatchLocked(ProcessRecord app, List<IBinder> receivers,
+            Intent intent, int resultCode, String data, Bundle extras,
+            boolean sticky, int sendingUser) throws RemoteException {
+        try {
+            app.thread.scheduleRegisteredReceivers(receivers, intent, resultCode, data,
+                    extras, sticky, sendingUser, app.repProcState);
+        } catch (RemoteException ex) {
+            // Failed to call into the process. It's either dying or wedged. Kill it gently.
+            synchronized (mService) {
+                Slog.w(TAG, "Can't deliver broadcast to " + app.processName
+                        + " (pid " + app.pid + "). Crashing it.");
+                app.scheduleCrash("can't deliver broadcast");
+            }
+            throw ex;
+        }
+    }
+
     private void deliverToRegisteredReceiverLocked(BroadcastRecord r,
             BroadcastFilter filter, boolean ordered, int index) {
         boolean skip = false;
@@ -699,7 +786,22 @@ public final class BroadcastQueue {
                 if (ordered) {
                     skipReceiverLocked(r);
                 }
+            } else if (!ordered && filter.receiverList.app != null
+                    && filter.receiverList.app.thread != null) {
+                // Sent together with the process's other receivers once the whole
+                // broadcast has been walked; see deliverPendingReceiverBatchesLocked().
+                ArrayList<IBinder> batch = mPendingReceiverBatches.get(filter.receiverList.app);
+                if (batch == null) {
+                    batch = new ArrayList<>();
+                    mPendingReceiverBatches.put(filter.receiverList.app, batch);
+                }
+                batch.add(filter.receiverList.receiver.asBinder());
             } else {
+                if (!ordered && filter.receiverList.app == null) {
+                    // Receivers not hosted by a process are called directly, one at a time
+                    mParallelDeliveryTransactions++;
+                    mParallelDeliveryReceivers++;
+                }
                 performReceiveLocked(filter.receiverList.app, filter.receiverList.receiver,
                         new Intent(r.intent), r.resultCode, r.resultData,
                         r.resultExtras, r.ordered, r.initialSticky, r.userId);
@@ -857,6 +959,7 @@ public final class BroadcastQueue {
                             + target + ": " + r);
                     deliverToRegisteredReceiverLocked(r, (BroadcastFilter)target, false, i);
                 }
+                deliverPendingReceiverBatchesLocked(r);
                 addBroadcastToHistoryLocked(r);
                 if (DEBUG_BROADCAST_LIGHT) Slog.v(TAG_BROADCAST, "Done with parallel broadcast ["
                         + mQueueName + "] " + r);
@@ -1640,6 +1743,28 @@ public final class BroadcastQueue {
             }
         }
 
+        if (dumpPackage == null && mParallelDeliveryTransactions > 0) {
+            if (needSep) {
+                pw.println();
+            }
+            needSep = true;
+            pw.print("  Parallel delivery [" + mQueueName + "]: ");
+            pw.print(mParallelDeliveryReceivers); pw.print(" receivers in ");
+            pw.print(mParallelDeliveryTransactions); pw.println(" transactions");
+        }
+
+        if (dumpPackage == null && mCoalescedBroadcasts.size() > 0) {
+            if (needSep) {
+                pw.println();
+            }
+            needSep = true;
+            pw.println("  Coalesced broadcasts [" + mQueueName + "]:");
+            for (int j = 0; j < mCoalescedBroadcasts.size(); j++) {
+                pw.print("    "); pw.print(mCoalescedBroadcasts.keyAt(j));
+                pw.print(": "); pw.println(mCoalescedBroadcasts.valueAt(j));
+            }
+        }
+
         int i;
         boolean printed = false;
 
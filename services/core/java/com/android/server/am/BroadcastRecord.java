@@ -98,6 +98,47 @@ final class BroadcastRecord extends Binder {
     ComponentName curComponent; // the receiver class that is currently running.
     ActivityInfo curReceiver;   // info about the receiver that is currently running.
 
+    /**
+     * Key under which this broadcast replaces older undelivered broadcasts of the same intent
+     * and receivers from the same uid, or null if it was not sent with one.
+     */
+    String getCoalescingKey() {
+        return options != null ? options.getCoalescingKey() : null;
+    }
+
+    /**
+     * Whether {@code other} was resolved to the same receivers as this broadcast, in the same
+     * order, and restricts them the same way, so that either one reaches the same receivers.
+     */
+    boolean hasSameReceivers(BroadcastRecord other) {
+        if (appOp != other.appOp
+                || !Arrays.equals(requiredPermissions, other.requiredPermissions)) {
+            return false;
+        }
+        final int count = receivers != null ? receivers.size() : 0;
+        final int otherCount = other.receivers != null ? other.receivers.size() : 0;
+        if (count != otherCount) {
+            return false;
+        }
+        for (int i = 0; i < count; i++) {
+            final Object receiver = receivers.get(i);
+            final Object otherReceiver = other.receivers.get(i);
+            if (receiver instanceof ResolveInfo && otherReceiver instanceof ResolveInfo) {
+                // Manifest receivers are resolved into new objects for every broadcast
+                final ActivityInfo info = ((ResolveInfo) receiver).activityInfo;
+                final ActivityInfo otherInfo = ((ResolveInfo) otherReceiver).activityInfo;
+                if (!info.packageName.equals(otherInfo.packageName)
+                        || !info.name.equals(otherInfo.name)
+                        || info.applicationInfo.uid != otherInfo.applicationInfo.uid) {
+                    return false;
+                }
+            } else if (receiver != otherReceiver) {
+                return false;
+            }
+        }
+        return true;
+    }
+
     void dump(PrintWriter pw, String prefix, SimpleDateFormat sdf) {
         final long now = SystemClock.uptimeMillis();
 
@@ -0,0 +1,99 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import android.os.Trace;
+
+import java.io.PrintWriter;
+
+/**
+ * Cost of the oom adj passes run by {@link ActivityManagerService}, split between full
+ * passes over the whole LRU list and incremental passes over a changed process and the
+ * processes reachable from it.  All access is guarded by the activity manager lock.
+ */
+final class OomAdjStats {
+    private static final String TRACE_COUNTER_VISITED = "oom_adj_visited";
+    private static final String TRACE_COUNTER_DURATION = "oom_adj_us";
+
+    private long mFullPasses;
+    private long mFullVisited;
+    private long mFullDurationUs;
+    private long mMaxFullDurationUs;
+
+    private long mIncrementalPasses;
+    private long mIncrementalVisited;
+    private long mIncrementalDurationUs;
+    private long mMaxIncrementalDurationUs;
+
+    private boolean mLastFull;
+    private int mLastVisited;
+    private long mLastDurationUs;
+
+    /**
+     * Records one completed pass.
+     *
+     * @param full whether the pass walked the whole LRU list.
+     * @param visited number of processes whose oom adj was actually computed.
+     * @param durationNanos wall time of the pass.
+     */
+    void notePass(boolean full, int visited, long durationNanos) {
+        final long durationUs = durationNanos / 1000;
+        if (full) {
+            mFullPasses++;
+            mFullVisited += visited;
+            mFullDurationUs += durationUs;
+            mMaxFullDurationUs = Math.max(mMaxFullDurationUs, durationUs);
+        } else {
+            mIncrementalPasses++;
+            mIncrementalVisited += visited;
+            mIncrementalDurationUs += durationUs;
+            mMaxIncrementalDurationUs = Math.max(mMaxIncrementalDurationUs, durationUs);
+        }
+        mLastFull = full;
+        mLastVisited = visited;
+        mLastDurationUs = durationUs;
+
+        if (Trace.isTagEnabled(Trace.TRACE_TAG_ACTIVITY_MANAGER)) {
+            Trace.traceCounter(Trace.TRACE_TAG_ACTIVITY_MANAGER, TRACE_COUNTER_VISITED, visited);
+            Trace.traceCounter(Trace.TRACE_TAG_ACTIVITY_MANAGER, TRACE_COUNTER_DURATION,
+                    (int) Math.min(durationUs, Integer.MAX_VALUE));
+        }
+    }
+
+    void dump(PrintWriter pw, String prefix) {
+        pw.print(prefix); pw.print("Full oom adj passes: "); pw.print(mFullPasses);
+        dumpAverages(pw, mFullPasses, mFullVisited, mFullDurationUs, mMaxFullDurationUs);
+        pw.print(prefix); pw.print("Incremental oom adj passes: ");
+        pw.print(mIncrementalPasses);
+        dumpAverages(pw, mIncrementalPasses, mIncrementalVisited, mIncrementalDurationUs,
+                mMaxIncrementalDurationUs);
+        pw.print(prefix); pw.print("Last oom adj pass: ");
+        pw.print(mLastFull ? "full" : "incremental");
+        pw.print(" visited="); pw.print(mLastVisited);
+        pw.print(" duration="); pw.print(mLastDurationUs); pw.println("us");
+    }
+
+    private static void dumpAverages(PrintWriter pw, long passes, long visited,
+            long durationUs, long maxDurationUs) {
+        if (passes > 0) {
+            pw.print(" avgVisited="); pw.print(visited / passes);
+            pw.print(" avgDuration="); pw.print(durationUs / passes);
+            pw.print("us maxDuration="); pw.print(maxDurationUs); pw.print("us");
+        }
+        pw.println();
+    }
+}
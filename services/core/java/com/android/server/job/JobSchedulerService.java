@@ -109,8 +109,8 @@ public final class JobSchedulerService extends com.android.server.SystemService
     static final String TAG = "JobSchedulerService";
     public static final boolean DEBUG = false;
 
-    /** The maximum number of concurrent jobs we run at one time. */
-    private static final int MAX_JOB_CONTEXTS_COUNT = 16;
+    /** Upper bound on {@link Constants#MAX_JOB_CONTEXTS_COUNT}. */
+    private static final int MAX_JOB_CONTEXTS_LIMIT = 64;
     /** Enforce a per-app limit on scheduled jobs? */
     private static final boolean ENFORCE_MAX_JOBS = true;
     /** The maximum number of jobs that we allow an unprivileged app to schedule */
@@ -189,15 +189,15 @@ public final class JobSchedulerService extends com.android.server.SystemService
      * We manipulate this array until we arrive at what jobs should be running on
      * what JobServiceContext.
      */
-    JobStatus[] mTmpAssignContextIdToJobMap = new JobStatus[MAX_JOB_CONTEXTS_COUNT];
+    JobStatus[] mTmpAssignContextIdToJobMap = new JobStatus[0];
     /**
      * Indicates whether we need to act on this jobContext id
      */
-    boolean[] mTmpAssignAct = new boolean[MAX_JOB_CONTEXTS_COUNT];
+    boolean[] mTmpAssignAct = new boolean[0];
     /**
      * The uid whose jobs we would like to assign to a context.
      */
-    int[] mTmpAssignPreferredUidForContext = new int[MAX_JOB_CONTEXTS_COUNT];
+    int[] mTmpAssignPreferredUidForContext = new int[0];
 
     /**
      * All times are in milliseconds. These constants are kept synchronized with the system
@@ -215,6 +215,7 @@ public final class JobSchedulerService extends com.android.server.SystemService
         private static final String KEY_MIN_READY_JOBS_COUNT = "min_ready_jobs_count";
         private static final String KEY_HEAVY_USE_FACTOR = "heavy_use_factor";
         private static final String KEY_MODERATE_USE_FACTOR = "moderate_use_factor";
+        private static final String KEY_MAX_JOB_CONTEXTS_COUNT = "max_job_contexts_count";
         private static final String KEY_FG_JOB_COUNT = "fg_job_count";
         private static final String KEY_BG_NORMAL_JOB_COUNT = "bg_normal_job_count";
         private static final String KEY_BG_MODERATE_JOB_COUNT = "bg_moderate_job_count";
@@ -235,6 +236,7 @@ public final class JobSchedulerService extends com.android.server.SystemService
         private static final int DEFAULT_MIN_READY_JOBS_COUNT = 1;
         private static final float DEFAULT_HEAVY_USE_FACTOR = .9f;
         private static final float DEFAULT_MODERATE_USE_FACTOR = .5f;
+        private static final int DEFAULT_MAX_JOB_CONTEXTS_COUNT = 16;
         private static final int DEFAULT_FG_JOB_COUNT = 4;
         private static final int DEFAULT_BG_NORMAL_JOB_COUNT = 6;
         private static final int DEFAULT_BG_MODERATE_JOB_COUNT = 4;
@@ -290,6 +292,13 @@ public final class JobSchedulerService extends com.android.server.SystemService
          * This is the job execution factor that is considered to be moderate use of the system.
          */
         float MODERATE_USE_FACTOR = DEFAULT_MODERATE_USE_FACTOR;
+        /**
+         * The maximum number of concurrent jobs we run at one time, which is the number of
+         * job contexts we keep around to run them.  Raising it grows the pool right away;
+         * lowering it leaves the extra contexts in place, the job counts below are what
+         * keep them idle.
+         */
+        int MAX_JOB_CONTEXTS_COUNT = DEFAULT_MAX_JOB_CONTEXTS_COUNT;
         /**
          * The number of MAX_JOB_CONTEXTS_COUNT we reserve for the foreground app.
          */
@@ -381,6 +390,9 @@ public final class JobSchedulerService extends com.android.server.SystemService
                         DEFAULT_HEAVY_USE_FACTOR);
                 MODERATE_USE_FACTOR = mParser.getFloat(KEY_MODERATE_USE_FACTOR,
                         DEFAULT_MODERATE_USE_FACTOR);
+                MAX_JOB_CONTEXTS_COUNT = Math.max(1, Math.min(MAX_JOB_CONTEXTS_LIMIT,
+                        mParser.getInt(KEY_MAX_JOB_CONTEXTS_COUNT,
+                                DEFAULT_MAX_JOB_CONTEXTS_COUNT)));
                 FG_JOB_COUNT = mParser.getInt(KEY_FG_JOB_COUNT,
                         DEFAULT_FG_JOB_COUNT);
                 BG_NORMAL_JOB_COUNT = mParser.getInt(KEY_BG_NORMAL_JOB_COUNT,
@@ -411,6 +423,8 @@ public final class JobSchedulerService extends com.android.server.SystemService
                         DEFAULT_MIN_LINEAR_BACKOFF_TIME);
                 MIN_EXP_BACKOFF_TIME = mParser.getLong(KEY_MIN_EXP_BACKOFF_TIME,
                         DEFAULT_MIN_EXP_BACKOFF_TIME);
+
+                ensureJobContextsLocked();
             }
         }
 
@@ -444,6 +458,9 @@ public final class JobSchedulerService extends com.android.server.SystemService
             pw.print("    "); pw.print(KEY_MODERATE_USE_FACTOR); pw.print("=");
             pw.print(MODERATE_USE_FACTOR); pw.println();
 
+            pw.print("    "); pw.print(KEY_MAX_JOB_CONTEXTS_COUNT); pw.print("=");
+            pw.print(MAX_JOB_CONTEXTS_COUNT); pw.println();
+
             pw.print("    "); pw.print(KEY_FG_JOB_COUNT); pw.print("=");
             pw.print(FG_JOB_COUNT); pw.println();
 
@@ -1019,11 +1036,7 @@ public final class JobSchedulerService extends com.android.server.SystemService
                 mLocalDeviceIdleController
                         = LocalServices.getService(DeviceIdleController.LocalService.class);
                 // Create the "runners".
-                for (int i = 0; i < MAX_JOB_CONTEXTS_COUNT; i++) {
-                    mActiveServices.add(
-                            new JobServiceContext(this, mBatteryStats, mJobPackageTracker,
-                                    getContext().getMainLooper()));
-                }
+                ensureJobContextsLocked();
                 // Attach jobs to their controllers.
                 mJobs.forEachJob(new JobStatusFunctor() {
                     @Override
@@ -1040,6 +1053,27 @@ public final class JobSchedulerService extends com.android.server.SystemService
         }
     }
 
+    /**
+     * Grows the pool of job contexts to {@link Constants#MAX_JOB_CONTEXTS_COUNT}, along with
+     * the temporaries used to assign jobs to them.
+     */
+    void ensureJobContextsLocked() {
+        if (!mReadyToRock) {
+            return;
+        }
+        final int count = mConstants.MAX_JOB_CONTEXTS_COUNT;
+        if (mActiveServices.size() >= count) {
+            return;
+        }
+        while (mActiveServices.size() < count) {
+            mActiveServices.add(new JobServiceContext(this, mBatteryStats, mJobPackageTracker,
+                    getContext().getMainLooper()));
+        }
+        mTmpAssignContextIdToJobMap = new JobStatus[count];
+        mTmpAssignAct = new boolean[count];
+        mTmpAssignPreferredUidForContext = new int[count];
+    }
+
     /**
      * Called when we have a job status object that we need to insert in our
      * {@link com.android.server.job.JobStore}, and make sure all the relevant controllers know
@@ -1366,7 +1400,7 @@ public final class JobSchedulerService extends com.android.server.SystemService
         noteJobsNonpending(mPendingJobs);
         mPendingJobs.clear();
         stopNonReadyActiveJobsLocked();
-        mJobs.forEachJob(mReadyQueueFunctor);
+        mJobs.forEachReadyJob(mReadyQueueFunctor);
         mReadyQueueFunctor.postProcess();
 
         if (DEBUG) {
@@ -1520,7 +1554,7 @@ public final class JobSchedulerService extends com.android.server.SystemService
         noteJobsNonpending(mPendingJobs);
         mPendingJobs.clear();
         stopNonReadyActiveJobsLocked();
-        mJobs.forEachJob(mMaybeQueueFunctor);
+        mJobs.forEachReadyJob(mMaybeQueueFunctor);
         mMaybeQueueFunctor.postProcess();
     }
 
@@ -1668,9 +1702,10 @@ public final class JobSchedulerService extends com.android.server.SystemService
         JobStatus[] contextIdToJobMap = mTmpAssignContextIdToJobMap;
         boolean[] act = mTmpAssignAct;
         int[] preferredUidForContext = mTmpAssignPreferredUidForContext;
+        final int contextCount = mActiveServices.size();
         int numActive = 0;
         int numForeground = 0;
-        for (int i=0; i<MAX_JOB_CONTEXTS_COUNT; i++) {
+        for (int i=0; i<contextCount; i++) {
             final JobServiceContext js = mActiveServices.get(i);
             final JobStatus status = js.getRunningJobLocked();
             if ((contextIdToJobMap[i] = status) != null) {
@@ -1702,7 +1737,7 @@ public final class JobSchedulerService extends com.android.server.SystemService
             // (sharing the same Uid as nextPending)
             int minPriority = Integer.MAX_VALUE;
             int minPriorityContextId = -1;
-            for (int j=0; j<MAX_JOB_CONTEXTS_COUNT; j++) {
+            for (int j=0; j<contextCount; j++) {
                 JobStatus job = contextIdToJobMap[j];
                 int preferredUid = preferredUidForContext[j];
                 if (job == null) {
@@ -1745,7 +1780,7 @@ public final class JobSchedulerService extends com.android.server.SystemService
             Slog.d(TAG, printContextIdToJobMap(contextIdToJobMap, "running jobs final"));
         }
         mJobPackageTracker.noteConcurrency(numActive, numForeground);
-        for (int i=0; i<MAX_JOB_CONTEXTS_COUNT; i++) {
+        for (int i=0; i<contextCount; i++) {
             boolean preservePreferredUid = false;
             if (act[i]) {
                 JobStatus js = mActiveServices.get(i).getRunningJobLocked();
@@ -2091,9 +2126,9 @@ public final class JobSchedulerService extends com.android.server.SystemService
                     return JobSchedulerShellCommand.CMD_ERR_NO_JOB;
                 }
 
-                js.overrideState = (force) ? JobStatus.OVERRIDE_FULL : JobStatus.OVERRIDE_SOFT;
+                js.setOverrideState((force) ? JobStatus.OVERRIDE_FULL : JobStatus.OVERRIDE_SOFT);
                 if (!js.isConstraintsSatisfied()) {
-                    js.overrideState = 0;
+                    js.setOverrideState(0);
                     return JobSchedulerShellCommand.CMD_ERR_CONSTRAINTS;
                 }
 
@@ -22,36 +22,47 @@ import android.content.ComponentName;
 import android.app.job.JobInfo;
 import android.content.Context;
 import android.os.Environment;
+import android.os.FileUtils;
 import android.os.Handler;
 import android.os.PersistableBundle;
 import android.os.Process;
 import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.text.format.DateUtils;
 import android.util.AtomicFile;
 import android.util.ArraySet;
+import android.util.LongSparseArray;
 import android.util.Pair;
 import android.util.Slog;
 import android.util.SparseArray;
-import android.util.Xml;
 
+import com.android.internal.annotations.GuardedBy;
 import com.android.internal.annotations.VisibleForTesting;
 import com.android.internal.util.ArrayUtils;
-import com.android.internal.util.FastXmlSerializer;
+import com.android.internal.util.XmlUtils;
 import com.android.server.IoThread;
 import com.android.server.job.JobSchedulerInternal.JobStorePersistStats;
 import com.android.server.job.controllers.JobStatus;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Set;
+import java.util.zip.CRC32;
+
+import libcore.io.IoUtils;
 
 import org.xmlpull.v1.XmlPullParser;
 import org.xmlpull.v1.XmlPullParserException;
@@ -62,6 +73,13 @@ import org.xmlpull.v1.XmlSerializer;
  * reference, so none of the functions in this class should make a copy.
  * Also handles read/write of persisted jobs.
  *
+ * Persisted jobs live in jobs.xml plus an append-only journal next to it. Scheduling or
+ * cancelling a job appends just that job to the journal instead of rewriting every job, and
+ * once the journal grows past a fraction of the jobs it is compacted into a new jobs.xml.
+ * jobs.xml records the generation of the journal that applies to it, so a journal left
+ * behind by an interrupted compaction is ignored. Both are written in the compact binary XML
+ * encoding unless persist.job.binary_store is cleared.
+ *
  * Note on locking:
  *      All callers to this class must <strong>lock on the class object they are calling</strong>.
  *      This is important b/c {@link com.android.server.job.JobStore.WriteJobsMapToDiskRunnable}
@@ -75,6 +93,16 @@ public final class JobStore {
     /** Threshold to adjust how often we want to write to the db. */
     private static final int MAX_OPS_BEFORE_WRITE = 1;
 
+    /** Whether jobs.xml and the journal are written in the binary XML encoding. */
+    private static final boolean WRITE_BINARY_JOBS =
+            SystemProperties.getBoolean("persist.job.binary_store", true);
+
+    private static final int JOURNAL_MAGIC = 0x4a534a31; // "JSJ1"
+    /** Journals are compacted once they hold more records than this... */
+    private static final int MIN_JOURNAL_RECORDS_BEFORE_COMPACTION = 64;
+    /** ...and more than 1/JOURNAL_COMPACTION_RATIO of the number of jobs. */
+    private static final int JOURNAL_COMPACTION_RATIO = 2;
+
     final Object mLock;
     final JobSet mJobSet; // per-caller-uid tracking
     final Context mContext;
@@ -87,6 +115,21 @@ public final class JobStore {
 
     private static final Object sSingletonLock = new Object();
     private final AtomicFile mJobsFile;
+    private final File mJournalFile;
+
+    /**
+     * Changes not yet written, keyed by {@link #journalKey}; only the last change to a job
+     * matters.
+     */
+    @GuardedBy("mLock")
+    private final LongSparseArray<JournalOp> mPendingJournalOps = new LongSparseArray<>();
+    /** Whether the next write must be a full jobs.xml instead of a journal append. */
+    @GuardedBy("mLock")
+    private boolean mNeedsSnapshot = true;
+    @GuardedBy("mLock")
+    private long mJournalGeneration = -1;
+    @GuardedBy("mLock")
+    private int mJournalRecordCount;
     /** Handler backed by IoThread for writing to disk. */
     private final Handler mIoHandler = IoThread.getHandler();
     private static JobStore sSingleton;
@@ -126,6 +169,7 @@ public final class JobStore {
         File jobDir = new File(systemDir, "job");
         jobDir.mkdirs();
         mJobsFile = new AtomicFile(new File(jobDir, "jobs.xml"));
+        mJournalFile = new File(jobDir, "jobs.journal");
 
         mJobSet = new JobSet();
 
@@ -187,6 +231,7 @@ public final class JobStore {
         boolean replaced = mJobSet.remove(jobStatus);
         mJobSet.add(jobStatus);
         if (jobStatus.isPersisted()) {
+            noteJournalOp(jobStatus.getUid(), jobStatus.getJobId(), new JobStatus(jobStatus));
             maybeWriteStatusToDiskAsync();
         }
         if (DEBUG) {
@@ -224,8 +269,13 @@ public final class JobStore {
             }
             return false;
         }
-        if (writeBack && jobStatus.isPersisted()) {
-            maybeWriteStatusToDiskAsync();
+        if (jobStatus.isPersisted()) {
+            // Without writeBack the removal still goes out with the next write, as it did
+            // when every write covered all of the jobs
+            noteJournalOp(jobStatus.getUid(), jobStatus.getJobId(), null);
+            if (writeBack) {
+                maybeWriteStatusToDiskAsync();
+            }
         }
         return removed;
     }
@@ -236,11 +286,14 @@ public final class JobStore {
      */
     public void removeJobsOfNonUsers(int[] whitelist) {
         mJobSet.removeJobsOfNonUsers(whitelist);
+        // Not worth journaling each job; the next write replaces jobs.xml instead
+        mNeedsSnapshot = true;
     }
 
     @VisibleForTesting
     public void clear() {
         mJobSet.clear();
+        mNeedsSnapshot = true;
         maybeWriteStatusToDiskAsync();
     }
 
@@ -283,6 +336,15 @@ public final class JobStore {
         mJobSet.forEachJob(uid, functor);
     }
 
+    /**
+     * Iterate over the jobs whose constraints currently let them run, see
+     * {@link JobStatus#isReady()}. Constraint changes move jobs in and out of this set as they
+     * happen, so finding the ready jobs does not need to look at the jobs still waiting.
+     */
+    public void forEachReadyJob(JobStatusFunctor functor) {
+        mJobSet.forEachReadyJob(functor);
+    }
+
     public interface JobStatusFunctor {
         public void process(JobStatus jobStatus);
     }
@@ -295,10 +357,35 @@ public final class JobStore {
     private static final String XML_TAG_PERIODIC = "periodic";
     private static final String XML_TAG_ONEOFF = "one-off";
     private static final String XML_TAG_EXTRAS = "extras";
+    private static final String XML_TAG_JOURNAL = "journal";
+    private static final String XML_TAG_REMOVED = "removed";
+    private static final String XML_ATTR_JOURNAL_GENERATION = "journal-generation";
+
+    /** A change to a persisted job that has yet to be written. */
+    private static final class JournalOp {
+        final int uid;
+        final int jobId;
+        /** Copy of the job as scheduled, or null if it was removed. */
+        final JobStatus job;
+
+        JournalOp(int uid, int jobId, JobStatus job) {
+            this.uid = uid;
+            this.jobId = jobId;
+            this.job = job;
+        }
+    }
+
+    private static long journalKey(int uid, int jobId) {
+        return ((long) uid << 32) | (jobId & 0xffffffffL);
+    }
+
+    private void noteJournalOp(int uid, int jobId, JobStatus job) {
+        mPendingJournalOps.put(journalKey(uid, jobId), new JournalOp(uid, jobId, job));
+    }
 
     /**
-     * Every time the state changes we write all the jobs in one swath, instead of trying to
-     * track incremental changes.
+     * Every time the state changes we schedule a write, which appends the changes to the
+     * journal or, if the journal has grown too large, writes all the jobs in one swath.
      */
     private void maybeWriteStatusToDiskAsync() {
         mDirtyOperations++;
@@ -317,56 +404,175 @@ public final class JobStore {
     }
 
     /**
-     * Runnable that writes {@link #mJobSet} out to xml.
+     * Runnable that writes the changes to {@link #mJobSet} to the journal, or all of it out
+     * to xml.
      * NOTE: This Runnable locks on mLock
      */
     private final Runnable mWriteRunnable = new Runnable() {
         @Override
         public void run() {
             final long startElapsed = SystemClock.elapsedRealtime();
-            final List<JobStatus> storeCopy = new ArrayList<JobStatus>();
+            List<JobStatus> storeCopy = null;
+            final ArrayList<JournalOp> journalOps;
+            final long generation;
             synchronized (mLock) {
-                // Clone the jobs so we can release the lock before writing.
-                mJobSet.forEachJob(new JobStatusFunctor() {
-                    @Override
-                    public void process(JobStatus job) {
-                        if (job.isPersisted()) {
-                            storeCopy.add(new JobStatus(job));
-                        }
+                final int pendingCount = mPendingJournalOps.size();
+                if (mNeedsSnapshot || mJournalRecordCount + pendingCount
+                        > Math.max(MIN_JOURNAL_RECORDS_BEFORE_COMPACTION,
+                                mJobSet.size() / JOURNAL_COMPACTION_RATIO)) {
+                    storeCopy = copyPersistedJobsLocked();
+                    journalOps = null;
+                } else {
+                    journalOps = new ArrayList<>(pendingCount);
+                    for (int i = 0; i < pendingCount; i++) {
+                        journalOps.add(mPendingJournalOps.valueAt(i));
+                    }
+                    countPersistedJobsLocked();
+                }
+                mPendingJournalOps.clear();
+                mNeedsSnapshot = false;
+                generation = mJournalGeneration;
+            }
+            if (journalOps != null) {
+                if (journalOps.isEmpty()) {
+                    return;
+                }
+                if (appendJournal(journalOps, generation)) {
+                    if (DEBUG) {
+                        Slog.v(TAG, "Finished journaling " + journalOps.size() + " jobs, took "
+                                + (SystemClock.elapsedRealtime() - startElapsed) + "ms");
                     }
-                });
+                    return;
+                }
+                synchronized (mLock) {
+                    storeCopy = copyPersistedJobsLocked();
+                }
             }
-            writeJobsMapImpl(storeCopy);
+            writeJobsMapImpl(storeCopy,
+                    generation >= 0 ? generation + 1 : SystemClock.elapsedRealtime());
             if (DEBUG) {
                 Slog.v(TAG, "Finished writing, took " + (SystemClock.elapsedRealtime()
                         - startElapsed) + "ms");
             }
         }
 
-        private void writeJobsMapImpl(List<JobStatus> jobList) {
+        private List<JobStatus> copyPersistedJobsLocked() {
+            final List<JobStatus> storeCopy = new ArrayList<JobStatus>();
+            // Clone the jobs so we can release the lock before writing.
+            mJobSet.forEachJob(new JobStatusFunctor() {
+                @Override
+                public void process(JobStatus job) {
+                    if (job.isPersisted()) {
+                        storeCopy.add(new JobStatus(job));
+                    }
+                }
+            });
+            return storeCopy;
+        }
+
+        private void countPersistedJobsLocked() {
+            final int[] counts = new int[3];
+            mJobSet.forEachJob(new JobStatusFunctor() {
+                @Override
+                public void process(JobStatus job) {
+                    if (job.isPersisted()) {
+                        counts[0]++;
+                        if (job.getUid() == Process.SYSTEM_UID) {
+                            counts[1]++;
+                            if (isSyncJob(job)) {
+                                counts[2]++;
+                            }
+                        }
+                    }
+                }
+            });
+            mPersistInfo.countAllJobsSaved = counts[0];
+            mPersistInfo.countSystemServerJobsSaved = counts[1];
+            mPersistInfo.countSystemSyncManagerJobsSaved = counts[2];
+        }
+
+        /**
+         * Appends one CRC-checked batch with the given changes to the journal.
+         *
+         * @return whether the journal was written; if not, the caller must fall back to
+         * writing all the jobs.
+         */
+        private boolean appendJournal(List<JournalOp> journalOps, long generation) {
+            final ByteArrayOutputStream baos = new ByteArrayOutputStream();
+            try {
+                XmlSerializer out = XmlUtils.resolveSerializer(baos, WRITE_BINARY_JOBS);
+                out.startDocument(null, true);
+                out.startTag(null, XML_TAG_JOURNAL);
+                for (int i = 0; i < journalOps.size(); i++) {
+                    final JournalOp op = journalOps.get(i);
+                    if (op.job != null) {
+                        writeJobToXml(out, op.job);
+                    } else {
+                        out.startTag(null, XML_TAG_REMOVED);
+                        out.attribute(null, "uid", Integer.toString(op.uid));
+                        out.attribute(null, "jobid", Integer.toString(op.jobId));
+                        out.endTag(null, XML_TAG_REMOVED);
+                    }
+                }
+                out.endTag(null, XML_TAG_JOURNAL);
+                out.endDocument();
+            } catch (IOException | XmlPullParserException e) {
+                Slog.w(TAG, "Error encoding job journal records.", e);
+                return false;
+            }
+
+            FileOutputStream fos = null;
+            try {
+                final boolean newJournal;
+                synchronized (mLock) {
+                    newJournal = mJournalRecordCount == 0 || !mJournalFile.exists();
+                }
+                fos = new FileOutputStream(mJournalFile, !newJournal);
+                final DataOutputStream out = new DataOutputStream(new BufferedOutputStream(fos));
+                if (newJournal) {
+                    out.writeInt(JOURNAL_MAGIC);
+                    out.writeLong(generation);
+                }
+                final byte[] payload = baos.toByteArray();
+                final CRC32 crc = new CRC32();
+                crc.update(payload);
+                out.writeInt(payload.length);
+                out.write(payload);
+                out.writeLong(crc.getValue());
+                out.flush();
+                FileUtils.sync(fos);
+            } catch (IOException e) {
+                Slog.w(TAG, "Error appending to job journal, writing all jobs.", e);
+                return false;
+            } finally {
+                IoUtils.closeQuietly(fos);
+            }
+            mDirtyOperations = 0;
+            synchronized (mLock) {
+                mJournalRecordCount += journalOps.size();
+            }
+            return true;
+        }
+
+        private void writeJobsMapImpl(List<JobStatus> jobList, long generation) {
             int numJobs = 0;
             int numSystemJobs = 0;
             int numSyncJobs = 0;
             try {
                 ByteArrayOutputStream baos = new ByteArrayOutputStream();
-                XmlSerializer out = new FastXmlSerializer();
-                out.setOutput(baos, StandardCharsets.UTF_8.name());
+                XmlSerializer out = XmlUtils.resolveSerializer(baos, WRITE_BINARY_JOBS);
                 out.startDocument(null, true);
                 out.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
 
                 out.startTag(null, "job-info");
                 out.attribute(null, "version", Integer.toString(JOBS_FILE_VERSION));
+                out.attribute(null, XML_ATTR_JOURNAL_GENERATION, Long.toString(generation));
                 for (int i=0; i<jobList.size(); i++) {
                     JobStatus jobStatus = jobList.get(i);
                     if (DEBUG) {
                         Slog.d(TAG, "Saving job " + jobStatus.getJobId());
                     }
-                    out.startTag(null, "job");
-                    addAttributesToJobTag(out, jobStatus);
-                    writeConstraintsToXml(out, jobStatus);
-                    writeExecutionCriteriaToXml(out, jobStatus);
-                    writeBundleToXml(jobStatus.getJob().getExtras(), out);
-                    out.endTag(null, "job");
+                    writeJobToXml(out, jobStatus);
 
                     numJobs++;
                     if (jobStatus.getUid() == Process.SYSTEM_UID) {
@@ -384,14 +590,27 @@ public final class JobStore {
                 fos.write(baos.toByteArray());
                 mJobsFile.finishWrite(fos);
                 mDirtyOperations = 0;
+
+                // The new jobs.xml supersedes everything in the old journal
+                mJournalFile.delete();
+                synchronized (mLock) {
+                    mJournalGeneration = generation;
+                    mJournalRecordCount = 0;
+                }
             } catch (IOException e) {
                 if (DEBUG) {
                     Slog.v(TAG, "Error writing out job data.", e);
                 }
+                synchronized (mLock) {
+                    mNeedsSnapshot = true;
+                }
             } catch (XmlPullParserException e) {
                 if (DEBUG) {
                     Slog.d(TAG, "Error persisting bundle.", e);
                 }
+                synchronized (mLock) {
+                    mNeedsSnapshot = true;
+                }
             } finally {
                 mPersistInfo.countAllJobsSaved = numJobs;
                 mPersistInfo.countSystemServerJobsSaved = numSystemJobs;
@@ -399,6 +618,16 @@ public final class JobStore {
             }
         }
 
+        private void writeJobToXml(XmlSerializer out, JobStatus jobStatus)
+                throws IOException, XmlPullParserException {
+            out.startTag(null, "job");
+            addAttributesToJobTag(out, jobStatus);
+            writeConstraintsToXml(out, jobStatus);
+            writeExecutionCriteriaToXml(out, jobStatus);
+            writeBundleToXml(jobStatus.getJob().getExtras(), out);
+            out.endTag(null, "job");
+        }
+
         /** Write out a tag with data comprising the required fields and priority of this job and
          * its client.
          */
@@ -570,16 +799,31 @@ public final class JobStore {
             this.rtcGood = rtcIsGood;
         }
 
+        /** Journal generation recorded in jobs.xml, or -1 if it has none. */
+        private long mReadGeneration = -1;
+
         @Override
         public void run() {
             int numJobs = 0;
             int numSystemJobs = 0;
             int numSyncJobs = 0;
             try {
-                List<JobStatus> jobs;
-                FileInputStream fis = mJobsFile.openRead();
+                List<JobStatus> jobs = null;
                 synchronized (mLock) {
-                    jobs = readJobMapImpl(fis, rtcGood);
+                    try {
+                        FileInputStream fis = mJobsFile.openRead();
+                        try {
+                            jobs = readJobMapImpl(fis, rtcGood);
+                        } finally {
+                            fis.close();
+                        }
+                    } catch (FileNotFoundException e) {
+                        if (DEBUG) {
+                            Slog.d(TAG, "Could not find jobs file, probably there was nothing "
+                                    + "to load.");
+                        }
+                    }
+                    jobs = replayJournalLocked(jobs);
                     if (jobs != null) {
                         long now = SystemClock.elapsedRealtime();
                         IActivityManager am = ActivityManager.getService();
@@ -599,11 +843,6 @@ public final class JobStore {
                         }
                     }
                 }
-                fis.close();
-            } catch (FileNotFoundException e) {
-                if (DEBUG) {
-                    Slog.d(TAG, "Could not find jobs file, probably there was nothing to load.");
-                }
             } catch (XmlPullParserException | IOException e) {
                 Slog.wtf(TAG, "Error jobstore xml.", e);
             } finally {
@@ -616,10 +855,112 @@ public final class JobStore {
             Slog.i(TAG, "Read " + numJobs + " jobs");
         }
 
+        /**
+         * Applies the changes recorded in the journal on top of the jobs read from jobs.xml,
+         * and sets up the journal state for the following writes. Replay stops at the first
+         * incomplete or corrupt batch, in which case the next write compacts.
+         *
+         * @return the jobs that were persisted last, or null if there are none.
+         */
+        private List<JobStatus> replayJournalLocked(List<JobStatus> jobs) {
+            mJournalGeneration = mReadGeneration;
+            mJournalRecordCount = 0;
+            // jobs.xml without a generation predates the journal, so start a new one
+            mNeedsSnapshot = mReadGeneration < 0;
+            if (mReadGeneration < 0 || !mJournalFile.exists()) {
+                return jobs;
+            }
+
+            final LongSparseArray<JobStatus> jobsByKey = new LongSparseArray<>();
+            if (jobs != null) {
+                for (int i = 0; i < jobs.size(); i++) {
+                    final JobStatus job = jobs.get(i);
+                    jobsByKey.put(journalKey(job.getUid(), job.getJobId()), job);
+                }
+            }
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(mJournalFile)));
+                if (in.readInt() != JOURNAL_MAGIC || in.readLong() != mReadGeneration) {
+                    Slog.w(TAG, "Ignoring job journal from another generation.");
+                    mNeedsSnapshot = true;
+                    return jobs;
+                }
+                final CRC32 crc = new CRC32();
+                while (true) {
+                    final int length;
+                    try {
+                        length = in.readInt();
+                    } catch (EOFException e) {
+                        break;
+                    }
+                    if (length < 0 || length > in.available()) {
+                        throw new IOException("Invalid journal record length " + length);
+                    }
+                    final byte[] payload = new byte[length];
+                    in.readFully(payload);
+                    crc.reset();
+                    crc.update(payload);
+                    if (in.readLong() != crc.getValue()) {
+                        throw new IOException("Journal record checksum mismatch");
+                    }
+                    mJournalRecordCount += replayJournalBatch(payload, jobsByKey);
+                }
+            } catch (IOException | XmlPullParserException e) {
+                // Keep what was replayed so far; whatever follows is a torn write
+                Slog.w(TAG, "Error replaying job journal after " + mJournalRecordCount
+                        + " records.", e);
+                mNeedsSnapshot = true;
+            } finally {
+                IoUtils.closeQuietly(in);
+            }
+
+            final List<JobStatus> result = new ArrayList<>(jobsByKey.size());
+            for (int i = 0; i < jobsByKey.size(); i++) {
+                result.add(jobsByKey.valueAt(i));
+            }
+            return result;
+        }
+
+        private int replayJournalBatch(byte[] payload, LongSparseArray<JobStatus> jobsByKey)
+                throws XmlPullParserException, IOException {
+            final XmlPullParser parser =
+                    XmlUtils.resolvePullParser(new ByteArrayInputStream(payload));
+            int records = 0;
+            int eventType = parser.getEventType();
+            while (eventType != XmlPullParser.END_DOCUMENT) {
+                if (eventType == XmlPullParser.START_TAG) {
+                    final String tagName = parser.getName();
+                    if ("job".equals(tagName)) {
+                        final JobStatus job = restoreJobFromXml(rtcGood, parser);
+                        if (job != null) {
+                            jobsByKey.put(journalKey(job.getUid(), job.getJobId()), job);
+                        } else {
+                            Slog.d(TAG, "Error reading job from journal.");
+                        }
+                        records++;
+                    } else if (XML_TAG_REMOVED.equals(tagName)) {
+                        try {
+                            final int uid = Integer.parseInt(
+                                    parser.getAttributeValue(null, "uid"));
+                            final int jobId = Integer.parseInt(
+                                    parser.getAttributeValue(null, "jobid"));
+                            jobsByKey.remove(journalKey(uid, jobId));
+                        } catch (NumberFormatException e) {
+                            Slog.d(TAG, "Error reading removed job from journal.");
+                        }
+                        records++;
+                    }
+                }
+                eventType = parser.next();
+            }
+            return records;
+        }
+
         private List<JobStatus> readJobMapImpl(FileInputStream fis, boolean rtcIsGood)
                 throws XmlPullParserException, IOException {
-            XmlPullParser parser = Xml.newPullParser();
-            parser.setInput(fis, StandardCharsets.UTF_8.name());
+            XmlPullParser parser = XmlUtils.resolvePullParser(fis);
 
             int eventType = parser.getEventType();
             while (eventType != XmlPullParser.START_TAG &&
@@ -648,6 +989,15 @@ public final class JobStore {
                     Slog.e(TAG, "Invalid version number, aborting jobs file read.");
                     return null;
                 }
+                final String generation =
+                        parser.getAttributeValue(null, XML_ATTR_JOURNAL_GENERATION);
+                if (generation != null) {
+                    try {
+                        mReadGeneration = Long.parseLong(generation);
+                    } catch (NumberFormatException e) {
+                        Slog.w(TAG, "Invalid journal generation, ignoring the journal.");
+                    }
+                }
                 eventType = parser.next();
                 do {
                     // Read each <job/>
@@ -961,9 +1311,11 @@ public final class JobStore {
         }
     }
 
-    static final class JobSet {
+    static final class JobSet implements JobStatus.ReadyStateListener {
         // Key is the getUid() originator of the jobs in each sheaf
         private SparseArray<ArraySet<JobStatus>> mJobs;
+        // The jobs whose JobStatus#isReady() is true, kept up to date as constraints change
+        private final ArraySet<JobStatus> mReadyJobs = new ArraySet<JobStatus>();
 
         public JobSet() {
             mJobs = new SparseArray<ArraySet<JobStatus>>();
@@ -999,26 +1351,56 @@ public final class JobStore {
                 jobs = new ArraySet<JobStatus>();
                 mJobs.put(uid, jobs);
             }
-            return jobs.add(job);
+            final boolean added = jobs.add(job);
+            if (added) {
+                job.setReadyStateListener(this);
+                if (job.isReady()) {
+                    mReadyJobs.add(job);
+                }
+            }
+            return added;
         }
 
         public boolean remove(JobStatus job) {
             final int uid = job.getUid();
             ArraySet<JobStatus> jobs = mJobs.get(uid);
             boolean didRemove = (jobs != null) ? jobs.remove(job) : false;
-            if (didRemove && jobs.size() == 0) {
-                // no more jobs for this uid; let the now-empty set object be GC'd.
-                mJobs.remove(uid);
+            if (didRemove) {
+                untrackReadyState(job);
+                if (jobs.size() == 0) {
+                    // no more jobs for this uid; let the now-empty set object be GC'd.
+                    mJobs.remove(uid);
+                }
             }
             return didRemove;
         }
 
+        private void untrackReadyState(JobStatus job) {
+            mReadyJobs.remove(job);
+            if (job.getReadyStateListener() == this) {
+                job.setReadyStateListener(null);
+            }
+        }
+
+        @Override
+        public void onReadyStateChanged(JobStatus job, boolean ready) {
+            if (ready) {
+                mReadyJobs.add(job);
+            } else {
+                mReadyJobs.remove(job);
+            }
+        }
+
         // Remove the jobs all users not specified by the whitelist of user ids
         public void removeJobsOfNonUsers(int[] whitelist) {
             for (int jobIndex = mJobs.size() - 1; jobIndex >= 0; jobIndex--) {
                 int jobUserId = UserHandle.getUserId(mJobs.keyAt(jobIndex));
                 // check if job's user id is not in the whitelist
                 if (!ArrayUtils.contains(whitelist, jobUserId)) {
+                    final ArraySet<JobStatus> jobs = mJobs.valueAt(jobIndex);
+                    for (int i = jobs.size() - 1; i >= 0; i--) {
+                        untrackReadyState(jobs.valueAt(i));
+                    }
                     mJobs.removeAt(jobIndex);
                 }
             }
@@ -1061,6 +1443,12 @@ public final class JobStore {
         }
 
         public void clear() {
+            for (int i = mJobs.size() - 1; i >= 0; i--) {
+                final ArraySet<JobStatus> jobs = mJobs.valueAt(i);
+                for (int j = jobs.size() - 1; j >= 0; j--) {
+                    untrackReadyState(jobs.valueAt(j));
+                }
+            }
             mJobs.clear();
         }
 
@@ -1097,6 +1485,16 @@ public final class JobStore {
             }
         }
 
+        public int readySize() {
+            return mReadyJobs.size();
+        }
+
+        public void forEachReadyJob(JobStatusFunctor functor) {
+            for (int i = mReadyJobs.size() - 1; i >= 0; i--) {
+                functor.process(mReadyJobs.valueAt(i));
+            }
+        }
+
         public void forEachJob(int uid, JobStatusFunctor functor) {
             ArraySet<JobStatus> jobs = mJobs.get(uid);
             if (jobs != null) {
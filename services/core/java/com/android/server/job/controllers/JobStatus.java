@@ -131,6 +131,18 @@ public final class JobStatus {
     // Set to true if doze constraint was satisfied due to app being whitelisted.
     public boolean dozeWhitelisted;
 
+    /**
+     * Receives changes to {@link #isReady()}, so that the ready jobs can be found without
+     * going through every job each time a constraint changes.
+     */
+    public interface ReadyStateListener {
+        void onReadyStateChanged(JobStatus job, boolean ready);
+    }
+
+    // Cached result of computeReady(), updated whenever one of its inputs changes.
+    private boolean mReady;
+    private ReadyStateListener mReadyStateListener;
+
     /**
      * Flag for {@link #trackingControllers}: the battery controller is currently tracking this job.
      */
@@ -177,7 +189,7 @@ public final class JobStatus {
 
     public int nextPendingWorkId = 1;
 
-    // Used by shell commands
+    // Used by shell commands; set through setOverrideState().
     public int overrideState = 0;
 
     // When this job was enqueued, for ordering.  (in elapsedRealtimeMillis)
@@ -713,9 +725,37 @@ public final class JobStatus {
             return false;
         }
         satisfiedConstraints = (satisfiedConstraints&~constraint) | (state ? constraint : 0);
+        updateReadyState();
         return true;
     }
 
+    public void setOverrideState(int state) {
+        overrideState = state;
+        updateReadyState();
+    }
+
+    /**
+     * Sets the listener told about changes to {@link #isReady()}; a job has at most one,
+     * the set of jobs it belongs to.
+     */
+    public void setReadyStateListener(ReadyStateListener listener) {
+        mReadyStateListener = listener;
+    }
+
+    public ReadyStateListener getReadyStateListener() {
+        return mReadyStateListener;
+    }
+
+    private void updateReadyState() {
+        final boolean ready = computeReady();
+        if (ready != mReady) {
+            mReady = ready;
+            if (mReadyStateListener != null) {
+                mReadyStateListener.onReadyStateChanged(this, ready);
+            }
+        }
+    }
+
     boolean isConstraintSatisfied(int constraint) {
         return (satisfiedConstraints&constraint) != 0;
     }
@@ -748,11 +788,14 @@ public final class JobStatus {
     /**
      * @return Whether or not this job is ready to run, based on its requirements. This is true if
      * the constraints are satisfied <strong>or</strong> the deadline on the job has expired.
-     * TODO: This function is called a *lot*.  We should probably just have it check an
-     * already-computed boolean, which we updated whenever we see one of the states it depends
-     * on here change.
+     * This is called a *lot*, so it returns a value computed whenever one of the states it
+     * depends on changes.
      */
     public boolean isReady() {
+        return mReady;
+    }
+
+    private boolean computeReady() {
         // Deadline constraint trumps other constraints (except for periodic jobs where deadline
         // is an implementation detail. A periodic job should only run if its constraints are
         // satisfied).
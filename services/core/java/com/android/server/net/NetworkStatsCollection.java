@@ -65,6 +65,7 @@ import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintWriter;
+import java.io.PushbackInputStream;
 import java.net.ProtocolException;
 import java.time.ZonedDateTime;
 import java.util.ArrayList;
@@ -99,11 +100,35 @@ public class NetworkStatsCollection implements FileRotator.Reader {
     private long mTotalBytes;
     private boolean mDirty;
 
+    /**
+     * When set, only histories of {@link #mFilterUid} are kept, trimmed to
+     * [{@link #mFilterStart}, {@link #mFilterEnd}].
+     */
+    private boolean mFiltered;
+    private int mFilterUid;
+    private long mFilterStart;
+    private long mFilterEnd;
+
     public NetworkStatsCollection(long bucketDuration) {
         mBucketDuration = bucketDuration;
         reset();
     }
 
+    /**
+     * Create a collection that, while reading or recording other collections, only
+     * keeps the histories of the given UID within the given time range. Meant for
+     * answering a single UID query without loading every other UID along with it.
+     */
+    public static NetworkStatsCollection forUid(long bucketDuration, int uid, long start,
+            long end) {
+        final NetworkStatsCollection collection = new NetworkStatsCollection(bucketDuration);
+        collection.mFiltered = true;
+        collection.mFilterUid = uid;
+        collection.mFilterStart = start;
+        collection.mFilterEnd = end;
+        return collection;
+    }
+
     public void reset() {
         mStats.clear();
         mStartMillis = Long.MAX_VALUE;
@@ -396,6 +421,10 @@ public class NetworkStatsCollection implements FileRotator.Reader {
      */
     private void recordHistory(Key key, NetworkStatsHistory history) {
         if (history.size() == 0) return;
+        if (mFiltered) {
+            if (key.uid != mFilterUid) return;
+            if (history.getStart() > mFilterEnd || history.getEnd() < mFilterStart) return;
+        }
         noteRecordedHistory(history.getStart(), history.getEnd(), history.getTotalBytes());
 
         NetworkStatsHistory target = mStats.get(key);
@@ -403,7 +432,11 @@ public class NetworkStatsCollection implements FileRotator.Reader {
             target = new NetworkStatsHistory(history.getBucketDuration());
             mStats.put(key, target);
         }
-        target.recordEntireHistory(history);
+        if (mFiltered) {
+            target.recordHistory(history, mFilterStart, mFilterEnd);
+        } else {
+            target.recordEntireHistory(history);
+        }
     }
 
     /**
@@ -439,9 +472,30 @@ public class NetworkStatsCollection implements FileRotator.Reader {
         }
     }
 
+    /**
+     * Read a persisted collection, followed by any collections that
+     * {@link NetworkStatsRecorder} appended to the same file since it was last
+     * rewritten. A truncated trailing append, left behind by a crash while
+     * appending, is dropped.
+     */
     @Override
     public void read(InputStream in) throws IOException {
-        read(new DataInputStream(in));
+        final PushbackInputStream pin = new PushbackInputStream(in);
+        final DataInputStream din = new DataInputStream(pin);
+        read(din);
+
+        int next;
+        while ((next = pin.read()) != -1) {
+            pin.unread(next);
+            final NetworkStatsCollection appended = new NetworkStatsCollection(mBucketDuration);
+            try {
+                appended.read(din);
+            } catch (IOException e) {
+                Slog.w(TAG, "dropping incomplete appended stats", e);
+                break;
+            }
+            recordCollection(appended);
+        }
     }
 
     public void read(DataInputStream in) throws IOException {
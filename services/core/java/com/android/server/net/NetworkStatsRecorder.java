@@ -75,6 +75,12 @@ public class NetworkStatsRecorder {
     /** Dump before deleting in {@link #recoverFromWtf()}. */
     private static final boolean DUMP_BEFORE_DELETE = true;
 
+    /**
+     * Number of pending snapshots appended to the active file before it is
+     * rewritten as a single collection again.
+     */
+    private static final int MAX_APPENDS_BEFORE_COMPACT = 16;
+
     private final FileRotator mRotator;
     private final NonMonotonicObserver<String> mObserver;
     private final DropBoxManager mDropBox;
@@ -90,6 +96,13 @@ public class NetworkStatsRecorder {
     private final NetworkStatsCollection mSinceBoot;
 
     private final CombiningRewriter mPendingRewriter;
+    private final CollectionWriter mPendingWriter;
+
+    /**
+     * Appends made to the active file since it was last rewritten. Starts out at
+     * the limit since appends from before boot are unknown.
+     */
+    private int mAppendsSinceCompact = MAX_APPENDS_BEFORE_COMPACT;
 
     private WeakReference<NetworkStatsCollection> mComplete;
 
@@ -111,6 +124,7 @@ public class NetworkStatsRecorder {
         mSinceBoot = new NetworkStatsCollection(mBucketDuration);
 
         mPendingRewriter = null;
+        mPendingWriter = null;
     }
 
     /**
@@ -130,6 +144,7 @@ public class NetworkStatsRecorder {
         mSinceBoot = new NetworkStatsCollection(bucketDuration);
 
         mPendingRewriter = new CombiningRewriter(mPending);
+        mPendingWriter = new CollectionWriter(mPending);
     }
 
     public void setPersistThreshold(long thresholdBytes) {
@@ -185,6 +200,33 @@ public class NetworkStatsRecorder {
         return res;
     }
 
+    /**
+     * Return history of a single UID between the given times. Uses the complete
+     * history when it is already loaded, otherwise only reads the UID's own
+     * history out of the files covering the requested range.
+     */
+    public NetworkStatsCollection getOrLoadUidLocked(int uid, long start, long end) {
+        checkNotNull(mRotator, "missing FileRotator");
+        final NetworkStatsCollection complete = mComplete != null ? mComplete.get() : null;
+        if (complete != null) {
+            return complete;
+        }
+        if (LOGD) Slog.d(TAG, "getOrLoadUidLocked() reading uid " + uid + " for " + mCookie);
+        final NetworkStatsCollection res = NetworkStatsCollection.forUid(
+                mBucketDuration, uid, start, end);
+        try {
+            mRotator.readMatching(res, start, end);
+            res.recordCollection(mPending);
+        } catch (IOException e) {
+            Log.wtf(TAG, "problem reading network stats for uid " + uid, e);
+            recoverFromWtf();
+        } catch (OutOfMemoryError e) {
+            Log.wtf(TAG, "problem reading network stats for uid " + uid, e);
+            recoverFromWtf();
+        }
+        return res;
+    }
+
     private NetworkStatsCollection loadLocked(long start, long end) {
         if (LOGD) Slog.d(TAG, "loadLocked() reading from disk for " + mCookie);
         final NetworkStatsCollection res = new NetworkStatsCollection(mBucketDuration);
@@ -297,7 +339,16 @@ public class NetworkStatsRecorder {
         if (mPending.isDirty()) {
             if (LOGD) Slog.d(TAG, "forcePersistLocked() writing for " + mCookie);
             try {
-                mRotator.rewriteActive(mPendingRewriter, currentTimeMillis);
+                // Append pending deltas to the active file rather than reading
+                // and rewriting all of it, folding the appends back into a
+                // single collection every so often.
+                if (mAppendsSinceCompact < MAX_APPENDS_BEFORE_COMPACT) {
+                    mRotator.appendActive(mPendingWriter, currentTimeMillis);
+                    mAppendsSinceCompact++;
+                } else {
+                    mRotator.rewriteActive(mPendingRewriter, currentTimeMillis);
+                    mAppendsSinceCompact = 0;
+                }
                 mRotator.maybeRotate(currentTimeMillis);
                 mPending.reset();
             } catch (IOException e) {
@@ -381,6 +432,23 @@ public class NetworkStatsRecorder {
         }
     }
 
+    /**
+     * Writer that appends the current {@link NetworkStatsCollection} values to
+     * whatever is already on disk.
+     */
+    private static class CollectionWriter implements FileRotator.Writer {
+        private final NetworkStatsCollection mCollection;
+
+        public CollectionWriter(NetworkStatsCollection collection) {
+            mCollection = checkNotNull(collection, "missing NetworkStatsCollection");
+        }
+
+        @Override
+        public void write(OutputStream out) throws IOException {
+            mCollection.write(new DataOutputStream(out));
+        }
+    }
+
     /**
      * Rewriter that will remove any {@link NetworkStatsHistory} attributed to
      * the requested UID, only writing data back when modified.
@@ -532,6 +532,23 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                 }
             }
 
+            /**
+             * Stats covering the given uid between the given times; only reads that
+             * uid from disk unless this session already holds the complete stats.
+             */
+            private NetworkStatsCollection getUidStats(int uid, int tag, long start,
+                    long end) {
+                synchronized (mStatsLock) {
+                    if (tag == TAG_NONE) {
+                        return mUidComplete != null ? mUidComplete
+                                : mUidRecorder.getOrLoadUidLocked(uid, start, end);
+                    } else {
+                        return mUidTagComplete != null ? mUidTagComplete
+                                : mUidTagRecorder.getOrLoadUidLocked(uid, start, end);
+                    }
+                }
+            }
+
             @Override
             public int[] getRelevantUids() {
                 return getUidComplete().getRelevantUids(mAccessLevel);
@@ -580,13 +597,9 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
             public NetworkStatsHistory getHistoryForUid(
                     NetworkTemplate template, int uid, int set, int tag, int fields) {
                 // NOTE: We don't augment UID-level statistics
-                if (tag == TAG_NONE) {
-                    return getUidComplete().getHistory(template, null, uid, set, tag, fields,
-                            Long.MIN_VALUE, Long.MAX_VALUE, mAccessLevel, mCallingUid);
-                } else {
-                    return getUidTagComplete().getHistory(template, null, uid, set, tag, fields,
-                            Long.MIN_VALUE, Long.MAX_VALUE, mAccessLevel, mCallingUid);
-                }
+                return getUidStats(uid, tag, Long.MIN_VALUE, Long.MAX_VALUE).getHistory(
+                        template, null, uid, set, tag, fields, Long.MIN_VALUE, Long.MAX_VALUE,
+                        mAccessLevel, mCallingUid);
             }
 
             @Override
@@ -594,12 +607,9 @@ public class NetworkStatsService extends INetworkStatsService.Stub {
                     NetworkTemplate template, int uid, int set, int tag, int fields,
                     long start, long end) {
                 // NOTE: We don't augment UID-level statistics
-                if (tag == TAG_NONE) {
-                    return getUidComplete().getHistory(template, null, uid, set, tag, fields,
-                            start, end, mAccessLevel, mCallingUid);
-                } else if (uid == Binder.getCallingUid()) {
-                    return getUidTagComplete().getHistory(template, null, uid, set, tag, fields,
-                            start, end, mAccessLevel, mCallingUid);
+                if (tag == TAG_NONE || uid == Binder.getCallingUid()) {
+                    return getUidStats(uid, tag, start, end).getHistory(template, null, uid,
+                            set, tag, fields, start, end, mAccessLevel, mCallingUid);
                 } else {
                     throw new SecurityException("Calling package " + mCallingPackage
                             + " cannot access tag information from a different uid");
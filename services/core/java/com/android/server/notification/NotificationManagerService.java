@@ -2465,6 +2465,15 @@ public class NotificationManagerService extends SystemService {
             }
         }
 
+        @Override
+        public void requestRankingResyncFromListener(INotificationListener token) {
+            synchronized (mNotificationLock) {
+                final ManagedServiceInfo info = mListeners.checkServiceTokenLocked(token);
+                if (info == null) return;
+                mListeners.resyncRankingLocked(info);
+            }
+        }
+
         @Override
         public int getZenMode() {
             return mZenModeHelper.getZenMode();
@@ -3431,7 +3440,7 @@ public class NotificationManagerService extends SystemService {
             // initially *and* force remove FLAG_FOREGROUND_SERVICE.
             sbn.getNotification().flags =
                     (r.mOriginalFlags & ~Notification.FLAG_FOREGROUND_SERVICE);
-            mRankingHelper.sort(mNotificationList);
+            rankNotificationLocked(r, null);
             mListeners.notifyPostedLocked(sbn, sbn /* oldSbn */);
         }
     };
@@ -3871,11 +3880,13 @@ public class NotificationManagerService extends SystemService {
                     final StatusBarNotification n = r.sbn;
                     final Notification notification = n.getNotification();
                     int index = indexOfNotificationLocked(n.getKey());
+                    NotificationRecord replaced = null;
                     if (index < 0) {
                         mNotificationList.add(r);
                         mUsageStats.registerPostedByApp(r);
                     } else {
                         old = mNotificationList.get(index);
+                        replaced = old;
                         mNotificationList.set(index, r);
                         mUsageStats.registerUpdatedByApp(r, old);
                         // Make sure we don't lose the foreground service state.
@@ -3894,7 +3905,7 @@ public class NotificationManagerService extends SystemService {
                     }
 
                     applyZenModeLocked(r);
-                    mRankingHelper.sort(mNotificationList);
+                    rankNotificationLocked(r, replaced);
 
                     if (notification.getSmallIcon() != null) {
                         StatusBarNotification oldSbn = (old != null) ? old.sbn : null;
@@ -4383,7 +4394,7 @@ public class NotificationManagerService extends SystemService {
             int visibilityBefore = record.getPackageVisibilityOverride();
             recon.applyChangesLocked(record);
             applyZenModeLocked(record);
-            mRankingHelper.sort(mNotificationList);
+            rankNotificationLocked(record, null);
             int indexAfter = findNotificationRecordIndexLocked(record);
             boolean interceptAfter = record.isIntercepted();
             float contactAffinityAfter = record.getContactAffinity();
@@ -4462,6 +4473,18 @@ public class NotificationManagerService extends SystemService {
         }
     }
 
+    /**
+     * Re-ranks a single record that was just added to {@link #mNotificationList}, replaced
+     * {@code replaced} in it, or whose signals changed, falling back to a full sort when the
+     * rest of the list can't be kept in place.
+     */
+    @GuardedBy("mNotificationLock")
+    private void rankNotificationLocked(NotificationRecord record, NotificationRecord replaced) {
+        if (!mRankingHelper.sortIncrementally(mNotificationList, record, replaced)) {
+            mRankingHelper.sort(mNotificationList);
+        }
+    }
+
     @GuardedBy("mNotificationLock")
     private int findNotificationRecordIndexLocked(NotificationRecord target) {
         return mRankingHelper.indexOf(mNotificationList, target);
@@ -4606,6 +4629,7 @@ public class NotificationManagerService extends SystemService {
         if ((recordInList = findNotificationByListLocked(mNotificationList, r.getKey()))
                 != null) {
             mNotificationList.remove(recordInList);
+            mRankingHelper.onRecordRemoved(recordInList);
             mNotificationsByKey.remove(recordInList.sbn.getKey());
             wasPosted = true;
         }
@@ -4885,6 +4909,7 @@ public class NotificationManagerService extends SystemService {
                 canceledNotifications = new ArrayList<>();
             }
             notificationList.remove(i);
+            mRankingHelper.onRecordRemoved(r);
             mNotificationsByKey.remove(r.getKey());
             canceledNotifications.add(r);
             cancelNotificationLocked(r, sendDelete, reason, wasPosted, listenerName);
@@ -4996,6 +5021,7 @@ public class NotificationManagerService extends SystemService {
                 EventLogTags.writeNotificationCancel(callingUid, callingPid, pkg, childSbn.getId(),
                         childSbn.getTag(), userId, 0, 0, reason, listenerName);
                 notificationList.remove(i);
+                mRankingHelper.onRecordRemoved(childR);
                 mNotificationsByKey.remove(childR.getKey());
                 cancelNotificationLocked(childR, sendDelete, reason, wasPosted, listenerName);
             }
@@ -5225,7 +5251,8 @@ public class NotificationManagerService extends SystemService {
      * notifications visible to the given listener.
      */
     @GuardedBy("mNotificationLock")
-    private NotificationRankingUpdate makeRankingUpdateLocked(ManagedServiceInfo info) {
+    private NotificationRankingUpdate makeRankingUpdateLocked(ManagedServiceInfo info,
+            int version) {
         final int N = mNotificationList.size();
         ArrayList<String> keys = new ArrayList<String>(N);
         ArrayList<String> interceptedKeys = new ArrayList<String>(N);
@@ -5271,9 +5298,9 @@ public class NotificationManagerService extends SystemService {
         for (int i = 0; i < M; i++) {
             importanceAr[i] = importance.get(i);
         }
-        return new NotificationRankingUpdate(keysAr, interceptedKeysAr, visibilityOverrides,
-                suppressedVisualEffects, importanceAr, explanation, overrideGroupKeys,
-                channels, overridePeople, snoozeCriteria, showBadge);
+        return new NotificationRankingUpdate(version, keysAr, interceptedKeysAr,
+                visibilityOverrides, suppressedVisualEffects, importanceAr, explanation,
+                overrideGroupKeys, channels, overridePeople, snoozeCriteria, showBadge);
     }
 
     boolean hasCompanionDevice(ManagedServiceInfo info) {
@@ -5465,6 +5492,12 @@ public class NotificationManagerService extends SystemService {
         static final String TAG_ENABLED_NOTIFICATION_LISTENERS = "enabled_listeners";
 
         private final ArraySet<ManagedServiceInfo> mLightTrimListeners = new ArraySet<>();
+        // The last full ranking each listener was sent, later updates only carry the changes.
+        private final ArrayMap<ManagedServiceInfo, NotificationRankingUpdate>
+                mLastRankingUpdates = new ArrayMap<>();
+        // The last ranking version made for each listener. Unlike mLastRankingUpdates this
+        // survives resyncs, so a version is never handed out twice to the same listener.
+        private final ArrayMap<ManagedServiceInfo, Integer> mRankingVersions = new ArrayMap<>();
 
         public NotificationListeners(IPackageManager pm) {
             super(getContext(), mNotificationLock, mUserProfiles, pm);
@@ -5499,7 +5532,8 @@ public class NotificationManagerService extends SystemService {
             final INotificationListener listener = (INotificationListener) info.service;
             final NotificationRankingUpdate update;
             synchronized (mNotificationLock) {
-                update = makeRankingUpdateLocked(info);
+                mLastRankingUpdates.remove(info);
+                update = makeListenerRankingUpdateLocked(info);
             }
             try {
                 listener.onListenerConnected(update);
@@ -5516,6 +5550,8 @@ public class NotificationManagerService extends SystemService {
                 updateEffectsSuppressorLocked();
             }
             mLightTrimListeners.remove(removed);
+            mLastRankingUpdates.remove(removed);
+            mRankingVersions.remove(removed);
         }
 
         @GuardedBy("mNotificationLock")
@@ -5531,6 +5567,37 @@ public class NotificationManagerService extends SystemService {
             return mLightTrimListeners.contains(info) ? TRIM_LIGHT : TRIM_FULL;
         }
 
+        /**
+         * Returns the ranking update for the given listener as a delta against the last one
+         * it was sent, or as a full snapshot if there is none.
+         */
+        @GuardedBy("mNotificationLock")
+        private NotificationRankingUpdate makeListenerRankingUpdateLocked(
+                ManagedServiceInfo info) {
+            final NotificationRankingUpdate last = mLastRankingUpdates.get(info);
+            final Integer lastVersion = mRankingVersions.get(info);
+            final int version = lastVersion != null ? lastVersion + 1 : 1;
+            mRankingVersions.put(info, version);
+            final NotificationRankingUpdate update = makeRankingUpdateLocked(info, version);
+            mLastRankingUpdates.put(info, update);
+            return last != null ? update.createDelta(last) : update;
+        }
+
+        /**
+         * Sends a full ranking update to a listener that lost track of the deltas.
+         */
+        @GuardedBy("mNotificationLock")
+        public void resyncRankingLocked(final ManagedServiceInfo info) {
+            mLastRankingUpdates.remove(info);
+            final NotificationRankingUpdate update = makeListenerRankingUpdateLocked(info);
+            mHandler.post(new Runnable() {
+                @Override
+                public void run() {
+                    notifyRankingUpdate(info, update);
+                }
+            });
+        }
+
         /**
          * asynchronously notify all listeners about a new notification
          *
@@ -5550,7 +5617,7 @@ public class NotificationManagerService extends SystemService {
                 if (!oldSbnVisible && !sbnVisible) {
                     continue;
                 }
-                final NotificationRankingUpdate update = makeRankingUpdateLocked(info);
+                final NotificationRankingUpdate update = makeListenerRankingUpdateLocked(info);
 
                 // This notification became invisible -> remove the old one.
                 if (oldSbnVisible && !sbnVisible) {
@@ -5587,7 +5654,7 @@ public class NotificationManagerService extends SystemService {
                 if (!isVisibleToListener(sbn, info)) {
                     continue;
                 }
-                final NotificationRankingUpdate update = makeRankingUpdateLocked(info);
+                final NotificationRankingUpdate update = makeListenerRankingUpdateLocked(info);
                 mHandler.post(new Runnable() {
                     @Override
                     public void run() {
@@ -5606,7 +5673,8 @@ public class NotificationManagerService extends SystemService {
                 if (!serviceInfo.isEnabledForCurrentProfiles()) {
                     continue;
                 }
-                final NotificationRankingUpdate update = makeRankingUpdateLocked(serviceInfo);
+                final NotificationRankingUpdate update =
+                        makeListenerRankingUpdateLocked(serviceInfo);
                 mHandler.post(new Runnable() {
                     @Override
                     public void run() {
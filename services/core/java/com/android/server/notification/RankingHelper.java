@@ -38,6 +38,7 @@ import android.provider.Settings.Secure;
 import android.service.notification.NotificationListenerService.Ranking;
 import android.text.TextUtils;
 import android.util.ArrayMap;
+import android.util.ArraySet;
 import android.util.Slog;
 import android.util.SparseBooleanArray;
 
@@ -84,14 +85,29 @@ public class RankingHelper implements RankingConfig {
     private static final int DEFAULT_IMPORTANCE = NotificationManager.IMPORTANCE_UNSPECIFIED;
     private static final boolean DEFAULT_SHOW_BADGE = true;
 
+    // Preliminary ranks are spread out so that a re-ranked record can usually be given a rank
+    // between its new neighbours without renumbering the others.
+    private static final int RANK_BASE = 1 << 24;
+    private static final int RANK_GAP = 1 << 12;
+    // Stands for the rank of a group that had no proxy; real ranks are never negative.
+    private static final int NO_GROUP_RANK = -1;
+
     private final NotificationSignalExtractor[] mSignalExtractors;
     private final NotificationComparator mPreliminaryComparator;
     private final GlobalSortKeyComparator mFinalComparator = new GlobalSortKeyComparator();
 
     private final ArrayMap<String, Record> mRecords = new ArrayMap<>(); // pkg|uid => Record
-    private final ArrayMap<String, NotificationRecord> mProxyByGroupTmp = new ArrayMap<>();
     private final ArrayMap<String, Record> mRestoredWithoutUids = new ArrayMap<>(); // pkg => Record
 
+    // Records of the list last ranked by sort(), in preliminary order and by group key, so
+    // that a single record can be re-ranked without sorting the whole list again.
+    private final ArrayList<NotificationRecord> mPreliminaryOrder = new ArrayList<>();
+    private final ArrayMap<String, ArrayList<NotificationRecord>> mGroupMembers =
+            new ArrayMap<>();
+    private final ArraySet<String> mStaleGroups = new ArraySet<>();
+    private final ArrayList<NotificationRecord> mRekeyTmp = new ArrayList<>();
+    private ArrayList<NotificationRecord> mIndexedList;
+
     private final Context mContext;
     private final RankingHandler mRankingHandler;
     private final PackageManager mPm;
@@ -428,60 +444,294 @@ public class RankingHelper implements RankingConfig {
         // rank each record individually
         Collections.sort(notificationList, mPreliminaryComparator);
 
-        synchronized (mProxyByGroupTmp) {
-            // record individual ranking result and nominate proxies for each group
-            for (int i = N - 1; i >= 0; i--) {
+        synchronized (mPreliminaryOrder) {
+            // record individual ranking result and collect the members of each group; the
+            // first member of a group is its proxy. Ranks are spaced out so that later
+            // single-record updates can usually slot in between two neighbours.
+            mIndexedList = notificationList;
+            mPreliminaryOrder.clear();
+            mGroupMembers.clear();
+            mStaleGroups.clear();
+            final int gap = Math.min(RANK_GAP, (Integer.MAX_VALUE - RANK_BASE) / (N + 1));
+            for (int i = 0; i < N; i++) {
                 final NotificationRecord record = notificationList.get(i);
-                record.setAuthoritativeRank(i);
-                final String groupKey = record.getGroupKey();
-                NotificationRecord existingProxy = mProxyByGroupTmp.get(groupKey);
-                if (existingProxy == null) {
-                    mProxyByGroupTmp.put(groupKey, record);
-                }
+                record.setAuthoritativeRank(RANK_BASE + i * gap);
+                mPreliminaryOrder.add(record);
+                getGroupMembersLocked(record.getGroupKey(), true).add(record);
             }
             // assign global sort key:
             //   is_recently_intrusive:group_rank:is_group_summary:group_sort_key:rank
             for (int i = 0; i < N; i++) {
                 final NotificationRecord record = notificationList.get(i);
-                NotificationRecord groupProxy = mProxyByGroupTmp.get(record.getGroupKey());
-                String groupSortKey = record.getNotification().getSortKey();
-
-                // We need to make sure the developer provided group sort key (gsk) is handled
-                // correctly:
-                //   gsk="" < gsk=non-null-string < gsk=null
-                //
-                // We enforce this by using different prefixes for these three cases.
-                String groupSortKeyPortion;
-                if (groupSortKey == null) {
-                    groupSortKeyPortion = "nsk";
-                } else if (groupSortKey.equals("")) {
-                    groupSortKeyPortion = "esk";
-                } else {
-                    groupSortKeyPortion = "gsk=" + groupSortKey;
-                }
-
-                boolean isGroupSummary = record.getNotification().isGroupSummary();
-                record.setGlobalSortKey(
-                        String.format("intrsv=%c:grnk=0x%04x:gsmry=%c:%s:rnk=0x%04x",
-                        record.isRecentlyIntrusive()
-                                && record.getImportance() > NotificationManager.IMPORTANCE_MIN
-                                ? '0' : '1',
-                        groupProxy.getAuthoritativeRank(),
-                        isGroupSummary ? '0' : '1',
-                        groupSortKeyPortion,
-                        record.getAuthoritativeRank()));
+                updateGlobalSortKey(record,
+                        getGroupMembersLocked(record.getGroupKey(), false).get(0));
             }
-            mProxyByGroupTmp.clear();
         }
 
         // Do a second ranking pass, using group proxies
         Collections.sort(notificationList, mFinalComparator);
     }
 
+    /**
+     * Moves a single record to its place in a list that was previously ranked by
+     * {@link #sort}, without re-ranking the records whose signals did not change.
+     *
+     * @param notificationList the list last passed to {@link #sort}, already containing
+     *        {@code record}
+     * @param record the record that was added or whose signals changed
+     * @param old the record that {@code record} replaced in the list, if any
+     * @return false if the list could not be updated in place, in which case the caller
+     *         must fall back to {@link #sort}
+     */
+    public boolean sortIncrementally(ArrayList<NotificationRecord> notificationList,
+            NotificationRecord record, NotificationRecord old) {
+        synchronized (mPreliminaryOrder) {
+            if (mIndexedList != notificationList) {
+                return false;
+            }
+            final int listIndex = findRecordLocked(notificationList, record, old);
+            if (listIndex < 0) {
+                mIndexedList = null;
+                return false;
+            }
+
+            // Take the changed record out of the preliminary order and find its new place. If
+            // the list was modified behind our back, the order can't be trusted anymore.
+            final NotificationRecord previous = old != null ? old : record;
+            removeFromPreliminaryOrderLocked(previous);
+            if (mPreliminaryOrder.size() != notificationList.size() - 1) {
+                mIndexedList = null;
+                return false;
+            }
+            int insert = Collections.binarySearch(mPreliminaryOrder, record,
+                    mPreliminaryComparator);
+            if (insert < 0) {
+                insert = -insert - 1;
+            }
+            final int lower = insert > 0
+                    ? mPreliminaryOrder.get(insert - 1).getAuthoritativeRank() : 0;
+            final int upper = insert < mPreliminaryOrder.size()
+                    ? mPreliminaryOrder.get(insert).getAuthoritativeRank() : Integer.MAX_VALUE;
+            final int rank;
+            if (previous.getAuthoritativeRank() > lower
+                    && previous.getAuthoritativeRank() < upper) {
+                rank = previous.getAuthoritativeRank();
+            } else if (upper - lower < 2) {
+                // No room left between the neighbours, renumber everything.
+                mIndexedList = null;
+                return false;
+            } else if (insert == mPreliminaryOrder.size() && upper - lower > RANK_GAP) {
+                rank = lower + RANK_GAP;
+            } else if (insert == 0 && upper - lower > RANK_GAP) {
+                rank = upper - RANK_GAP;
+            } else {
+                rank = lower + (upper - lower) / 2;
+            }
+            // A record re-ranked in place may be its group's proxy, so keep its old rank for
+            // comparing the group's rank below.
+            final int previousRank = previous.getAuthoritativeRank();
+            record.setAuthoritativeRank(rank);
+            mPreliminaryOrder.add(insert, record);
+
+            // Update group membership; if that changes the rank of a group's proxy, every
+            // member of the group moves with it.
+            final String oldGroupKey = previous.getGroupKey();
+            final String groupKey = record.getGroupKey();
+            final boolean sameGroup = oldGroupKey.equals(groupKey);
+            final NotificationRecord oldGroupProxy = removeFromGroupLocked(previous);
+            final int oldGroupRank = oldGroupProxy == null ? NO_GROUP_RANK
+                    : oldGroupProxy == previous ? previousRank
+                    : oldGroupProxy.getAuthoritativeRank();
+            final ArrayList<NotificationRecord> members = getGroupMembersLocked(groupKey, true);
+            final int groupRank = sameGroup ? oldGroupRank
+                    : members.isEmpty() ? NO_GROUP_RANK : members.get(0).getAuthoritativeRank();
+            addToGroupLocked(members, record);
+
+            mRekeyTmp.clear();
+            notificationList.remove(listIndex);
+            mRekeyTmp.add(record);
+            if (!sameGroup) {
+                takeGroupForRekeyLocked(notificationList, oldGroupKey, oldGroupRank);
+            }
+            takeGroupForRekeyLocked(notificationList, groupKey, groupRank);
+            while (!mStaleGroups.isEmpty()) {
+                takeGroupForRekeyLocked(notificationList,
+                        mStaleGroups.valueAt(mStaleGroups.size() - 1), NO_GROUP_RANK);
+            }
+
+            final int N = mRekeyTmp.size();
+            for (int i = 0; i < N; i++) {
+                final NotificationRecord changed = mRekeyTmp.get(i);
+                updateGlobalSortKey(changed,
+                        getGroupMembersLocked(changed.getGroupKey(), false).get(0));
+                int index = Collections.binarySearch(notificationList, changed, mFinalComparator);
+                if (index < 0) {
+                    index = -index - 1;
+                }
+                notificationList.add(index, changed);
+            }
+            mRekeyTmp.clear();
+            return true;
+        }
+    }
+
+    /**
+     * Forgets a record that was removed from the list last passed to {@link #sort}.
+     */
+    public void onRecordRemoved(NotificationRecord record) {
+        synchronized (mPreliminaryOrder) {
+            if (mIndexedList == null || !removeFromPreliminaryOrderLocked(record)) {
+                return;
+            }
+            // The list may be iterated by the caller, so don't move anything now. If this was
+            // the proxy of its group, the others are re-keyed the next time one of them moves.
+            final NotificationRecord proxy = removeFromGroupLocked(record);
+            if (proxy == record && mGroupMembers.containsKey(record.getGroupKey())) {
+                mStaleGroups.add(record.getGroupKey());
+            }
+        }
+    }
+
     public int indexOf(ArrayList<NotificationRecord> notificationList, NotificationRecord target) {
         return Collections.binarySearch(notificationList, target, mFinalComparator);
     }
 
+    private void updateGlobalSortKey(NotificationRecord record, NotificationRecord groupProxy) {
+        String groupSortKey = record.getNotification().getSortKey();
+
+        // We need to make sure the developer provided group sort key (gsk) is handled
+        // correctly:
+        //   gsk="" < gsk=non-null-string < gsk=null
+        //
+        // We enforce this by using different prefixes for these three cases.
+        String groupSortKeyPortion;
+        if (groupSortKey == null) {
+            groupSortKeyPortion = "nsk";
+        } else if (groupSortKey.equals("")) {
+            groupSortKeyPortion = "esk";
+        } else {
+            groupSortKeyPortion = "gsk=" + groupSortKey;
+        }
+
+        boolean isGroupSummary = record.getNotification().isGroupSummary();
+        record.setGlobalSortKey(
+                String.format("intrsv=%c:grnk=0x%08x:gsmry=%c:%s:rnk=0x%08x",
+                record.isRecentlyIntrusive()
+                        && record.getImportance() > NotificationManager.IMPORTANCE_MIN
+                        ? '0' : '1',
+                groupProxy.getAuthoritativeRank(),
+                isGroupSummary ? '0' : '1',
+                groupSortKeyPortion,
+                record.getAuthoritativeRank()));
+    }
+
+    private int findRecordLocked(ArrayList<NotificationRecord> notificationList,
+            NotificationRecord record, NotificationRecord old) {
+        // An updated record sits where the one it replaced was ranked, a new one is appended.
+        if (old != null && record.getGlobalSortKey() == null) {
+            record.setGlobalSortKey(old.getGlobalSortKey());
+        }
+        if (record.getGlobalSortKey() != null) {
+            final int index = Collections.binarySearch(notificationList, record,
+                    mFinalComparator);
+            if (index >= 0 && notificationList.get(index) == record) {
+                return index;
+            }
+        }
+        final int last = notificationList.size() - 1;
+        if (last >= 0 && notificationList.get(last) == record) {
+            return last;
+        }
+        return notificationList.indexOf(record);
+    }
+
+    private boolean removeFromPreliminaryOrderLocked(NotificationRecord record) {
+        int lo = 0;
+        int hi = mPreliminaryOrder.size() - 1;
+        final int rank = record.getAuthoritativeRank();
+        while (lo <= hi) {
+            final int mid = (lo + hi) >>> 1;
+            final int midRank = mPreliminaryOrder.get(mid).getAuthoritativeRank();
+            if (midRank < rank) {
+                lo = mid + 1;
+            } else if (midRank > rank) {
+                hi = mid - 1;
+            } else {
+                if (mPreliminaryOrder.get(mid) != record) {
+                    return false;
+                }
+                mPreliminaryOrder.remove(mid);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private ArrayList<NotificationRecord> getGroupMembersLocked(String groupKey,
+            boolean create) {
+        ArrayList<NotificationRecord> members = mGroupMembers.get(groupKey);
+        if (members == null && create) {
+            members = new ArrayList<>(1);
+            mGroupMembers.put(groupKey, members);
+        }
+        return members;
+    }
+
+    /**
+     * Removes a record from its group and returns the group's proxy before the removal.
+     */
+    private NotificationRecord removeFromGroupLocked(NotificationRecord record) {
+        final ArrayList<NotificationRecord> members = mGroupMembers.get(record.getGroupKey());
+        if (members == null) {
+            return null;
+        }
+        final NotificationRecord proxy = members.get(0);
+        members.remove(record);
+        if (members.isEmpty()) {
+            mGroupMembers.remove(record.getGroupKey());
+        }
+        return proxy;
+    }
+
+    private static void addToGroupLocked(ArrayList<NotificationRecord> members,
+            NotificationRecord record) {
+        int i = members.size();
+        while (i > 0 && members.get(i - 1).getAuthoritativeRank() > record.getAuthoritativeRank()) {
+            i--;
+        }
+        members.add(i, record);
+    }
+
+    /**
+     * Takes the members of a group out of the list so they can be re-keyed, but only if the
+     * rank of the group's proxy changed from {@code oldRank} or its proxy was removed.
+     */
+    private void takeGroupForRekeyLocked(ArrayList<NotificationRecord> notificationList,
+            String groupKey, int oldRank) {
+        final boolean stale = mStaleGroups.remove(groupKey);
+        final ArrayList<NotificationRecord> members = mGroupMembers.get(groupKey);
+        if (members == null) {
+            return;
+        }
+        if (!stale && (oldRank == NO_GROUP_RANK
+                || members.get(0).getAuthoritativeRank() == oldRank)) {
+            return;
+        }
+        final int N = members.size();
+        for (int i = 0; i < N; i++) {
+            final NotificationRecord member = members.get(i);
+            if (mRekeyTmp.contains(member)) {
+                continue;
+            }
+            final int index = Collections.binarySearch(notificationList, member,
+                    mFinalComparator);
+            if (index >= 0 && notificationList.get(index) == member) {
+                notificationList.remove(index);
+                mRekeyTmp.add(member);
+            }
+        }
+    }
+
     /**
      * Gets importance.
      */
@@ -617,7 +617,7 @@ public class PackageManagerService extends IPackageManager.Stub
      * Version number for the package parser cache. Increment this whenever the format or
      * extent of cached data changes. See {@code PackageParser#setCacheDir}.
      */
-    private static final String PACKAGE_PARSER_CACHE_VERSION = "1";
+    private static final String PACKAGE_PARSER_CACHE_VERSION = "2";
 
     /**
      * Whether the package parser cache is enabled.
@@ -1156,6 +1156,7 @@ public class PackageManagerService extends IPackageManager.Stub
                 } else {
                     ivi.setStatus(INTENT_FILTER_DOMAIN_VERIFICATION_STATUS_ASK);
                 }
+                mSettings.markPackageDirtyLPw(packageName);
                 scheduleWriteSettingsLocked();
 
                 final int userId = ivs.getUserId();
@@ -2792,6 +2793,7 @@ public class PackageManagerService extends IPackageManager.Stub
                         final PackageSetting deletedPs = mSettings.mPackages.get(deletedAppName);
                         deletedPkg.applicationInfo.flags &= ~ApplicationInfo.FLAG_SYSTEM;
                         deletedPs.pkgFlags &= ~ApplicationInfo.FLAG_SYSTEM;
+                        mSettings.markPackageDirtyLPw(deletedAppName);
                     }
                     logCriticalInfo(Log.WARN, msg);
                 }
@@ -2857,6 +2859,14 @@ public class PackageManagerService extends IPackageManager.Stub
                     MetricsLogger.histogram(null, "ota_package_manager_data_app_avg_scan_time",
                             ((int) dataScanTime) / dataPackagesCount);
                 }
+
+                // Every package has been parsed by now, drop the cache entries nobody used.
+                if (mCacheDir != null) {
+                    final int evicted = PackageParser.evictUnusedCacheEntries(mCacheDir);
+                    if (evicted > 0) {
+                        Slog.i(TAG, "Evicted " + evicted + " unused package cache entries");
+                    }
+                }
             }
             mExpectingBetter.clear();
 
@@ -5698,6 +5708,7 @@ public class PackageManagerService extends IPackageManager.Stub
                 // normal runtime permissions.  For now they apply to all users.
                 if (permissionsState.grantInstallPermission(bp) !=
                         PermissionsState.PERMISSION_OPERATION_FAILURE) {
+                    mSettings.markPackageDirtyLPw(packageName);
                     scheduleWriteSettingsLocked();
                 }
                 return;
@@ -5825,6 +5836,7 @@ public class PackageManagerService extends IPackageManager.Stub
                 // normal runtime permissions.  For now they apply to all users.
                 if (permissionsState.revokeInstallPermission(bp) !=
                         PermissionsState.PERMISSION_OPERATION_FAILURE) {
+                    mSettings.markPackageDirtyLPw(packageName);
                     scheduleWriteSettingsLocked();
                 }
                 return;
@@ -6095,6 +6107,7 @@ public class PackageManagerService extends IPackageManager.Stub
                 // Install and runtime permissions are stored in different places,
                 // so figure out what permission changed and persist the change.
                 if (permissionsState.getInstallPermissionState(name) != null) {
+                    mSettings.markPackageDirtyLPw(packageName);
                     scheduleWriteSettingsLocked();
                 } else if (permissionsState.getRuntimePermissionState(name, userId) != null
                         || hadState) {
@@ -9129,6 +9142,8 @@ public class PackageManagerService extends IPackageManager.Stub
             Log.d(TAG, "Scanning app dir " + dir + " scanFlags=" + scanFlags
                     + " flags=0x" + Integer.toHexString(parseFlags));
         }
+        final long startTime = SystemClock.uptimeMillis();
+        final int cachedBefore = PackageParser.sCachedPackageReadCount.get();
         ParallelPackageParser parallelPackageParser = new ParallelPackageParser(
                 mSeparateProcesses, mOnlyCore, mMetrics, mCacheDir,
                 mParallelPackageParserCallback);
@@ -9145,6 +9160,7 @@ public class PackageManagerService extends IPackageManager.Stub
             parallelPackageParser.submit(file, parseFlags);
             fileCount++;
         }
+        final int packageCount = fileCount;
 
         // Process results one by one
         for (; fileCount > 0; fileCount--) {
@@ -9185,6 +9201,17 @@ public class PackageManagerService extends IPackageManager.Stub
             }
         }
         parallelPackageParser.close();
+
+        if ((scanFlags & SCAN_BOOTING) != 0) {
+            final long scanTime = SystemClock.uptimeMillis() - startTime;
+            final long parseTime = parallelPackageParser.getParseTimeMillis();
+            final int cached = PackageParser.sCachedPackageReadCount.get() - cachedBefore;
+            Slog.i(TAG, "Finished scanning " + dir + ". Time: " + scanTime
+                    + " ms, packageCount: " + packageCount + " , parseTime: " + parseTime
+                    + " ms, cached: " + cached);
+            EventLogTags.writePmScanDir(dir.getAbsolutePath(), packageCount, cached, scanTime,
+                    parseTime);
+        }
     }
 
     private static File getSettingsProblemFile() {
@@ -10475,6 +10502,7 @@ public class PackageManagerService extends IPackageManager.Stub
         if (ps != null) {
             ps.firstInstallTime = firstInstallTime;
             ps.lastUpdateTime = lastUpdateTime;
+            mSettings.markPackageDirtyLPw(ps.name);
         }
         // Set children install/update time
         final int childCount = (pkg.childPackages != null) ? pkg.childPackages.size() : 0;
@@ -10484,6 +10512,7 @@ public class PackageManagerService extends IPackageManager.Stub
             if (ps != null) {
                 ps.firstInstallTime = firstInstallTime;
                 ps.lastUpdateTime = lastUpdateTime;
+                mSettings.markPackageDirtyLPw(ps.name);
             }
         }
     }
@@ -12351,6 +12380,7 @@ public class PackageManagerService extends IPackageManager.Stub
                     }
 
                     ps.primaryCpuAbiString = adjustedAbi;
+                    mSettings.markPackageDirtyLPw(ps.name);
                     if (ps.pkg != null && ps.pkg.applicationInfo != null &&
                             !TextUtils.equals(adjustedAbi, ps.pkg.applicationInfo.primaryCpuAbi)) {
                         ps.pkg.applicationInfo.primaryCpuAbi = adjustedAbi;
@@ -13037,6 +13067,8 @@ public class PackageManagerService extends IPackageManager.Stub
         if (ps == null) {
             return;
         }
+        // Install permissions are persisted with the package
+        mSettings.markPackageDirtyLPw(ps.name);
 
         PermissionsState permissionsState = ps.getPermissionsState();
         PermissionsState origPermissions = permissionsState;
@@ -15898,6 +15930,7 @@ public class PackageManagerService extends IPackageManager.Stub
             if (installerPackageName != null) {
                 mSettings.mInstallerPackages.add(installerPackageName);
             }
+            mSettings.markPackageDirtyLPw(targetPackage);
             scheduleWriteSettingsLocked();
         }
     }
@@ -15925,6 +15958,7 @@ public class PackageManagerService extends IPackageManager.Stub
 
             if (ps.categoryHint != categoryHint) {
                 ps.categoryHint = categoryHint;
+                mSettings.markPackageDirtyLPw(packageName);
                 scheduleWriteSettingsLocked();
             }
         }
@@ -18010,11 +18044,13 @@ public class PackageManagerService extends IPackageManager.Stub
                 } else {
                     ps.oldCodePaths = null;
                 }
+                mSettings.markPackageDirtyLPw(pkgName);
                 if (ps.childPackageNames != null) {
                     for (int i = ps.childPackageNames.size() - 1; i >= 0; --i) {
                         final String childPkgName = ps.childPackageNames.get(i);
                         final PackageSetting childPs = mSettings.mPackages.get(childPkgName);
                         childPs.oldCodePaths = ps.oldCodePaths;
+                        mSettings.markPackageDirtyLPw(childPkgName);
                     }
                 }
                 // set instant app status, but, only if it's explicitly specified
@@ -20166,6 +20202,7 @@ public class PackageManagerService extends IPackageManager.Stub
             } else {
                 ps.pkgPrivateFlags &= ~ApplicationInfo.PRIVATE_FLAG_REQUIRED_FOR_SYSTEM_USER;
             }
+            mSettings.markPackageDirtyLPw(packageName);
             mSettings.writeLPr();
         }
         return true;
@@ -20679,6 +20716,7 @@ public class PackageManagerService extends IPackageManager.Stub
             if (permissionsState.updatePermissionFlags(bp, userId, userSettableMask, flags)) {
                 if (hasInstallState) {
                     writeInstallPermissions = true;
+                    mSettings.markPackageDirtyLPw(ps.name);
                 } else {
                     writeRuntimePermissions = true;
                 }
@@ -18,6 +18,7 @@ package com.android.server.pm;
 
 import android.content.pm.PackageParser;
 import android.os.Process;
+import android.os.SystemClock;
 import android.os.Trace;
 import android.util.DisplayMetrics;
 
@@ -29,6 +30,7 @@ import java.util.List;
 import java.util.concurrent.ArrayBlockingQueue;
 import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.atomic.AtomicLong;
 
 import static android.os.Trace.TRACE_TAG_PACKAGE_MANAGER;
 
@@ -40,7 +42,10 @@ import static android.os.Trace.TRACE_TAG_PACKAGE_MANAGER;
 class ParallelPackageParser implements AutoCloseable {
 
     private static final int QUEUE_CAPACITY = 10;
-    private static final int MAX_THREADS = 4;
+    // Parsing from the cache is mostly I/O, so use all cores but stay within reason on
+    // devices that have many of them.
+    private static final int MAX_THREADS =
+            Math.max(2, Math.min(Runtime.getRuntime().availableProcessors(), 8));
 
     private final String[] mSeparateProcesses;
     private final boolean mOnlyCore;
@@ -48,6 +53,7 @@ class ParallelPackageParser implements AutoCloseable {
     private final File mCacheDir;
     private final PackageParser.Callback mPackageParserCallback;
     private volatile String mInterruptedInThread;
+    private final AtomicLong mParseTimeMs = new AtomicLong();
 
     private final BlockingQueue<ParseResult> mQueue = new ArrayBlockingQueue<>(QUEUE_CAPACITY);
 
@@ -106,6 +112,7 @@ class ParallelPackageParser implements AutoCloseable {
         mService.submit(() -> {
             ParseResult pr = new ParseResult();
             Trace.traceBegin(TRACE_TAG_PACKAGE_MANAGER, "parallel parsePackage [" + scanFile + "]");
+            final long startTime = SystemClock.uptimeMillis();
             try {
                 PackageParser pp = new PackageParser();
                 pp.setSeparateProcesses(mSeparateProcesses);
@@ -118,6 +125,7 @@ class ParallelPackageParser implements AutoCloseable {
             } catch (Throwable e) {
                 pr.throwable = e;
             } finally {
+                mParseTimeMs.addAndGet(SystemClock.uptimeMillis() - startTime);
                 Trace.traceEnd(TRACE_TAG_PACKAGE_MANAGER);
             }
             try {
@@ -132,6 +140,13 @@ class ParallelPackageParser implements AutoCloseable {
         });
     }
 
+    /**
+     * Returns the time spent parsing the submitted files so far, summed over all threads.
+     */
+    public long getParseTimeMillis() {
+        return mParseTimeMs.get();
+    }
+
     @VisibleForTesting
     protected PackageParser.Package parsePackage(PackageParser packageParser, File scanFile,
             int parseFlags) throws PackageParser.PackageParserException {
@@ -61,6 +61,7 @@ import android.os.Message;
 import android.os.PatternMatcher;
 import android.os.Process;
 import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.os.UserHandle;
 import android.os.UserManager;
 import android.os.storage.StorageManager;
@@ -83,6 +84,7 @@ import android.util.proto.ProtoOutputStream;
 import com.android.internal.annotations.GuardedBy;
 import com.android.internal.os.BackgroundThread;
 import com.android.internal.util.ArrayUtils;
+import com.android.internal.util.BinaryXmlSerializer;
 import com.android.internal.util.FastXmlSerializer;
 import com.android.internal.util.IndentingPrintWriter;
 import com.android.internal.util.JournaledFile;
@@ -101,6 +103,11 @@ import org.xmlpull.v1.XmlSerializer;
 import java.io.BufferedInputStream;
 import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
@@ -111,6 +118,8 @@ import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.nio.charset.Charset;
 import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -123,6 +132,8 @@ import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Objects;
 import java.util.Set;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.zip.CRC32;
 
 /**
  * Holds information about dynamic settings.
@@ -171,7 +182,37 @@ final class Settings {
     private static final boolean DEBUG_KERNEL = false;
     private static final boolean DEBUG_PARSER = false;
 
+    /**
+     * Whether packages.xml is persisted in the compact binary format written by
+     * {@link BinaryXmlSerializer}.  Reading always accepts both formats, so an existing
+     * text file is migrated on the next write, and clearing this property falls back to
+     * writing plain text XML again.
+     */
+    private static final boolean WRITE_BINARY_SETTINGS =
+            SystemProperties.getBoolean("persist.pm.binary_settings", true);
+
+    /*
+     * While packages.xml is written in binary, a write that only changes packages appends
+     * those packages to packages.journal instead of rewriting the file, each as a standalone
+     * binary XML <package> element.  packages.xml records the generation of the journal that
+     * applies on top of it, and the first write after boot, or once the journal holds a good
+     * share of the packages, rewrites packages.xml in full and starts a new generation.
+     */
+    private static final int PACKAGES_JOURNAL_MAGIC = 0x504b4a31; // "PKJ1"
+    /** Magic and generation */
+    private static final int PACKAGES_JOURNAL_HEADER_SIZE = 12;
+    /** Length and checksum around the payload of each record batch */
+    private static final int PACKAGES_JOURNAL_RECORD_OVERHEAD = 12;
+    private static final int PACKAGES_RECORD_UPDATE = 1;
+    private static final int PACKAGES_RECORD_REMOVE = 2;
+    /** The packages journal is compacted once it holds more records than this... */
+    private static final int MIN_PACKAGES_JOURNAL_RECORDS_BEFORE_COMPACTION = 32;
+    /** ...and more than 1/PACKAGES_JOURNAL_COMPACTION_RATIO of the number of packages. */
+    private static final int PACKAGES_JOURNAL_COMPACTION_RATIO = 4;
+
     private static final String RUNTIME_PERMISSIONS_FILE_NAME = "runtime-permissions.xml";
+    private static final String RUNTIME_PERMISSIONS_JOURNAL_FILE_NAME =
+            "runtime-permissions.journal";
 
     private static final String TAG_READ_EXTERNAL_STORAGE = "read-external-storage";
     private static final String ATTR_ENFORCEMENT = "enforcement";
@@ -230,6 +271,7 @@ final class Settings {
 
     private static final String ATTR_PACKAGE_NAME = "packageName";
     private static final String ATTR_FINGERPRINT = "fingerprint";
+    private static final String ATTR_JOURNAL_GENERATION = "journal-generation";
     private static final String ATTR_VOLUME_UUID = "volumeUuid";
     private static final String ATTR_SDK_VERSION = "sdkVersion";
     private static final String ATTR_DATABASE_VERSION = "databaseVersion";
@@ -257,6 +299,7 @@ final class Settings {
 
     private final File mSettingsFilename;
     private final File mBackupSettingsFilename;
+    private final File mPackagesJournalFilename;
     private final File mPackageListFilename;
     private final File mStoppedPackagesFilename;
     private final File mBackupStoppedPackagesFilename;
@@ -379,6 +422,18 @@ final class Settings {
     private final ArrayMap<Long, Integer> mKeySetRefs =
             new ArrayMap<Long, Integer>();
 
+    // What packages.xml and its journal hold besides the packages, so that a write only
+    // appends the packages that changed. Unset until the first full write after boot, which
+    // compacts the journal.
+    private byte[] mPersistedSettingsDigest;
+    // Packages changed or removed since packages.xml or its journal was last written, as
+    // reported through markPackageDirtyLPw() by whatever changed them.
+    private final ArraySet<String> mDirtyPackages = new ArraySet<>();
+    private int mPackagesJournalRecordCount;
+    // Generation of the journal that applies on top of packages.xml. Without a file to read
+    // it from, start at random so that it can't match a journal left behind.
+    private long mPackagesJournalGeneration = ThreadLocalRandom.current().nextLong();
+
     // Mapping from permission names to info about them.
     final ArrayMap<String, BasePermission> mPermissions =
             new ArrayMap<String, BasePermission>();
@@ -438,6 +493,7 @@ final class Settings {
                 -1, -1);
         mSettingsFilename = new File(mSystemDir, "packages.xml");
         mBackupSettingsFilename = new File(mSystemDir, "packages-backup.xml");
+        mPackagesJournalFilename = new File(mSystemDir, "packages.journal");
         mPackageListFilename = new File(mSystemDir, "packages.list");
         FileUtils.setPermissions(mPackageListFilename, 0640, SYSTEM_UID, PACKAGE_INFO_GID);
 
@@ -466,10 +522,20 @@ final class Settings {
         if(p != null) {
             if(p.getInstallStatus() != status) {
                 p.setInstallStatus(status);
+                markPackageDirtyLPw(pkgName);
             }
         }
     }
 
+    /**
+     * Notes that a package was changed or removed, so that the next {@link #writeLPr()}
+     * persists it.  Anything that changes what {@link #writePackageLPr} writes for a
+     * package outside of this class must call this.
+     */
+    void markPackageDirtyLPw(String packageName) {
+        mDirtyPackages.add(packageName);
+    }
+
     void applyPendingPermissionGrantsLPw(String packageName, int userId) {
         ArrayMap<String, ArraySet<RestoredPermissionGrant>> grantsByPackage =
                 mRestoredUserGrants.get(userId);
@@ -511,6 +577,7 @@ final class Settings {
         PackageSetting p = mPackages.get(pkgName);
         if (p != null) {
             p.setInstallerPackageName(installerPkgName);
+            markPackageDirtyLPw(pkgName);
             if (installerPkgName != null) {
                 mInstallerPackages.add(installerPkgName);
             }
@@ -552,6 +619,7 @@ final class Settings {
                 p.pkg.applicationInfo.flags |= ApplicationInfo.FLAG_UPDATED_SYSTEM_APP;
             }
             mDisabledSysPackages.put(name, p);
+            markPackageDirtyLPw(name);
 
             if (replaced) {
                 // a little trick...  when we install the new package, we don't
@@ -616,6 +684,7 @@ final class Settings {
         p.appId = uid;
         if (addUserIdLPw(uid, p, name)) {
             mPackages.put(name, p);
+            markPackageDirtyLPw(name);
             return p;
         }
         return null;
@@ -935,6 +1004,7 @@ final class Settings {
 
     void insertPackageSettingLPw(PackageSetting p, PackageParser.Package pkg) {
         p.pkg = pkg;
+        markPackageDirtyLPw(p.name);
         // pkg.mSetEnabled = p.getEnabled(userId);
         // pkg.mSetStopped = p.getStopped(userId);
         final String volumeUuid = pkg.applicationInfo.volumeUuid;
@@ -1005,6 +1075,7 @@ final class Settings {
     // app link verification state
     private void addPackageSettingLPw(PackageSetting p, SharedUserSetting sharedUser) {
         mPackages.put(p.name, p);
+        markPackageDirtyLPw(p.name);
         if (sharedUser != null) {
             if (p.sharedUser != null && p.sharedUser != sharedUser) {
                 PackageManagerService.reportSettingsProblem(Log.ERROR,
@@ -1133,6 +1204,7 @@ final class Settings {
         final PackageSetting p = mPackages.get(name);
         if (p != null) {
             mPackages.remove(name);
+            markPackageDirtyLPw(name);
             removeInstallerPackageStatus(name);
             if (p.sharedUser != null) {
                 p.sharedUser.removePackage(p);
@@ -1165,6 +1237,7 @@ final class Settings {
                     && installerPackageName.equals(packageName)) {
                 ps.setInstallerPackageName(null);
                 ps.isOrphaned = true;
+                markPackageDirtyLPw(ps.name);
             }
         }
         mInstallerPackages.remove(packageName);
@@ -1181,6 +1254,7 @@ final class Settings {
             }
         }
         mPackages.put(name, newp);
+        markPackageDirtyLPw(name);
     }
 
     private boolean addUserIdLPw(int uid, Object obj, Object name) {
@@ -1315,6 +1389,7 @@ final class Settings {
                                 packageName + " and with domains: " + ivi.getDomainsString());
             }
         }
+        markPackageDirtyLPw(packageName);
         return ivi;
     }
 
@@ -1435,6 +1510,11 @@ final class Settings {
         return new File(userDir, RUNTIME_PERMISSIONS_FILE_NAME);
     }
 
+    private File getUserRuntimePermissionsJournalFile(int userId) {
+        File userDir = new File(new File(mSystemDir, "users"), Integer.toString(userId));
+        return new File(userDir, RUNTIME_PERMISSIONS_JOURNAL_FILE_NAME);
+    }
+
     private File getUserPackagesStateBackupFile(int userId) {
         return new File(Environment.getUserSystemDirectory(userId),
                 "package-restrictions-backup.xml");
@@ -1998,6 +2078,7 @@ final class Settings {
                 if (ps != null) {
                     // known/existing package; update in place
                     ps.setIntentFilterVerificationInfo(ivi);
+                    markPackageDirtyLPw(pkgName);
                     if (DEBUG_DOMAIN_VERIFICATION) {
                         Slog.d(TAG, "Restored IVI for existing app " + pkgName
                                 + " status=" + ivi.getStatusString());
@@ -2452,6 +2533,11 @@ final class Settings {
     void writeLPr() {
         //Debug.startMethodTracing("/data/system/packageprof", 8 * 1024 * 1024);
 
+        if (WRITE_BINARY_SETTINGS && appendPackagesJournalLPr()) {
+            writeOtherSettingsFilesLPr();
+            return;
+        }
+
         // Keep the old settings around until we know the new ones have
         // been successfully written.
         if (mSettingsFilename.exists()) {
@@ -2472,115 +2558,35 @@ final class Settings {
             }
         }
 
+        // What the new file holds, so that the following writes can be journaled
+        byte[] settingsDigest = null;
+        if (WRITE_BINARY_SETTINGS) {
+            try {
+                settingsDigest = digestSettingsLPr();
+            } catch (IOException | XmlPullParserException e) {
+                Slog.w(PackageManagerService.TAG, "Failed to digest package settings", e);
+                settingsDigest = null;
+            }
+        }
+        final long journalGeneration = mPackagesJournalGeneration + 1;
+
         mPastSignatures.clear();
 
         try {
             FileOutputStream fstr = new FileOutputStream(mSettingsFilename);
             BufferedOutputStream str = new BufferedOutputStream(fstr);
 
-            //XmlSerializer serializer = XmlUtils.serializerInstance();
-            XmlSerializer serializer = new FastXmlSerializer();
-            serializer.setOutput(str, StandardCharsets.UTF_8.name());
+            final long startTime = SystemClock.uptimeMillis();
+            XmlSerializer serializer = XmlUtils.resolveSerializer(str, WRITE_BINARY_SETTINGS);
             serializer.startDocument(null, true);
             serializer.setFeature("http://xmlpull.org/v1/doc/features.html#indent-output", true);
 
             serializer.startTag(null, "packages");
-
-            for (int i = 0; i < mVersion.size(); i++) {
-                final String volumeUuid = mVersion.keyAt(i);
-                final VersionInfo ver = mVersion.valueAt(i);
-
-                serializer.startTag(null, TAG_VERSION);
-                XmlUtils.writeStringAttribute(serializer, ATTR_VOLUME_UUID, volumeUuid);
-                XmlUtils.writeIntAttribute(serializer, ATTR_SDK_VERSION, ver.sdkVersion);
-                XmlUtils.writeIntAttribute(serializer, ATTR_DATABASE_VERSION, ver.databaseVersion);
-                XmlUtils.writeStringAttribute(serializer, ATTR_FINGERPRINT, ver.fingerprint);
-                serializer.endTag(null, TAG_VERSION);
-            }
-
-            if (mVerifierDeviceIdentity != null) {
-                serializer.startTag(null, "verifier");
-                serializer.attribute(null, "device", mVerifierDeviceIdentity.toString());
-                serializer.endTag(null, "verifier");
-            }
-
-            if (mReadExternalStorageEnforced != null) {
-                serializer.startTag(null, TAG_READ_EXTERNAL_STORAGE);
-                serializer.attribute(
-                        null, ATTR_ENFORCEMENT, mReadExternalStorageEnforced ? "1" : "0");
-                serializer.endTag(null, TAG_READ_EXTERNAL_STORAGE);
-            }
-
-            serializer.startTag(null, "permission-trees");
-            for (BasePermission bp : mPermissionTrees.values()) {
-                writePermissionLPr(serializer, bp);
-            }
-            serializer.endTag(null, "permission-trees");
-
-            serializer.startTag(null, "permissions");
-            for (BasePermission bp : mPermissions.values()) {
-                writePermissionLPr(serializer, bp);
-            }
-            serializer.endTag(null, "permissions");
-
-            for (final PackageSetting pkg : mPackages.values()) {
-                writePackageLPr(serializer, pkg);
-            }
-
-            for (final PackageSetting pkg : mDisabledSysPackages.values()) {
-                writeDisabledSysPackageLPr(serializer, pkg);
-            }
-
-            for (final SharedUserSetting usr : mSharedUsers.values()) {
-                serializer.startTag(null, "shared-user");
-                serializer.attribute(null, ATTR_NAME, usr.name);
-                serializer.attribute(null, "userId",
-                        Integer.toString(usr.userId));
-                usr.signatures.writeXml(serializer, "sigs", mPastSignatures);
-                writePermissionsLPr(serializer, usr.getPermissionsState()
-                        .getInstallPermissionStates());
-                serializer.endTag(null, "shared-user");
-            }
-
-            if (mPackagesToBeCleaned.size() > 0) {
-                for (PackageCleanItem item : mPackagesToBeCleaned) {
-                    final String userStr = Integer.toString(item.userId);
-                    serializer.startTag(null, "cleaning-package");
-                    serializer.attribute(null, ATTR_NAME, item.packageName);
-                    serializer.attribute(null, ATTR_CODE, item.andCode ? "true" : "false");
-                    serializer.attribute(null, ATTR_USER, userStr);
-                    serializer.endTag(null, "cleaning-package");
-                }
-            }
-
-            if (mRenamedPackages.size() > 0) {
-                for (Map.Entry<String, String> e : mRenamedPackages.entrySet()) {
-                    serializer.startTag(null, "renamed-package");
-                    serializer.attribute(null, "new", e.getKey());
-                    serializer.attribute(null, "old", e.getValue());
-                    serializer.endTag(null, "renamed-package");
-                }
+            if (WRITE_BINARY_SETTINGS) {
+                serializer.attribute(null, ATTR_JOURNAL_GENERATION,
+                        Long.toString(journalGeneration));
             }
-
-            final int numIVIs = mRestoredIntentFilterVerifications.size();
-            if (numIVIs > 0) {
-                if (DEBUG_DOMAIN_VERIFICATION) {
-                    Slog.i(TAG, "Writing restored-ivi entries to packages.xml");
-                }
-                serializer.startTag(null, "restored-ivi");
-                for (int i = 0; i < numIVIs; i++) {
-                    IntentFilterVerificationInfo ivi = mRestoredIntentFilterVerifications.valueAt(i);
-                    writeDomainVerificationsLPr(serializer, ivi);
-                }
-                serializer.endTag(null, "restored-ivi");
-            } else {
-                if (DEBUG_DOMAIN_VERIFICATION) {
-                    Slog.i(TAG, "  no restored IVI entries to write");
-                }
-            }
-
-            mKeySetManagerService.writeKeySetManagerServiceLPr(serializer);
-
+            writeSettingsLPr(serializer, true);
             serializer.endTag(null, "packages");
 
             serializer.endDocument();
@@ -2588,6 +2594,11 @@ final class Settings {
             str.flush();
             FileUtils.sync(fstr);
             str.close();
+            if (PackageManagerService.DEBUG_SETTINGS) {
+                Slog.d(TAG, "Wrote " + mSettingsFilename.length() + " bytes of "
+                        + (WRITE_BINARY_SETTINGS ? "binary" : "text") + " settings in "
+                        + (SystemClock.uptimeMillis() - startTime) + "ms");
+            }
 
             // New settings successfully written, old ones are no longer
             // needed.
@@ -2597,10 +2608,14 @@ final class Settings {
                     |FileUtils.S_IRGRP|FileUtils.S_IWGRP,
                     -1, -1);
 
-            writeKernelMappingLPr();
-            writePackageListLPr();
-            writeAllUsersPackageRestrictionsLPr();
-            writeAllRuntimePermissionsLPr();
+            // The new file supersedes everything in the old journal
+            mPackagesJournalFilename.delete();
+            mPackagesJournalGeneration = journalGeneration;
+            mPackagesJournalRecordCount = 0;
+            mPersistedSettingsDigest = settingsDigest;
+            mDirtyPackages.clear();
+
+            writeOtherSettingsFilesLPr();
             return;
 
         } catch(XmlPullParserException e) {
@@ -2610,6 +2625,9 @@ final class Settings {
             Slog.wtf(PackageManagerService.TAG, "Unable to write package manager settings, "
                     + "current changes will be lost at reboot", e);
         }
+        // Force the next write to be a full one again, with a generation that wasn't used yet
+        mPersistedSettingsDigest = null;
+        mPackagesJournalGeneration = journalGeneration;
         // Clean up partially written files
         if (mSettingsFilename.exists()) {
             if (!mSettingsFilename.delete()) {
@@ -2620,6 +2638,369 @@ final class Settings {
         //Debug.stopMethodTracing();
     }
 
+    private void writeOtherSettingsFilesLPr() {
+        writeKernelMappingLPr();
+        writePackageListLPr();
+        writeAllUsersPackageRestrictionsLPr();
+        writeAllRuntimePermissionsLPr();
+    }
+
+    /**
+     * Appends the packages marked by {@link #markPackageDirtyLPw} since packages.xml or its
+     * journal was last written to the journal, so that the cost of a write is proportional
+     * to the change.  Anything but the packages themselves is only ever written in full.
+     *
+     * @return whether the files on disk hold the current state; if not, the caller must
+     * write packages.xml in full, which also compacts the journal.
+     */
+    private boolean appendPackagesJournalLPr() {
+        if (mPersistedSettingsDigest == null) {
+            return false;
+        }
+        final ByteArrayOutputStream records = new ByteArrayOutputStream();
+        final DataOutputStream recordOut = new DataOutputStream(records);
+        final int recordCount = mDirtyPackages.size();
+        try {
+            if (!Arrays.equals(mPersistedSettingsDigest, digestSettingsLPr())) {
+                return false;
+            }
+            for (int i = 0; i < recordCount; i++) {
+                final String name = mDirtyPackages.valueAt(i);
+                final PackageSetting ps = mPackages.get(name);
+                if (ps != null) {
+                    final byte[] record = serializePackageLPr(ps);
+                    recordOut.writeByte(PACKAGES_RECORD_UPDATE);
+                    recordOut.writeInt(record.length);
+                    recordOut.write(record);
+                } else {
+                    recordOut.writeByte(PACKAGES_RECORD_REMOVE);
+                    recordOut.writeUTF(name);
+                }
+            }
+        } catch (IOException | XmlPullParserException e) {
+            Slog.w(PackageManagerService.TAG, "Failed to serialize package settings", e);
+            return false;
+        }
+        if (recordCount == 0) {
+            return true;
+        }
+        if (mPackagesJournalRecordCount + recordCount > Math.max(
+                MIN_PACKAGES_JOURNAL_RECORDS_BEFORE_COMPACTION,
+                mPackages.size() / PACKAGES_JOURNAL_COMPACTION_RATIO)) {
+            return false;
+        }
+
+        final long startTime = SystemClock.uptimeMillis();
+        FileOutputStream out = null;
+        try {
+            final boolean newJournal = mPackagesJournalRecordCount == 0
+                    || !mPackagesJournalFilename.exists();
+            out = new FileOutputStream(mPackagesJournalFilename, !newJournal);
+            final DataOutputStream dataOut = new DataOutputStream(new BufferedOutputStream(out));
+            if (newJournal) {
+                dataOut.writeInt(PACKAGES_JOURNAL_MAGIC);
+                dataOut.writeLong(mPackagesJournalGeneration);
+            }
+            final byte[] payload = records.toByteArray();
+            final CRC32 crc = new CRC32();
+            crc.update(payload);
+            dataOut.writeInt(payload.length);
+            dataOut.write(payload);
+            dataOut.writeLong(crc.getValue());
+            dataOut.flush();
+            FileUtils.sync(out);
+            if (newJournal) {
+                FileUtils.setPermissions(mPackagesJournalFilename.toString(),
+                        FileUtils.S_IRUSR|FileUtils.S_IWUSR
+                        |FileUtils.S_IRGRP|FileUtils.S_IWGRP,
+                        -1, -1);
+            }
+        } catch (IOException e) {
+            Slog.w(PackageManagerService.TAG, "Failed to append to " + mPackagesJournalFilename
+                    + ", writing full settings", e);
+            return false;
+        } finally {
+            IoUtils.closeQuietly(out);
+        }
+        if (PackageManagerService.DEBUG_SETTINGS) {
+            Slog.d(TAG, "Journaled " + recordCount + " package settings in "
+                    + (SystemClock.uptimeMillis() - startTime) + "ms");
+        }
+
+        mDirtyPackages.clear();
+        mPackagesJournalRecordCount += recordCount;
+        return true;
+    }
+
+    /**
+     * Serializes a package as a standalone binary XML document, as stored in the journal.
+     */
+    private byte[] serializePackageLPr(PackageSetting pkg) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final XmlSerializer serializer = XmlUtils.resolveSerializer(out, true);
+        serializer.startDocument(null, true);
+        // A record can't refer to signatures written by anything else
+        mPastSignatures.clear();
+        writePackageLPr(serializer, pkg);
+        serializer.endDocument();
+        return out.toByteArray();
+    }
+
+    /**
+     * Returns a digest of everything in packages.xml but the packages.
+     */
+    private byte[] digestSettingsLPr() throws XmlPullParserException, IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final XmlSerializer serializer = XmlUtils.resolveSerializer(out, true);
+        serializer.startDocument(null, true);
+        serializer.startTag(null, "packages");
+        mPastSignatures.clear();
+        writeSettingsLPr(serializer, false);
+        serializer.endTag(null, "packages");
+        serializer.endDocument();
+        return sha256(out.toByteArray());
+    }
+
+    private static byte[] sha256(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Reads the packages journaled on top of the packages.xml with the given generation.
+     * Reading stops at the first truncated or corrupt record, which can only be the last one
+     * written before a crash.
+     *
+     * @return the last record of each journaled package, or null for removed packages.
+     */
+    private ArrayMap<String, byte[]> readPackagesJournalLPr(long journalGeneration) {
+        final ArrayMap<String, byte[]> packages = new ArrayMap<>();
+        if (!mPackagesJournalFilename.exists()) {
+            return packages;
+        }
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(
+                    new FileInputStream(mPackagesJournalFilename)));
+            if (in.readInt() != PACKAGES_JOURNAL_MAGIC || in.readLong() != journalGeneration) {
+                Slog.i(PackageManagerService.TAG, "Ignoring stale journal "
+                        + mPackagesJournalFilename);
+                return packages;
+            }
+            long remaining = mPackagesJournalFilename.length() - PACKAGES_JOURNAL_HEADER_SIZE;
+            while (remaining > 0) {
+                final int length = in.readInt();
+                if (length < 0 || length > remaining - PACKAGES_JOURNAL_RECORD_OVERHEAD) {
+                    Slog.w(PackageManagerService.TAG, "Truncated record in "
+                            + mPackagesJournalFilename);
+                    break;
+                }
+                remaining -= length + PACKAGES_JOURNAL_RECORD_OVERHEAD;
+                final byte[] payload = new byte[length];
+                in.readFully(payload);
+                final CRC32 crc = new CRC32();
+                crc.update(payload);
+                if (in.readLong() != crc.getValue()) {
+                    Slog.w(PackageManagerService.TAG, "Corrupt record in "
+                            + mPackagesJournalFilename);
+                    break;
+                }
+                readPackagesJournalRecords(new DataInputStream(
+                        new ByteArrayInputStream(payload)), packages);
+            }
+        } catch (EOFException e) {
+            // Reached the end of the journal, possibly mid-record after a crash
+        } catch (IOException e) {
+            Slog.w(PackageManagerService.TAG, "Failed reading " + mPackagesJournalFilename, e);
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+        return packages;
+    }
+
+    private static void readPackagesJournalRecords(DataInputStream in,
+            ArrayMap<String, byte[]> outPackages) throws IOException {
+        final ArrayMap<String, byte[]> batch = new ArrayMap<>();
+        while (in.available() > 0) {
+            final int recordType = in.readByte();
+            if (recordType == PACKAGES_RECORD_UPDATE) {
+                final int length = in.readInt();
+                if (length < 0 || length > in.available()) {
+                    throw new IOException("Invalid package record length " + length);
+                }
+                final byte[] record = new byte[length];
+                in.readFully(record);
+                batch.put(readPackageRecordName(record), record);
+            } else if (recordType == PACKAGES_RECORD_REMOVE) {
+                batch.put(in.readUTF(), null);
+            } else {
+                throw new IOException("Unknown package journal record " + recordType);
+            }
+        }
+        // Batches are only applied as a whole
+        outPackages.putAll(batch);
+    }
+
+    private static String readPackageRecordName(byte[] record) throws IOException {
+        try {
+            final XmlPullParser parser = startPackageRecord(record);
+            final String name = parser.getAttributeValue(null, ATTR_NAME);
+            if (name == null) {
+                throw new IOException("Package record without a name");
+            }
+            return name;
+        } catch (XmlPullParserException e) {
+            throw new IOException(e);
+        }
+    }
+
+    /**
+     * Returns a parser positioned at the package tag of a journal record.
+     */
+    private static XmlPullParser startPackageRecord(byte[] record)
+            throws XmlPullParserException, IOException {
+        final XmlPullParser parser = XmlUtils.resolvePullParser(
+                new ByteArrayInputStream(record));
+        int type;
+        while ((type = parser.next()) != XmlPullParser.START_TAG
+                && type != XmlPullParser.END_DOCUMENT) {
+            ;
+        }
+        if (type != XmlPullParser.START_TAG || !"package".equals(parser.getName())) {
+            throw new XmlPullParserException("No package in journal record");
+        }
+        return parser;
+    }
+
+    /**
+     * Reads the journaled packages that replace or add to the ones in packages.xml.
+     */
+    private void readJournaledPackagesLPw(ArrayMap<String, byte[]> journaledPackages)
+            throws XmlPullParserException, IOException {
+        // Each record carries its own signatures; keep the ones packages.xml refers to
+        final ArrayList<Signature> pastSignatures = new ArrayList<>(mPastSignatures);
+        final int count = journaledPackages.size();
+        for (int i = 0; i < count; i++) {
+            final byte[] record = journaledPackages.valueAt(i);
+            if (record != null) {
+                mPastSignatures.clear();
+                readPackageLPw(startPackageRecord(record));
+            }
+        }
+        mPastSignatures.clear();
+        mPastSignatures.addAll(pastSignatures);
+    }
+
+    /**
+     * Writes the contents of the top level packages tag.
+     *
+     * @param includePackages whether to write the installed packages, see
+     *     {@link #writePackageLPr}; everything else is always written.
+     */
+    private void writeSettingsLPr(XmlSerializer serializer, boolean includePackages)
+            throws XmlPullParserException, IOException {
+
+        for (int i = 0; i < mVersion.size(); i++) {
+            final String volumeUuid = mVersion.keyAt(i);
+            final VersionInfo ver = mVersion.valueAt(i);
+
+            serializer.startTag(null, TAG_VERSION);
+            XmlUtils.writeStringAttribute(serializer, ATTR_VOLUME_UUID, volumeUuid);
+            XmlUtils.writeIntAttribute(serializer, ATTR_SDK_VERSION, ver.sdkVersion);
+            XmlUtils.writeIntAttribute(serializer, ATTR_DATABASE_VERSION, ver.databaseVersion);
+            XmlUtils.writeStringAttribute(serializer, ATTR_FINGERPRINT, ver.fingerprint);
+            serializer.endTag(null, TAG_VERSION);
+        }
+
+        if (mVerifierDeviceIdentity != null) {
+            serializer.startTag(null, "verifier");
+            serializer.attribute(null, "device", mVerifierDeviceIdentity.toString());
+            serializer.endTag(null, "verifier");
+        }
+
+        if (mReadExternalStorageEnforced != null) {
+            serializer.startTag(null, TAG_READ_EXTERNAL_STORAGE);
+            serializer.attribute(
+                    null, ATTR_ENFORCEMENT, mReadExternalStorageEnforced ? "1" : "0");
+            serializer.endTag(null, TAG_READ_EXTERNAL_STORAGE);
+        }
+
+        serializer.startTag(null, "permission-trees");
+        for (BasePermission bp : mPermissionTrees.values()) {
+            writePermissionLPr(serializer, bp);
+        }
+        serializer.endTag(null, "permission-trees");
+
+        serializer.startTag(null, "permissions");
+        for (BasePermission bp : mPermissions.values()) {
+            writePermissionLPr(serializer, bp);
+        }
+        serializer.endTag(null, "permissions");
+
+        if (includePackages) {
+            for (final PackageSetting pkg : mPackages.values()) {
+                writePackageLPr(serializer, pkg);
+            }
+        }
+
+        for (final PackageSetting pkg : mDisabledSysPackages.values()) {
+            writeDisabledSysPackageLPr(serializer, pkg);
+        }
+
+        for (final SharedUserSetting usr : mSharedUsers.values()) {
+            serializer.startTag(null, "shared-user");
+            serializer.attribute(null, ATTR_NAME, usr.name);
+            serializer.attribute(null, "userId",
+                    Integer.toString(usr.userId));
+            usr.signatures.writeXml(serializer, "sigs", mPastSignatures);
+            writePermissionsLPr(serializer, usr.getPermissionsState()
+                    .getInstallPermissionStates());
+            serializer.endTag(null, "shared-user");
+        }
+
+        if (mPackagesToBeCleaned.size() > 0) {
+            for (PackageCleanItem item : mPackagesToBeCleaned) {
+                final String userStr = Integer.toString(item.userId);
+                serializer.startTag(null, "cleaning-package");
+                serializer.attribute(null, ATTR_NAME, item.packageName);
+                serializer.attribute(null, ATTR_CODE, item.andCode ? "true" : "false");
+                serializer.attribute(null, ATTR_USER, userStr);
+                serializer.endTag(null, "cleaning-package");
+            }
+        }
+
+        if (mRenamedPackages.size() > 0) {
+            for (Map.Entry<String, String> e : mRenamedPackages.entrySet()) {
+                serializer.startTag(null, "renamed-package");
+                serializer.attribute(null, "new", e.getKey());
+                serializer.attribute(null, "old", e.getValue());
+                serializer.endTag(null, "renamed-package");
+            }
+        }
+
+        final int numIVIs = mRestoredIntentFilterVerifications.size();
+        if (numIVIs > 0) {
+            if (DEBUG_DOMAIN_VERIFICATION) {
+                Slog.i(TAG, "Writing restored-ivi entries to packages.xml");
+            }
+            serializer.startTag(null, "restored-ivi");
+            for (int i = 0; i < numIVIs; i++) {
+                IntentFilterVerificationInfo ivi = mRestoredIntentFilterVerifications.valueAt(i);
+                writeDomainVerificationsLPr(serializer, ivi);
+            }
+            serializer.endTag(null, "restored-ivi");
+        } else {
+            if (DEBUG_DOMAIN_VERIFICATION) {
+                Slog.i(TAG, "  no restored IVI entries to write");
+            }
+        }
+
+        mKeySetManagerService.writeKeySetManagerServiceLPr(serializer);
+    }
+
     private void writeKernelRemoveUserLPr(int userId) {
         if (mKernelMappingFilename == null) return;
 
@@ -3043,6 +3424,7 @@ final class Settings {
         mKeySetRefs.clear();
         mInstallerPackages.clear();
 
+        ArrayMap<String, byte[]> journaledPackages = null;
         try {
             if (str == null) {
                 if (!mSettingsFilename.exists()) {
@@ -3057,8 +3439,8 @@ final class Settings {
                 }
                 str = new FileInputStream(mSettingsFilename);
             }
-            XmlPullParser parser = Xml.newPullParser();
-            parser.setInput(str, StandardCharsets.UTF_8.name());
+            // Accepts both the binary format and legacy text XML
+            XmlPullParser parser = XmlUtils.resolvePullParser(str);
 
             int type;
             while ((type = parser.next()) != XmlPullParser.START_TAG
@@ -3075,6 +3457,14 @@ final class Settings {
                 return false;
             }
 
+            // Packages changed since the file was written replace the ones in it
+            final long journalGeneration = XmlUtils.readLongAttribute(parser,
+                    ATTR_JOURNAL_GENERATION, -1);
+            if (journalGeneration != -1) {
+                mPackagesJournalGeneration = journalGeneration;
+                journaledPackages = readPackagesJournalLPr(journalGeneration);
+            }
+
             int outerDepth = parser.getDepth();
             while ((type = parser.next()) != XmlPullParser.END_DOCUMENT
                     && (type != XmlPullParser.END_TAG || parser.getDepth() > outerDepth)) {
@@ -3084,7 +3474,12 @@ final class Settings {
 
                 String tagName = parser.getName();
                 if (tagName.equals("package")) {
-                    readPackageLPw(parser);
+                    if (journaledPackages != null && journaledPackages.containsKey(
+                            parser.getAttributeValue(null, ATTR_NAME))) {
+                        skipJournaledPackageLPw(parser);
+                    } else {
+                        readPackageLPw(parser);
+                    }
                 } else if (tagName.equals("permissions")) {
                     readPermissionsLPw(mPermissions, parser);
                 } else if (tagName.equals("permission-trees")) {
@@ -3169,6 +3564,11 @@ final class Settings {
                     final String enforcement = parser.getAttributeValue(null, ATTR_ENFORCEMENT);
                     mReadExternalStorageEnforced = "1".equals(enforcement);
                 } else if (tagName.equals("keyset-settings")) {
+                    // Key sets count the references of all packages
+                    if (journaledPackages != null) {
+                        readJournaledPackagesLPw(journaledPackages);
+                        journaledPackages = null;
+                    }
                     mKeySetManagerService.readKeySetsLPw(parser, mKeySetRefs);
                 } else if (TAG_VERSION.equals(tagName)) {
                     final String volumeUuid = XmlUtils.readStringAttribute(parser,
@@ -3183,6 +3583,9 @@ final class Settings {
                     XmlUtils.skipCurrentTag(parser);
                 }
             }
+            if (journaledPackages != null) {
+                readJournaledPackagesLPw(journaledPackages);
+            }
 
             str.close();
 
@@ -3657,6 +4060,28 @@ final class Settings {
         }
     }
 
+    /**
+     * Skips a package of the settings file that the journal replaces. Its certificates may be
+     * defined here and only referred to by index from later packages and shared users, so they
+     * are still recorded in {@link #mPastSignatures}.
+     */
+    private void skipJournaledPackageLPw(XmlPullParser parser)
+            throws XmlPullParserException, IOException {
+        final int outerDepth = parser.getDepth();
+        int type;
+        while ((type = parser.next()) != XmlPullParser.END_DOCUMENT
+                && (type != XmlPullParser.END_TAG || parser.getDepth() > outerDepth)) {
+            if (type == XmlPullParser.END_TAG || type == XmlPullParser.TEXT) {
+                continue;
+            }
+            if (parser.getName().equals("sigs")) {
+                new PackageSignatures().readXml(parser, mPastSignatures);
+            } else {
+                XmlUtils.skipCurrentTag(parser);
+            }
+        }
+    }
+
     private void readDisabledSysPackageLPw(XmlPullParser parser) throws XmlPullParserException,
             IOException {
         String name = parser.getAttributeValue(null, ATTR_NAME);
@@ -5237,10 +5662,33 @@ final class Settings {
         }
     }
 
+    /**
+     * Persists runtime permission grants per user.
+     *
+     * <p>The full state lives in runtime-permissions.xml.  Since a single grant or flag
+     * change only affects one package, subsequent writes append just the packages and
+     * shared users whose state differs from what is already on disk to an append-only
+     * journal next to it, so the I/O of a write is proportional to the change.  Once the
+     * journal grows past a fraction of the full state it is compacted back into a new
+     * snapshot.  The snapshot records the generation of the journal that applies to it,
+     * which makes a journal left behind by an interrupted compaction harmless.
+     */
     private final class RuntimePermissionPersistence {
         private static final long WRITE_PERMISSIONS_DELAY_MILLIS = 200;
         private static final long MAX_WRITE_PERMISSIONS_DELAY_MILLIS = 2000;
 
+        private static final int JOURNAL_MAGIC = 0x52504a31; // "RPJ1"
+        /** Magic and generation */
+        private static final int JOURNAL_HEADER_SIZE = 12;
+        /** Length and checksum around the payload of each record batch */
+        private static final int JOURNAL_RECORD_OVERHEAD = 12;
+        private static final int RECORD_PACKAGE = 1;
+        private static final int RECORD_SHARED_USER = 2;
+        /** Journals are compacted once they hold more records than this... */
+        private static final int MIN_JOURNAL_RECORDS_BEFORE_COMPACTION = 32;
+        /** ...and more than 1/JOURNAL_COMPACTION_RATIO of the number of entries. */
+        private static final int JOURNAL_COMPACTION_RATIO = 4;
+
         private final Handler mHandler = new MyHandler();
 
         private final Object mLock;
@@ -5260,6 +5708,14 @@ final class Settings {
         // The mapping keys are user ids.
         private final SparseBooleanArray mDefaultPermissionsGranted = new SparseBooleanArray();
 
+        /** Serializes writers so the persisted baselines match what is on disk. */
+        private final Object mWriteLock = new Object();
+
+        @GuardedBy("mWriteLock")
+        // The mapping keys are user ids.
+        private final SparseArray<PersistedPermissionStates> mPersistedStates =
+                new SparseArray<>();
+
         public RuntimePermissionPersistence(Object lock) {
             mLock = lock;
         }
@@ -5311,57 +5767,270 @@ final class Settings {
         }
 
         private void writePermissionsSync(int userId) {
-            AtomicFile destination = new AtomicFile(getUserRuntimePermissionsFile(userId));
-
-            ArrayMap<String, List<PermissionState>> permissionsForPackage = new ArrayMap<>();
-            ArrayMap<String, List<PermissionState>> permissionsForSharedUser = new ArrayMap<>();
+            final PersistedPermissionStates current = new PersistedPermissionStates();
+            final String fingerprint;
+            final ArrayMap<String, ArraySet<RestoredPermissionGrant>> restoredGrants;
 
             synchronized (mLock) {
                 mWriteScheduled.delete(userId);
-
-                final int packageCount = mPackages.size();
-                for (int i = 0; i < packageCount; i++) {
-                    String packageName = mPackages.keyAt(i);
-                    PackageSetting packageSetting = mPackages.valueAt(i);
-                    if (packageSetting.sharedUser == null) {
-                        PermissionsState permissionsState = packageSetting.getPermissionsState();
-                        List<PermissionState> permissionsStates = permissionsState
-                                .getRuntimePermissionStates(userId);
-                        if (!permissionsStates.isEmpty()) {
-                            permissionsForPackage.put(packageName, permissionsStates);
+                collectPermissionStatesLPr(userId, current);
+                fingerprint = mFingerprints.get(userId);
+                restoredGrants = copyRestoredGrantsLPr(userId);
+            }
+            final boolean hasRestoredGrants = restoredGrants != null;
+
+            // Callers may hold mLock while waiting on mWriteLock, so mLock must never be
+            // acquired below.
+            synchronized (mWriteLock) {
+                final PersistedPermissionStates persisted = mPersistedStates.get(userId);
+                if (persisted != null && !persisted.needsSnapshot && !hasRestoredGrants
+                        && !persisted.hadRestoredGrants
+                        && Objects.equals(fingerprint, persisted.fingerprint)) {
+                    final int entryCount = current.packages.size()
+                            + current.sharedUsers.size();
+                    final int pendingRecords = persisted.journalRecordCount
+                            + countChangedEntries(persisted, current);
+                    if (pendingRecords <= Math.max(MIN_JOURNAL_RECORDS_BEFORE_COMPACTION,
+                            entryCount / JOURNAL_COMPACTION_RATIO)) {
+                        if (appendJournalLocked(userId, persisted, current)) {
+                            return;
                         }
                     }
                 }
+                writeSnapshotLocked(userId, persisted, current, fingerprint, restoredGrants);
+            }
+        }
 
-                final int sharedUserCount = mSharedUsers.size();
-                for (int i = 0; i < sharedUserCount; i++) {
-                    String sharedUserName = mSharedUsers.keyAt(i);
-                    SharedUserSetting sharedUser = mSharedUsers.valueAt(i);
-                    PermissionsState permissionsState = sharedUser.getPermissionsState();
-                    List<PermissionState> permissionsStates = permissionsState
-                            .getRuntimePermissionStates(userId);
+        private ArrayMap<String, ArraySet<RestoredPermissionGrant>> copyRestoredGrantsLPr(
+                int userId) {
+            final ArrayMap<String, ArraySet<RestoredPermissionGrant>> restoredGrants =
+                    mRestoredUserGrants.get(userId);
+            if (restoredGrants == null) {
+                return null;
+            }
+            final int pkgCount = restoredGrants.size();
+            final ArrayMap<String, ArraySet<RestoredPermissionGrant>> copy =
+                    new ArrayMap<>(pkgCount);
+            for (int i = 0; i < pkgCount; i++) {
+                final ArraySet<RestoredPermissionGrant> pkgGrants = restoredGrants.valueAt(i);
+                copy.put(restoredGrants.keyAt(i),
+                        pkgGrants != null ? new ArraySet<>(pkgGrants) : null);
+            }
+            return copy;
+        }
+
+        /**
+         * Copies the runtime permission state of every package and shared user so it can
+         * be serialized and later compared against without holding the package lock.
+         */
+        private void collectPermissionStatesLPr(int userId, PersistedPermissionStates out) {
+            final int packageCount = mPackages.size();
+            for (int i = 0; i < packageCount; i++) {
+                String packageName = mPackages.keyAt(i);
+                PackageSetting packageSetting = mPackages.valueAt(i);
+                if (packageSetting.sharedUser == null) {
+                    List<PermissionState> permissionsStates = copyPermissionStates(
+                            packageSetting.getPermissionsState(), userId);
                     if (!permissionsStates.isEmpty()) {
-                        permissionsForSharedUser.put(sharedUserName, permissionsStates);
+                        out.packages.put(packageName, permissionsStates);
                     }
                 }
             }
 
+            final int sharedUserCount = mSharedUsers.size();
+            for (int i = 0; i < sharedUserCount; i++) {
+                String sharedUserName = mSharedUsers.keyAt(i);
+                SharedUserSetting sharedUser = mSharedUsers.valueAt(i);
+                List<PermissionState> permissionsStates = copyPermissionStates(
+                        sharedUser.getPermissionsState(), userId);
+                if (!permissionsStates.isEmpty()) {
+                    out.sharedUsers.put(sharedUserName, permissionsStates);
+                }
+            }
+        }
+
+        private List<PermissionState> copyPermissionStates(PermissionsState permissionsState,
+                int userId) {
+            final List<PermissionState> states = permissionsState
+                    .getRuntimePermissionStates(userId);
+            final int stateCount = states.size();
+            final List<PermissionState> copies = new ArrayList<>(stateCount);
+            for (int i = 0; i < stateCount; i++) {
+                copies.add(new PermissionState(states.get(i)));
+            }
+            return copies;
+        }
+
+        private int countChangedEntries(PersistedPermissionStates persisted,
+                PersistedPermissionStates current) {
+            return countChangedEntries(persisted.packages, current.packages)
+                    + countChangedEntries(persisted.sharedUsers, current.sharedUsers);
+        }
+
+        private int countChangedEntries(ArrayMap<String, List<PermissionState>> persisted,
+                ArrayMap<String, List<PermissionState>> current) {
+            int changed = 0;
+            for (int i = current.size() - 1; i >= 0; i--) {
+                if (!permissionStatesEqual(persisted.get(current.keyAt(i)),
+                        current.valueAt(i))) {
+                    changed++;
+                }
+            }
+            for (int i = persisted.size() - 1; i >= 0; i--) {
+                if (!current.containsKey(persisted.keyAt(i))) {
+                    changed++;
+                }
+            }
+            return changed;
+        }
+
+        private boolean permissionStatesEqual(List<PermissionState> a, List<PermissionState> b) {
+            if (a == null || b == null) {
+                return a == b;
+            }
+            final int stateCount = a.size();
+            if (stateCount != b.size()) {
+                return false;
+            }
+            for (int i = 0; i < stateCount; i++) {
+                final PermissionState stateA = a.get(i);
+                final PermissionState stateB = b.get(i);
+                if (!stateA.getName().equals(stateB.getName())
+                        || stateA.isGranted() != stateB.isGranted()
+                        || stateA.getFlags() != stateB.getFlags()) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Appends every changed package and shared user to the journal.
+         *
+         * @return whether the journal was written; if not, the caller must fall back to a
+         * full snapshot.
+         */
+        private boolean appendJournalLocked(int userId, PersistedPermissionStates persisted,
+                PersistedPermissionStates current) {
+            final ByteArrayOutputStream records = new ByteArrayOutputStream();
+            final DataOutputStream recordOut = new DataOutputStream(records);
+            int recordCount = 0;
+            try {
+                recordCount += writeChangedRecords(recordOut, RECORD_PACKAGE,
+                        persisted.packages, current.packages);
+                recordCount += writeChangedRecords(recordOut, RECORD_SHARED_USER,
+                        persisted.sharedUsers, current.sharedUsers);
+            } catch (IOException e) {
+                // Cannot happen for an in-memory stream
+                return false;
+            }
+            if (recordCount == 0) {
+                return true;
+            }
+
+            final File journalFile = getUserRuntimePermissionsJournalFile(userId);
+            FileOutputStream out = null;
+            try {
+                final boolean newJournal = persisted.journalRecordCount == 0
+                        || !journalFile.exists();
+                out = new FileOutputStream(journalFile, !newJournal);
+                final DataOutputStream dataOut = new DataOutputStream(
+                        new BufferedOutputStream(out));
+                if (newJournal) {
+                    dataOut.writeInt(JOURNAL_MAGIC);
+                    dataOut.writeLong(persisted.journalGeneration);
+                }
+                final byte[] payload = records.toByteArray();
+                final CRC32 crc = new CRC32();
+                crc.update(payload);
+                dataOut.writeInt(payload.length);
+                dataOut.write(payload);
+                dataOut.writeLong(crc.getValue());
+                dataOut.flush();
+                FileUtils.sync(out);
+            } catch (IOException e) {
+                Slog.w(PackageManagerService.TAG, "Failed to append runtime permissions journal "
+                        + journalFile + ", writing full state", e);
+                return false;
+            } finally {
+                IoUtils.closeQuietly(out);
+            }
+
+            persisted.packages = current.packages;
+            persisted.sharedUsers = current.sharedUsers;
+            persisted.journalRecordCount += recordCount;
+            return true;
+        }
+
+        private int writeChangedRecords(DataOutputStream out, int recordType,
+                ArrayMap<String, List<PermissionState>> persisted,
+                ArrayMap<String, List<PermissionState>> current) throws IOException {
+            int recordCount = 0;
+            final int currentCount = current.size();
+            for (int i = 0; i < currentCount; i++) {
+                final String name = current.keyAt(i);
+                final List<PermissionState> states = current.valueAt(i);
+                if (!permissionStatesEqual(persisted.get(name), states)) {
+                    writeRecord(out, recordType, name, states);
+                    recordCount++;
+                }
+            }
+            // Entries that dropped to all-default state are journaled as empty
+            final int persistedCount = persisted.size();
+            for (int i = 0; i < persistedCount; i++) {
+                final String name = persisted.keyAt(i);
+                if (!current.containsKey(name)) {
+                    writeRecord(out, recordType, name, Collections.emptyList());
+                    recordCount++;
+                }
+            }
+            return recordCount;
+        }
+
+        private void writeRecord(DataOutputStream out, int recordType, String name,
+                List<PermissionState> states) throws IOException {
+            out.writeByte(recordType);
+            out.writeUTF(name);
+            final int stateCount = states.size();
+            out.writeInt(stateCount);
+            for (int i = 0; i < stateCount; i++) {
+                final PermissionState state = states.get(i);
+                out.writeUTF(state.getName());
+                out.writeBoolean(state.isGranted());
+                out.writeInt(state.getFlags());
+            }
+        }
+
+        private void writeSnapshotLocked(int userId, PersistedPermissionStates persisted,
+                PersistedPermissionStates current, String fingerprint,
+                ArrayMap<String, ArraySet<RestoredPermissionGrant>> restoredGrants) {
+            AtomicFile destination = new AtomicFile(getUserRuntimePermissionsFile(userId));
+            // Generations only ever increase from the one read at boot. Without a previous
+            // snapshot, pick one at random so that it can't match a journal left behind.
+            final long journalGeneration = persisted != null
+                    ? persisted.journalGeneration + 1 : ThreadLocalRandom.current().nextLong();
+            final ArrayMap<String, List<PermissionState>> permissionsForPackage =
+                    current.packages;
+            final ArrayMap<String, List<PermissionState>> permissionsForSharedUser =
+                    current.sharedUsers;
+
             FileOutputStream out = null;
             try {
                 out = destination.startWrite();
 
-                XmlSerializer serializer = Xml.newSerializer();
-                serializer.setOutput(out, StandardCharsets.UTF_8.name());
+                XmlSerializer serializer = XmlUtils.resolveSerializer(out,
+                        WRITE_BINARY_SETTINGS);
                 serializer.setFeature(
                         "http://xmlpull.org/v1/doc/features.html#indent-output", true);
                 serializer.startDocument(null, true);
 
                 serializer.startTag(null, TAG_RUNTIME_PERMISSIONS);
 
-                String fingerprint = mFingerprints.get(userId);
                 if (fingerprint != null) {
                     serializer.attribute(null, ATTR_FINGERPRINT, fingerprint);
                 }
+                serializer.attribute(null, ATTR_JOURNAL_GENERATION,
+                        Long.toString(journalGeneration));
 
                 final int packageCount = permissionsForPackage.size();
                 for (int i = 0; i < packageCount; i++) {
@@ -5389,49 +6058,24 @@ final class Settings {
                 // in question to be installed.  These are stored as per-package
                 // TAG_RESTORED_RUNTIME_PERMISSIONS blocks, each containing some
                 // number of individual permission grant entities.
-                if (mRestoredUserGrants.get(userId) != null) {
-                    ArrayMap<String, ArraySet<RestoredPermissionGrant>> restoredGrants =
-                            mRestoredUserGrants.get(userId);
-                    if (restoredGrants != null) {
-                        final int pkgCount = restoredGrants.size();
-                        for (int i = 0; i < pkgCount; i++) {
-                            final ArraySet<RestoredPermissionGrant> pkgGrants =
-                                    restoredGrants.valueAt(i);
-                            if (pkgGrants != null && pkgGrants.size() > 0) {
-                                final String pkgName = restoredGrants.keyAt(i);
-                                serializer.startTag(null, TAG_RESTORED_RUNTIME_PERMISSIONS);
-                                serializer.attribute(null, ATTR_PACKAGE_NAME, pkgName);
-
-                                final int N = pkgGrants.size();
-                                for (int z = 0; z < N; z++) {
-                                    RestoredPermissionGrant g = pkgGrants.valueAt(z);
-                                    serializer.startTag(null, TAG_PERMISSION_ENTRY);
-                                    serializer.attribute(null, ATTR_NAME, g.permissionName);
-
-                                    if (g.granted) {
-                                        serializer.attribute(null, ATTR_GRANTED, "true");
-                                    }
-
-                                    if ((g.grantBits&FLAG_PERMISSION_USER_SET) != 0) {
-                                        serializer.attribute(null, ATTR_USER_SET, "true");
-                                    }
-                                    if ((g.grantBits&FLAG_PERMISSION_USER_FIXED) != 0) {
-                                        serializer.attribute(null, ATTR_USER_FIXED, "true");
-                                    }
-                                    if ((g.grantBits&FLAG_PERMISSION_REVOKE_ON_UPGRADE) != 0) {
-                                        serializer.attribute(null, ATTR_REVOKE_ON_UPGRADE, "true");
-                                    }
-                                    serializer.endTag(null, TAG_PERMISSION_ENTRY);
-                                }
-                                serializer.endTag(null, TAG_RESTORED_RUNTIME_PERMISSIONS);
-                            }
-                        }
-                    }
+                if (restoredGrants != null) {
+                    writeRestoredGrants(serializer, restoredGrants);
                 }
 
                 serializer.endDocument();
                 destination.finishWrite(out);
 
+                // The new snapshot supersedes everything in the old journal
+                getUserRuntimePermissionsJournalFile(userId).delete();
+
+                final PersistedPermissionStates newPersisted = new PersistedPermissionStates();
+                newPersisted.packages = permissionsForPackage;
+                newPersisted.sharedUsers = permissionsForSharedUser;
+                newPersisted.fingerprint = fingerprint;
+                newPersisted.hadRestoredGrants = restoredGrants != null;
+                newPersisted.journalGeneration = journalGeneration;
+                mPersistedStates.put(userId, newPersisted);
+
                 if (Build.FINGERPRINT.equals(fingerprint)) {
                     mDefaultPermissionsGranted.put(userId, true);
                 }
@@ -5440,11 +6084,54 @@ final class Settings {
                 Slog.wtf(PackageManagerService.TAG,
                         "Failed to write settings, restoring backup", t);
                 destination.failWrite(out);
+                // Force the next write to produce a full snapshot again, with a generation
+                // that wasn't used yet
+                if (persisted != null) {
+                    persisted.needsSnapshot = true;
+                    persisted.journalGeneration = journalGeneration;
+                }
             } finally {
                 IoUtils.closeQuietly(out);
             }
         }
 
+        private void writeRestoredGrants(XmlSerializer serializer,
+                ArrayMap<String, ArraySet<RestoredPermissionGrant>> restoredGrants)
+                throws IOException {
+            final int pkgCount = restoredGrants.size();
+            for (int i = 0; i < pkgCount; i++) {
+                final ArraySet<RestoredPermissionGrant> pkgGrants = restoredGrants.valueAt(i);
+                if (pkgGrants != null && pkgGrants.size() > 0) {
+                    final String pkgName = restoredGrants.keyAt(i);
+                    serializer.startTag(null, TAG_RESTORED_RUNTIME_PERMISSIONS);
+                    serializer.attribute(null, ATTR_PACKAGE_NAME, pkgName);
+
+                    final int N = pkgGrants.size();
+                    for (int z = 0; z < N; z++) {
+                        RestoredPermissionGrant g = pkgGrants.valueAt(z);
+                        serializer.startTag(null, TAG_PERMISSION_ENTRY);
+                        serializer.attribute(null, ATTR_NAME, g.permissionName);
+
+                        if (g.granted) {
+                            serializer.attribute(null, ATTR_GRANTED, "true");
+                        }
+
+                        if ((g.grantBits&FLAG_PERMISSION_USER_SET) != 0) {
+                            serializer.attribute(null, ATTR_USER_SET, "true");
+                        }
+                        if ((g.grantBits&FLAG_PERMISSION_USER_FIXED) != 0) {
+                            serializer.attribute(null, ATTR_USER_FIXED, "true");
+                        }
+                        if ((g.grantBits&FLAG_PERMISSION_REVOKE_ON_UPGRADE) != 0) {
+                            serializer.attribute(null, ATTR_REVOKE_ON_UPGRADE, "true");
+                        }
+                        serializer.endTag(null, TAG_PERMISSION_ENTRY);
+                    }
+                    serializer.endTag(null, TAG_RESTORED_RUNTIME_PERMISSIONS);
+                }
+            }
+        }
+
         private void onUserRemovedLPw(int userId) {
             // Make sure we do not
             mHandler.removeMessages(userId);
@@ -5459,6 +6146,9 @@ final class Settings {
 
             mDefaultPermissionsGranted.delete(userId);
             mFingerprints.remove(userId);
+            synchronized (mWriteLock) {
+                mPersistedStates.remove(userId);
+            }
         }
 
         private void revokeRuntimePermissionsAndClearFlags(SettingBase sb, int userId) {
@@ -5476,6 +6166,7 @@ final class Settings {
 
         public void deleteUserRuntimePermissionsFile(int userId) {
             getUserRuntimePermissionsFile(userId).delete();
+            getUserRuntimePermissionsJournalFile(userId).delete();
         }
 
         public void readStateForUserSyncLPr(int userId) {
@@ -5492,10 +6183,10 @@ final class Settings {
                 return;
             }
 
+            final long journalGeneration;
             try {
-                XmlPullParser parser = Xml.newPullParser();
-                parser.setInput(in, null);
-                parseRuntimePermissionsLPr(parser, userId);
+                XmlPullParser parser = XmlUtils.resolvePullParser(in);
+                journalGeneration = parseRuntimePermissionsLPr(parser, userId);
 
             } catch (XmlPullParserException | IOException e) {
                 throw new IllegalStateException("Failed parsing permissions file: "
@@ -5503,6 +6194,111 @@ final class Settings {
             } finally {
                 IoUtils.closeQuietly(in);
             }
+
+            final int recordCount = replayJournalLPr(userId, journalGeneration);
+
+            // Remember what is on disk so later writes only journal the difference. The
+            // first write after boot compacts the journal into a new snapshot though, which
+            // also drops a damaged tail that the replay stopped at; appending behind it
+            // would lose the new records on the next boot.
+            final PersistedPermissionStates persisted = new PersistedPermissionStates();
+            collectPermissionStatesLPr(userId, persisted);
+            persisted.fingerprint = mFingerprints.get(userId);
+            persisted.hadRestoredGrants = mRestoredUserGrants.get(userId) != null;
+            persisted.journalGeneration = journalGeneration;
+            persisted.journalRecordCount = recordCount;
+            persisted.needsSnapshot = true;
+            synchronized (mWriteLock) {
+                mPersistedStates.put(userId, persisted);
+            }
+        }
+
+        /**
+         * Applies the journal records written on top of the snapshot with the given
+         * generation.  Replay stops at the first truncated or corrupt record, which can
+         * only be the last one written before a crash.
+         *
+         * @return the number of records applied.
+         */
+        private int replayJournalLPr(int userId, long journalGeneration) {
+            final File journalFile = getUserRuntimePermissionsJournalFile(userId);
+            if (!journalFile.exists()) {
+                return 0;
+            }
+
+            int recordCount = 0;
+            DataInputStream in = null;
+            try {
+                in = new DataInputStream(new BufferedInputStream(
+                        new FileInputStream(journalFile)));
+                if (in.readInt() != JOURNAL_MAGIC || in.readLong() != journalGeneration) {
+                    Slog.i(PackageManagerService.TAG, "Ignoring stale runtime permissions "
+                            + "journal " + journalFile);
+                    journalFile.delete();
+                    return 0;
+                }
+                long remaining = journalFile.length() - JOURNAL_HEADER_SIZE;
+                while (remaining > 0) {
+                    final int length = in.readInt();
+                    if (length < 0 || length > remaining - JOURNAL_RECORD_OVERHEAD) {
+                        Slog.w(PackageManagerService.TAG, "Truncated runtime permissions "
+                                + "journal record in " + journalFile);
+                        break;
+                    }
+                    remaining -= length + JOURNAL_RECORD_OVERHEAD;
+                    final byte[] payload = new byte[length];
+                    in.readFully(payload);
+                    final CRC32 crc = new CRC32();
+                    crc.update(payload);
+                    if (in.readLong() != crc.getValue()) {
+                        Slog.w(PackageManagerService.TAG, "Corrupt runtime permissions journal "
+                                + "record in " + journalFile);
+                        break;
+                    }
+                    recordCount += applyJournalRecordsLPr(new DataInputStream(
+                            new ByteArrayInputStream(payload)), userId);
+                }
+            } catch (EOFException e) {
+                // Reached the end of the journal, possibly mid-record after a crash
+            } catch (IOException | OutOfMemoryError e) {
+                Slog.w(PackageManagerService.TAG, "Failed reading runtime permissions journal "
+                        + journalFile, e);
+            } finally {
+                IoUtils.closeQuietly(in);
+            }
+            return recordCount;
+        }
+
+        private int applyJournalRecordsLPr(DataInputStream in, int userId) throws IOException {
+            int recordCount = 0;
+            while (in.available() > 0) {
+                final int recordType = in.readByte();
+                final String name = in.readUTF();
+                final SettingBase sb = recordType == RECORD_SHARED_USER
+                        ? mSharedUsers.get(name) : mPackages.get(name);
+                if (sb != null) {
+                    revokeRuntimePermissionsAndClearFlags(sb, userId);
+                }
+                final PermissionsState permissionsState = sb != null
+                        ? sb.getPermissionsState() : null;
+                final int stateCount = in.readInt();
+                for (int i = 0; i < stateCount; i++) {
+                    final String permissionName = in.readUTF();
+                    final boolean granted = in.readBoolean();
+                    final int flags = in.readInt();
+                    final BasePermission bp = mPermissions.get(permissionName);
+                    if (permissionsState == null || bp == null) {
+                        continue;
+                    }
+                    if (granted) {
+                        permissionsState.grantRuntimePermission(bp, userId);
+                    }
+                    permissionsState.updatePermissionFlags(bp, userId,
+                            PackageManager.MASK_PERMISSION_FLAGS, flags);
+                }
+                recordCount++;
+            }
+            return recordCount;
         }
 
         // Backup/restore support
@@ -5530,8 +6326,12 @@ final class Settings {
 
         // Private internals
 
-        private void parseRuntimePermissionsLPr(XmlPullParser parser, int userId)
+        /**
+         * @return the generation of the journal that applies on top of this snapshot.
+         */
+        private long parseRuntimePermissionsLPr(XmlPullParser parser, int userId)
                 throws IOException, XmlPullParserException {
+            long journalGeneration = -1;
             final int outerDepth = parser.getDepth();
             int type;
             while ((type = parser.next()) != XmlPullParser.END_DOCUMENT
@@ -5546,6 +6346,8 @@ final class Settings {
                         mFingerprints.put(userId, fingerprint);
                         final boolean defaultsGranted = Build.FINGERPRINT.equals(fingerprint);
                         mDefaultPermissionsGranted.put(userId, defaultsGranted);
+                        journalGeneration = XmlUtils.readLongAttribute(parser,
+                                ATTR_JOURNAL_GENERATION, -1);
                     } break;
 
                     case TAG_PACKAGE: {
@@ -5576,6 +6378,7 @@ final class Settings {
                     } break;
                 }
             }
+            return journalGeneration;
         }
 
         private void parseRestoredRuntimePermissionsLPr(XmlPullParser parser,
@@ -5668,6 +6471,18 @@ final class Settings {
             }
         }
 
+        /** Runtime permission state of one user as last written to disk. */
+        private final class PersistedPermissionStates {
+            ArrayMap<String, List<PermissionState>> packages = new ArrayMap<>();
+            ArrayMap<String, List<PermissionState>> sharedUsers = new ArrayMap<>();
+            String fingerprint;
+            boolean hadRestoredGrants;
+            long journalGeneration;
+            int journalRecordCount;
+            /** Whether the journal can't be appended to and the next write must be a snapshot */
+            boolean needsSnapshot;
+        }
+
         private final class MyHandler extends Handler {
             public MyHandler() {
                 super(BackgroundThread.getHandler().getLooper());
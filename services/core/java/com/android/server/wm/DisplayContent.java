@@ -23,6 +23,7 @@ import static android.app.ActivityManager.StackId.PINNED_STACK_ID;
 import static android.content.pm.ActivityInfo.SCREEN_ORIENTATION_BEHIND;
 import static android.content.pm.ActivityInfo.SCREEN_ORIENTATION_UNSET;
 import static android.content.pm.ActivityInfo.SCREEN_ORIENTATION_UNSPECIFIED;
+import static android.os.Trace.TRACE_TAG_WINDOW_MANAGER;
 import static android.view.Display.DEFAULT_DISPLAY;
 import static android.view.Display.FLAG_PRIVATE;
 import static android.view.Surface.ROTATION_0;
@@ -52,6 +53,7 @@ import static android.view.WindowManager.LayoutParams.TYPE_STATUS_BAR;
 import static android.view.WindowManager.LayoutParams.TYPE_SYSTEM_DIALOG;
 import static android.view.WindowManager.LayoutParams.TYPE_SYSTEM_ERROR;
 import static android.view.WindowManager.LayoutParams.TYPE_TOAST;
+import static android.view.WindowManager.LayoutParams.TYPE_VOICE_INTERACTION;
 import static android.view.WindowManager.LayoutParams.TYPE_WALLPAPER;
 import static android.view.WindowManagerPolicy.FINISH_LAYOUT_REDO_ANIM;
 import static android.view.WindowManagerPolicy.FINISH_LAYOUT_REDO_CONFIG;
@@ -116,6 +118,7 @@ import android.os.Handler;
 import android.os.IBinder;
 import android.os.RemoteException;
 import android.os.SystemClock;
+import android.os.Trace;
 import android.util.DisplayMetrics;
 import android.util.MutableBoolean;
 import android.util.Slog;
@@ -177,6 +180,9 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
     private boolean mTmpRecoveringMemory;
     private boolean mUpdateImeTarget;
     private boolean mTmpInitial;
+    private boolean mTmpPartialLayout;
+    private int mTmpLaidOutWindows;
+    private int mTmpSkippedWindows;
     private int mMaxUiWidth;
 
     // Mapping from a token IBinder to a WindowToken object on this display.
@@ -271,6 +277,13 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
 
     // Accessed directly by all users.
     private boolean mLayoutNeeded;
+
+    /**
+     * Containers that have been marked as layout dirty since the last layout. If the display
+     * doesn't need a full layout, the next one only lays out the windows in these containers.
+     */
+    private final ArrayList<WindowContainer> mLayoutDirtyContainers = new ArrayList<>();
+
     int pendingLayoutChanges;
     // TODO(multi-display): remove some of the usages.
     boolean isDefaultDisplay;
@@ -493,6 +506,11 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
             w -> w.mWinAnimator.prepareSurfaceLocked(true);
 
     private final Consumer<WindowState> mPerformLayout = w -> {
+        if (mTmpPartialLayout && !needsPartialLayout(w)) {
+            mTmpSkippedWindows++;
+            return;
+        }
+
         // Don't do layout of a window if it is not visible, or soon won't be visible, to avoid
         // wasting time and funky changes while a window is animating away.
         final boolean gone = (mTmpWindow != null && mService.mPolicy.canBeHiddenByKeyguardLw(w))
@@ -537,6 +555,7 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
                 final boolean firstLayout = !w.isLaidOut();
                 mService.mPolicy.layoutWindowLw(w, null);
                 w.mLayoutSeq = mService.mLayoutSeq;
+                mTmpLaidOutWindows++;
 
                 // If this is the first layout, we need to initialize the last inset values as
                 // otherwise we'd immediately cause an unnecessary resize.
@@ -559,6 +578,12 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
 
     private final Consumer<WindowState> mPerformLayoutAttached = w -> {
         if (w.mLayoutAttached) {
+            // Attached windows follow the window they are attached to.
+            if (mTmpPartialLayout && !needsPartialLayout(w)
+                    && w.getParentWindow().mLayoutSeq != mService.mLayoutSeq) {
+                mTmpSkippedWindows++;
+                return;
+            }
             if (DEBUG_LAYOUT) Slog.v(TAG, "2ND PASS " + w + " mHaveFrame=" + w.mHaveFrame
                     + " mViewVisibility=" + w.mViewVisibility
                     + " mRelayoutCalled=" + w.mRelayoutCalled);
@@ -578,6 +603,7 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
                 w.prelayout();
                 mService.mPolicy.layoutWindowLw(w, w.getParentWindow());
                 w.mLayoutSeq = mService.mLayoutSeq;
+                mTmpLaidOutWindows++;
                 if (DEBUG_LAYOUT) Slog.v(TAG, " LAYOUT: mFrame=" + w.mFrame
                         + " mContainingFrame=" + w.mContainingFrame
                         + " mDisplayFrame=" + w.mDisplayFrame);
@@ -2140,7 +2166,8 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
             pw.print("-"); pw.print(mDisplayInfo.largestNominalAppWidth);
             pw.print("x"); pw.println(mDisplayInfo.largestNominalAppHeight);
             pw.print(subPrefix + "deferred=" + mDeferredRemoval
-                    + " mLayoutNeeded=" + mLayoutNeeded);
+                    + " mLayoutNeeded=" + mLayoutNeeded
+                    + " mLayoutDirtyContainers=" + mLayoutDirtyContainers.size());
             pw.println(" mTouchExcludeRegion=" + mTouchExcludeRegion);
 
         pw.println();
@@ -2497,6 +2524,65 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
         return mLayoutNeeded;
     }
 
+    @Override
+    void setLayoutDirty() {
+        // Everything on the display is affected anyways.
+        setLayoutNeeded();
+    }
+
+    @Override
+    void onDescendantLayoutDirty(WindowContainer container) {
+        if (DEBUG_LAYOUT) Slog.v(TAG, "onDescendantLayoutDirty: " + container + " callers="
+                + Debug.getCallers(3));
+        mLayoutDirtyContainers.add(container);
+    }
+
+    @Override
+    void onDescendantDetached(WindowContainer container) {
+        // Drop the containers that left the display; they are reported again to the display they
+        // are attached to next, which then clears their flags.
+        for (int i = mLayoutDirtyContainers.size() - 1; i >= 0; i--) {
+            for (WindowContainer wc = mLayoutDirtyContainers.get(i); wc != null;
+                    wc = wc.getParent()) {
+                if (wc == container) {
+                    mLayoutDirtyContainers.remove(i);
+                    break;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return {@code true} if the display doesn't need a full layout, but some of its windows
+     *         have been marked as layout dirty.
+     */
+    boolean hasLayoutDirtyContainers() {
+        return !mLayoutDirtyContainers.isEmpty();
+    }
+
+    private void clearLayoutDirtyContainers() {
+        for (int i = mLayoutDirtyContainers.size() - 1; i >= 0; i--) {
+            mLayoutDirtyContainers.get(i).clearLayoutDirty();
+        }
+        mLayoutDirtyContainers.clear();
+    }
+
+    /**
+     * @return Whether {@param w} has to be laid out by a partial layout, either because it's in a
+     *         layout dirty container, or because laying it out updates policy state that the
+     *         windows below it depend on, like the area covered by the IME.
+     */
+    private boolean needsPartialLayout(WindowState w) {
+        if (w.mLayoutNeeded || !w.mHaveFrame || w.isConfigChanged()
+                || w.isInLayoutDirtySubtree()) {
+            return true;
+        }
+        final int type = w.mAttrs.type;
+        return type == TYPE_INPUT_METHOD || type == TYPE_VOICE_INTERACTION || type == TYPE_DREAM
+                || type == TYPE_STATUS_BAR || (w.mAttrs.privateFlags & PRIVATE_FLAG_KEYGUARD) != 0
+                || w == mService.mInputMethodTarget;
+    }
+
     void dumpTokens(PrintWriter pw, boolean dumpAll) {
         if (mTokenMap.isEmpty()) {
             return;
@@ -2808,7 +2894,10 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
     }
 
     void performLayout(boolean initial, boolean updateInputWindows) {
-        if (!isLayoutNeeded()) {
+        // Only lay out the windows that were marked as layout dirty, unless something requested a
+        // layout of the whole display.
+        final boolean partial = !isLayoutNeeded();
+        if (partial && !hasLayoutDirtyContainers()) {
             return;
         }
         clearLayoutNeeded();
@@ -2839,6 +2928,9 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
         // behind it.
         mTmpWindow = null;
         mTmpInitial = initial;
+        mTmpPartialLayout = partial;
+        mTmpLaidOutWindows = 0;
+        mTmpSkippedWindows = 0;
 
         // First perform layout of any root windows (not attached to another window).
         forAllWindows(mPerformLayout, true /* traverseTopToBottom */);
@@ -2852,6 +2944,14 @@ class DisplayContent extends WindowContainer<DisplayContent.DisplayChildWindowCo
         // window they are attached to. XXX does not deal with windows that are attached to windows
         // that are themselves attached.
         forAllWindows(mPerformLayoutAttached, true /* traverseTopToBottom */);
+        mTmpPartialLayout = false;
+        clearLayoutDirtyContainers();
+
+        if (Trace.isTagEnabled(TRACE_TAG_WINDOW_MANAGER)) {
+            Trace.traceCounter(TRACE_TAG_WINDOW_MANAGER, "wmLayoutWindows", mTmpLaidOutWindows);
+            Trace.traceCounter(TRACE_TAG_WINDOW_MANAGER, "wmLayoutSkippedWindows",
+                    mTmpSkippedWindows);
+        }
 
         // Window frames may have changed. Tell the input dispatcher about it.
         mService.mInputMonitor.layoutInputConsumers(dw, dh);
@@ -16,27 +16,61 @@
 
 package com.android.server.wm;
 
+import static com.android.server.wm.WindowManagerDebugConfig.TAG_WITH_CLASS_NAME;
+import static com.android.server.wm.WindowManagerDebugConfig.TAG_WM;
+
 import android.annotation.Nullable;
 import android.app.ActivityManager.TaskSnapshot;
+import android.os.Process;
 import android.util.ArrayMap;
 import android.util.LruCache;
+import android.util.Slog;
+
+import com.android.internal.annotations.GuardedBy;
+import com.android.internal.util.ConcurrentUtils;
 
 import java.io.PrintWriter;
 import java.util.Map;
 import java.util.Map.Entry;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.FutureTask;
 
 /**
  * Caches snapshots. See {@link TaskSnapshotController}.
  * <p>
- * Access to this class should be guarded by the global window manager lock.
+ * Access to this class should be guarded by the global window manager lock, except for the
+ * prefetched snapshots which have their own lock so they can be restored from disk without it.
  */
 class TaskSnapshotCache {
 
+    private static final String TAG = TAG_WITH_CLASS_NAME ? "TaskSnapshotCache" : TAG_WM;
+
+    /** How many tasks without a running snapshot are restored ahead of time for Recents */
+    static final int MAX_PREFETCHED_SNAPSHOTS = 6;
+
+    /** Number of snapshots that are decoded in parallel while prefetching */
+    private static final int PREFETCH_THREADS = 2;
+
     private final WindowManagerService mService;
     private final TaskSnapshotLoader mLoader;
     private final ArrayMap<AppWindowToken, Integer> mAppTaskMap = new ArrayMap<>();
     private final ArrayMap<Integer, CacheEntry> mRunningCache = new ArrayMap<>();
 
+    private final Object mPrefetchLock = new Object();
+
+    /** Reduced resolution snapshots restored from disk, handed out once */
+    @GuardedBy("mPrefetchLock")
+    private final LruCache<Integer, TaskSnapshot> mPrefetchedSnapshots =
+            new LruCache<>(MAX_PREFETCHED_SNAPSHOTS);
+
+    /** Prefetches that are still being loaded, by task id */
+    @GuardedBy("mPrefetchLock")
+    private final ArrayMap<Integer, PrefetchTask> mPendingPrefetches = new ArrayMap<>();
+
+    @GuardedBy("mPrefetchLock")
+    private ExecutorService mPrefetchExecutor;
+
     TaskSnapshotCache(WindowManagerService service, TaskSnapshotLoader loader) {
         mService = service;
         mLoader = loader;
@@ -50,6 +84,9 @@ class TaskSnapshotCache {
         final AppWindowToken top = task.getTopChild();
         mAppTaskMap.put(top, task.mTaskId);
         mRunningCache.put(task.mTaskId, new CacheEntry(snapshot, task.getTopChild()));
+
+        // Anything restored from disk is older than this one
+        removePrefetchedSnapshot(task.mTaskId);
     }
 
     /**
@@ -77,6 +114,12 @@ class TaskSnapshotCache {
      * DO NOT HOLD THE WINDOW MANAGER LOCK WHEN CALLING THIS METHOD!
      */
     private TaskSnapshot tryRestoreFromDisk(int taskId, int userId, boolean reducedResolution) {
+        if (reducedResolution) {
+            final TaskSnapshot prefetched = takePrefetchedSnapshot(taskId);
+            if (prefetched != null) {
+                return prefetched;
+            }
+        }
         final TaskSnapshot snapshot = mLoader.loadTask(taskId, userId, reducedResolution);
         if (snapshot == null) {
             return null;
@@ -106,6 +149,76 @@ class TaskSnapshotCache {
 
     void onTaskRemoved(int taskId) {
         removeRunningEntry(taskId);
+        removePrefetchedSnapshot(taskId);
+    }
+
+    /**
+     * Starts restoring the reduced resolution snapshots of the given tasks from disk, so they are
+     * ready by the time Recents asks for them. Tasks that have a snapshot in the running cache
+     * are skipped, and at most {@link #MAX_PREFETCHED_SNAPSHOTS} tasks are loaded, in the given
+     * order. Snapshots are decoded in parallel and this returns without waiting for them.
+     * <p>
+     * DO NOT HOLD THE WINDOW MANAGER LOCK WHEN CALLING THIS METHOD!
+     */
+    void prefetchSnapshots(int[] taskIds, int[] userIds) {
+        final int[] toLoad = new int[Math.min(taskIds.length, MAX_PREFETCHED_SNAPSHOTS)];
+        int count = 0;
+        synchronized (mService.mWindowMap) {
+            for (int i = 0; i < taskIds.length && count < toLoad.length; i++) {
+                if (!mRunningCache.containsKey(taskIds[i])) {
+                    toLoad[count++] = i;
+                }
+            }
+        }
+        synchronized (mPrefetchLock) {
+            for (int i = 0; i < count; i++) {
+                final int taskId = taskIds[toLoad[i]];
+                if (mPrefetchedSnapshots.get(taskId) != null
+                        || mPendingPrefetches.containsKey(taskId)) {
+                    continue;
+                }
+                if (mPrefetchExecutor == null) {
+                    mPrefetchExecutor = ConcurrentUtils.newFixedThreadPool(PREFETCH_THREADS,
+                            "TaskSnapshotPrefetch", Process.THREAD_PRIORITY_FOREGROUND);
+                }
+                final PrefetchTask task = new PrefetchTask(taskId, userIds[toLoad[i]]);
+                mPendingPrefetches.put(taskId, task);
+                mPrefetchExecutor.execute(task);
+            }
+        }
+    }
+
+    /**
+     * Returns the prefetched snapshot of a task, waiting for it if it's still being loaded.
+     * <p>
+     * DO NOT HOLD THE WINDOW MANAGER LOCK WHEN CALLING THIS METHOD!
+     */
+    private TaskSnapshot takePrefetchedSnapshot(int taskId) {
+        final PrefetchTask pending;
+        synchronized (mPrefetchLock) {
+            final TaskSnapshot snapshot = mPrefetchedSnapshots.remove(taskId);
+            if (snapshot != null) {
+                return snapshot;
+            }
+            pending = mPendingPrefetches.remove(taskId);
+        }
+        if (pending == null) {
+            return null;
+        }
+        try {
+            // Decoding it a second time wouldn't be any faster than waiting for it
+            return pending.get();
+        } catch (InterruptedException | ExecutionException e) {
+            Slog.w(TAG, "Failed to prefetch snapshot for taskId=" + taskId, e);
+            return null;
+        }
+    }
+
+    private void removePrefetchedSnapshot(int taskId) {
+        synchronized (mPrefetchLock) {
+            mPrefetchedSnapshots.remove(taskId);
+            mPendingPrefetches.remove(taskId);
+        }
     }
 
     private void removeRunningEntry(int taskId) {
@@ -126,6 +239,42 @@ class TaskSnapshotCache {
             pw.println(triplePrefix + "topApp=" + entry.topApp);
             pw.println(triplePrefix + "snapshot=" + entry.snapshot);
         }
+        synchronized (mPrefetchLock) {
+            pw.println(doublePrefix + "prefetched=" + mPrefetchedSnapshots.snapshot().keySet()
+                    + " pending=" + mPendingPrefetches.keySet());
+        }
+    }
+
+    /**
+     * Loads a snapshot in the background and, unless it has been taken or invalidated in the
+     * meantime, moves it to the prefetched snapshots once done.
+     */
+    private final class PrefetchTask extends FutureTask<TaskSnapshot> {
+        private final int mTaskId;
+
+        PrefetchTask(int taskId, int userId) {
+            super(() -> mLoader.loadTask(taskId, userId, true /* reducedResolution */));
+            mTaskId = taskId;
+        }
+
+        @Override
+        protected void done() {
+            TaskSnapshot snapshot = null;
+            try {
+                snapshot = get();
+            } catch (InterruptedException | ExecutionException e) {
+                Slog.w(TAG, "Failed to prefetch snapshot for taskId=" + mTaskId, e);
+            }
+            synchronized (mPrefetchLock) {
+                if (mPendingPrefetches.get(mTaskId) != this) {
+                    return;
+                }
+                mPendingPrefetches.remove(mTaskId);
+                if (snapshot != null) {
+                    mPrefetchedSnapshots.put(mTaskId, snapshot);
+                }
+            }
+        }
     }
 
     private static final class CacheEntry {
@@ -194,6 +194,18 @@ class TaskSnapshotController {
                 || DISABLE_FULL_SIZED_BITMAPS);
     }
 
+    /**
+     * Starts restoring the snapshots of the given tasks from disk ahead of a {@link #getSnapshot}
+     * call, see {@link TaskSnapshotCache#prefetchSnapshots}. DO NOT HOLD THE WINDOW MANAGER LOCK
+     * WHEN CALLING THIS METHOD!
+     */
+    void prefetchSnapshots(int[] taskIds, int[] userIds) {
+        if (shouldDisableSnapshots()) {
+            return;
+        }
+        mCache.prefetchSnapshots(taskIds, userIds);
+    }
+
     /**
      * Creates a starting surface for {@param token} with {@param snapshot}. DO NOT HOLD THE WINDOW
      * MANAGER LOCK WHEN CALLING THIS METHOD!
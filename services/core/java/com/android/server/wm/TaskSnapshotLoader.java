@@ -33,6 +33,7 @@ import com.android.server.wm.nano.WindowManagerProtos.TaskSnapshotProto;
 
 import java.io.File;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.nio.file.Files;
 
 /**
@@ -65,18 +66,32 @@ class TaskSnapshotLoader {
      */
     TaskSnapshot loadTask(int taskId, int userId, boolean reducedResolution) {
         final File protoFile = mPersister.getProtoFile(taskId, userId);
-        final File bitmapFile = reducedResolution
-                ? mPersister.getReducedResolutionBitmapFile(taskId, userId)
-                : mPersister.getBitmapFile(taskId, userId);
+        File bitmapFile = null;
+        boolean raw = false;
+        if (reducedResolution) {
+            // Whichever format the persister used last, the other one has been deleted
+            bitmapFile = mPersister.getReducedResolutionRawFile(taskId, userId);
+            raw = bitmapFile.exists();
+            if (!raw) {
+                bitmapFile = mPersister.getReducedResolutionBitmapFile(taskId, userId);
+            }
+        } else {
+            bitmapFile = mPersister.getBitmapFile(taskId, userId);
+        }
         if (bitmapFile == null || !protoFile.exists() || !bitmapFile.exists()) {
             return null;
         }
         try {
             final byte[] bytes = Files.readAllBytes(protoFile.toPath());
             final TaskSnapshotProto proto = TaskSnapshotProto.parseFrom(bytes);
-            final Options options = new Options();
-            options.inPreferredConfig = Config.HARDWARE;
-            final Bitmap bitmap = BitmapFactory.decodeFile(bitmapFile.getPath(), options);
+            final Bitmap bitmap;
+            if (raw) {
+                bitmap = loadRawBitmap(bitmapFile);
+            } else {
+                final Options options = new Options();
+                options.inPreferredConfig = Config.HARDWARE;
+                bitmap = BitmapFactory.decodeFile(bitmapFile.getPath(), options);
+            }
             if (bitmap == null) {
                 Slog.w(TAG, "Failed to load bitmap: " + bitmapFile.getPath());
                 return null;
@@ -95,4 +110,27 @@ class TaskSnapshotLoader {
             return null;
         }
     }
+
+    /**
+     * Loads a snapshot written by {@link TaskSnapshotPersister} in its raw RGB_565 format, which
+     * only needs to be copied into a hardware bitmap rather than decoded.
+     *
+     * @return The hardware bitmap, or {@code null} if the file is malformed.
+     */
+    private Bitmap loadRawBitmap(File file) throws IOException {
+        final ByteBuffer buffer = ByteBuffer.wrap(Files.readAllBytes(file.toPath()));
+        if (buffer.remaining() < RAW_HEADER_SIZE || buffer.getInt() != RAW_MAGIC) {
+            return null;
+        }
+        final int width = buffer.getInt();
+        final int height = buffer.getInt();
+        if (width <= 0 || height <= 0 || (long) width * height * 2 != buffer.remaining()) {
+            return null;
+        }
+        final Bitmap swBitmap = Bitmap.createBitmap(width, height, Config.RGB_565);
+        swBitmap.copyPixelsFromBuffer(buffer);
+        final Bitmap bitmap = swBitmap.copy(Config.HARDWARE, false /* isMutable */);
+        swBitmap.recycle();
+        return bitmap;
+    }
 }
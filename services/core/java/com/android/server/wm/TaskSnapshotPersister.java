@@ -29,6 +29,7 @@ import android.graphics.Bitmap.Config;
 import android.graphics.GraphicBuffer;
 import android.os.Process;
 import android.os.SystemClock;
+import android.os.SystemProperties;
 import android.util.ArraySet;
 import android.util.Slog;
 
@@ -40,6 +41,7 @@ import com.android.server.wm.nano.WindowManagerProtos.TaskSnapshotProto;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.nio.ByteBuffer;
 import java.util.ArrayDeque;
 import java.util.ArrayList;
 
@@ -59,12 +61,32 @@ class TaskSnapshotPersister {
     private static final int QUALITY = 95;
     private static final String PROTO_EXTENSION = ".proto";
     private static final String BITMAP_EXTENSION = ".jpg";
-    private static final int MAX_STORE_QUEUE_DEPTH = 2;
+    private static final String RAW_EXTENSION = ".raw";
 
+    /**
+     * Whether reduced resolution snapshots are stored as raw RGB_565 pixels rather than JPEG.
+     * That takes more space on disk, but restoring them is a plain read and upload instead of a
+     * decode, which is what Recents is waiting on after a reboot.
+     */
+    static final boolean RAW_REDUCED_SNAPSHOTS =
+            SystemProperties.getBoolean("persist.wm.raw_reduced_snapshots", false);
+
+    /** Header of a raw snapshot: magic, width and height */
+    static final int RAW_MAGIC = 0x54535231; // TSR1
+    static final int RAW_HEADER_SIZE = 12;
+
+    /**
+     * Deletes and other cheap items, written in order before any store.
+     */
     @GuardedBy("mLock")
     private final ArrayDeque<WriteQueueItem> mWriteQueue = new ArrayDeque<>();
+
+    /**
+     * Pending stores, at most one per task, ordered by when the task was last persisted. The
+     * most recent one is written first, as that's the task Recents is most likely to show next.
+     */
     @GuardedBy("mLock")
-    private final ArrayDeque<StoreWriteQueueItem> mStoreQueueItems = new ArrayDeque<>();
+    private final ArrayList<StoreWriteQueueItem> mStoreQueueItems = new ArrayList<>();
     @GuardedBy("mLock")
     private boolean mQueueIdling;
     @GuardedBy("mLock")
@@ -104,7 +126,15 @@ class TaskSnapshotPersister {
     void persistSnapshot(int taskId, int userId, TaskSnapshot snapshot) {
         synchronized (mLock) {
             mPersistedTaskIdsSinceLastRemoveObsolete.add(taskId);
-            sendToQueueLocked(new StoreWriteQueueItem(taskId, userId, snapshot));
+            StoreWriteQueueItem item = removeStoreItemLocked(taskId);
+            if (item != null) {
+                // Only the latest snapshot of a task is worth writing
+                item.mSnapshot = snapshot;
+            } else {
+                item = new StoreWriteQueueItem(taskId, userId, snapshot);
+            }
+            mStoreQueueItems.add(item);
+            notifyQueueLocked();
         }
     }
 
@@ -117,6 +147,7 @@ class TaskSnapshotPersister {
     void onTaskRemovedFromRecents(int taskId, int userId) {
         synchronized (mLock) {
             mPersistedTaskIdsSinceLastRemoveObsolete.remove(taskId);
+            removeStoreItemLocked(taskId);
             sendToQueueLocked(new DeleteWriteQueueItem(taskId, userId));
         }
     }
@@ -149,7 +180,7 @@ class TaskSnapshotPersister {
     void waitForQueueEmpty() {
         while (true) {
             synchronized (mLock) {
-                if (mWriteQueue.isEmpty() && mQueueIdling) {
+                if (mWriteQueue.isEmpty() && mStoreQueueItems.isEmpty() && mQueueIdling) {
                     return;
                 }
             }
@@ -160,20 +191,35 @@ class TaskSnapshotPersister {
     @GuardedBy("mLock")
     private void sendToQueueLocked(WriteQueueItem item) {
         mWriteQueue.offer(item);
-        item.onQueuedLocked();
-        ensureStoreQueueDepthLocked();
+        notifyQueueLocked();
+    }
+
+    @GuardedBy("mLock")
+    private void notifyQueueLocked() {
         if (!mPaused) {
             mLock.notifyAll();
         }
     }
 
     @GuardedBy("mLock")
-    private void ensureStoreQueueDepthLocked() {
-        while (mStoreQueueItems.size() > MAX_STORE_QUEUE_DEPTH) {
-            final StoreWriteQueueItem item = mStoreQueueItems.poll();
-            mWriteQueue.remove(item);
-            Slog.i(TAG, "Queue is too deep! Purged item with taskid=" + item.mTaskId);
+    private StoreWriteQueueItem removeStoreItemLocked(int taskId) {
+        for (int i = mStoreQueueItems.size() - 1; i >= 0; i--) {
+            final StoreWriteQueueItem item = mStoreQueueItems.get(i);
+            if (item.mTaskId == taskId) {
+                mStoreQueueItems.remove(i);
+                return item;
+            }
         }
+        return null;
+    }
+
+    @GuardedBy("mLock")
+    private WriteQueueItem pollQueueLocked() {
+        final WriteQueueItem next = mWriteQueue.poll();
+        if (next != null || mStoreQueueItems.isEmpty()) {
+            return next;
+        }
+        return mStoreQueueItems.remove(mStoreQueueItems.size() - 1);
     }
 
     private File getDirectory(int userId) {
@@ -197,6 +243,10 @@ class TaskSnapshotPersister {
         return new File(getDirectory(userId), taskId + REDUCED_POSTFIX + BITMAP_EXTENSION);
     }
 
+    File getReducedResolutionRawFile(int taskId, int userId) {
+        return new File(getDirectory(userId), taskId + REDUCED_POSTFIX + RAW_EXTENSION);
+    }
+
     private boolean createDirectory(int userId) {
         final File dir = getDirectory(userId);
         return dir.exists() || dir.mkdirs();
@@ -205,8 +255,10 @@ class TaskSnapshotPersister {
     private void deleteSnapshot(int taskId, int userId) {
         final File protoFile = getProtoFile(taskId, userId);
         final File bitmapReducedFile = getReducedResolutionBitmapFile(taskId, userId);
+        final File rawReducedFile = getReducedResolutionRawFile(taskId, userId);
         protoFile.delete();
         bitmapReducedFile.delete();
+        rawReducedFile.delete();
 
         // Low ram devices do not have a full sized file to delete
         if (!DISABLE_FULL_SIZED_BITMAPS) {
@@ -225,21 +277,15 @@ class TaskSnapshotPersister {
             while (true) {
                 WriteQueueItem next;
                 synchronized (mLock) {
-                    if (mPaused) {
-                        next = null;
-                    } else {
-                        next = mWriteQueue.poll();
-                        if (next != null) {
-                            next.onDequeuedLocked();
-                        }
-                    }
+                    next = mPaused ? null : pollQueueLocked();
                 }
                 if (next != null) {
                     next.write();
                     SystemClock.sleep(DELAY_MS);
                 }
                 synchronized (mLock) {
-                    final boolean writeQueueEmpty = mWriteQueue.isEmpty();
+                    final boolean writeQueueEmpty = mWriteQueue.isEmpty()
+                            && mStoreQueueItems.isEmpty();
                     if (!writeQueueEmpty && !mPaused) {
                         continue;
                     }
@@ -256,24 +302,17 @@ class TaskSnapshotPersister {
 
     private abstract class WriteQueueItem {
         abstract void write();
-
-        /**
-         * Called when this queue item has been put into the queue.
-         */
-        void onQueuedLocked() {
-        }
-
-        /**
-         * Called when this queue item has been taken out of the queue.
-         */
-        void onDequeuedLocked() {
-        }
     }
 
     private class StoreWriteQueueItem extends WriteQueueItem {
         private final int mTaskId;
         private final int mUserId;
-        private final TaskSnapshot mSnapshot;
+
+        /**
+         * Replaced if the task is persisted again while this item is still queued. Once it has
+         * been taken out of the queue this doesn't change anymore.
+         */
+        private TaskSnapshot mSnapshot;
 
         StoreWriteQueueItem(int taskId, int userId, TaskSnapshot snapshot) {
             mTaskId = taskId;
@@ -281,16 +320,6 @@ class TaskSnapshotPersister {
             mSnapshot = snapshot;
         }
 
-        @Override
-        void onQueuedLocked() {
-            mStoreQueueItems.offer(this);
-        }
-
-        @Override
-        void onDequeuedLocked() {
-            mStoreQueueItems.remove(this);
-        }
-
         @Override
         void write() {
             if (!createDirectory(mUserId)) {
@@ -346,13 +375,21 @@ class TaskSnapshotPersister {
                     : Bitmap.createScaledBitmap(swBitmap,
                             (int) (bitmap.getWidth() * REDUCED_SCALE),
                             (int) (bitmap.getHeight() * REDUCED_SCALE), true /* filter */);
-            try {
-                FileOutputStream reducedFos = new FileOutputStream(reducedFile);
-                reduced.compress(JPEG, QUALITY, reducedFos);
-                reducedFos.close();
-            } catch (IOException e) {
-                Slog.e(TAG, "Unable to open " + reducedFile +" for persisting.", e);
-                return false;
+            if (RAW_REDUCED_SNAPSHOTS) {
+                if (!writeRaw(reduced)) {
+                    return false;
+                }
+                reducedFile.delete();
+            } else {
+                try {
+                    FileOutputStream reducedFos = new FileOutputStream(reducedFile);
+                    reduced.compress(JPEG, QUALITY, reducedFos);
+                    reducedFos.close();
+                } catch (IOException e) {
+                    Slog.e(TAG, "Unable to open " + reducedFile +" for persisting.", e);
+                    return false;
+                }
+                getReducedResolutionRawFile(mTaskId, mUserId).delete();
             }
 
             // For snapshots with reduced resolution, do not create or save full sized bitmaps
@@ -371,6 +408,38 @@ class TaskSnapshotPersister {
             }
             return true;
         }
+
+        /**
+         * Writes {@param reduced} as a {@link #RAW_HEADER_SIZE} byte header followed by its
+         * pixels in RGB_565, which is what {@link TaskSnapshotLoader} uploads as is.
+         */
+        boolean writeRaw(Bitmap reduced) {
+            final Bitmap rgb565 = reduced.copy(Config.RGB_565, false /* isMutable */);
+            if (rgb565 == null) {
+                Slog.e(TAG, "Unable to convert task snapshot to RGB_565");
+                return false;
+            }
+            final ByteBuffer buffer = ByteBuffer.allocate(RAW_HEADER_SIZE + rgb565.getByteCount());
+            buffer.putInt(RAW_MAGIC);
+            buffer.putInt(rgb565.getWidth());
+            buffer.putInt(rgb565.getHeight());
+            rgb565.copyPixelsToBuffer(buffer);
+            rgb565.recycle();
+
+            final File rawFile = getReducedResolutionRawFile(mTaskId, mUserId);
+            final AtomicFile atomicFile = new AtomicFile(rawFile);
+            FileOutputStream fos = null;
+            try {
+                fos = atomicFile.startWrite();
+                fos.write(buffer.array(), 0, buffer.position());
+                atomicFile.finishWrite(fos);
+            } catch (IOException e) {
+                atomicFile.failWrite(fos);
+                Slog.e(TAG, "Unable to open " + rawFile + " for persisting.", e);
+                return false;
+            }
+            return true;
+        }
     }
 
     private class DeleteWriteQueueItem extends WriteQueueItem {
@@ -424,7 +493,8 @@ class TaskSnapshotPersister {
 
         @VisibleForTesting
         int getTaskId(String fileName) {
-            if (!fileName.endsWith(PROTO_EXTENSION) && !fileName.endsWith(BITMAP_EXTENSION)) {
+            if (!fileName.endsWith(PROTO_EXTENSION) && !fileName.endsWith(BITMAP_EXTENSION)
+                    && !fileName.endsWith(RAW_EXTENSION)) {
                 return -1;
             }
             final int end = fileName.lastIndexOf('.');
@@ -79,12 +79,23 @@ class WindowContainer<E extends WindowContainer> implements Comparable<WindowCon
     // The owner/creator for this container. No controller if null.
     private WindowContainerController mController;
 
+    /**
+     * Whether the windows in this container need to be laid out again, without that requiring a
+     * layout of the whole display. See {@link #setLayoutDirty}.
+     */
+    private boolean mLayoutDirty;
+
     final protected WindowContainer getParent() {
         return mParent;
     }
 
     final protected void setParent(WindowContainer parent) {
+        final WindowContainer oldParent = mParent;
         mParent = parent;
+        if (oldParent != null) {
+            // The old display must neither hold on to nor lay out anything in this subtree.
+            oldParent.onDescendantDetached(this);
+        }
         // Removing parent usually means that we've detached this entity to destroy it or to attach
         // to another parent. In both cases we don't need to update the configuration now.
         if (mParent != null) {
@@ -92,6 +103,8 @@ class WindowContainer<E extends WindowContainer> implements Comparable<WindowCon
             onConfigurationChanged(mParent.mFullConfiguration);
             // Update merged override configuration of this container and all its children.
             onMergedOverrideConfigurationChanged();
+            // Let the new display know about the pending layout.
+            reportLayoutDirty(mParent);
         }
 
         onParentSet();
@@ -334,6 +347,71 @@ class WindowContainer<E extends WindowContainer> implements Comparable<WindowCon
         }
     }
 
+    /**
+     * Marks the windows in this container as needing layout. Unlike
+     * {@link DisplayContent#setLayoutNeeded}, the next layout pass of the display may then skip
+     * the windows outside of the dirty containers, so this must only be used for changes that
+     * can't affect the layout of other windows.
+     */
+    void setLayoutDirty() {
+        if (mLayoutDirty) {
+            return;
+        }
+        mLayoutDirty = true;
+        if (mParent != null) {
+            mParent.onDescendantLayoutDirty(this);
+        }
+    }
+
+    /**
+     * Notify that {@param container}, a descendant of this container, has been marked as layout
+     * dirty.
+     */
+    void onDescendantLayoutDirty(WindowContainer container) {
+        if (mParent != null) {
+            mParent.onDescendantLayoutDirty(container);
+        }
+    }
+
+    /**
+     * Notify that {@param container}, a descendant of this container, has been detached from its
+     * parent along with its own descendants.
+     */
+    void onDescendantDetached(WindowContainer container) {
+        if (mParent != null) {
+            mParent.onDescendantDetached(container);
+        }
+    }
+
+    /**
+     * Notifies {@param parent} of this container and each of its descendants that is marked as
+     * layout dirty.
+     */
+    private void reportLayoutDirty(WindowContainer parent) {
+        if (mLayoutDirty) {
+            parent.onDescendantLayoutDirty(this);
+        }
+        for (int i = mChildren.size() - 1; i >= 0; --i) {
+            mChildren.get(i).reportLayoutDirty(parent);
+        }
+    }
+
+    void clearLayoutDirty() {
+        mLayoutDirty = false;
+    }
+
+    /**
+     * @return {@code true} if this container or any of its parents has been marked as layout dirty.
+     */
+    boolean isInLayoutDirtySubtree() {
+        for (WindowContainer wc = this; wc != null; wc = wc.mParent) {
+            if (wc.mLayoutDirty) {
+                return true;
+            }
+        }
+        return false;
+    }
+
     /**
      * Get merged override configuration from the top of the hierarchy down to this
      * particular instance. This should be reported to client as override config.
@@ -2156,7 +2156,19 @@ public class WindowManagerService extends IWindowManager.Stub
                 mUnknownAppVisibilityController.notifyRelayouted(win.mAppToken);
             }
 
-            win.setDisplayLayoutNeeded();
+            // A relayout of an app window that doesn't change its visibility or any of the
+            // attributes the policy looks at when laying out other windows only needs that window
+            // to be laid out again.
+            if (win.mAppToken != null && oldVisibility == viewVisibility && !imMayMove
+                    && !focusMayChange && !wallpaperMayMove && flagChanges == 0
+                    && (attrChanges & (LayoutParams.TYPE_CHANGED | LayoutParams.FLAGS_CHANGED
+                            | LayoutParams.PRIVATE_FLAGS_CHANGED
+                            | LayoutParams.SYSTEM_UI_VISIBILITY_CHANGED
+                            | LayoutParams.SYSTEM_UI_LISTENER_CHANGED)) == 0) {
+                win.setLayoutDirty();
+            } else {
+                win.setDisplayLayoutNeeded();
+            }
             win.mGivenInsetsPending = (flags & WindowManagerGlobal.RELAYOUT_INSETS_PENDING) != 0;
             Trace.traceBegin(TRACE_TAG_WINDOW_MANAGER,
                     "relayoutWindow: updateOrientationFromAppTokens");
@@ -3800,6 +3812,17 @@ public class WindowManagerService extends IWindowManager.Stub
                 reducedResolution);
     }
 
+    /**
+     * Starts restoring the snapshots of the given tasks from disk in the background, so that
+     * {@link #getTaskSnapshot} doesn't have to decode them one by one when Recents opens.
+     *
+     * @param taskIds The ids of the tasks, most recent first.
+     * @param userIds The ids of the users the tasks belong to.
+     */
+    public void prefetchTaskSnapshots(int[] taskIds, int[] userIds) {
+        mTaskSnapshotController.prefetchSnapshots(taskIds, userIds);
+    }
+
     /**
      * In case a task write/delete operation was lost because the system crashed, this makes sure to
      * clean up the directory to remove obsolete files.
@@ -194,7 +194,13 @@ class WindowSurfacePlacer {
         }
 
         try {
+            final boolean traceEnabled = Trace.isTagEnabled(Trace.TRACE_TAG_WINDOW_MANAGER);
+            final long startTime = traceEnabled ? System.nanoTime() : 0;
             mService.mRoot.performSurfacePlacement(recoveringMemory);
+            if (traceEnabled) {
+                Trace.traceCounter(Trace.TRACE_TAG_WINDOW_MANAGER, "wmLayoutPassUs",
+                        (int) ((System.nanoTime() - startTime) / 1000));
+            }
 
             mInLayout = false;
 
@@ -16,7 +16,10 @@
 
 package com.android.server.notification;
 
+import static org.junit.Assert.assertArrayEquals;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
 
 import android.app.NotificationChannel;
 import android.content.Intent;
@@ -34,6 +37,7 @@ import org.junit.Test;
 import org.junit.runner.RunWith;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
 
 @SmallTest
@@ -63,7 +67,56 @@ public class NotificationListenerServiceTest extends NotificationTestCase {
         }
     }
 
+    @Test
+    public void testDeltaRanking() throws Exception {
+        TestListenerService service = new TestListenerService();
+        NotificationRankingUpdate base = generateUpdate(1, mKeys, null);
+        service.applyUpdateLocked(base);
+
+        String[] orderedKeys = new String[] { "key3", "key", "key1" };
+        NotificationRankingUpdate delta =
+                generateUpdate(2, orderedKeys, "key1").createDelta(base);
+        assertTrue(delta.isDelta());
+        assertEquals(1, delta.getBaseVersion());
+        assertArrayEquals(new String[] { "key1" }, delta.getChangedKeys());
+
+        service.applyUpdateLocked(delta);
+        assertArrayEquals(orderedKeys, service.getCurrentRanking().getOrderedKeys());
+        for (int i = 0; i < orderedKeys.length; i++) {
+            String key = orderedKeys[i];
+            int index = indexOf(key);
+            Ranking ranking = new Ranking();
+            assertTrue(service.getCurrentRanking().getRanking(key, ranking));
+            assertEquals(i, ranking.getRank());
+            assertEquals(getImportance(index) + (key.equals("key1") ? 1 : 0),
+                    ranking.getImportance());
+            assertEquals(!isIntercepted(index), ranking.matchesInterruptionFilter());
+            assertEquals(getChannel(key, index), ranking.getChannel());
+            assertEquals(getPeople(key, index), ranking.getAdditionalPeople());
+        }
+        assertFalse(service.getCurrentRanking().getRanking("key2", new Ranking()));
+    }
+
+    @Test
+    public void testDeltaRankingWithMissedUpdate() throws Exception {
+        TestListenerService service = new TestListenerService();
+        NotificationRankingUpdate base = generateUpdate(1, mKeys, null);
+        service.applyUpdateLocked(base);
+
+        NotificationRankingUpdate other = generateUpdate(2, mKeys, "key");
+        service.applyUpdateLocked(generateUpdate(3, mKeys, "key1").createDelta(other));
+        // The delta can't be applied, so the last full ranking is kept
+        Ranking ranking = new Ranking();
+        service.getCurrentRanking().getRanking("key1", ranking);
+        assertEquals(getImportance(indexOf("key1")), ranking.getImportance());
+    }
+
     private NotificationRankingUpdate generateUpdate() {
+        return generateUpdate(NotificationRankingUpdate.VERSION_NONE, mKeys, null);
+    }
+
+    private NotificationRankingUpdate generateUpdate(int version, String[] orderedKeys,
+            String boostedKey) {
         List<String> interceptedKeys = new ArrayList<>();
         Bundle visibilityOverrides = new Bundle();
         Bundle overrideGroupKeys = new Bundle();
@@ -73,30 +126,35 @@ public class NotificationListenerServiceTest extends NotificationTestCase {
         Bundle overridePeople = new Bundle();
         Bundle snoozeCriteria = new Bundle();
         Bundle showBadge = new Bundle();
-        int[] importance = new int[mKeys.length];
+        int[] importance = new int[orderedKeys.length];
 
-        for (int i = 0; i < mKeys.length; i++) {
-            String key = mKeys[i];
+        for (int j = 0; j < orderedKeys.length; j++) {
+            String key = orderedKeys[j];
+            int i = indexOf(key);
             visibilityOverrides.putInt(key, getVisibilityOverride(i));
             overrideGroupKeys.putString(key, getOverrideGroupKey(key));
             if (isIntercepted(i)) {
                 interceptedKeys.add(key);
             }
             suppressedVisualEffects.putInt(key, getSuppressedVisualEffects(i));
-            importance[i] = getImportance(i);
+            importance[j] = getImportance(i) + (key.equals(boostedKey) ? 1 : 0);
             explanation.putString(key, getExplanation(key));
             channels.putParcelable(key, getChannel(key, i));
             overridePeople.putStringArrayList(key, getPeople(key, i));
             snoozeCriteria.putParcelableArrayList(key, getSnoozeCriteria(key, i));
             showBadge.putBoolean(key, getShowBadge(i));
         }
-        NotificationRankingUpdate update = new NotificationRankingUpdate(mKeys,
+        NotificationRankingUpdate update = new NotificationRankingUpdate(version, orderedKeys,
                 interceptedKeys.toArray(new String[0]), visibilityOverrides,
                 suppressedVisualEffects, importance, explanation, overrideGroupKeys,
                 channels, overridePeople, snoozeCriteria, showBadge);
         return update;
     }
 
+    private int indexOf(String key) {
+        return Arrays.asList(mKeys).indexOf(key);
+    }
+
     private int getVisibilityOverride(int index) {
         return index * 9;
     }
@@ -322,6 +322,78 @@ public class RankingHelperTest extends NotificationTestCase {
         mHelper.sort(notificationList);
     }
 
+    @Test
+    public void testSortIncrementallyMatchesSort() throws Exception {
+        ArrayList<NotificationRecord> notificationList = new ArrayList<NotificationRecord>(4);
+        notificationList.add(mRecordGroupGSortA);
+        notificationList.add(mRecordNoGroup);
+        notificationList.add(mRecordNoGroupSortA);
+        mHelper.sort(notificationList);
+
+        notificationList.add(mRecordGroupGSortB);
+        assertTrue(mHelper.sortIncrementally(notificationList, mRecordGroupGSortB, null));
+
+        ArrayList<NotificationRecord> expected = new ArrayList<NotificationRecord>(
+                notificationList);
+        mHelper.sort(expected);
+        assertEquals(expected, notificationList);
+    }
+
+    @Test
+    public void testSortIncrementallyAfterRemovingGroupProxy() throws Exception {
+        ArrayList<NotificationRecord> notificationList = new ArrayList<NotificationRecord>(4);
+        notificationList.add(mRecordGroupGSortA);
+        notificationList.add(mRecordGroupGSortB);
+        notificationList.add(mRecordNoGroup);
+        mHelper.sort(notificationList);
+
+        notificationList.remove(mRecordGroupGSortA);
+        mHelper.onRecordRemoved(mRecordGroupGSortA);
+        notificationList.add(mRecordNoGroupSortA);
+        assertTrue(mHelper.sortIncrementally(notificationList, mRecordNoGroupSortA, null));
+
+        ArrayList<NotificationRecord> expected = new ArrayList<NotificationRecord>(
+                notificationList);
+        mHelper.sort(expected);
+        assertEquals(expected, notificationList);
+    }
+
+    @Test
+    public void testSortIncrementallyMovesGroupProxyInPlace() throws Exception {
+        ArrayList<NotificationRecord> notificationList = new ArrayList<NotificationRecord>(5);
+        notificationList.add(mRecordGroupGSortA);
+        notificationList.add(mRecordGroupGSortB);
+        notificationList.add(mRecordNoGroup);
+        notificationList.add(mRecordNoGroup2);
+        notificationList.add(mRecordNoGroupSortA);
+        mRecordGroupGSortA.setContactAffinity(1f);
+        mRecordNoGroup.setContactAffinity(0.5f);
+        mHelper.sort(notificationList);
+
+        // The proxy of group G drops below mRecordNoGroup, but stays the group's proxy.
+        mRecordGroupGSortA.setContactAffinity(0.25f);
+        assertTrue(mHelper.sortIncrementally(notificationList, mRecordGroupGSortA, null));
+
+        ArrayList<NotificationRecord> expected = new ArrayList<NotificationRecord>(
+                notificationList);
+        mHelper.sort(expected);
+        assertEquals(expected, notificationList);
+        assertEquals(mRecordNoGroup, notificationList.get(0));
+    }
+
+    @Test
+    public void testSortIncrementallyRequiresSortedList() throws Exception {
+        ArrayList<NotificationRecord> notificationList = new ArrayList<NotificationRecord>(2);
+        notificationList.add(mRecordNoGroup);
+        assertFalse(mHelper.sortIncrementally(notificationList, mRecordNoGroup, null));
+
+        mHelper.sort(notificationList);
+        // a record added without telling the helper
+        notificationList.add(mRecordNoGroupSortA);
+        notificationList.add(mRecordGroupGSortA);
+        assertFalse(mHelper.sortIncrementally(notificationList, mRecordGroupGSortA, null));
+    }
+
     @Test
     public void testChannelXml() throws Exception {
         NotificationChannelGroup ncg = new NotificationChannelGroup("1", "bye");
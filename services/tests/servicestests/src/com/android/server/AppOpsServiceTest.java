@@ -0,0 +1,172 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import static android.app.AppOpsManager.OP_COARSE_LOCATION;
+import static android.app.AppOpsManager.OP_READ_CALENDAR;
+import static android.app.AppOpsManager.OP_READ_SMS;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import android.app.AppOpsManager;
+import android.content.Context;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.SmallTest;
+import android.support.test.runner.AndroidJUnit4;
+
+import libcore.io.IoUtils;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+
+/**
+ * Tests that access times written to appops_access.log are replayed on top of appops.xml, and
+ * that the check cache doesn't grow with made up package names.
+ *
+ * Run with:
+ * bit FrameworksServicesTests:com.android.server.AppOpsServiceTest
+ */
+@SmallTest
+@RunWith(AndroidJUnit4.class)
+public class AppOpsServiceTest {
+    private static final String TAG = "AppOpsServiceTest";
+
+    private Context mContext;
+    private File mDir;
+    private File mAppOpsFile;
+    private File mAccessFile;
+    private HandlerThread mHandlerThread;
+    private Handler mHandler;
+    private String mMyPackageName;
+    private int mMyUid;
+
+    @Before
+    public void setUp() {
+        mContext = InstrumentationRegistry.getTargetContext();
+        mDir = new File(mContext.getFilesDir(), "appops-service-test");
+        IoUtils.deleteContents(mDir);
+        mDir.mkdirs();
+        mAppOpsFile = new File(mDir, "appops.xml");
+        mAccessFile = new File(mDir, "appops_access.log");
+
+        mHandlerThread = new HandlerThread(TAG);
+        mHandlerThread.start();
+        mHandler = new Handler(mHandlerThread.getLooper());
+        mMyPackageName = mContext.getOpPackageName();
+        mMyUid = Process.myUid();
+    }
+
+    @After
+    public void tearDown() {
+        mHandlerThread.quit();
+        IoUtils.deleteContents(mDir);
+        mDir.delete();
+    }
+
+    @Test
+    public void testAccessLogReplay() {
+        AppOpsService service = createService();
+        assertEquals(AppOpsManager.MODE_ALLOWED,
+                service.noteOperation(OP_READ_SMS, mMyUid, mMyPackageName));
+        service.writeState();
+        final long readSmsTime = getAccessTime(service, OP_READ_SMS);
+        assertTrue(mAccessFile.exists());
+
+        // Only the access time changed, so this goes at the end of the log
+        service = createService();
+        assertEquals(readSmsTime, getAccessTime(service, OP_READ_SMS));
+        final long logLength = mAccessFile.length();
+        service.noteOperation(OP_COARSE_LOCATION, mMyUid, mMyPackageName);
+        service.writeState();
+        final long locationTime = getAccessTime(service, OP_COARSE_LOCATION);
+        assertTrue("Log wasn't appended to", mAccessFile.length() > logLength);
+
+        service = createService();
+        assertEquals(readSmsTime, getAccessTime(service, OP_READ_SMS));
+        assertEquals(locationTime, getAccessTime(service, OP_COARSE_LOCATION));
+    }
+
+    @Test
+    public void testAccessLogTruncatedTail() throws Exception {
+        AppOpsService service = createService();
+        service.noteOperation(OP_READ_SMS, mMyUid, mMyPackageName);
+        service.writeState();
+        final long readSmsTime = getAccessTime(service, OP_READ_SMS);
+        service.noteOperation(OP_COARSE_LOCATION, mMyUid, mMyPackageName);
+        service.writeState();
+
+        // Tear the last batch, as a crash in the middle of appending it would
+        try (RandomAccessFile file = new RandomAccessFile(mAccessFile, "rw")) {
+            file.setLength(file.length() - 3);
+        }
+
+        service = createService();
+        assertEquals(readSmsTime, getAccessTime(service, OP_READ_SMS));
+        assertNull("Torn batch was replayed",
+                service.getOpForTesting(OP_COARSE_LOCATION, mMyUid, mMyPackageName));
+
+        // The next write replaces the log instead of appending behind the torn batch
+        service.noteOperation(OP_READ_CALENDAR, mMyUid, mMyPackageName);
+        service.writeState();
+        final long calendarTime = getAccessTime(service, OP_READ_CALENDAR);
+        service = createService();
+        assertEquals(readSmsTime, getAccessTime(service, OP_READ_SMS));
+        assertEquals(calendarTime, getAccessTime(service, OP_READ_CALENDAR));
+    }
+
+    @Test
+    public void testCheckCacheSkipsUnknownPackages() {
+        final AppOpsService service = createService();
+        for (int i = 0; i < 100; i++) {
+            final String packageName = "com.example.unknown" + i;
+            assertEquals(AppOpsManager.opToDefaultMode(OP_READ_SMS),
+                    service.checkOperation(OP_READ_SMS, mMyUid, packageName));
+            assertFalse(service.isCheckResultCachedForTesting(OP_READ_SMS, mMyUid,
+                    packageName));
+        }
+
+        // Packages with recorded ops for the uid are cached
+        service.noteOperation(OP_READ_SMS, mMyUid, mMyPackageName);
+        service.checkOperation(OP_READ_SMS, mMyUid, mMyPackageName);
+        assertTrue(service.isCheckResultCachedForTesting(OP_READ_SMS, mMyUid, mMyPackageName));
+    }
+
+    private AppOpsService createService() {
+        final AppOpsService service = new AppOpsService(mAppOpsFile, mHandler);
+        service.mContext = mContext;
+        return service;
+    }
+
+    private long getAccessTime(AppOpsService service, int code) {
+        final AppOpsService.Op op = service.getOpForTesting(code, mMyUid, mMyPackageName);
+        assertNotNull("No state for op " + code, op);
+        assertTrue(op.time > 0);
+        return op.time;
+    }
+}
@@ -0,0 +1,113 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import android.content.Intent;
+import android.perftests.utils.BenchmarkState;
+import android.perftests.utils.PerfStatusReporter;
+import android.support.test.filters.LargeTest;
+
+import com.android.server.IntentResolverTest.TestResolver;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import org.junit.runners.Parameterized.Parameters;
+
+import java.util.Arrays;
+import java.util.Collection;
+
+/**
+ * Measures {@link IntentResolver#queryIntent} on the synthetic 500 package filter set of
+ * {@link IntentResolverTest}, with and without the action and category indexes.
+ *
+ * Build/Install/Run:
+ *  runtest -c com.android.server.IntentResolverPerfTest frameworks-services
+ */
+@RunWith(Parameterized.class)
+@LargeTest
+public class IntentResolverPerfTest {
+    private static final int PACKAGE_COUNT = 500;
+
+    @Rule
+    public PerfStatusReporter mPerfStatusReporter = new PerfStatusReporter();
+
+    @Parameters(name = "useIndex={0}")
+    public static Collection<Object[]> data() {
+        return Arrays.asList(new Object[][] { {false}, {true} });
+    }
+
+    private final boolean mUseIndex;
+
+    private TestResolver mResolver;
+    private Intent[] mIntents;
+
+    public IntentResolverPerfTest(boolean useIndex) {
+        mUseIndex = useIndex;
+    }
+
+    @Before
+    public void setUp() {
+        mResolver = IntentResolverTest.createResolver(PACKAGE_COUNT);
+        mResolver.setUseIndex(mUseIndex);
+        mIntents = IntentResolverTest.createIntents();
+    }
+
+    private void timeQueryIntent(Intent intent) {
+        final String resolvedType = intent.getType();
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            mResolver.queryIntent(intent, resolvedType, false, 0);
+        }
+    }
+
+    @Test
+    public void timeQueryLauncher() {
+        timeQueryIntent(mIntents[0]);
+    }
+
+    @Test
+    public void timeQueryBrowsable() {
+        timeQueryIntent(mIntents[1]);
+    }
+
+    @Test
+    public void timeQuerySend() {
+        timeQueryIntent(mIntents[2]);
+    }
+
+    @Test
+    public void timeQueryBroadcast() {
+        timeQueryIntent(mIntents[3]);
+    }
+
+    @Test
+    public void timeQueryNoMatch() {
+        timeQueryIntent(mIntents[4]);
+    }
+
+    /** The indexes are maintained either way, so this doesn't depend on the parameter. */
+    @Test
+    public void timeAddFilters() {
+        final BenchmarkState state = mPerfStatusReporter.getBenchmarkState();
+        while (state.keepRunning()) {
+            IntentResolverTest.createResolver(PACKAGE_COUNT);
+        }
+    }
+}
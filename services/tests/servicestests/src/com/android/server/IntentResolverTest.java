@@ -0,0 +1,145 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server;
+
+import static org.junit.Assert.assertEquals;
+
+import android.content.Intent;
+import android.content.IntentFilter;
+import android.net.Uri;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+
+/**
+ * Tests for {@link IntentResolver}, comparing the indexed resolution path against the
+ * plain per-cut matching on a filter set shaped like 500 installed packages.
+ */
+@RunWith(AndroidJUnit4.class)
+public class IntentResolverTest {
+    private static final int PACKAGE_COUNT = 500;
+
+    static final class TestFilter extends IntentFilter {
+        final String packageName;
+
+        TestFilter(String packageName) {
+            this.packageName = packageName;
+        }
+    }
+
+    static final class TestResolver extends IntentResolver<TestFilter, TestFilter> {
+        @Override
+        protected boolean isPackageForFilter(String packageName, TestFilter filter) {
+            return packageName.equals(filter.packageName);
+        }
+
+        @Override
+        protected TestFilter[] newArray(int size) {
+            return new TestFilter[size];
+        }
+    }
+
+    private TestResolver mResolver;
+    private Intent[] mIntents;
+
+    @Before
+    public void setUp() throws Exception {
+        mResolver = createResolver(PACKAGE_COUNT);
+        mIntents = createIntents();
+    }
+
+    /**
+     * Returns a resolver holding a launcher, a browsable, a share and a broadcast filter for
+     * each of {@code packageCount} packages.
+     */
+    static TestResolver createResolver(int packageCount) {
+        final TestResolver resolver = new TestResolver();
+        for (int i = 0; i < packageCount; i++) {
+            final String packageName = "com.example.app" + i;
+
+            TestFilter filter = new TestFilter(packageName);
+            filter.addAction(Intent.ACTION_MAIN);
+            filter.addCategory(Intent.CATEGORY_LAUNCHER);
+            resolver.addFilter(filter);
+
+            filter = new TestFilter(packageName);
+            filter.addAction(Intent.ACTION_VIEW);
+            filter.addCategory(Intent.CATEGORY_DEFAULT);
+            filter.addCategory(Intent.CATEGORY_BROWSABLE);
+            filter.addDataScheme(i % 3 == 0 ? "https" : "app" + i);
+            resolver.addFilter(filter);
+
+            filter = new TestFilter(packageName);
+            filter.addAction(i % 2 == 0 ? Intent.ACTION_SEND : Intent.ACTION_SEND_MULTIPLE);
+            filter.addCategory(Intent.CATEGORY_DEFAULT);
+            filter.addDataType(i % 4 == 0 ? "image/*" : "text/plain");
+            resolver.addFilter(filter);
+
+            filter = new TestFilter(packageName);
+            filter.addAction(Intent.ACTION_BOOT_COMPLETED);
+            if (i % 5 == 0) {
+                filter.addAction(Intent.ACTION_BATTERY_CHANGED);
+            }
+            resolver.addFilter(filter);
+        }
+        return resolver;
+    }
+
+    static Intent[] createIntents() {
+        return new Intent[] {
+                new Intent(Intent.ACTION_MAIN).addCategory(Intent.CATEGORY_LAUNCHER),
+                new Intent(Intent.ACTION_VIEW, Uri.parse("https://www.android.com"))
+                        .addCategory(Intent.CATEGORY_BROWSABLE),
+                new Intent(Intent.ACTION_SEND).setType("image/png"),
+                new Intent(Intent.ACTION_BATTERY_CHANGED),
+                new Intent(Intent.ACTION_EDIT, Uri.parse("https://www.android.com")),
+        };
+    }
+
+    @Test
+    public void testIndexedMatchesUnindexed() {
+        for (Intent intent : mIntents) {
+            mResolver.setUseIndex(false);
+            final List<TestFilter> expected = mResolver.queryIntent(intent,
+                    intent.getType(), false, 0);
+            mResolver.setUseIndex(true);
+            // Twice, to cover both the uncached and the cached path
+            assertEquals(intent.toString(), expected,
+                    mResolver.queryIntent(intent, intent.getType(), false, 0));
+            assertEquals(intent.toString(), expected,
+                    mResolver.queryIntent(intent, intent.getType(), false, 0));
+        }
+    }
+
+    @Test
+    public void testCacheInvalidatedOnAddAndRemove() {
+        final Intent intent = mIntents[3];
+        final int before = mResolver.queryIntent(intent, null, false, 0).size();
+
+        final TestFilter filter = new TestFilter("com.example.new");
+        filter.addAction(Intent.ACTION_BATTERY_CHANGED);
+        mResolver.addFilter(filter);
+        assertEquals(before + 1, mResolver.queryIntent(intent, null, false, 0).size());
+
+        mResolver.removeFilter(filter);
+        assertEquals(before, mResolver.queryIntent(intent, null, false, 0).size());
+    }
+}
@@ -0,0 +1,154 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.am;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import android.app.ActivityManager;
+import android.app.ActivityManager.RunningAppProcessInfo;
+import android.content.ComponentName;
+import android.content.Context;
+import android.content.Intent;
+import android.content.ServiceConnection;
+import android.content.pm.PackageManager;
+import android.os.IBinder;
+import android.support.test.InstrumentationRegistry;
+import android.support.test.filters.LargeTest;
+import android.support.test.runner.AndroidJUnit4;
+import android.support.test.uiautomator.UiDevice;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests that unbinding from a service immediately lowers the process and uid state of the
+ * process hosting it, through the incremental oom_adj pass.
+ *
+ * Build/Install/Run:
+ *  runtest -c com.android.server.am.ServiceUnbindOomAdjTest frameworks-services
+ */
+@LargeTest
+@RunWith(AndroidJUnit4.class)
+public class ServiceUnbindOomAdjTest {
+    private static final String TEST_PKG = "com.android.servicestests.apps.conntestapp";
+    private static final String TEST_SERVICE_CLASS = TEST_PKG + ".CmdReceiverService";
+
+    private static final long BIND_SERVICE_TIMEOUT_SEC = 4;
+
+    private Context mContext;
+    private UiDevice mUiDevice;
+    private ActivityManager mActivityManager;
+    private int mTestPkgUid;
+
+    private final TestConnection mBackgroundConnection = new TestConnection();
+    private final TestConnection mForegroundConnection = new TestConnection();
+    private boolean mBackgroundBound;
+    private boolean mForegroundBound;
+
+    @Before
+    public void setUp() throws Exception {
+        mContext = InstrumentationRegistry.getContext();
+        mUiDevice = UiDevice.getInstance(InstrumentationRegistry.getInstrumentation());
+        mActivityManager = mContext.getSystemService(ActivityManager.class);
+        mContext.getPackageManager().setApplicationEnabledSetting(TEST_PKG,
+                PackageManager.COMPONENT_ENABLED_STATE_ENABLED, 0);
+        mTestPkgUid = mContext.getPackageManager().getPackageUid(TEST_PKG, 0);
+    }
+
+    @After
+    public void tearDown() {
+        if (mForegroundBound) {
+            mContext.unbindService(mForegroundConnection);
+        }
+        if (mBackgroundBound) {
+            mContext.unbindService(mBackgroundConnection);
+        }
+    }
+
+    @Test
+    public void testUnbindLowersProcStateAndUidState() throws Exception {
+        // Keeps the service process alive, and out of the cached states, once the
+        // foreground binding is gone.
+        bind(mBackgroundConnection, Context.BIND_NOT_FOREGROUND);
+        mBackgroundBound = true;
+        bind(mForegroundConnection, 0);
+        mForegroundBound = true;
+
+        assertTrue("Bound service process should be foreground",
+                getProcState() <= ActivityManager.PROCESS_STATE_IMPORTANT_FOREGROUND);
+        assertTrue("Bound service uid should be foreground",
+                getUidState() <= ActivityManager.PROCESS_STATE_IMPORTANT_FOREGROUND);
+
+        mContext.unbindService(mForegroundConnection);
+        mForegroundBound = false;
+
+        // Unbinding is synchronous, so both must already reflect it.
+        assertEquals(ActivityManager.PROCESS_STATE_IMPORTANT_BACKGROUND, getProcState());
+        assertEquals(ActivityManager.PROCESS_STATE_IMPORTANT_BACKGROUND, getUidState());
+    }
+
+    private void bind(TestConnection connection, int flags) throws Exception {
+        final Intent intent = new Intent()
+                .setComponent(new ComponentName(TEST_PKG, TEST_SERVICE_CLASS));
+        mContext.bindService(intent, connection, Context.BIND_AUTO_CREATE | flags);
+        if (!connection.mConnected.await(BIND_SERVICE_TIMEOUT_SEC, TimeUnit.SECONDS)) {
+            fail("Timed out waiting for the service to bind in " + mTestPkgUid);
+        }
+    }
+
+    private int getProcState() {
+        final List<RunningAppProcessInfo> processes = mActivityManager.getRunningAppProcesses();
+        if (processes != null) {
+            for (RunningAppProcessInfo process : processes) {
+                if (process.uid == mTestPkgUid && TEST_PKG.equals(process.processName)) {
+                    return process.processState;
+                }
+            }
+        }
+        fail("No process running for " + TEST_PKG);
+        return ActivityManager.PROCESS_STATE_NONEXISTENT;
+    }
+
+    private int getUidState() throws IOException {
+        // Prints "<state> (<name>)".
+        final String result = mUiDevice.executeShellCommand(
+                "am get-uid-state " + mTestPkgUid).trim();
+        return Integer.parseInt(result.split(" ")[0]);
+    }
+
+    private static class TestConnection implements ServiceConnection {
+        final CountDownLatch mConnected = new CountDownLatch(1);
+
+        @Override
+        public void onServiceConnected(ComponentName name, IBinder service) {
+            mConnected.countDown();
+        }
+
+        @Override
+        public void onServiceDisconnected(ComponentName name) {
+        }
+    }
+}
@@ -7,13 +7,16 @@ import android.app.job.JobInfo;
 import android.app.job.JobInfo.Builder;
 import android.os.PersistableBundle;
 import android.os.SystemClock;
+import android.os.UserHandle;
 import android.test.AndroidTestCase;
 import android.test.RenamingDelegatingContext;
+import android.util.ArraySet;
 import android.util.Log;
 import android.util.Pair;
 
 import com.android.server.job.JobStore.JobSet;
 import com.android.server.job.controllers.JobStatus;
+import com.android.server.job.controllers.JobStatusTest;
 
 import java.util.Iterator;
 
@@ -267,6 +270,136 @@ public class JobStoreTest extends AndroidTestCase {
         assertEquals("Wrong job persisted.", 43, jobStatus.getJobId());
     }
 
+    /**
+     * Test that changes appended to the journal, and the jobs.xml the journal is compacted
+     * into, read back the same as the store.
+     */
+    public void testJournalReplayAndCompaction() throws Exception {
+        final JobInfo.Builder b = new Builder(1, mComponent)
+                .setOverrideDeadline(10000)
+                .setPersisted(true);
+        final JobStatus js1 = JobStatus.createFromJobInfo(b.build(), SOME_UID, null, -1, null);
+        mTaskStoreUnderTest.add(js1);
+        Thread.sleep(IO_WAIT);
+
+        b.setOverrideDeadline(20000);
+        final JobStatus js1Updated =
+                JobStatus.createFromJobInfo(b.build(), SOME_UID, null, -1, null);
+        mTaskStoreUnderTest.remove(js1, true);
+        mTaskStoreUnderTest.add(js1Updated);
+        final JobStatus js2 = JobStatus.createFromJobInfo(
+                new Builder(2, mComponent).setOverrideDeadline(10000).setPersisted(true).build(),
+                SOME_UID, null, -1, null);
+        mTaskStoreUnderTest.add(js2);
+        Thread.sleep(IO_WAIT);
+        mTaskStoreUnderTest.remove(js2, true);
+        Thread.sleep(IO_WAIT);
+
+        JobSet jobStatusSet = new JobSet();
+        mTaskStoreUnderTest.readJobMapFromDisk(jobStatusSet, true);
+        assertEquals("Job count is incorrect after replay.", 1, jobStatusSet.size());
+        final JobStatus loaded = jobStatusSet.getAllJobs().get(0);
+        assertEquals("Wrong job replayed.", 1, loaded.getJobId());
+        compareTimestampsSubjectToIoLatency("Late run-times not the same after replay.",
+                js1Updated.getLatestRunTimeElapsed(), loaded.getLatestRunTimeElapsed());
+
+        // Enough changes to force the journal to be compacted
+        for (int i = 100; i < 200; i++) {
+            mTaskStoreUnderTest.add(JobStatus.createFromJobInfo(
+                    new Builder(i, mComponent).setOverrideDeadline(10000).setPersisted(true)
+                            .build(), SOME_UID, null, -1, null));
+            Thread.sleep(10);
+        }
+        Thread.sleep(IO_WAIT);
+        jobStatusSet = new JobSet();
+        mTaskStoreUnderTest.readJobMapFromDisk(jobStatusSet, true);
+        assertEquals("Job count is incorrect after compaction.", 101, jobStatusSet.size());
+    }
+
+    /**
+     * Test that the ready set visited by forEachReadyJob stays the same as the jobs whose
+     * isReady() is true, across every way of changing the jobs or their readiness.
+     */
+    public void testReadySetMatchesReadyJobs() throws Exception {
+        final int otherUid = UserHandle.getUid(10, SOME_UID);
+        final JobStatus[] jobs = new JobStatus[6];
+        for (int i = 0; i < jobs.length; i++) {
+            jobs[i] = JobStatus.createFromJobInfo(
+                    new Builder(i, mComponent).setMinimumLatency(60000L).build(),
+                    i < 4 ? SOME_UID : otherUid, null, -1, null);
+            // Half of the jobs start out ready
+            if (i % 2 == 0) {
+                JobStatusTest.setImplicitConstraintsSatisfied(jobs[i], true);
+                jobs[i].setOverrideState(JobStatus.OVERRIDE_FULL);
+            }
+        }
+
+        for (JobStatus job : jobs) {
+            mTaskStoreUnderTest.add(job);
+            assertReadySetConsistent();
+        }
+
+        // Readiness changes of jobs in the store
+        JobStatusTest.setImplicitConstraintsSatisfied(jobs[1], true);
+        assertReadySetConsistent();
+        jobs[1].setOverrideState(JobStatus.OVERRIDE_FULL);
+        assertReadySetConsistent();
+        jobs[0].setOverrideState(0);
+        assertReadySetConsistent();
+        JobStatusTest.setImplicitConstraintsSatisfied(jobs[2], false);
+        assertReadySetConsistent();
+
+        // A removed job must not come back when it changes afterwards
+        final JobStatus removed = jobs[1];
+        mTaskStoreUnderTest.remove(removed, false);
+        assertReadySetConsistent();
+        removed.setOverrideState(0);
+        removed.setOverrideState(JobStatus.OVERRIDE_FULL);
+        assertReadySetConsistent();
+
+        // Another instance with the same job id is tracked on its own
+        final JobStatus replacement = JobStatus.createFromJobInfo(
+                new Builder(3, mComponent).setMinimumLatency(60000L).build(),
+                SOME_UID, null, -1, null);
+        JobStatusTest.setImplicitConstraintsSatisfied(replacement, true);
+        replacement.setOverrideState(JobStatus.OVERRIDE_FULL);
+        mTaskStoreUnderTest.add(replacement);
+        assertReadySetConsistent();
+        jobs[3].setOverrideState(JobStatus.OVERRIDE_FULL);
+        assertReadySetConsistent();
+
+        mTaskStoreUnderTest.removeJobsOfNonUsers(new int[] { UserHandle.getUserId(SOME_UID) });
+        assertReadySetConsistent();
+        jobs[4].setOverrideState(0);
+        jobs[5].setOverrideState(JobStatus.OVERRIDE_FULL);
+        JobStatusTest.setImplicitConstraintsSatisfied(jobs[5], true);
+        assertReadySetConsistent();
+
+        mTaskStoreUnderTest.clear();
+        assertReadySetConsistent();
+        replacement.setOverrideState(0);
+        replacement.setOverrideState(JobStatus.OVERRIDE_FULL);
+        assertReadySetConsistent();
+        assertEquals(0, mTaskStoreUnderTest.size());
+    }
+
+    /**
+     * Compares forEachReadyJob against a brute-force isReady() scan of all jobs.
+     */
+    private void assertReadySetConsistent() {
+        final ArraySet<JobStatus> expected = new ArraySet<>();
+        mTaskStoreUnderTest.forEachJob((job) -> {
+            if (job.isReady()) {
+                expected.add(job);
+            }
+        });
+        final ArraySet<JobStatus> actual = new ArraySet<>();
+        mTaskStoreUnderTest.forEachReadyJob((job) -> {
+            assertTrue("Job visited twice: " + job, actual.add(job));
+        });
+        assertEquals("Ready set out of sync.", expected, actual);
+    }
+
     /**
      * Helper function to throw an error if the provided task and TaskStatus objects are not equal.
      */
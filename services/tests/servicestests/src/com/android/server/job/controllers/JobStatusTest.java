@@ -0,0 +1,129 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.job.controllers;
+
+import android.app.job.JobInfo;
+import android.content.ComponentName;
+import android.test.AndroidTestCase;
+
+import java.util.ArrayList;
+
+/**
+ * Test that the cached {@link JobStatus#isReady()} follows the constraints it depends on.
+ */
+public class JobStatusTest extends AndroidTestCase {
+    private static final int SOME_UID = 34234;
+
+    private final ArrayList<Boolean> mReadyChanges = new ArrayList<>();
+    private final JobStatus.ReadyStateListener mListener = (job, ready) -> {
+        assertEquals("Listener told a value isReady() doesn't return.", ready, job.isReady());
+        mReadyChanges.add(ready);
+    };
+
+    private ComponentName mComponent;
+
+    @Override
+    public void setUp() throws Exception {
+        mComponent = new ComponentName(getContext().getPackageName(), StubClass.class.getName());
+    }
+
+    /**
+     * Sets the implicit constraints every job needs to be ready, leaving the ones it asked for
+     * alone. Used by tests outside this package to move jobs in and out of the ready state.
+     */
+    public static void setImplicitConstraintsSatisfied(JobStatus job, boolean state) {
+        job.setAppNotIdleConstraintSatisfied(state);
+        job.setDeviceNotDozingConstraintSatisfied(state, false);
+    }
+
+    public void testReadyFollowsConstraints() {
+        final JobStatus job = createJobStatus(new JobInfo.Builder(1, mComponent)
+                .setRequiresCharging(true)
+                .setMinimumLatency(1000));
+        job.setReadyStateListener(mListener);
+        assertFalse(job.isReady());
+
+        setImplicitConstraintsSatisfied(job, true);
+        job.setChargingConstraintSatisfied(true);
+        assertFalse("Timing delay not satisfied yet.", job.isReady());
+        job.setTimingDelayConstraintSatisfied(true);
+        assertTrue(job.isReady());
+        job.setChargingConstraintSatisfied(true);
+        job.setAppNotIdleConstraintSatisfied(false);
+        assertFalse(job.isReady());
+        job.setAppNotIdleConstraintSatisfied(true);
+        assertTrue(job.isReady());
+        job.setChargingConstraintSatisfied(false);
+        assertFalse(job.isReady());
+
+        assertEquals("Only actual flips are reported.", 4, mReadyChanges.size());
+        assertEquals(Boolean.TRUE, mReadyChanges.get(0));
+        assertEquals(Boolean.FALSE, mReadyChanges.get(1));
+        assertEquals(Boolean.TRUE, mReadyChanges.get(2));
+        assertEquals(Boolean.FALSE, mReadyChanges.get(3));
+    }
+
+    public void testReadyFollowsDeadline() {
+        final JobStatus job = createJobStatus(new JobInfo.Builder(1, mComponent)
+                .setRequiresCharging(true)
+                .setOverrideDeadline(1000));
+        job.setReadyStateListener(mListener);
+        setImplicitConstraintsSatisfied(job, true);
+        assertFalse(job.isReady());
+
+        job.setDeadlineConstraintSatisfied(true);
+        assertTrue("Deadline trumps the other constraints.", job.isReady());
+        job.setDeviceNotDozingConstraintSatisfied(false, false);
+        assertFalse("Deadline doesn't trump the implicit constraints.", job.isReady());
+        assertEquals(2, mReadyChanges.size());
+    }
+
+    public void testReadyFollowsOverrideState() {
+        final JobStatus job = createJobStatus(new JobInfo.Builder(1, mComponent)
+                .setRequiresCharging(true)
+                .setRequiredNetworkType(JobInfo.NETWORK_TYPE_ANY));
+        job.setReadyStateListener(mListener);
+        setImplicitConstraintsSatisfied(job, true);
+        assertFalse(job.isReady());
+
+        job.setOverrideState(JobStatus.OVERRIDE_SOFT);
+        assertFalse("Soft override doesn't cover connectivity.", job.isReady());
+        job.setConnectivityConstraintSatisfied(true);
+        assertTrue(job.isReady());
+        job.setConnectivityConstraintSatisfied(false);
+        job.setOverrideState(JobStatus.OVERRIDE_FULL);
+        assertTrue(job.isReady());
+        job.setOverrideState(0);
+        assertFalse(job.isReady());
+        assertEquals(4, mReadyChanges.size());
+    }
+
+    public void testNoListener() {
+        final JobStatus job = createJobStatus(new JobInfo.Builder(1, mComponent)
+                .setMinimumLatency(1000));
+        setImplicitConstraintsSatisfied(job, true);
+        job.setOverrideState(JobStatus.OVERRIDE_FULL);
+        assertTrue(job.isReady());
+        assertTrue(mReadyChanges.isEmpty());
+    }
+
+    private static JobStatus createJobStatus(JobInfo.Builder builder) {
+        return JobStatus.createFromJobInfo(builder.build(), SOME_UID, null, -1, null);
+    }
+
+    private static class StubClass {}
+}
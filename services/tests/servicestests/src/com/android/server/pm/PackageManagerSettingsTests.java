@@ -59,6 +59,8 @@ import org.junit.runner.RunWith;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
 import java.security.PublicKey;
 import java.util.ArrayList;
 import java.util.Arrays;
@@ -139,6 +141,92 @@ public class PackageManagerSettingsTests {
         assertThat(ps.getEnabled(1), is(COMPONENT_ENABLED_STATE_DEFAULT));
     }
 
+    /** Package changes are journaled and replayed on top of packages.xml */
+    @Test
+    public void testPackagesJournal() throws IOException {
+        writeOldFiles();
+        Settings settings =
+                new Settings(InstrumentationRegistry.getContext().getFilesDir(), new Object());
+        assertThat(settings.readLPw(createFakeUsers()), is(true));
+        // The first write after reading is always a full one
+        settings.writeLPr();
+        final File systemDir =
+                new File(InstrumentationRegistry.getContext().getFilesDir(), "system");
+        final File packagesXml = new File(systemDir, "packages.xml");
+        final File journal = new File(systemDir, "packages.journal");
+        final byte[] packagesXmlData = Files.readAllBytes(packagesXml.toPath());
+        assertThat(journal.exists(), is(false));
+
+        settings.getPackageLPr(PACKAGE_NAME_1).versionCode = 42;
+        settings.markPackageDirtyLPw(PACKAGE_NAME_1);
+        settings.mPackages.remove(PACKAGE_NAME_3);
+        settings.markPackageDirtyLPw(PACKAGE_NAME_3);
+        settings.writeLPr();
+        assertThat(journal.exists(), is(true));
+        assertTrue(Arrays.equals(packagesXmlData, Files.readAllBytes(packagesXml.toPath())));
+
+        // Nothing changed, nothing to append
+        final long journalLength = journal.length();
+        settings.writeLPr();
+        assertThat(journal.length(), is(journalLength));
+
+        settings = new Settings(InstrumentationRegistry.getContext().getFilesDir(), new Object());
+        assertThat(settings.readLPw(createFakeUsers()), is(true));
+        assertThat(settings.getPackageLPr(PACKAGE_NAME_1).versionCode, is(42));
+        assertThat(settings.getPackageLPr(PACKAGE_NAME_2), is(notNullValue()));
+        assertThat(settings.getPackageLPr(PACKAGE_NAME_3), is(nullValue()));
+
+        // A torn record is dropped, the records before it still apply
+        settings.getPackageLPr(PACKAGE_NAME_2).versionCode = 43;
+        settings.markPackageDirtyLPw(PACKAGE_NAME_2);
+        settings.writeLPr();
+        assertThat(journal.exists(), is(false));
+        settings.getPackageLPr(PACKAGE_NAME_1).versionCode = 44;
+        settings.markPackageDirtyLPw(PACKAGE_NAME_1);
+        settings.writeLPr();
+        final long intactLength = journal.length();
+        settings.getPackageLPr(PACKAGE_NAME_2).versionCode = 45;
+        settings.markPackageDirtyLPw(PACKAGE_NAME_2);
+        settings.writeLPr();
+        try (RandomAccessFile file = new RandomAccessFile(journal, "rw")) {
+            file.setLength(intactLength + (journal.length() - intactLength) / 2);
+        }
+        settings = new Settings(InstrumentationRegistry.getContext().getFilesDir(), new Object());
+        assertThat(settings.readLPw(createFakeUsers()), is(true));
+        assertThat(settings.getPackageLPr(PACKAGE_NAME_1).versionCode, is(44));
+        assertThat(settings.getPackageLPr(PACKAGE_NAME_2).versionCode, is(43));
+    }
+
+    @Test
+    public void testPackagesJournal_sharedCertificates() throws IOException {
+        writeOldFiles();
+        Settings settings =
+                new Settings(InstrumentationRegistry.getContext().getFilesDir(), new Object());
+        assertThat(settings.readLPw(createFakeUsers()), is(true));
+        settings.writeLPr();
+
+        // The base file only refers to the certificates of these packages by index from the
+        // other package and the shared user.
+        settings.getPackageLPr(PACKAGE_NAME_1).versionCode = 42;
+        settings.markPackageDirtyLPw(PACKAGE_NAME_1);
+        settings.getPackageLPr(PACKAGE_NAME_3).versionCode = 43;
+        settings.markPackageDirtyLPw(PACKAGE_NAME_3);
+        settings.writeLPr();
+
+        settings = new Settings(InstrumentationRegistry.getContext().getFilesDir(), new Object());
+        assertThat(settings.readLPw(createFakeUsers()), is(true));
+        assertThat(settings.getPackageLPr(PACKAGE_NAME_1).versionCode, is(42));
+        assertThat(settings.getPackageLPr(PACKAGE_NAME_3).versionCode, is(43));
+        final PackageSetting ps1 = settings.getPackageLPr(PACKAGE_NAME_1);
+        final PackageSetting ps2 = settings.getPackageLPr(PACKAGE_NAME_2);
+        final PackageSetting ps3 = settings.getPackageLPr(PACKAGE_NAME_3);
+        assertThat(ps2.signatures.mSignatures, is(notNullValue()));
+        assertThat(ps2.signatures.mSignatures[0], is(ps1.signatures.mSignatures[0]));
+        final SharedUserSetting sharedUser = settings.mSharedUsers.get("com.android.shared1");
+        assertThat(sharedUser.signatures.mSignatures, is(notNullValue()));
+        assertThat(sharedUser.signatures.mSignatures[0], is(ps3.signatures.mSignatures[0]));
+    }
+
     @Test
     public void testEnableDisable() {
         // Write the package files and make sure they're parsed properly the first time
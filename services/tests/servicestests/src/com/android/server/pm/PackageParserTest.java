@@ -31,6 +31,7 @@ import android.support.test.runner.AndroidJUnit4;
 import android.test.suitebuilder.annotation.MediumTest;
 
 import java.io.File;
+import java.io.FileOutputStream;
 import java.lang.reflect.Array;
 import java.lang.reflect.Field;
 import java.nio.charset.StandardCharsets;
@@ -109,6 +110,44 @@ public class PackageParserTest {
         assertEquals("android", pkg.packageName);
     }
 
+    @Test
+    public void testParse_corruptCache() throws Exception {
+        PackageParser pp = new CachePackageNameParser();
+        pp.setCacheDir(mTmpDir);
+        pp.parsePackage(FRAMEWORK, 0 /* parseFlags */, true /* useCaches */);
+
+        // Flip the last byte of the cache entry, the checksum should no longer match.
+        File cacheFile = mTmpDir.listFiles()[0];
+        byte[] bytes = IoUtils.readFileAsByteArray(cacheFile.getAbsolutePath());
+        bytes[bytes.length - 1] ^= 0xff;
+        try (FileOutputStream fos = new FileOutputStream(cacheFile)) {
+            fos.write(bytes);
+        }
+
+        PackageParser.Package pkg = pp.parsePackage(FRAMEWORK, 0 /* parseFlags */,
+                true /* useCaches */);
+        assertEquals("android", pkg.packageName);
+
+        // The entry was rewritten by the parse above.
+        pkg = pp.parsePackage(FRAMEWORK, 0 /* parseFlags */, true /* useCaches */);
+        assertEquals("cache_android", pkg.packageName);
+    }
+
+    @Test
+    public void testEvictUnusedCacheEntries() throws Exception {
+        PackageParser pp = new CachePackageNameParser();
+        pp.setCacheDir(mTmpDir);
+        pp.parsePackage(FRAMEWORK, 0 /* parseFlags */, true /* useCaches */);
+        assertTrue(new File(mTmpDir, "stale-0-0").createNewFile());
+
+        assertEquals(1, PackageParser.evictUnusedCacheEntries(mTmpDir));
+        assertEquals(1, mTmpDir.list().length);
+
+        // Nothing was used since the last eviction.
+        assertEquals(1, PackageParser.evictUnusedCacheEntries(mTmpDir));
+        assertEquals(0, mTmpDir.list().length);
+    }
+
     @Test
     public void test_serializePackage() throws Exception {
         PackageParser pp = new PackageParser();
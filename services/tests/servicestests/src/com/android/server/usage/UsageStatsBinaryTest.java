@@ -0,0 +1,233 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package com.android.server.usage;
+
+import android.app.usage.TimeSparseArray;
+import android.app.usage.UsageEvents;
+import android.app.usage.UsageStats;
+import android.content.res.Configuration;
+import android.os.FileUtils;
+import android.test.AndroidTestCase;
+import android.util.AtomicFile;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.Locale;
+
+public class UsageStatsBinaryTest extends AndroidTestCase {
+    private static final long BEGIN_TIME = 1500000000000L;
+
+    private static final String PACKAGE_1 = "com.android.testpackage1";
+    private static final String PACKAGE_2 = "com.android.testpackage2";
+
+    private File mStorageDir;
+    private AtomicFile mFile;
+
+    @Override
+    protected void setUp() throws Exception {
+        super.setUp();
+        mStorageDir = new File(getContext().getFilesDir(), "usagestats");
+        mStorageDir.mkdirs();
+        mFile = new AtomicFile(new File(mStorageDir, Long.toString(BEGIN_TIME)));
+    }
+
+    @Override
+    protected void tearDown() throws Exception {
+        FileUtils.deleteContents(mStorageDir);
+        super.tearDown();
+    }
+
+    private IntervalStats buildStats() {
+        final IntervalStats stats = new IntervalStats();
+        stats.beginTime = BEGIN_TIME;
+        stats.update(PACKAGE_1, BEGIN_TIME + 10, UsageEvents.Event.MOVE_TO_FOREGROUND);
+        stats.update(PACKAGE_1, BEGIN_TIME + 50, UsageEvents.Event.MOVE_TO_BACKGROUND);
+        stats.update(PACKAGE_2, BEGIN_TIME + 60, UsageEvents.Event.MOVE_TO_FOREGROUND);
+        stats.updateChooserCounts(PACKAGE_2, "category", "action");
+
+        final Configuration config = new Configuration();
+        config.setLocale(Locale.FRANCE);
+        stats.updateConfigurationStats(config, BEGIN_TIME + 70);
+
+        for (int i = 0; i < 100; i++) {
+            final UsageEvents.Event event = stats.buildEvent(
+                    i % 2 == 0 ? PACKAGE_1 : PACKAGE_2, ".Activity" + (i % 3));
+            event.mTimeStamp = BEGIN_TIME + i * 100;
+            event.mEventType = UsageEvents.Event.MOVE_TO_FOREGROUND;
+            if (i == 42) {
+                event.mEventType = UsageEvents.Event.CONFIGURATION_CHANGE;
+                event.mConfiguration = config;
+            } else if (i == 43) {
+                event.mEventType = UsageEvents.Event.SHORTCUT_INVOCATION;
+                event.mShortcutId = "shortcut";
+            }
+            if (stats.events == null) {
+                stats.events = new TimeSparseArray<>();
+            }
+            stats.events.put(event.mTimeStamp, event);
+        }
+        return stats;
+    }
+
+    public void testReadWrite() throws Exception {
+        final IntervalStats written = buildStats();
+        UsageStatsBinary.write(mFile, written);
+
+        final IntervalStats read = new IntervalStats();
+        assertTrue(UsageStatsBinary.read(mFile, read));
+        assertEquals(BEGIN_TIME, read.beginTime);
+        assertEquals(written.endTime, read.endTime);
+
+        assertEquals(2, read.packageStats.size());
+        final UsageStats pkg1 = read.packageStats.get(PACKAGE_1);
+        assertEquals(BEGIN_TIME + 50, pkg1.mLastTimeUsed);
+        assertEquals(40, pkg1.mTotalTimeInForeground);
+        assertEquals(UsageEvents.Event.MOVE_TO_BACKGROUND, pkg1.mLastEvent);
+        final UsageStats pkg2 = read.packageStats.get(PACKAGE_2);
+        assertEquals(1, (int) pkg2.mChooserCounts.get("action").get("category"));
+
+        assertEquals(1, read.configurations.size());
+        assertEquals(written.activeConfiguration, read.activeConfiguration);
+
+        assertEquals(100, read.events.size());
+        for (int i = 0; i < 100; i++) {
+            final UsageEvents.Event expected = written.events.valueAt(i);
+            final UsageEvents.Event actual = read.events.valueAt(i);
+            assertEquals(expected.mTimeStamp, actual.mTimeStamp);
+            assertEquals(expected.mPackage, actual.mPackage);
+            assertEquals(expected.mClass, actual.mClass);
+            assertEquals(expected.mEventType, actual.mEventType);
+        }
+        assertEquals(written.activeConfiguration, read.events.valueAt(42).mConfiguration);
+        assertEquals("shortcut", read.events.valueAt(43).mShortcutId);
+    }
+
+    public void testReadEventsInRange() throws Exception {
+        UsageStatsBinary.write(mFile, buildStats());
+
+        final IntervalStats read = new IntervalStats();
+        assertTrue(UsageStatsBinary.readEvents(mFile, read, BEGIN_TIME + 1050,
+                BEGIN_TIME + 2000, new EventQuery(null, null, false, Integer.MAX_VALUE),
+                Integer.MAX_VALUE));
+        assertTrue(read.packageStats.isEmpty());
+        assertEquals(9, read.events.size());
+        assertEquals(BEGIN_TIME + 1100, read.events.keyAt(0));
+        assertEquals(BEGIN_TIME + 1900, read.events.keyAt(8));
+    }
+
+    public void testReadEventsFiltered() throws Exception {
+        UsageStatsBinary.write(mFile, buildStats());
+
+        final IntervalStats read = new IntervalStats();
+        final EventQuery query = new EventQuery(
+                new int[] { UsageEvents.Event.MOVE_TO_FOREGROUND }, PACKAGE_2, false, 5);
+        assertTrue(UsageStatsBinary.readEvents(mFile, read, BEGIN_TIME + 4000,
+                BEGIN_TIME + 10000, query, 3));
+        // Event 43 is skipped as a shortcut invocation
+        assertEquals(3, read.events.size());
+        assertEquals(BEGIN_TIME + 4100, read.events.keyAt(0));
+        assertEquals(BEGIN_TIME + 4500, read.events.keyAt(1));
+        assertEquals(BEGIN_TIME + 4700, read.events.keyAt(2));
+        for (int i = 0; i < read.events.size(); i++) {
+            assertEquals(PACKAGE_2, read.events.valueAt(i).mPackage);
+        }
+
+        read.events.clear();
+        final EventQuery missing = new EventQuery(null, "com.android.missing", false, 5);
+        assertTrue(UsageStatsBinary.readEvents(mFile, read, BEGIN_TIME, BEGIN_TIME + 10000,
+                missing, 5));
+        assertEquals(0, read.events.size());
+    }
+
+    public void testReadEventsDecodesConfigurationsLazily() throws Exception {
+        UsageStatsBinary.write(mFile, buildStats());
+
+        final IntervalStats read = new IntervalStats();
+        assertTrue(UsageStatsBinary.readEvents(mFile, read, BEGIN_TIME + 4200,
+                BEGIN_TIME + 4300, new EventQuery(null, null, false, Integer.MAX_VALUE),
+                Integer.MAX_VALUE));
+        assertTrue(read.configurations.isEmpty());
+        assertEquals(1, read.events.size());
+        assertEquals(Locale.FRANCE, read.events.valueAt(0).mConfiguration.getLocales().get(0));
+
+        // Garble the only configuration; queries that don't return event 42 still succeed
+        try (RandomAccessFile raf = new RandomAccessFile(mFile.getBaseFile(), "rw")) {
+            raf.seek(16 + 1 * 4);
+            final int configs = raf.readInt();
+            raf.seek(configs + 4 + 24);
+            final int length = raf.readInt();
+            raf.write(new byte[length]);
+        }
+        read.events.clear();
+        assertTrue(UsageStatsBinary.readEvents(mFile, read, BEGIN_TIME, BEGIN_TIME + 4200,
+                new EventQuery(null, null, false, Integer.MAX_VALUE), Integer.MAX_VALUE));
+        assertEquals(42, read.events.size());
+        try {
+            UsageStatsBinary.read(mFile, new IntervalStats());
+            fail("Expected the garbled configuration to be decoded");
+        } catch (IOException expected) {
+        }
+    }
+
+    public void testCorruptOffsetsThrowIOException() throws Exception {
+        UsageStatsBinary.write(mFile, buildStats());
+        try (RandomAccessFile raf = new RandomAccessFile(mFile.getBaseFile(), "rw")) {
+            raf.seek(16);
+            final int strings = raf.readInt();
+            // End of the first string before its start
+            raf.seek(strings + 4);
+            raf.writeInt(-8);
+        }
+        assertReadFails();
+
+        UsageStatsBinary.write(mFile, buildStats());
+        try (RandomAccessFile raf = new RandomAccessFile(mFile.getBaseFile(), "rw")) {
+            raf.seek(16);
+            final int strings = raf.readInt();
+            // Second string running past the end of the file
+            raf.seek(strings + 8);
+            raf.writeInt(Integer.MAX_VALUE - 1);
+        }
+        assertReadFails();
+
+        UsageStatsBinary.write(mFile, buildStats());
+        try (RandomAccessFile raf = new RandomAccessFile(mFile.getBaseFile(), "rw")) {
+            // Package section inside the header
+            raf.seek(16 + 2 * 4);
+            raf.writeInt(4);
+        }
+        assertReadFails();
+    }
+
+    private void assertReadFails() {
+        try {
+            UsageStatsBinary.read(mFile, new IntervalStats());
+            fail("Expected the corrupt file to be rejected");
+        } catch (IOException expected) {
+        }
+    }
+
+    public void testXmlIsNotBinary() throws Exception {
+        UsageStatsXml.write(mFile, buildStats());
+
+        final IntervalStats read = new IntervalStats();
+        assertFalse(UsageStatsBinary.read(mFile, read));
+        UsageStatsXml.read(mFile, read);
+        assertEquals(100, read.events.size());
+    }
+}
@@ -29,6 +29,7 @@ import static android.view.WindowManager.LayoutParams.TYPE_VOICE_INTERACTION;
 
 import static com.android.server.wm.WindowContainer.POSITION_TOP;
 import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
 import static org.junit.Assert.assertTrue;
 
 import org.junit.Ignore;
@@ -42,6 +43,7 @@ import android.platform.test.annotations.Presubmit;
 import android.support.test.filters.SmallTest;
 import android.support.test.runner.AndroidJUnit4;
 import android.util.DisplayMetrics;
+import android.util.MergedConfiguration;
 import android.util.SparseIntArray;
 import android.view.MotionEvent;
 
@@ -384,6 +386,58 @@ public class DisplayContentTests extends WindowTestsBase {
         assertEquals(-1, orderedDisplayIds.indexOfValue(dc.getDisplayId()));
     }
 
+    @Test
+    public void testPartialLayout() throws Exception {
+        final WindowState otherAppWindow = createWindow(null, TYPE_BASE_APPLICATION,
+                mDisplayContent, "otherAppWindow");
+        // Make every window eligible for layout, without anything else requiring it.
+        final MergedConfiguration config = new MergedConfiguration();
+        mDisplayContent.forAllWindows(w -> {
+            w.mRelayoutCalled = true;
+            w.mHaveFrame = true;
+            w.getMergedConfiguration(config);
+            w.setLastReportedMergedConfiguration(config);
+        }, true /* traverseTopToBottom */);
+        mDisplayContent.setLayoutNeeded();
+        mDisplayContent.performLayout(false /* initial */, false /* updateInputWindows */);
+        assertLaidOut(otherAppWindow, true);
+
+        mAppWindow.setLayoutDirty();
+        assertTrue(mDisplayContent.hasLayoutDirtyContainers());
+        mDisplayContent.performLayout(false /* initial */, false /* updateInputWindows */);
+
+        // The dirty window, the windows attached to it, and the windows whose layout the windows
+        // below them depend on.
+        assertLaidOut(mAppWindow, true);
+        assertLaidOut(mChildAppWindowAbove, true);
+        assertLaidOut(mChildAppWindowBelow, true);
+        assertLaidOut(mImeWindow, true);
+        assertLaidOut(mStatusBarWindow, true);
+
+        assertLaidOut(otherAppWindow, false);
+        assertLaidOut(mWallpaperWindow, false);
+        assertLaidOut(mNavBarWindow, false);
+        assertLaidOut(mDockedDividerWindow, false);
+        assertLaidOut(mImeDialogWindow, false);
+        assertFalse(mDisplayContent.hasLayoutDirtyContainers());
+        assertFalse(mAppWindow.isInLayoutDirtySubtree());
+    }
+
+    @Test
+    public void testMoveLayoutDirtyStackBetweenDisplays() throws Exception {
+        final DisplayContent dc = createNewDisplay();
+        final TaskStack stack = createTaskStackOnDisplay(dc);
+        final Task task = createTaskInStack(stack, 0 /* userId */);
+        task.setLayoutDirty();
+        assertTrue(dc.hasLayoutDirtyContainers());
+
+        // The pending layout moves along with the stack.
+        mDisplayContent.moveStackToDisplay(stack, true /* onTop */);
+        assertFalse(dc.hasLayoutDirtyContainers());
+        assertTrue(mDisplayContent.hasLayoutDirtyContainers());
+        assertTrue(task.isInLayoutDirtySubtree());
+    }
+
     @Test
     @SuppressLint("InlinedApi")
     public void testOrientationDefinedByKeyguard() {
@@ -416,6 +470,10 @@ public class DisplayContentTests extends WindowTestsBase {
         assertEquals(displayContent.mBaseDisplayDensity, expectedBaseDensity);
     }
 
+    private static void assertLaidOut(WindowState w, boolean laidOut) {
+        assertEquals(w.toString(), laidOut, w.mLayoutSeq == sWm.mLayoutSeq);
+    }
+
     private void assertForAllWindowsOrder(List<WindowState> expectedWindows) {
         final LinkedList<WindowState> actualWindows = new LinkedList();
 
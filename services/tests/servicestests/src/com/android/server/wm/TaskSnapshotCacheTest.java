@@ -108,4 +108,31 @@ public class TaskSnapshotCacheTest extends TaskSnapshotPersisterTestBase {
         assertNotNull(mCache.getSnapshot(window.getTask().mTaskId, sWm.mCurrentUserId,
                 true /* restoreFromDisk */, false /* reducedResolution */));
     }
+
+    @Test
+    public void testPrefetch() throws Exception {
+        final WindowState window = createWindow(null, FIRST_APPLICATION_WINDOW, "window");
+        final int taskId = window.getTask().mTaskId;
+        mPersister.persistSnapshot(taskId, sWm.mCurrentUserId, createSnapshot());
+        mPersister.waitForQueueEmpty();
+        mCache.prefetchSnapshots(new int[] { taskId }, new int[] { sWm.mCurrentUserId });
+        assertNotNull(mCache.getSnapshot(taskId, sWm.mCurrentUserId,
+                true /* restoreFromDisk */, true /* reducedResolution */));
+    }
+
+    @Test
+    public void testPrefetch_taskRemoved() throws Exception {
+        final WindowState window = createWindow(null, FIRST_APPLICATION_WINDOW, "window");
+        final int taskId = window.getTask().mTaskId;
+        mPersister.persistSnapshot(taskId, sWm.mCurrentUserId, createSnapshot());
+        mPersister.waitForQueueEmpty();
+        mCache.prefetchSnapshots(new int[] { taskId }, new int[] { sWm.mCurrentUserId });
+        mCache.onTaskRemoved(taskId);
+        mPersister.onTaskRemovedFromRecents(taskId, sWm.mCurrentUserId);
+        mPersister.waitForQueueEmpty();
+
+        // Whether or not the prefetch had finished, it must not be handed out anymore
+        assertNull(mCache.getSnapshot(taskId, sWm.mCurrentUserId,
+                true /* restoreFromDisk */, true /* reducedResolution */));
+    }
 }
@@ -100,29 +100,34 @@ public class TaskSnapshotPersisterLoaderTest extends TaskSnapshotPersisterTestBa
     }
 
     /**
-     * Tests that too many store write queue items are being purged.
+     * Tests that store write queue items of the same task are coalesced rather than purged.
      */
     @Test
-    public void testPurging() {
-        mPersister.persistSnapshot(100, mTestUserId, createSnapshot());
-        mPersister.waitForQueueEmpty();
+    public void testCoalescing() {
         mPersister.setPaused(true);
         mPersister.persistSnapshot(1, mTestUserId, createSnapshot());
         mPersister.removeObsoleteFiles(new ArraySet<>(), new int[] { mTestUserId });
         mPersister.persistSnapshot(2, mTestUserId, createSnapshot());
         mPersister.persistSnapshot(3, mTestUserId, createSnapshot());
         mPersister.persistSnapshot(4, mTestUserId, createSnapshot());
+        mPersister.persistSnapshot(1, mTestUserId, createSnapshot(0.5f /* scale */));
+        mPersister.persistSnapshot(5, mTestUserId, createSnapshot());
+        mPersister.onTaskRemovedFromRecents(5, mTestUserId);
         mPersister.setPaused(false);
         mPersister.waitForQueueEmpty();
 
-        // Make sure 1,2 were purged but removeObsoleteFiles wasn't.
+        // Nothing was dropped, task 1 only got its latest snapshot, and the removal of task 5
+        // canceled its store.
         final File[] existsFiles = new File[] {
+                new File(sFilesDir.getPath() + "/snapshots/1.proto"),
+                new File(sFilesDir.getPath() + "/snapshots/1_reduced.jpg"),
+                new File(sFilesDir.getPath() + "/snapshots/2.proto"),
                 new File(sFilesDir.getPath() + "/snapshots/3.proto"),
                 new File(sFilesDir.getPath() + "/snapshots/4.proto")};
         final File[] nonExistsFiles = new File[] {
-                new File(sFilesDir.getPath() + "/snapshots/100.proto"),
-                new File(sFilesDir.getPath() + "/snapshots/1.proto"),
-                new File(sFilesDir.getPath() + "/snapshots/1.proto")};
+                new File(sFilesDir.getPath() + "/snapshots/1.jpg"),
+                new File(sFilesDir.getPath() + "/snapshots/5.proto"),
+                new File(sFilesDir.getPath() + "/snapshots/5_reduced.jpg")};
         assertTrueForFiles(existsFiles, File::exists, " must exist");
         assertTrueForFiles(nonExistsFiles, file -> !file.exists(), " must not exist");
     }
@@ -138,6 +143,7 @@ public class TaskSnapshotPersisterLoaderTest extends TaskSnapshotPersisterTestBa
         assertEquals(12, removeObsoleteFilesQueueItem.getTaskId("12.proto"));
         assertEquals(1, removeObsoleteFilesQueueItem.getTaskId("1.jpg"));
         assertEquals(1, removeObsoleteFilesQueueItem.getTaskId("1_reduced.jpg"));
+        assertEquals(1, removeObsoleteFilesQueueItem.getTaskId("1_reduced.raw"));
     }
 
     @Test
@@ -24,6 +24,7 @@ import android.platform.test.annotations.Presubmit;
 import android.support.test.filters.SmallTest;
 import android.support.test.runner.AndroidJUnit4;
 
+import java.util.ArrayList;
 import java.util.Comparator;
 
 import static android.content.pm.ActivityInfo.SCREEN_ORIENTATION_BEHIND;
@@ -721,6 +722,64 @@ public class WindowContainerTests extends WindowTestsBase {
         assertEquals(mergedConfig2, child2.getConfiguration());
     }
 
+    @Test
+    public void testSetLayoutDirty() throws Exception {
+        final TestWindowContainerBuilder builder = new TestWindowContainerBuilder();
+        final TestWindowContainer root = builder.setLayer(0).build();
+        final TestWindowContainer child1 = root.addChildWindow();
+        final TestWindowContainer child2 = root.addChildWindow();
+        final TestWindowContainer child11 = child1.addChildWindow();
+        final TestWindowContainer child21 = child2.addChildWindow();
+
+        child1.setLayoutDirty();
+        assertTrue(child1.isInLayoutDirtySubtree());
+        assertTrue(child11.isInLayoutDirtySubtree());
+        assertFalse(root.isInLayoutDirtySubtree());
+        assertFalse(child2.isInLayoutDirtySubtree());
+        assertFalse(child21.isInLayoutDirtySubtree());
+        assertEquals(1, root.mLayoutDirtyDescendants.size());
+        assertEquals(child1, root.mLayoutDirtyDescendants.get(0));
+
+        // Marking a container again doesn't notify the parents again.
+        child1.setLayoutDirty();
+        assertEquals(1, root.mLayoutDirtyDescendants.size());
+
+        child11.setLayoutDirty();
+        assertEquals(2, root.mLayoutDirtyDescendants.size());
+        assertEquals(1, child1.mLayoutDirtyDescendants.size());
+
+        child1.clearLayoutDirty();
+        assertFalse(child1.isInLayoutDirtySubtree());
+        assertTrue(child11.isInLayoutDirtySubtree());
+        child11.clearLayoutDirty();
+        assertFalse(child11.isInLayoutDirtySubtree());
+    }
+
+    @Test
+    public void testSetLayoutDirty_Reparent() throws Exception {
+        final TestWindowContainerBuilder builder = new TestWindowContainerBuilder();
+        final TestWindowContainer root = builder.setLayer(0).build();
+        final TestWindowContainer otherRoot = builder.setLayer(0).build();
+        final TestWindowContainer child = root.addChildWindow();
+
+        final TestWindowContainer grandChild = child.addChildWindow();
+
+        child.setLayoutDirty();
+        grandChild.setLayoutDirty();
+        root.removeChild(child);
+
+        // The old parent must not hold on to the detached containers.
+        assertTrue(root.mLayoutDirtyDescendants.isEmpty());
+
+        otherRoot.addChildWindow(child);
+
+        // The new parent has to find out about the pending layout of the whole subtree.
+        assertTrue(child.isInLayoutDirtySubtree());
+        assertEquals(2, otherRoot.mLayoutDirtyDescendants.size());
+        assertTrue(otherRoot.mLayoutDirtyDescendants.contains(child));
+        assertTrue(otherRoot.mLayoutDirtyDescendants.contains(grandChild));
+    }
+
     /* Used so we can gain access to some protected members of the {@link WindowContainer} class */
     private class TestWindowContainer extends WindowContainer<TestWindowContainer> {
         private final int mLayer;
@@ -731,6 +790,7 @@ public class WindowContainerTests extends WindowTestsBase {
 
         private boolean mOnParentSetCalled;
         private boolean mOnDescendantOverrideCalled;
+        private final ArrayList<WindowContainer> mLayoutDirtyDescendants = new ArrayList<>();
 
         /**
          * Compares 2 window layers and returns -1 if the first is lesser than the second in terms
@@ -794,6 +854,23 @@ public class WindowContainerTests extends WindowTestsBase {
             super.onDescendantOverrideConfigurationChanged();
         }
 
+        @Override
+        void onDescendantLayoutDirty(WindowContainer container) {
+            mLayoutDirtyDescendants.add(container);
+            super.onDescendantLayoutDirty(container);
+        }
+
+        @Override
+        void onDescendantDetached(WindowContainer container) {
+            for (int i = mLayoutDirtyDescendants.size() - 1; i >= 0; i--) {
+                final WindowContainer wc = mLayoutDirtyDescendants.get(i);
+                if (wc == container || container.hasChild(wc)) {
+                    mLayoutDirtyDescendants.remove(i);
+                }
+            }
+            super.onDescendantDetached(container);
+        }
+
         @Override
         boolean isAnimating() {
             return mIsAnimating || super.isAnimating();
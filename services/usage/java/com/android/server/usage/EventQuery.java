@@ -0,0 +1,64 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.android.server.usage;
+
+import android.app.usage.UsageEvents;
+
+import com.android.internal.util.ArrayUtils;
+
+/**
+ * Selects the events returned by a query: which types, which package and how many.
+ * Packages are matched by the name the caller sees, so an instant app that is obfuscated for
+ * the caller only matches {@link UsageEvents#INSTANT_APP_PACKAGE_NAME}.
+ */
+final class EventQuery {
+    /** The event types to return, or null for all of them. */
+    final int[] eventTypes;
+    /** The package to return events of, or null for all of them. */
+    final String packageName;
+    final boolean obfuscateInstantApps;
+    final int maxEvents;
+
+    EventQuery(int[] eventTypes, String packageName, boolean obfuscateInstantApps,
+            int maxEvents) {
+        this.eventTypes = eventTypes;
+        this.packageName = packageName;
+        this.obfuscateInstantApps = obfuscateInstantApps;
+        this.maxEvents = maxEvents;
+    }
+
+    boolean matchesType(int eventType) {
+        return eventTypes == null || ArrayUtils.contains(eventTypes, eventType);
+    }
+
+    boolean isInstantAppHidden(int flags) {
+        return obfuscateInstantApps
+                && (flags & UsageEvents.Event.FLAG_IS_PACKAGE_INSTANT_APP) != 0;
+    }
+
+    boolean matchesPackage(String eventPackage, int flags) {
+        if (packageName == null) {
+            return true;
+        }
+        return packageName.equals(isInstantAppHidden(flags)
+                ? UsageEvents.INSTANT_APP_PACKAGE_NAME : eventPackage);
+    }
+
+    boolean matches(UsageEvents.Event event) {
+        return matchesType(event.mEventType) && matchesPackage(event.mPackage, event.mFlags);
+    }
+}
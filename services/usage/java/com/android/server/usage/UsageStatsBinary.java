@@ -0,0 +1,625 @@
+/*
+ * Copyright (C) 2017 The Android Open Source Project
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License"); you may not
+ * use this file except in compliance with the License. You may obtain a copy
+ * of the License at
+ *
+ * http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS, WITHOUT
+ * WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied. See the
+ * License for the specific language governing permissions and limitations
+ * under the License.
+ */
+
+package com.android.server.usage;
+
+import android.app.usage.ConfigurationStats;
+import android.app.usage.TimeSparseArray;
+import android.app.usage.UsageEvents;
+import android.app.usage.UsageStats;
+import android.content.res.Configuration;
+import android.util.ArrayMap;
+import android.util.AtomicFile;
+
+import com.android.internal.util.XmlUtils;
+
+import libcore.io.IoUtils;
+
+import org.xmlpull.v1.XmlPullParser;
+import org.xmlpull.v1.XmlPullParserException;
+import org.xmlpull.v1.XmlSerializer;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * UsageStats reader/writer for the binary columnar format.
+ *
+ * <p>A file starts with {magic, version, endTime offset} and the offset of each section,
+ * followed by the sections: a string table holding every package, class, action, category
+ * and shortcut id once, the configurations, and then the package stats, chooser counts and
+ * events, each stored as one packed array per field.  As in {@link UsageStatsXmlV1}, times are
+ * offsets from the beginTime in the file name.  Events are sorted by time, so a query maps the
+ * file, binary-searches the time column and only decodes the events in its range and the
+ * configurations they reference.
+ */
+final class UsageStatsBinary {
+    static final int MAGIC = 0x55534231; // "USB1"
+    private static final int VERSION = 1;
+
+    private static final int SECTION_STRINGS = 0;
+    private static final int SECTION_CONFIGURATIONS = 1;
+    private static final int SECTION_PACKAGES = 2;
+    private static final int SECTION_CHOOSER_COUNTS = 3;
+    private static final int SECTION_EVENTS = 4;
+    private static final int SECTION_COUNT = 5;
+    private static final int HEADER_SIZE = 16 + SECTION_COUNT * 4;
+
+    private static final int CONFIG_FLAG_STATS = 1 << 0;
+    private static final int CONFIG_FLAG_ACTIVE = 1 << 1;
+
+    private static final String CONFIG_TAG = "config";
+
+    /**
+     * Reads a file in this format.
+     *
+     * @return false if the file is in another format, in which case statsOut is untouched.
+     */
+    static boolean read(AtomicFile file, IntervalStats statsOut) throws IOException {
+        return read(file, statsOut, Long.MIN_VALUE, Long.MAX_VALUE, null, Integer.MAX_VALUE);
+    }
+
+    /**
+     * Reads only the first {@code maxEvents} events of a file in this format that are in
+     * [beginTime, endTime) and match {@code query}; the package and configuration stats are
+     * left empty.
+     *
+     * @return false if the file is in another format, in which case statsOut is untouched.
+     */
+    static boolean readEvents(AtomicFile file, IntervalStats statsOut, long beginTime,
+            long endTime, EventQuery query, int maxEvents) throws IOException {
+        return read(file, statsOut, beginTime, endTime, query, maxEvents);
+    }
+
+    private static boolean read(AtomicFile file, IntervalStats statsOut, long beginTime,
+            long endTime, EventQuery query, int maxEvents) throws IOException {
+        final FileInputStream in = file.openRead();
+        try {
+            final FileChannel channel = in.getChannel();
+            final long size = channel.size();
+            if (size < HEADER_SIZE || size > Integer.MAX_VALUE) {
+                return false;
+            }
+            // The mapping outlives the stream; it is released once the buffer is collected
+            final ByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, size);
+            if (buffer.getInt(0) != MAGIC) {
+                return false;
+            }
+            statsOut.beginTime = UsageStatsXml.parseBeginTime(file);
+            read(buffer, statsOut, beginTime, endTime, query, maxEvents);
+            statsOut.lastTimeSaved = file.getLastModifiedTime();
+            return true;
+        } finally {
+            IoUtils.closeQuietly(in);
+        }
+    }
+
+    private static void read(ByteBuffer buffer, IntervalStats statsOut, long beginTime,
+            long endTime, EventQuery query, int maxEvents) throws IOException {
+        final boolean eventsOnly = query != null;
+        try {
+            final int version = buffer.getInt(4);
+            if (version != VERSION) {
+                throw new IOException("Unrecognized version " + version);
+            }
+            statsOut.packageStats.clear();
+            statsOut.configurations.clear();
+            statsOut.activeConfiguration = null;
+            if (statsOut.events != null) {
+                statsOut.events.clear();
+            }
+            statsOut.endTime = statsOut.beginTime + buffer.getLong(8);
+
+            final Decoder decoder = new Decoder(buffer);
+            if (!eventsOnly) {
+                decoder.readConfigurations(statsOut);
+                decoder.readPackages(statsOut);
+                decoder.readChooserCounts(statsOut);
+            }
+            decoder.readEvents(statsOut, beginTime, endTime, query, maxEvents);
+        } catch (IndexOutOfBoundsException | BufferUnderflowException e) {
+            throw new IOException("Truncated usage stats file", e);
+        } catch (IllegalArgumentException e) {
+            // Malformed values in a configuration blob, or a position the checks missed
+            throw new IOException("Corrupt usage stats file", e);
+        } catch (XmlPullParserException e) {
+            throw new IOException(e);
+        }
+    }
+
+    static void write(AtomicFile file, IntervalStats stats) throws IOException {
+        FileOutputStream fos = file.startWrite();
+        try {
+            write(fos, stats);
+            file.finishWrite(fos);
+            fos = null;
+        } finally {
+            // When fos is null (successful write), this will no-op
+            file.failWrite(fos);
+        }
+    }
+
+    static void write(OutputStream os, IntervalStats stats) throws IOException {
+        final ArrayMap<String, Integer> strings = new ArrayMap<>();
+        final ArrayMap<Configuration, Integer> configs = new ArrayMap<>();
+        final int configCount = stats.configurations.size();
+        for (int i = 0; i < configCount; i++) {
+            configs.put(stats.configurations.keyAt(i), 0);
+        }
+        final int packageCount = stats.packageStats.size();
+        int chooserCount = 0;
+        for (int i = 0; i < packageCount; i++) {
+            final UsageStats usageStats = stats.packageStats.valueAt(i);
+            addString(strings, usageStats.mPackageName);
+            final ArrayMap<String, ArrayMap<String, Integer>> chooserCounts =
+                    usageStats.mChooserCounts;
+            if (chooserCounts == null) {
+                continue;
+            }
+            for (int j = 0; j < chooserCounts.size(); j++) {
+                final ArrayMap<String, Integer> counts = chooserCounts.valueAt(j);
+                if (chooserCounts.keyAt(j) == null || counts == null) {
+                    continue;
+                }
+                for (int k = 0; k < counts.size(); k++) {
+                    if (counts.keyAt(k) != null && counts.valueAt(k) > 0) {
+                        addString(strings, chooserCounts.keyAt(j));
+                        addString(strings, counts.keyAt(k));
+                        chooserCount++;
+                    }
+                }
+            }
+        }
+        final int eventCount = stats.events != null ? stats.events.size() : 0;
+        for (int i = 0; i < eventCount; i++) {
+            final UsageEvents.Event event = stats.events.valueAt(i);
+            addString(strings, event.mPackage);
+            addString(strings, event.mClass);
+            addString(strings, event.mShortcutId);
+            if (event.mConfiguration != null) {
+                configs.put(event.mConfiguration, 0);
+            }
+        }
+        // Number the entries in the order they are written
+        for (int i = 0; i < strings.size(); i++) {
+            strings.setValueAt(i, i);
+        }
+        for (int i = 0; i < configs.size(); i++) {
+            configs.setValueAt(i, i);
+        }
+
+        final ByteArrayOutputStream body = new ByteArrayOutputStream();
+        final DataOutputStream out = new DataOutputStream(body);
+        final int[] sections = new int[SECTION_COUNT];
+
+        sections[SECTION_STRINGS] = HEADER_SIZE + out.size();
+        final int stringCount = strings.size();
+        final byte[][] encoded = new byte[stringCount][];
+        out.writeInt(stringCount);
+        int stringOffset = 0;
+        for (int i = 0; i < stringCount; i++) {
+            encoded[i] = strings.keyAt(i).getBytes(StandardCharsets.UTF_8);
+            stringOffset += encoded[i].length;
+            out.writeInt(stringOffset);
+        }
+        for (int i = 0; i < stringCount; i++) {
+            out.write(encoded[i]);
+        }
+
+        sections[SECTION_CONFIGURATIONS] = HEADER_SIZE + out.size();
+        out.writeInt(configs.size());
+        for (int i = 0; i < configs.size(); i++) {
+            final Configuration config = configs.keyAt(i);
+            final ConfigurationStats configStats = stats.configurations.get(config);
+            int flags = 0;
+            if (configStats != null) {
+                flags |= CONFIG_FLAG_STATS;
+                if (config.equals(stats.activeConfiguration)) {
+                    flags |= CONFIG_FLAG_ACTIVE;
+                }
+            }
+            out.writeInt(flags);
+            out.writeLong(configStats != null
+                    ? configStats.mLastTimeActive - stats.beginTime : 0);
+            out.writeLong(configStats != null ? configStats.mTotalTimeActive : 0);
+            out.writeInt(configStats != null ? configStats.mActivationCount : 0);
+            final byte[] blob = encodeConfiguration(config);
+            out.writeInt(blob.length);
+            out.write(blob);
+        }
+
+        sections[SECTION_PACKAGES] = HEADER_SIZE + out.size();
+        out.writeInt(packageCount);
+        for (int i = 0; i < packageCount; i++) {
+            out.writeInt(strings.get(stats.packageStats.valueAt(i).mPackageName));
+        }
+        for (int i = 0; i < packageCount; i++) {
+            out.writeLong(stats.packageStats.valueAt(i).mLastTimeUsed - stats.beginTime);
+        }
+        for (int i = 0; i < packageCount; i++) {
+            out.writeLong(stats.packageStats.valueAt(i).mTotalTimeInForeground);
+        }
+        for (int i = 0; i < packageCount; i++) {
+            out.writeInt(stats.packageStats.valueAt(i).mLastEvent);
+        }
+
+        sections[SECTION_CHOOSER_COUNTS] = HEADER_SIZE + out.size();
+        final int[] chooserColumns = new int[chooserCount * 4];
+        int column = 0;
+        for (int i = 0; i < packageCount; i++) {
+            final UsageStats usageStats = stats.packageStats.valueAt(i);
+            final ArrayMap<String, ArrayMap<String, Integer>> chooserCounts =
+                    usageStats.mChooserCounts;
+            if (chooserCounts == null) {
+                continue;
+            }
+            for (int j = 0; j < chooserCounts.size(); j++) {
+                final ArrayMap<String, Integer> counts = chooserCounts.valueAt(j);
+                if (chooserCounts.keyAt(j) == null || counts == null) {
+                    continue;
+                }
+                for (int k = 0; k < counts.size(); k++) {
+                    if (counts.keyAt(k) != null && counts.valueAt(k) > 0) {
+                        chooserColumns[column] = strings.get(usageStats.mPackageName);
+                        chooserColumns[chooserCount + column] =
+                                strings.get(chooserCounts.keyAt(j));
+                        chooserColumns[chooserCount * 2 + column] = strings.get(counts.keyAt(k));
+                        chooserColumns[chooserCount * 3 + column] = counts.valueAt(k);
+                        column++;
+                    }
+                }
+            }
+        }
+        out.writeInt(chooserCount);
+        for (int value : chooserColumns) {
+            out.writeInt(value);
+        }
+
+        sections[SECTION_EVENTS] = HEADER_SIZE + out.size();
+        out.writeInt(eventCount);
+        for (int i = 0; i < eventCount; i++) {
+            out.writeLong(stats.events.valueAt(i).mTimeStamp - stats.beginTime);
+        }
+        for (int i = 0; i < eventCount; i++) {
+            out.writeInt(strings.get(stats.events.valueAt(i).mPackage));
+        }
+        for (int i = 0; i < eventCount; i++) {
+            out.writeInt(indexOf(strings, stats.events.valueAt(i).mClass));
+        }
+        for (int i = 0; i < eventCount; i++) {
+            out.writeInt(stats.events.valueAt(i).mFlags);
+        }
+        for (int i = 0; i < eventCount; i++) {
+            out.writeInt(stats.events.valueAt(i).mEventType);
+        }
+        for (int i = 0; i < eventCount; i++) {
+            final UsageEvents.Event event = stats.events.valueAt(i);
+            final int extra;
+            switch (event.mEventType) {
+                case UsageEvents.Event.CONFIGURATION_CHANGE:
+                    extra = event.mConfiguration != null
+                            ? configs.get(event.mConfiguration) : -1;
+                    break;
+                case UsageEvents.Event.SHORTCUT_INVOCATION:
+                    extra = indexOf(strings, event.mShortcutId);
+                    break;
+                default:
+                    extra = -1;
+                    break;
+            }
+            out.writeInt(extra);
+        }
+        out.flush();
+
+        final DataOutputStream header = new DataOutputStream(os);
+        header.writeInt(MAGIC);
+        header.writeInt(VERSION);
+        header.writeLong(stats.endTime - stats.beginTime);
+        for (int offset : sections) {
+            header.writeInt(offset);
+        }
+        body.writeTo(header);
+        header.flush();
+    }
+
+    private static void addString(ArrayMap<String, Integer> strings, String str) {
+        if (str != null) {
+            strings.put(str, 0);
+        }
+    }
+
+    private static int indexOf(ArrayMap<String, Integer> strings, String str) {
+        return str != null ? strings.get(str) : -1;
+    }
+
+    private static byte[] encodeConfiguration(Configuration config) throws IOException {
+        final ByteArrayOutputStream out = new ByteArrayOutputStream();
+        final XmlSerializer xml = XmlUtils.resolveSerializer(out, true);
+        xml.startDocument(null, true);
+        xml.startTag(null, CONFIG_TAG);
+        Configuration.writeXmlAttrs(xml, config);
+        xml.endTag(null, CONFIG_TAG);
+        xml.endDocument();
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes the sections of one file, resolving each string and configuration at most once,
+     * and only when it is first needed.
+     */
+    private static final class Decoder {
+        private final ByteBuffer mBuffer;
+        private final int mStringCount;
+        private final int mStringData;
+        private final String[] mStrings;
+        private int[] mConfigOffsets;
+        private Configuration[] mConfigs;
+
+        Decoder(ByteBuffer buffer) {
+            mBuffer = buffer;
+            final int strings = section(SECTION_STRINGS);
+            mStringCount = count(strings, 4);
+            mStringData = strings + 4 + mStringCount * 4;
+            mStrings = new String[mStringCount];
+        }
+
+        private int section(int section) {
+            final int offset = mBuffer.getInt(16 + section * 4);
+            if (offset < HEADER_SIZE || offset > mBuffer.limit() - 4) {
+                throw new IndexOutOfBoundsException("Bad offset " + offset
+                        + " for section " + section);
+            }
+            return offset;
+        }
+
+        private int count(int offset, int bytesPerEntry) {
+            final int count = mBuffer.getInt(offset);
+            if (count < 0 || count > (mBuffer.limit() - offset - 4) / bytesPerEntry) {
+                throw new IndexOutOfBoundsException("Bad count " + count + " at " + offset);
+            }
+            return count;
+        }
+
+        String getString(int index) {
+            if (index < 0) {
+                return null;
+            }
+            if (index >= mStringCount) {
+                throw new IndexOutOfBoundsException("Bad string index " + index);
+            }
+            String str = mStrings[index];
+            if (str == null) {
+                final int tableBase = section(SECTION_STRINGS) + 4;
+                final int start = index > 0 ? mBuffer.getInt(tableBase + (index - 1) * 4) : 0;
+                final int end = mBuffer.getInt(tableBase + index * 4);
+                if (start < 0 || end < start || end > mBuffer.limit() - mStringData) {
+                    throw new IndexOutOfBoundsException("Bad string " + index + " at ["
+                            + start + ", " + end + ")");
+                }
+                final byte[] bytes = new byte[end - start];
+                final ByteBuffer data = mBuffer.duplicate();
+                data.position(mStringData + start);
+                data.get(bytes);
+                str = new String(bytes, StandardCharsets.UTF_8);
+                mStrings[index] = str;
+            }
+            return str;
+        }
+
+        /**
+         * Indexes the configuration entries by offset without decoding their blobs.
+         */
+        private void indexConfigurations() {
+            if (mConfigOffsets != null) {
+                return;
+            }
+            int pos = section(SECTION_CONFIGURATIONS);
+            final int count = count(pos, 28);
+            pos += 4;
+            final int[] offsets = new int[count];
+            for (int i = 0; i < count; i++) {
+                offsets[i] = pos;
+                final int length = mBuffer.getInt(pos + 24);
+                if (length < 0 || length > mBuffer.limit() - pos - 28) {
+                    throw new IndexOutOfBoundsException("Bad configuration length " + length);
+                }
+                pos += 28 + length;
+            }
+            mConfigOffsets = offsets;
+            mConfigs = new Configuration[count];
+        }
+
+        Configuration getConfiguration(int index) throws IOException, XmlPullParserException {
+            indexConfigurations();
+            if (index >= mConfigs.length) {
+                throw new IndexOutOfBoundsException("Bad configuration index " + index);
+            }
+            Configuration config = mConfigs[index];
+            if (config == null) {
+                final int pos = mConfigOffsets[index];
+                final byte[] blob = new byte[mBuffer.getInt(pos + 24)];
+                final ByteBuffer data = mBuffer.duplicate();
+                data.position(pos + 28);
+                data.get(blob);
+
+                config = new Configuration();
+                final XmlPullParser parser =
+                        XmlUtils.resolvePullParser(new ByteArrayInputStream(blob));
+                XmlUtils.beginDocument(parser, CONFIG_TAG);
+                Configuration.readXmlAttrs(parser, config);
+                mConfigs[index] = config;
+            }
+            return config;
+        }
+
+        void readConfigurations(IntervalStats statsOut)
+                throws IOException, XmlPullParserException {
+            indexConfigurations();
+            for (int i = 0; i < mConfigOffsets.length; i++) {
+                final int pos = mConfigOffsets[i];
+                final int flags = mBuffer.getInt(pos);
+                if ((flags & CONFIG_FLAG_STATS) == 0) {
+                    // Only referenced by events, decoded if one of them is read
+                    continue;
+                }
+                final ConfigurationStats configStats =
+                        statsOut.getOrCreateConfigurationStats(getConfiguration(i));
+                configStats.mLastTimeActive = statsOut.beginTime + mBuffer.getLong(pos + 4);
+                configStats.mTotalTimeActive = mBuffer.getLong(pos + 12);
+                configStats.mActivationCount = mBuffer.getInt(pos + 20);
+                if ((flags & CONFIG_FLAG_ACTIVE) != 0) {
+                    statsOut.activeConfiguration = configStats.mConfiguration;
+                }
+            }
+        }
+
+        void readPackages(IntervalStats statsOut) {
+            final int pos = section(SECTION_PACKAGES);
+            final int count = count(pos, 24);
+            final int names = pos + 4;
+            final int lastTimeUsed = names + count * 4;
+            final int totalTime = lastTimeUsed + count * 8;
+            final int lastEvent = totalTime + count * 8;
+            for (int i = 0; i < count; i++) {
+                final UsageStats stats = statsOut.getOrCreateUsageStats(
+                        getString(mBuffer.getInt(names + i * 4)));
+                stats.mLastTimeUsed = statsOut.beginTime + mBuffer.getLong(lastTimeUsed + i * 8);
+                stats.mTotalTimeInForeground = mBuffer.getLong(totalTime + i * 8);
+                stats.mLastEvent = mBuffer.getInt(lastEvent + i * 4);
+            }
+        }
+
+        void readChooserCounts(IntervalStats statsOut) {
+            final int pos = section(SECTION_CHOOSER_COUNTS);
+            final int count = count(pos, 16);
+            final int packages = pos + 4;
+            final int actions = packages + count * 4;
+            final int categories = actions + count * 4;
+            final int counts = categories + count * 4;
+            for (int i = 0; i < count; i++) {
+                final UsageStats stats = statsOut.getOrCreateUsageStats(
+                        getString(mBuffer.getInt(packages + i * 4)));
+                if (stats.mChooserCounts == null) {
+                    stats.mChooserCounts = new ArrayMap<>();
+                }
+                final String action = getString(mBuffer.getInt(actions + i * 4));
+                ArrayMap<String, Integer> actionCounts = stats.mChooserCounts.get(action);
+                if (actionCounts == null) {
+                    actionCounts = new ArrayMap<>();
+                    stats.mChooserCounts.put(action, actionCounts);
+                }
+                actionCounts.put(getString(mBuffer.getInt(categories + i * 4)),
+                        mBuffer.getInt(counts + i * 4));
+            }
+        }
+
+        /**
+         * Returns the index of {@code str} in the string table, or -1 if it is not there.
+         */
+        int indexOfString(String str) {
+            for (int i = 0; i < mStringCount; i++) {
+                if (str.equals(getString(i))) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+
+        void readEvents(IntervalStats statsOut, long beginTime, long endTime, EventQuery query,
+                int maxEvents) throws IOException, XmlPullParserException {
+            final int pos = section(SECTION_EVENTS);
+            final int count = count(pos, 28);
+            final int times = pos + 4;
+            final int packages = times + count * 8;
+            final int classes = packages + count * 4;
+            final int flags = classes + count * 4;
+            final int types = flags + count * 4;
+            final int extras = types + count * 4;
+
+            // Seek to the first event at or after beginTime
+            int lo = 0;
+            int hi = count;
+            while (lo < hi) {
+                final int mid = (lo + hi) >>> 1;
+                if (statsOut.beginTime + mBuffer.getLong(times + mid * 8) < beginTime) {
+                    lo = mid + 1;
+                } else {
+                    hi = mid;
+                }
+            }
+
+            // Filter on the columns so that only the events returned are decoded
+            final int packageFilter = query != null && query.packageName != null
+                    ? indexOfString(query.packageName) : -1;
+            int added = 0;
+            for (int i = lo; i < count && added < maxEvents; i++) {
+                final long timeStamp = statsOut.beginTime + mBuffer.getLong(times + i * 8);
+                if (timeStamp >= endTime) {
+                    break;
+                }
+                if (query != null) {
+                    if (!query.matchesType(mBuffer.getInt(types + i * 4))) {
+                        continue;
+                    }
+                    if (query.packageName != null) {
+                        final int eventFlags = mBuffer.getInt(flags + i * 4);
+                        final boolean matches = query.isInstantAppHidden(eventFlags)
+                                ? query.matchesPackage(null, eventFlags)
+                                : mBuffer.getInt(packages + i * 4) == packageFilter
+                                        && packageFilter >= 0;
+                        if (!matches) {
+                            continue;
+                        }
+                    }
+                }
+                final UsageEvents.Event event = statsOut.buildEvent(
+                        getString(mBuffer.getInt(packages + i * 4)),
+                        getString(mBuffer.getInt(classes + i * 4)));
+                event.mTimeStamp = timeStamp;
+                event.mFlags = mBuffer.getInt(flags + i * 4);
+                event.mEventType = mBuffer.getInt(types + i * 4);
+                final int extra = mBuffer.getInt(extras + i * 4);
+                switch (event.mEventType) {
+                    case UsageEvents.Event.CONFIGURATION_CHANGE:
+                        if (extra >= 0) {
+                            event.mConfiguration = new Configuration(getConfiguration(extra));
+                        }
+                        break;
+                    case UsageEvents.Event.SHORTCUT_INVOCATION:
+                        event.mShortcutId = getString(extra);
+                        break;
+                }
+                if (statsOut.events == null) {
+                    statsOut.events = new TimeSparseArray<>();
+                }
+                statsOut.events.put(event.mTimeStamp, event);
+                added++;
+            }
+        }
+    }
+
+    private UsageStatsBinary() {
+    }
+}
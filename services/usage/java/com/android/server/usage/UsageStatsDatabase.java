@@ -61,6 +61,13 @@ class UsageStatsDatabase {
     private static final int SELECTION_LOG_RETENTION_LEN =
             SystemProperties.getInt(RETENTION_LEN_KEY, 14);
 
+    /**
+     * Whether stats files are written in the binary format of {@link UsageStatsBinary}.
+     * Files in either format are read, so this can be flipped without losing history.
+     */
+    private static final boolean WRITE_BINARY_STATS =
+            SystemProperties.getBoolean("persist.usagestats.binary_store", true);
+
     private final Object mLock = new Object();
     private final File[] mIntervalDirs;
     private final TimeSparseArray<AtomicFile>[] mSortedStatFiles;
@@ -154,7 +161,7 @@ class UsageStatsDatabase {
             try {
                 IntervalStats stats = new IntervalStats();
                 for (int i = start; i < fileCount - 1; i++) {
-                    UsageStatsXml.read(files.valueAt(i), stats);
+                    readStats(files.valueAt(i), stats);
                     if (!checkinAction.checkin(stats)) {
                         return false;
                     }
@@ -357,7 +364,7 @@ class UsageStatsDatabase {
             try {
                 final AtomicFile f = mSortedStatFiles[intervalType].valueAt(fileCount - 1);
                 IntervalStats stats = new IntervalStats();
-                UsageStatsXml.read(f, stats);
+                readStats(f, stats);
                 return stats;
             } catch (IOException e) {
                 Slog.e(TAG, "Failed to read usage stats file", e);
@@ -391,6 +398,23 @@ class UsageStatsDatabase {
      */
     public <T> List<T> queryUsageStats(int intervalType, long beginTime, long endTime,
             StatCombiner<T> combiner) {
+        return queryUsageStats(intervalType, beginTime, endTime, combiner, null);
+    }
+
+    /**
+     * Find the daily {@link IntervalStats} for the given range, holding only the events in
+     * that range that match {@code query}. Files in the binary format are mapped and only
+     * those events are decoded. Files stop being read once the combiner has accumulated
+     * {@link EventQuery#maxEvents} results.
+     */
+    public <T> List<T> queryEvents(long beginTime, long endTime, EventQuery query,
+            StatCombiner<T> combiner) {
+        return queryUsageStats(UsageStatsManager.INTERVAL_DAILY, beginTime, endTime, combiner,
+                query);
+    }
+
+    private <T> List<T> queryUsageStats(int intervalType, long beginTime, long endTime,
+            StatCombiner<T> combiner, EventQuery eventQuery) {
         synchronized (mLock) {
             if (intervalType < 0 || intervalType >= mIntervalDirs.length) {
                 throw new IllegalArgumentException("Bad interval type " + intervalType);
@@ -436,6 +460,9 @@ class UsageStatsDatabase {
             final IntervalStats stats = new IntervalStats();
             final ArrayList<T> results = new ArrayList<>();
             for (int i = startIndex; i <= endIndex; i++) {
+                if (eventQuery != null && results.size() >= eventQuery.maxEvents) {
+                    break;
+                }
                 final AtomicFile f = intervalStats.valueAt(i);
 
                 if (DEBUG) {
@@ -443,7 +470,10 @@ class UsageStatsDatabase {
                 }
 
                 try {
-                    UsageStatsXml.read(f, stats);
+                    if (eventQuery == null || !UsageStatsBinary.readEvents(f, stats, beginTime,
+                            endTime, eventQuery, eventQuery.maxEvents - results.size())) {
+                        readStats(f, stats);
+                    }
                     if (beginTime < stats.endTime) {
                         combiner.combine(stats, false, results);
                     }
@@ -562,7 +592,7 @@ class UsageStatsDatabase {
                     try {
                         final AtomicFile af = new AtomicFile(f);
                         final IntervalStats stats = new IntervalStats();
-                        UsageStatsXml.read(af, stats);
+                        readStats(af, stats);
                         final int pkgCount = stats.packageStats.size();
                         for (int i = 0; i < pkgCount; i++) {
                             UsageStats pkgStats = stats.packageStats.valueAt(i);
@@ -570,7 +600,7 @@ class UsageStatsDatabase {
                                 pkgStats.mChooserCounts.clear();
                             }
                         }
-                        UsageStatsXml.write(af, stats);
+                        writeStats(af, stats);
                     } catch (IOException e) {
                         Slog.e(TAG, "Failed to delete chooser counts from usage stats file", e);
                     }
@@ -596,11 +626,25 @@ class UsageStatsDatabase {
                 mSortedStatFiles[intervalType].put(stats.beginTime, f);
             }
 
-            UsageStatsXml.write(f, stats);
+            writeStats(f, stats);
             stats.lastTimeSaved = f.getLastModifiedTime();
         }
     }
 
+    private static void readStats(AtomicFile file, IntervalStats statsOut) throws IOException {
+        if (!UsageStatsBinary.read(file, statsOut)) {
+            UsageStatsXml.read(file, statsOut);
+        }
+    }
+
+    private static void writeStats(AtomicFile file, IntervalStats stats) throws IOException {
+        if (WRITE_BINARY_STATS) {
+            UsageStatsBinary.write(file, stats);
+        } else {
+            UsageStatsXml.write(file, stats);
+        }
+    }
+
 
     /* Backup/Restore Code */
     byte[] getBackupPayload(String key) {
@@ -730,7 +774,7 @@ class UsageStatsDatabase {
             throws IOException {
         IntervalStats stats = new IntervalStats();
         try {
-            UsageStatsXml.read(statsFile, stats);
+            readStats(statsFile, stats);
         } catch (IOException e) {
             Slog.e(TAG, "Failed to read usage stats file", e);
             out.writeInt(0);
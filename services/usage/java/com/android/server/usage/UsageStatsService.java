@@ -26,6 +26,7 @@ import android.app.usage.ConfigurationStats;
 import android.app.usage.IUsageStatsManager;
 import android.app.usage.UsageEvents;
 import android.app.usage.UsageEvents.Event;
+import android.app.usage.UsageEventsCursor;
 import android.app.usage.UsageStats;
 import android.app.usage.UsageStatsManagerInternal;
 import android.app.usage.UsageStatsManagerInternal.AppIdleStateChangeListener;
@@ -887,6 +888,22 @@ public class UsageStatsService extends SystemService implements
         }
     }
 
+    /**
+     * Called by the Binder stub.
+     */
+    UsageEvents queryEvents(int userId, long beginTime, long endTime, EventQuery query) {
+        synchronized (mLock) {
+            final long timeNow = checkAndGetTimeLocked();
+            if (!validRange(timeNow, beginTime, endTime)) {
+                return null;
+            }
+
+            final UserUsageStatsService service =
+                    getUserDataAndInitializeIfNeededLocked(userId, timeNow);
+            return service.queryEvents(beginTime, endTime, query);
+        }
+    }
+
     private boolean isAppIdleUnfiltered(String packageName, int userId, long elapsedRealtime) {
         synchronized (mAppIdleLock) {
             return mAppIdleHistory.isIdle(packageName, userId, elapsedRealtime);
@@ -1450,6 +1467,31 @@ public class UsageStatsService extends SystemService implements
             }
         }
 
+        @Override
+        public UsageEvents queryEventsPage(long beginTime, long endTime, int[] eventTypes,
+                String packageName, int maxEvents, String callingPackage) {
+            if (!hasPermission(callingPackage)) {
+                return null;
+            }
+            if (maxEvents <= 0) {
+                throw new IllegalArgumentException("maxEvents must be positive");
+            }
+
+            final boolean obfuscateInstantApps = shouldObfuscateInstantAppsForCaller(
+                    Binder.getCallingUid(), UserHandle.getCallingUserId());
+            final EventQuery query = new EventQuery(eventTypes, packageName,
+                    obfuscateInstantApps,
+                    Math.min(maxEvents, UsageEventsCursor.MAX_PAGE_SIZE));
+
+            final int userId = UserHandle.getCallingUserId();
+            final long token = Binder.clearCallingIdentity();
+            try {
+                return UsageStatsService.this.queryEvents(userId, beginTime, endTime, query);
+            } finally {
+                Binder.restoreCallingIdentity(token);
+            }
+        }
+
         @Override
         public boolean isAppInactive(String packageName, int userId) {
             try {
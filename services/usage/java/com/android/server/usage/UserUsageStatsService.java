@@ -237,6 +237,15 @@ class UserUsageStatsService {
      */
     private <T> List<T> queryStats(int intervalType, final long beginTime, final long endTime,
             StatCombiner<T> combiner) {
+        return queryStats(intervalType, beginTime, endTime, combiner, null);
+    }
+
+    /**
+     * @param eventQuery if not null, the combiner only looks at the events this selects, and
+     *     stats read from disk may hold nothing but those events in the requested range.
+     */
+    private <T> List<T> queryStats(int intervalType, final long beginTime, final long endTime,
+            StatCombiner<T> combiner, EventQuery eventQuery) {
         if (intervalType == UsageStatsManager.INTERVAL_BEST) {
             intervalType = mDatabase.findBestFitBucket(beginTime, endTime);
             if (intervalType < 0) {
@@ -275,8 +284,9 @@ class UserUsageStatsService {
         final long truncatedEndTime = Math.min(currentStats.beginTime, endTime);
 
         // Get the stats from disk.
-        List<T> results = mDatabase.queryUsageStats(intervalType, beginTime,
-                truncatedEndTime, combiner);
+        List<T> results = eventQuery != null
+                ? mDatabase.queryEvents(beginTime, truncatedEndTime, eventQuery, combiner)
+                : mDatabase.queryUsageStats(intervalType, beginTime, truncatedEndTime, combiner);
         if (DEBUG) {
             Slog.d(TAG, "Got " + (results != null ? results.size() : 0) + " results from disk");
             Slog.d(TAG, "Current stats beginTime=" + currentStats.beginTime +
@@ -311,6 +321,15 @@ class UserUsageStatsService {
 
     UsageEvents queryEvents(final long beginTime, final long endTime,
             boolean obfuscateInstantApps) {
+        return queryEvents(beginTime, endTime,
+                new EventQuery(null, null, obfuscateInstantApps, Integer.MAX_VALUE));
+    }
+
+    /**
+     * Returns the first {@link EventQuery#maxEvents} events in the range that match
+     * {@code query}, or null if there are none.
+     */
+    UsageEvents queryEvents(final long beginTime, final long endTime, final EventQuery query) {
         final ArraySet<String> names = new ArraySet<>();
         List<UsageEvents.Event> results = queryStats(UsageStatsManager.INTERVAL_DAILY,
                 beginTime, endTime, new StatCombiner<UsageEvents.Event>() {
@@ -328,12 +347,16 @@ class UserUsageStatsService {
 
                         final int size = stats.events.size();
                         for (int i = startIndex; i < size; i++) {
-                            if (stats.events.keyAt(i) >= endTime) {
+                            if (stats.events.keyAt(i) >= endTime
+                                    || accumulatedResult.size() >= query.maxEvents) {
                                 return;
                             }
 
                             UsageEvents.Event event = stats.events.valueAt(i);
-                            if (obfuscateInstantApps) {
+                            if (!query.matches(event)) {
+                                continue;
+                            }
+                            if (query.obfuscateInstantApps) {
                                 event = event.getObfuscatedIfInstantApp();
                             }
                             names.add(event.mPackage);
@@ -343,7 +366,7 @@ class UserUsageStatsService {
                             accumulatedResult.add(event);
                         }
                     }
-                });
+                }, query);
 
         if (results == null || results.isEmpty()) {
             return null;
@@ -250,6 +250,50 @@ public class NetworkStatsCollectionTest extends AndroidTestCase {
                 0, NetworkStatsAccess.Level.DEVICE);
     }
 
+    public void testReadAppended() throws Exception {
+        final NetworkIdentitySet identSet = new NetworkIdentitySet();
+        identSet.add(new NetworkIdentity(TYPE_MOBILE, TelephonyManager.NETWORK_TYPE_UNKNOWN,
+                TEST_IMSI, null, false, true));
+        final int myUid = Process.myUid();
+        final int otherUid = Process.myUid() + 1;
+        final NetworkStats.Entry entry = new NetworkStats.Entry();
+
+        // Persisted collection, followed by a later delta appended to the same file
+        final ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        final NetworkStatsCollection persisted = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        entry.rxBytes = 32;
+        persisted.recordData(identSet, myUid, SET_DEFAULT, TAG_NONE, 0, HOUR_IN_MILLIS, entry);
+        entry.rxBytes = 64;
+        persisted.recordData(identSet, otherUid, SET_DEFAULT, TAG_NONE, 0, HOUR_IN_MILLIS,
+                entry);
+        persisted.write(new DataOutputStream(bytes));
+
+        final NetworkStatsCollection appended = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        entry.rxBytes = 16;
+        appended.recordData(identSet, myUid, SET_DEFAULT, TAG_NONE, 2 * HOUR_IN_MILLIS,
+                3 * HOUR_IN_MILLIS, entry);
+        appended.write(new DataOutputStream(bytes));
+
+        // And half of another append, as left behind by a crash
+        final ByteArrayOutputStream partial = new ByteArrayOutputStream();
+        appended.write(new DataOutputStream(partial));
+        bytes.write(partial.toByteArray(), 0, partial.size() / 2);
+
+        final NetworkStatsCollection all = new NetworkStatsCollection(HOUR_IN_MILLIS);
+        all.read(new ByteArrayInputStream(bytes.toByteArray()));
+        assertSummaryTotal(all, buildTemplateMobileAll(TEST_IMSI), 32 + 64 + 16, 0, 0, 0,
+                NetworkStatsAccess.Level.DEVICE);
+
+        // Only the requested uid and time range are kept
+        final NetworkStatsCollection mine = NetworkStatsCollection.forUid(HOUR_IN_MILLIS,
+                myUid, 0, HOUR_IN_MILLIS);
+        mine.read(new ByteArrayInputStream(bytes.toByteArray()));
+        assertSummaryTotal(mine, buildTemplateMobileAll(TEST_IMSI), 32, 0, 0, 0,
+                NetworkStatsAccess.Level.DEVICE);
+        MoreAsserts.assertEquals(new int[] { myUid },
+                mine.getRelevantUids(NetworkStatsAccess.Level.DEVICE, myUid));
+    }
+
     public void testAugmentPlan() throws Exception {
         final File testFile = new File(getContext().getFilesDir(), TEST_FILE);
         stageFile(R.raw.netstats_v1, testFile);